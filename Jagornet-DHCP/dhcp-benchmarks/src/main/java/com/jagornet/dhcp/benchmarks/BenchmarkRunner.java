@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file BenchmarkRunner.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Title: BenchmarkRunner
+ * Description: Runs the benchmarks with the JMH command line options,
+ * as the JMH main class does, but writes the results as JSON to
+ * target/jmh-results.json, unless a result format or file is given.
+ * The JSON results of two runs, e.g. before and after an upgrade, can
+ * be compared by the usual JMH tools.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class BenchmarkRunner
+{
+	public static final String DEFAULT_RESULT_FILE = "target/jmh-results.json";
+
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions cmdOptions = null;
+		try {
+			cmdOptions = new CommandLineOptions(args);
+		}
+		catch (CommandLineOptionException ex) {
+			System.err.println("Error parsing command line: " + ex.getMessage());
+			System.exit(1);
+		}
+		if (cmdOptions.shouldHelp() || cmdOptions.shouldList() ||
+				cmdOptions.shouldListWithParams() || cmdOptions.shouldListProfilers() ||
+				cmdOptions.shouldListResultFormats()) {
+			Main.main(args);
+			return;
+		}
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+		if (!cmdOptions.getResultFormat().hasValue() && !cmdOptions.getResult().hasValue()) {
+			File resultFile = new File(DEFAULT_RESULT_FILE);
+			if (resultFile.getParentFile() != null) {
+				resultFile.getParentFile().mkdirs();
+			}
+			builder.resultFormat(ResultFormatType.JSON).result(resultFile.getPath());
+		}
+		new Runner(builder.build()).run();
+	}
+}
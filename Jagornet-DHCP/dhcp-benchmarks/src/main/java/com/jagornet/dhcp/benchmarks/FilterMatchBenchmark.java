@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FilterMatchBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.xml.ClientClassExpression;
+import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.xml.FilterExpression;
+import com.jagornet.dhcp.server.config.xml.FilterExpressionsType;
+import com.jagornet.dhcp.server.config.xml.OpaqueData;
+import com.jagornet.dhcp.server.config.xml.Operator;
+import com.jagornet.dhcp.server.config.xml.OptionExpression;
+import com.jagornet.dhcp.server.config.xml.StringOptionType;
+import com.jagornet.dhcp.server.config.xml.V4VendorClassOption;
+
+/**
+ * Title: FilterMatchBenchmark
+ * Description: Matching of DHCPv4 requests against filters with option
+ * and client class expressions, for a request which matches, and one
+ * which fails on the last expression.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FilterMatchBenchmark
+{
+	private Filter equalsFilter;
+	private Filter regexpFilter;
+	private DhcpV4Message matchingMsg;
+	private DhcpV4Message otherMsg;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		equalsFilter = filter(hostnameExpression(Operator.STARTS_WITH, "host-"),
+				vendorClassExpression(Operator.EQUALS, "MSFT 5.0"));
+		regexpFilter = filter(hostnameExpression(Operator.REG_EXP, "host-[0-9]+"),
+				vendorClassExpression(Operator.REG_EXP, "MSFT .*"));
+		matchingMsg = message("host-42", "MSFT 5.0");
+		otherMsg = message("host-42", "docsis3.0");
+	}
+
+	private static FilterExpression hostnameExpression(Operator op, String hostname)
+	{
+		OptionExpression optexpr = new OptionExpression();
+		optexpr.setCode(DhcpConstants.V4OPTION_HOSTNAME);
+		optexpr.setV4(true);
+		optexpr.setOperator(op);
+		StringOptionType stringOption = new StringOptionType();
+		stringOption.setString(hostname);
+		optexpr.setStringOption(stringOption);
+		FilterExpression expression = new FilterExpression();
+		expression.setOptionExpression(optexpr);
+		return expression;
+	}
+
+	private static FilterExpression vendorClassExpression(Operator op, String vendorClass)
+	{
+		V4VendorClassOption vcOption = new V4VendorClassOption();
+		vcOption.setCode((short)DhcpConstants.V4OPTION_VENDOR_CLASS);
+		OpaqueData opaqueData = new OpaqueData();
+		opaqueData.setAsciiValue(vendorClass);
+		vcOption.setOpaqueData(opaqueData);
+		ClientClassExpression ccexpr = new ClientClassExpression();
+		ccexpr.setV4VendorClassOption(vcOption);
+		ccexpr.setOperator(op);
+		FilterExpression expression = new FilterExpression();
+		expression.setClientClassExpression(ccexpr);
+		return expression;
+	}
+
+	static Filter filter(FilterExpression... expressions)
+	{
+		FilterExpressionsType filterExprs = new FilterExpressionsType();
+		for (FilterExpression expression : expressions) {
+			filterExprs.getFilterExpressionList().add(expression);
+		}
+		Filter filter = new Filter();
+		filter.setName("benchmark");
+		filter.setFilterExpressions(filterExprs);
+		return filter;
+	}
+
+	static DhcpV4Message message(String hostname, String vendorClass)
+	{
+		DhcpV4Message msg = new DhcpV4Message(
+				new InetSocketAddress(DhcpConstants.V4_SERVER_PORT),
+				new InetSocketAddress(DhcpConstants.V4_CLIENT_PORT));
+		msg.putDhcpOption(new DhcpV4HostnameOption(hostname));
+		msg.putDhcpOption(new DhcpV4VendorClassOption(new BaseOpaqueData(vendorClass)));
+		return msg;
+	}
+
+	@Benchmark
+	public boolean equalsMatch()
+	{
+		return DhcpServerConfiguration.msgMatchesFilter(matchingMsg, equalsFilter);
+	}
+
+	@Benchmark
+	public boolean equalsNoMatch()
+	{
+		return DhcpServerConfiguration.msgMatchesFilter(otherMsg, equalsFilter);
+	}
+
+	@Benchmark
+	public boolean regexpMatch()
+	{
+		return DhcpServerConfiguration.msgMatchesFilter(matchingMsg, regexpFilter);
+	}
+
+	@Benchmark
+	public boolean regexpNoMatch()
+	{
+		return DhcpServerConfiguration.msgMatchesFilter(otherMsg, regexpFilter);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FreeListBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jagornet.dhcp.server.request.binding.FreeList;
+
+/**
+ * Title: FreeListBenchmark
+ * Description: Allocating and releasing addresses of one pool from
+ * several threads at once, for each type of free list.  Half of the
+ * pool is used before the measurement, so that the free list must
+ * search for the free addresses.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(4)
+@State(Scope.Benchmark)
+public class FreeListBenchmark
+{
+	private static final int POOL_SIZE = 65536;
+
+	@Param({ FreeList.BITSET_TYPE, FreeList.ATOMIC_TYPE })
+	public String type;
+
+	private FreeList freeList;
+	private BigInteger start;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		start = new BigInteger(InetAddress.getByName("10.0.0.0").getAddress());
+		BigInteger end = start.add(BigInteger.valueOf(POOL_SIZE - 1));
+		freeList = FreeList.createFreeList(start, end, type);
+		for (int i=0; i<POOL_SIZE; i+=2) {
+			freeList.setUsed(start.add(BigInteger.valueOf(i)));
+		}
+	}
+
+	/**
+	 * Allocate the next free address, and release it, as for a
+	 * DISCOVER whose offer is not accepted.
+	 */
+	@Benchmark
+	public BigInteger getNextFreeAndRelease()
+	{
+		BigInteger next = freeList.getNextFree();
+		if (next != null) {
+			freeList.setFree(next);
+		}
+		return next;
+	}
+
+	/**
+	 * Mark a random address used, and then free, as for the binding of
+	 * a client to a requested address.
+	 */
+	@Benchmark
+	public boolean setUsedAndFree()
+	{
+		BigInteger addr = start.add(BigInteger.valueOf(
+				1 + 2 * ThreadLocalRandom.current().nextInt(POOL_SIZE / 2)));
+		freeList.setUsed(addr);
+		boolean used = freeList.isUsed(addr);
+		freeList.setFree(addr);
+		return used;
+	}
+}
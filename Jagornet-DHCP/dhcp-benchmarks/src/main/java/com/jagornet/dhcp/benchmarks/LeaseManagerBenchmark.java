@@ -0,0 +1,204 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LeaseManagerBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.db.DbSchemaManager;
+import com.jagornet.dhcp.server.db.DhcpLease;
+import com.jagornet.dhcp.server.db.IdentityAssoc;
+import com.jagornet.dhcp.server.db.LeaseManager;
+
+/**
+ * Title: LeaseManagerBenchmark
+ * Description: Finding, updating, creating and deleting leases with
+ * the JDBC lease manager, for each of the embedded databases, with and
+ * without the IA and lease caches.  The databases are created under
+ * target/benchmark-home, unless jagornet.dhcp.home is set.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LeaseManagerBenchmark
+{
+	private static final int LEASE_COUNT = 1000;
+	private static final long LEASE_TIME = 60*1000;	// one minute
+
+	@Param({ "jdbc-h2", "jdbc-derby", "jdbc-sqlite" })
+	public String schemaType;
+
+	@Param({ "false", "true" })
+	public boolean cache;
+
+	private ClassPathXmlApplicationContext ctx;
+	private LeaseManager leaseManager;
+	private List<DhcpLease> leases;
+	private DhcpLease extraLease;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		if (System.getProperty("jagornet.dhcp.home") == null) {
+			System.setProperty("jagornet.dhcp.home",
+					new File("target/benchmark-home").getAbsolutePath());
+		}
+		File dbDir = new File(System.getProperty("jagornet.dhcp.home"), "db/" + schemaType);
+		if (dbDir.isDirectory()) {
+			// start with a fresh database
+			FileUtils.cleanDirectory(dbDir);
+		}
+		else {
+			FileUtils.forceMkdir(dbDir);
+		}
+		System.setProperty("derby.stream.error.file",
+				new File(dbDir, "derby.log").getAbsolutePath());
+
+		String cacheSize = cache ? Integer.toString(LEASE_COUNT * 10) : "0";
+		DhcpServerPolicies.setProperty(Property.DATABASE_SCHEMA_TYTPE, schemaType);
+		DhcpServerPolicies.setProperty(Property.DATABASE_SCHEMA_VERSION, "2");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_IA_CACHE_SIZE, cacheSize);
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_LEASE_CACHE_SIZE, cacheSize);
+
+		// only the database contexts, without the binding managers
+		// of the server, which need a server configuration
+		List<String> dbContexts = DbSchemaManager.getDbContextFiles(schemaType, 2);
+		ctx = new ClassPathXmlApplicationContext(dbContexts.toArray(new String[0]));
+		leaseManager = (LeaseManager) ctx.getBean("iaManager");
+
+		InetAddress startIp = InetAddress.getByName("10.0.0.0");
+		leases = createLeases(startIp, 0, LEASE_COUNT);
+		for (DhcpLease lease : leases) {
+			leaseManager.createIA(LeaseManager.toIdentityAssoc(lease), null);
+		}
+		extraLease = createLeases(startIp, LEASE_COUNT, 1).get(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		if (ctx != null) {
+			ctx.close();
+		}
+		if (schemaType.contains("derby")) {
+			try {
+				DriverManager.getConnection("jdbc:derby:;shutdown=true");
+			}
+			catch (SQLException ex) {
+				// XJ015 is the normal result of the shutdown
+				if (!"XJ015".equals(ex.getSQLState())) {
+					throw ex;
+				}
+			}
+		}
+	}
+
+	private static List<DhcpLease> createLeases(InetAddress startIp, int first, int count)
+			throws Exception
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		Date now = new Date();
+		Date end = new Date(now.getTime() + LEASE_TIME);
+		for (int i=first; i<first+count; i++) {
+			DhcpLease lease = new DhcpLease();
+			BigInteger ip = new BigInteger(startIp.getAddress()).add(BigInteger.valueOf(i));
+			lease.setIpAddress(InetAddress.getByAddress(ip.toByteArray()));
+			lease.setDuid(BigInteger.valueOf(i).toByteArray());
+			lease.setIaid(1);
+			lease.setIatype((byte)1);
+			lease.setStartTime(now);
+			lease.setPreferredEndTime(end);
+			lease.setValidEndTime(end);
+			leases.add(lease);
+		}
+		return leases;
+	}
+
+	private DhcpLease randomLease()
+	{
+		return leases.get(ThreadLocalRandom.current().nextInt(LEASE_COUNT));
+	}
+
+	@Benchmark
+	public IdentityAssoc findIA()
+	{
+		DhcpLease lease = randomLease();
+		return leaseManager.findIA(lease.getDuid(), lease.getIatype(), lease.getIaid());
+	}
+
+	@Benchmark
+	public void updateIA()
+	{
+		DhcpLease lease = randomLease().clone();
+		Date now = new Date();
+		Date end = new Date(now.getTime() + LEASE_TIME);
+		lease.setStartTime(now);
+		lease.setPreferredEndTime(end);
+		lease.setValidEndTime(end);
+		leaseManager.updateIA(LeaseManager.toIdentityAssoc(lease), null,
+				Arrays.asList(LeaseManager.toIaAddress(lease)), null, null);
+	}
+
+	@Benchmark
+	public void createAndDeleteIA()
+	{
+		IdentityAssoc ia = LeaseManager.toIdentityAssoc(extraLease);
+		leaseManager.createIA(ia, null);
+		leaseManager.deleteIA(ia);
+	}
+}
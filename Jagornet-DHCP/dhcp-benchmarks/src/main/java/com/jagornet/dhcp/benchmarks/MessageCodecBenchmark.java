@@ -0,0 +1,180 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file MessageCodecBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ClientIdOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ParamRequestOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RequestedIpAddressOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ElapsedTimeOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6IaNaOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6OptionRequestOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+/**
+ * Title: MessageCodecBenchmark
+ * Description: Encoding and decoding of typical DHCPv4 and DHCPv6
+ * client messages.  The options of a DHCPv4 message are decoded when
+ * first used, so the decoding is measured with and without the options.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class MessageCodecBenchmark
+{
+	private static final InetSocketAddress V4_SERVER_ADDR =
+			new InetSocketAddress(DhcpConstants.V4_SERVER_PORT);
+	private static final InetSocketAddress V4_RELAY_ADDR =
+			new InetSocketAddress("10.0.0.1", DhcpConstants.V4_SERVER_PORT);
+	private static final InetSocketAddress V6_SERVER_ADDR =
+			new InetSocketAddress(DhcpConstants.V6_SERVER_PORT);
+	private static final InetSocketAddress V6_CLIENT_ADDR =
+			new InetSocketAddress("fe80::a", DhcpConstants.V6_CLIENT_PORT);
+
+	private DhcpV4Message v4Message;
+	private byte[] v4Packet;
+	private DhcpV6Message v6Message;
+	private byte[] v6Packet;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		v4Message = buildV4Discover();
+		v4Packet = toBytes(v4Message.encode());
+		v6Message = buildV6Solicit();
+		v6Packet = toBytes(v6Message.encode());
+	}
+
+	private static byte[] toBytes(ByteBuffer buf)
+	{
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	}
+
+	static DhcpV4Message buildV4Discover() throws Exception
+	{
+		DhcpV4Message msg = new DhcpV4Message(V4_SERVER_ADDR, V4_RELAY_ADDR);
+		msg.setOp((short)DhcpConstants.V4_OP_REQUEST);
+		msg.setHtype((short)1);
+		msg.setHlen((short)6);
+		msg.setHops((short)1);
+		msg.setTransactionId(0x12345678L);
+		msg.setGiAddr(InetAddress.getByName("10.0.0.1"));
+		msg.setChAddr(new byte[] { 0x00, 0x0c, 0x29, 0x01, 0x02, 0x03 });
+		msg.putDhcpOption(new DhcpV4MsgTypeOption((short)DhcpConstants.V4MESSAGE_TYPE_DISCOVER));
+		msg.putDhcpOption(new DhcpV4ClientIdOption(
+				new BaseOpaqueData(new byte[] { 0x01, 0x00, 0x0c, 0x29, 0x01, 0x02, 0x03 })));
+		msg.putDhcpOption(new DhcpV4HostnameOption("benchmark-client"));
+		msg.putDhcpOption(new DhcpV4RequestedIpAddressOption("10.0.0.100"));
+		msg.putDhcpOption(new DhcpV4VendorClassOption(new BaseOpaqueData("MSFT 5.0")));
+		msg.putDhcpOption(new DhcpV4ParamRequestOption(
+				Arrays.asList((short)1, (short)3, (short)6, (short)15, (short)51, (short)54)));
+		return msg;
+	}
+
+	static DhcpV6Message buildV6Solicit() throws Exception
+	{
+		DhcpV6Message msg = new DhcpV6Message(V6_SERVER_ADDR, V6_CLIENT_ADDR);
+		msg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_SOLICIT);
+		msg.setTransactionId(0x123456);
+		DhcpV6ClientIdOption clientId = new DhcpV6ClientIdOption();
+		clientId.setOpaqueData(new BaseOpaqueData(
+				new byte[] { 0x00, 0x01, 0x00, 0x01, 0x1c, 0x39, (byte)0xcf, (byte)0x88,
+							 0x00, 0x0c, 0x29, 0x01, 0x02, 0x03 }));
+		msg.putDhcpOption(clientId);
+		msg.putDhcpOption(new DhcpV6ElapsedTimeOption());
+		msg.putDhcpOption(new DhcpV6OptionRequestOption(
+				Arrays.asList(DhcpConstants.V6OPTION_DNS_SERVERS,
+						DhcpConstants.V6OPTION_DOMAIN_SEARCH_LIST)));
+		msg.putDhcpOption(new DhcpV6IaNaOption(1, 0, 0));
+		return msg;
+	}
+
+	@Benchmark
+	public ByteBuffer encodeV4() throws IOException
+	{
+		return v4Message.encode();
+	}
+
+	@Benchmark
+	public DhcpV4Message decodeV4() throws IOException
+	{
+		return DhcpV4Message.decode(ByteBuffer.wrap(v4Packet), V4_SERVER_ADDR, V4_RELAY_ADDR);
+	}
+
+	@Benchmark
+	public void decodeV4AllOptions(Blackhole bh) throws IOException
+	{
+		DhcpV4Message msg = DhcpV4Message.decode(ByteBuffer.wrap(v4Packet),
+				V4_SERVER_ADDR, V4_RELAY_ADDR);
+		bh.consume(msg.getDhcpOptions());
+	}
+
+	@Benchmark
+	public ByteBuffer encodeV6() throws IOException
+	{
+		return v6Message.encode();
+	}
+
+	@Benchmark
+	public void decodeV6(Blackhole bh) throws IOException
+	{
+		DhcpV6Message msg = DhcpV6Message.decode(ByteBuffer.wrap(v6Packet),
+				V6_SERVER_ADDR, V6_CLIENT_ADDR);
+		bh.consume(msg.getDhcpOptions());
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file PolicyBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.xml.FilterExpression;
+import com.jagornet.dhcp.server.config.xml.FiltersType;
+import com.jagornet.dhcp.server.config.xml.Link;
+import com.jagornet.dhcp.server.config.xml.OptionExpression;
+import com.jagornet.dhcp.server.config.xml.Operator;
+import com.jagornet.dhcp.server.config.xml.PoliciesType;
+import com.jagornet.dhcp.server.config.xml.Policy;
+import com.jagornet.dhcp.server.config.xml.StringOptionType;
+import com.jagornet.dhcp.server.config.xml.V4AddressPool;
+import com.jagornet.dhcp.server.request.binding.V4AddressBindingPool;
+
+/**
+ * Title: PolicyBenchmark
+ * Description: Resolution of a policy value through the hierarchy of
+ * the server, from the global value, through a link and a pool, to a
+ * filter of the pool which matches the request.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PolicyBenchmark
+{
+	private Link link;
+	private V4AddressBindingPool bindingPool;
+	private V4AddressBindingPool filteredBindingPool;
+	private DhcpV4Message requestMsg;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		DhcpServerConfiguration.getInstance().setGlobalPolicies(
+				policies("v4.defaultLeasetime", "3600"));
+
+		link = new Link();
+		link.setAddress("10.0.0.0/24");
+		link.setPolicies(policies("v4.defaultLeasetime", "7200"));
+
+		V4AddressPool pool = new V4AddressPool();
+		pool.setRange("10.0.0.10-10.0.0.99");
+		pool.setPolicies(policies("v4.defaultLeasetime", "1800"));
+		bindingPool = new V4AddressBindingPool(pool);
+
+		OptionExpression optexpr = new OptionExpression();
+		optexpr.setCode(DhcpConstants.V4OPTION_HOSTNAME);
+		optexpr.setV4(true);
+		optexpr.setOperator(Operator.STARTS_WITH);
+		StringOptionType stringOption = new StringOptionType();
+		stringOption.setString("host-");
+		optexpr.setStringOption(stringOption);
+		FilterExpression expression = new FilterExpression();
+		expression.setOptionExpression(optexpr);
+		Filter filter = FilterMatchBenchmark.filter(expression);
+		filter.setPolicies(policies("v4.defaultLeasetime", "600"));
+		FiltersType filters = new FiltersType();
+		filters.getFilterList().add(filter);
+		V4AddressPool filteredPool = new V4AddressPool();
+		filteredPool.setRange("10.0.0.100-10.0.0.199");
+		filteredPool.setFilters(filters);
+		filteredBindingPool = new V4AddressBindingPool(filteredPool);
+
+		requestMsg = FilterMatchBenchmark.message("host-42", "MSFT 5.0");
+	}
+
+	private static PoliciesType policies(String name, String value)
+	{
+		PoliciesType policies = new PoliciesType();
+		Policy policy = new Policy();
+		policy.setName(name);
+		policy.setValue(value);
+		policies.getPolicyList().add(policy);
+		return policies;
+	}
+
+	@Benchmark
+	public long globalPolicy()
+	{
+		return DhcpServerPolicies.globalPolicyAsLong(Property.V4_DEFAULT_LEASETIME);
+	}
+
+	@Benchmark
+	public long linkPolicy()
+	{
+		return DhcpServerPolicies.effectivePolicyAsLong(link, Property.V4_DEFAULT_LEASETIME);
+	}
+
+	@Benchmark
+	public long poolPolicy()
+	{
+		return DhcpServerPolicies.effectivePolicyAsLong(requestMsg, bindingPool,
+				link, Property.V4_DEFAULT_LEASETIME);
+	}
+
+	@Benchmark
+	public long filterPolicy()
+	{
+		return DhcpServerPolicies.effectivePolicyAsLong(requestMsg, filteredBindingPool,
+				link, Property.V4_DEFAULT_LEASETIME);
+	}
+
+	/**
+	 * A policy which is set nowhere in the hierarchy, so every level
+	 * is searched before the server value is used.
+	 */
+	@Benchmark
+	public int defaultPolicy()
+	{
+		return DhcpServerPolicies.effectivePolicyAsInt(requestMsg, filteredBindingPool,
+				link, Property.V4_PINGCHECK_TIMEOUT);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file V4OptionDecodeBenchmark.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.base.DhcpOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ClientIdOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4DomainNameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4DomainServersOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4LeaseTimeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4OptionFactory;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ParamRequestOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RequestedIpAddressOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RoutersOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ServerIdOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4SubnetMaskOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+/**
+ * Title: V4OptionDecodeBenchmark
+ * Description: Decoding of the options of typical DHCPv4 requests and
+ * replies, through the DhcpV4OptionFactory, as a message decodes them.
+ * 
+ * @author A. Gregory Rabil
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class V4OptionDecodeBenchmark
+{
+	/** The encoded options: the code, the length and the data. */
+	private byte[][] encodedOptions;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		List<DhcpOption> options = new ArrayList<DhcpOption>();
+		options.add(new DhcpV4MsgTypeOption((short)DhcpConstants.V4MESSAGE_TYPE_REQUEST));
+		options.add(new DhcpV4ClientIdOption(
+				new BaseOpaqueData(new byte[] { 0x01, 0x00, 0x0c, 0x29, 0x01, 0x02, 0x03 })));
+		options.add(new DhcpV4HostnameOption("benchmark-client"));
+		options.add(new DhcpV4RequestedIpAddressOption("10.0.0.100"));
+		options.add(new DhcpV4VendorClassOption(new BaseOpaqueData("MSFT 5.0")));
+		options.add(new DhcpV4ParamRequestOption(
+				Arrays.asList((short)1, (short)3, (short)6, (short)15, (short)51, (short)54)));
+		options.add(new DhcpV4ServerIdOption("10.0.0.2"));
+		options.add(new DhcpV4SubnetMaskOption("255.255.255.0"));
+		options.add(new DhcpV4RoutersOption(Arrays.asList("10.0.0.1")));
+		options.add(new DhcpV4DomainServersOption(Arrays.asList("10.0.0.53", "10.0.1.53")));
+		options.add(new DhcpV4DomainNameOption("example.com."));
+		options.add(new DhcpV4LeaseTimeOption(3600));
+		encodedOptions = new byte[options.size()][];
+		for (int i=0; i<options.size(); i++) {
+			ByteBuffer buf = options.get(i).encode();
+			encodedOptions[i] = new byte[buf.remaining()];
+			buf.get(encodedOptions[i]);
+		}
+	}
+
+	@Benchmark
+	public void decodeOptions(Blackhole bh) throws IOException
+	{
+		for (byte[] encoded : encodedOptions) {
+			DhcpOption option = DhcpV4OptionFactory.getDhcpOption(encoded[0] & 0xff);
+			// the option decodes the length and the data that follow the code
+			option.decode(ByteBuffer.wrap(encoded, 1, encoded.length - 1));
+			bh.consume(option);
+		}
+	}
+
+	@Benchmark
+	public void createOptions(Blackhole bh)
+	{
+		for (byte[] encoded : encodedOptions) {
+			bh.consume(DhcpV4OptionFactory.getDhcpOption(encoded[0] & 0xff));
+		}
+	}
+}
@@ -78,7 +78,10 @@ import com.jagornet.dhcp.core.util.Util;
  * to a DHCPv4 server via unicast, as if sent via a relay.
  * 
  * @author A. Gregory Rabil
+ * @deprecated use {@link LoadGenerator}, which runs thousands of clients
+ * on a few event loops, and reports latency percentiles
  */
+@Deprecated
 @ChannelHandler.Sharable
 public class ClientSimulatorV4 extends SimpleChannelUpstreamHandler
 {
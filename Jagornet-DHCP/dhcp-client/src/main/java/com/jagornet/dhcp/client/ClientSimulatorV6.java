@@ -82,7 +82,10 @@ import com.jagornet.dhcp.core.util.Util;
  * to a DHCPv6 server via multicast.
  * 
  * @author A. Gregory Rabil
+ * @deprecated use {@link LoadGenerator} with the -6 option, which runs
+ * thousands of clients on a few event loops, and reports latency percentiles
  */
+@Deprecated
 @ChannelHandler.Sharable
 public class ClientSimulatorV6 extends SimpleChannelUpstreamHandler
 {
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LatencyHistogram.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Title: LatencyHistogram
+ * Description: A thread safe histogram of latencies, with buckets of
+ * logarithmic size, in the manner of HdrHistogram.  Values below 128
+ * are counted exactly, and every power of two above that is split into
+ * 64 buckets, so any percentile is reported within 1.6% of the value
+ * which was recorded, using a fixed array of counts.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LatencyHistogram
+{
+	/** The number of bits of the value which are counted exactly. */
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+	private static final int BUCKET_COUNT =
+			SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value the value, where negative values are recorded as zero
+	 */
+	public void record(long value)
+	{
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m = min.get();
+		while ((value < m) && !min.compareAndSet(m, value)) {
+			m = min.get();
+		}
+		m = max.get();
+		while ((value > m) && !max.compareAndSet(m, value)) {
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Add all the values of another histogram to this one.
+	 *
+	 * @param other the other histogram
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			long c = other.counts.get(i);
+			if (c > 0) {
+				counts.addAndGet(i, c);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m = min.get();
+		long o = other.min.get();
+		while ((o < m) && !min.compareAndSet(m, o)) {
+			m = min.get();
+		}
+		m = max.get();
+		o = other.max.get();
+		while ((o > m) && !max.compareAndSet(m, o)) {
+			m = max.get();
+		}
+	}
+
+	static int indexOf(long value)
+	{
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exp - (SUB_BUCKET_BITS - 1);
+		int sub = (int) (value >>> shift);
+		return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (sub - SUB_BUCKET_HALF);
+	}
+
+	/**
+	 * @param index the index of a bucket
+	 * @return the highest value which is counted in the bucket
+	 */
+	static long highestValueAt(int index)
+	{
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+		long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * Get the value at a percentile, as the highest value of the
+	 * bucket which holds it, but never more than the largest value.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the value, or zero if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i=0; i<BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueAt(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public long getMin()
+	{
+		return (count.get() > 0) ? min.get() : 0;
+	}
+
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	public double getMean()
+	{
+		long total = count.get();
+		return (total > 0) ? (double) sum.get() / total : 0;
+	}
+}
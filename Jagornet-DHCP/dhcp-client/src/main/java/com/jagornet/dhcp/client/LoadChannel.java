@@ -0,0 +1,303 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LoadChannel.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.core.option.v6.DhcpV6RelayOption;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+
+/**
+ * Title: LoadChannel
+ * Description: One socket of the load generator, with the virtual
+ * clients which send from it.  The channel, its clients, and the map
+ * of the transaction ids which are waiting for replies, are only used
+ * from the event loop of the channel.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LoadChannel extends SimpleChannelInboundHandler<DatagramPacket>
+{
+	private static Logger log = LoggerFactory.getLogger(LoadChannel.class);
+
+	private final LoadGenerator generator;
+	private final int index;
+	private Channel channel;
+
+	private final Map<Long, VirtualClient> pending = new HashMap<Long, VirtualClient>();
+	private final ArrayDeque<VirtualClient> idle = new ArrayDeque<VirtualClient>();
+	private long xidSeq;
+
+	private long startNanos;
+	private double rate;
+	private long arrivals;
+	private ScheduledFuture<?> ticker;
+
+	public LoadChannel(LoadGenerator generator, int index)
+	{
+		this.generator = generator;
+		this.index = index;
+	}
+
+	void setChannel(Channel channel)
+	{
+		this.channel = channel;
+	}
+
+	public Channel getChannel()
+	{
+		return channel;
+	}
+
+	public LoadStats getStats()
+	{
+		return generator.getStats();
+	}
+
+	public InetSocketAddress getServer()
+	{
+		return generator.getServer();
+	}
+
+	public LoadGenerator getGenerator()
+	{
+		return generator;
+	}
+
+	public int getRetries()
+	{
+		return generator.getRetries();
+	}
+
+	/**
+	 * Add an idle client, before the test starts.
+	 */
+	void addClient(VirtualClient client)
+	{
+		idle.add(client);
+	}
+
+	/**
+	 * @return a transaction id, unique among the channels, which fits
+	 * in 32 bits for DHCPv4 and in 24 bits for DHCPv6
+	 */
+	public long nextXid()
+	{
+		long mask = generator.isV6() ? 0xffffffL : 0xffffffffL;
+		long xid;
+		do {
+			xid = (xidSeq++ * generator.getChannelCount() + index + 1) & mask;
+		} while (pending.containsKey(xid));
+		return xid;
+	}
+
+	void register(long xid, VirtualClient client)
+	{
+		pending.put(xid, client);
+	}
+
+	void unregister(long xid, VirtualClient client)
+	{
+		if (pending.get(xid) == client) {
+			pending.remove(xid);
+		}
+	}
+
+	void send(ByteBuffer buf)
+	{
+		channel.writeAndFlush(new DatagramPacket(
+				Unpooled.wrappedBuffer(buf.duplicate()), generator.getServer()));
+	}
+
+	ScheduledFuture<?> schedule(Runnable task)
+	{
+		return channel.eventLoop().schedule(task, generator.getTimeoutMillis(),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called by a client at the end of its transaction.  In closed loop
+	 * mode the client starts its next transaction at once, otherwise it
+	 * waits for an arrival.
+	 */
+	void done(final VirtualClient client)
+	{
+		generator.transactionDone();
+		if (generator.isClosedLoop() && generator.reserve()) {
+			// start from the event loop, rather than recursing
+			channel.eventLoop().execute(new Runnable() {
+				@Override
+				public void run() {
+					startClient(client, System.nanoTime());
+				}
+			});
+		}
+		else {
+			idle.add(client);
+		}
+	}
+
+	private void startClient(VirtualClient client, long intendedNanos)
+	{
+		generator.transactionStarted();
+		client.start(generator.nextWorkload(), intendedNanos);
+	}
+
+	/**
+	 * Start every client, for a closed loop test.
+	 */
+	void startClosedLoop()
+	{
+		channel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				VirtualClient client;
+				while ((client = idle.poll()) != null) {
+					if (!generator.reserve()) {
+						idle.addFirst(client);
+						break;
+					}
+					startClient(client, now);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start the arrivals of an open loop test, which are scheduled at a
+	 * fixed rate whether or not the server keeps up.  An arrival which
+	 * finds no idle client is counted as an overrun.
+	 *
+	 * @param startNanos the start of the test
+	 * @param rate the arrivals per second on this channel
+	 */
+	void startOpenLoop(final long startNanos, final double rate)
+	{
+		channel.eventLoop().execute(new Runnable() {
+			@Override
+			public void run() {
+				LoadChannel.this.startNanos = startNanos;
+				LoadChannel.this.rate = rate;
+				ticker = channel.eventLoop().scheduleAtFixedRate(new Runnable() {
+					@Override
+					public void run() {
+						arrive();
+					}
+				}, 0, 1, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	private void arrive()
+	{
+		long now = System.nanoTime();
+		long due = (long) ((now - startNanos) * rate / 1e9) + 1;
+		while (arrivals < due) {
+			long intended = startNanos + (long) (arrivals * 1e9 / rate);
+			arrivals++;
+			if (!generator.reserve()) {
+				ticker.cancel(false);
+				return;
+			}
+			VirtualClient client = idle.poll();
+			if (client != null) {
+				startClient(client, intended);
+			}
+			else {
+				getStats().overrun();
+			}
+		}
+	}
+
+	@Override
+	protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception
+	{
+		ByteBuffer buf = packet.content().nioBuffer();
+		InetSocketAddress local = packet.recipient();
+		InetSocketAddress remote = packet.sender();
+		Object reply = null;
+		long xid = -1;
+		try {
+			if (generator.isV6()) {
+				DhcpV6Message msg = DhcpV6Message.decode(buf, local, remote);
+				// the client message is inside the relay message(s)
+				while (msg instanceof DhcpV6RelayMessage) {
+					DhcpV6RelayOption relayOption = ((DhcpV6RelayMessage) msg).getRelayOption();
+					msg = (relayOption != null) ? relayOption.getDhcpMessage() : null;
+				}
+				if (msg != null) {
+					xid = msg.getTransactionId();
+					reply = msg;
+				}
+			}
+			else {
+				DhcpV4Message msg = DhcpV4Message.decode(buf, local, remote);
+				if (msg != null) {
+					xid = msg.getTransactionId();
+					reply = msg;
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.debug("Failed to decode reply: " + ex);
+		}
+		if (reply == null) {
+			getStats().decodeError();
+			return;
+		}
+		VirtualClient client = pending.get(xid);
+		if (client != null) {
+			client.replyReceived(reply);
+		}
+		else {
+			getStats().unmatched();
+		}
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception
+	{
+		log.error("Exception caught on load channel " + index + ": " + cause);
+	}
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LoadGenerator.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+
+/**
+ * Title: LoadGenerator
+ * Description: A load generator for a DHCPv4 or DHCPv6 server.  Thousands
+ * of virtual clients share a few Netty event loops, and each socket of the
+ * generator serves a slice of the clients.
+ * <p>
+ * In closed loop mode every client starts its next transaction as soon as
+ * the last one ends, which finds the throughput of the server.  In open loop
+ * mode transactions arrive at a fixed rate whether or not the server keeps
+ * up, and the latency of each transaction is measured from the time it was
+ * due to start, which finds the latency of the server at a given load.
+ * <p>
+ * The workload is a weighted mix of DORA (SOLICIT/ADVERTISE/REQUEST/REPLY
+ * for DHCPv6), renew, rebind, release, and DORA through a relay agent.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LoadGenerator
+{
+	private static Logger log = LoggerFactory.getLogger(LoadGenerator.class);
+
+	/**
+	 * The kinds of transaction of a load test.
+	 */
+	public enum Workload { DORA, RENEW, REBIND, RELEASE, RELAY }
+
+	protected Options options = new Options();
+	protected CommandLineParser parser = new BasicParser();
+
+	protected boolean v6 = false;
+	protected InetAddress serverAddr;
+	protected int serverPort = -1;
+	protected InetAddress clientAddr;
+	protected int clientPort = 0;		// ephemeral
+	protected InetAddress relayAddr;
+	protected int numClients = 1000;
+	protected int numEventLoops = 2;
+	protected int numChannels = 0;		// one per event loop
+	protected boolean closedLoop = true;
+	protected double rate = 1000;
+	protected int duration = 30;
+	protected long count = 0;
+	protected String mix = "dora=100";
+	protected int timeoutMillis = 2000;
+	protected int retries = 1;
+	protected int reportInterval = 5;
+	protected String csvFile;
+	protected String jsonFile;
+
+	private InetSocketAddress server;
+	private LoadStats stats;
+	private Workload[] workloads;
+	private int[] weights;
+	private int totalWeight;
+	private Workload bindWorkload = Workload.DORA;
+
+	private volatile boolean stopping;
+	private final AtomicLong reserved = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	public LoadGenerator()
+	{
+		setupOptions();
+	}
+
+	/**
+	 * Setup options.
+	 */
+	private void setupOptions()
+	{
+		options.addOption(new Option("6", "v6", false,
+				"Test a DHCPv6 server, rather than a DHCPv4 server"));
+		options.addOption(new Option("sa", "serveraddress", true,
+				"Address of DHCP Server [loopback]"));
+		options.addOption(new Option("sp", "serverport", true,
+				"Server Port Number [" + DhcpConstants.V4_SERVER_PORT +
+				" or " + DhcpConstants.V6_SERVER_PORT + "]"));
+		options.addOption(new Option("ca", "clientaddress", true,
+				"Local address of the generator [loopback]"));
+		options.addOption(new Option("cp", "clientport", true,
+				"First local port of the generator, or 0 for ephemeral ports" +
+				" [" + clientPort + "]"));
+		options.addOption(new Option("ra", "relayaddress", true,
+				"Relay address, the giaddr or link-address of relayed clients" +
+				" [client address]"));
+		options.addOption(new Option("c", "clients", true,
+				"Number of virtual clients [" + numClients + "]"));
+		options.addOption(new Option("e", "eventloops", true,
+				"Number of event loop threads [" + numEventLoops + "]"));
+		options.addOption(new Option("ch", "channels", true,
+				"Number of sockets [number of event loops]"));
+		options.addOption(new Option("m", "mode", true,
+				"Load mode: closed or open [closed]"));
+		options.addOption(new Option("r", "rate", true,
+				"Transactions per second, for open loop mode [" + (long)rate + "]"));
+		options.addOption(new Option("d", "duration", true,
+				"Duration of the test in seconds, or 0 for no limit" +
+				" [" + duration + ", or 0 with -n]"));
+		options.addOption(new Option("n", "number", true,
+				"Number of transactions to run, or 0 for no limit [" + count + "]"));
+		options.addOption(new Option("w", "workload", true,
+				"Workload mix of dora, renew, rebind, release and relay," +
+				" such as dora=20,renew=70,release=10 [" + mix + "]"));
+		options.addOption(new Option("to", "timeout", true,
+				"Retransmit timeout in milliseconds [" + timeoutMillis + "]"));
+		options.addOption(new Option("rt", "retries", true,
+				"Number of retransmits before a timeout [" + retries + "]"));
+		options.addOption(new Option("i", "interval", true,
+				"Seconds between progress reports [" + reportInterval + "]"));
+		options.addOption(new Option("csv", "csvfile", true,
+				"Write the results to a CSV file"));
+		options.addOption(new Option("json", "jsonfile", true,
+				"Write the results to a JSON file"));
+		options.addOption(new Option("?", "help", false, "Show this help page."));
+	}
+
+	protected int parseIntegerOption(String opt, String str, int defval)
+	{
+		try {
+			return Integer.parseInt(str);
+		}
+		catch (NumberFormatException ex) {
+			System.err.println("Invalid " + opt + " '" + str +
+								"' using default: " + defval +
+								" Exception=" + ex);
+			return defval;
+		}
+	}
+
+	protected InetAddress parseIpAddressOption(String opt, String str, InetAddress defaddr)
+	{
+		try {
+			return InetAddress.getByName(str);
+		}
+		catch (UnknownHostException ex) {
+			System.err.println("Invalid " + opt + " address: '" + str +
+								"' using default: " + defaddr +
+								" Exception=" + ex);
+			return defaddr;
+		}
+	}
+
+	/**
+	 * Parses the options.
+	 *
+	 * @param args the args
+	 *
+	 * @return true, if successful
+	 */
+	public boolean parseOptions(String[] args)
+	{
+		try {
+			CommandLine cmd = parser.parse(options, args);
+			if (cmd.hasOption("?")) {
+				return false;
+			}
+			v6 = cmd.hasOption("6");
+			InetAddress loopback = v6 ? InetAddress.getByName("::1") :
+										InetAddress.getByName("127.0.0.1");
+			serverAddr = loopback;
+			if (cmd.hasOption("sa")) {
+				serverAddr = parseIpAddressOption("server", cmd.getOptionValue("sa"), loopback);
+			}
+			serverPort = v6 ? DhcpConstants.V6_SERVER_PORT : DhcpConstants.V4_SERVER_PORT;
+			if (cmd.hasOption("sp")) {
+				serverPort = parseIntegerOption("server port", cmd.getOptionValue("sp"), serverPort);
+			}
+			clientAddr = loopback;
+			if (cmd.hasOption("ca")) {
+				clientAddr = parseIpAddressOption("client", cmd.getOptionValue("ca"), loopback);
+			}
+			if (cmd.hasOption("cp")) {
+				clientPort = parseIntegerOption("client port", cmd.getOptionValue("cp"), clientPort);
+			}
+			relayAddr = clientAddr;
+			if (cmd.hasOption("ra")) {
+				relayAddr = parseIpAddressOption("relay", cmd.getOptionValue("ra"), clientAddr);
+			}
+			if (cmd.hasOption("c")) {
+				numClients = parseIntegerOption("clients", cmd.getOptionValue("c"), numClients);
+			}
+			if (cmd.hasOption("e")) {
+				numEventLoops = parseIntegerOption("event loops", cmd.getOptionValue("e"), numEventLoops);
+			}
+			if (cmd.hasOption("ch")) {
+				numChannels = parseIntegerOption("channels", cmd.getOptionValue("ch"), numChannels);
+			}
+			if (cmd.hasOption("m")) {
+				String mode = cmd.getOptionValue("m");
+				if ("open".equalsIgnoreCase(mode)) {
+					closedLoop = false;
+				}
+				else if (!"closed".equalsIgnoreCase(mode)) {
+					System.err.println("Invalid mode '" + mode + "', must be closed or open");
+					return false;
+				}
+			}
+			if (cmd.hasOption("r")) {
+				rate = parseIntegerOption("rate", cmd.getOptionValue("r"), (int)rate);
+			}
+			if (cmd.hasOption("n")) {
+				count = parseIntegerOption("number", cmd.getOptionValue("n"), 0);
+				if (!cmd.hasOption("d")) {
+					duration = 0;
+				}
+			}
+			if (cmd.hasOption("d")) {
+				duration = parseIntegerOption("duration", cmd.getOptionValue("d"), duration);
+			}
+			if (cmd.hasOption("w")) {
+				mix = cmd.getOptionValue("w");
+			}
+			if (cmd.hasOption("to")) {
+				timeoutMillis = parseIntegerOption("timeout", cmd.getOptionValue("to"), timeoutMillis);
+			}
+			if (cmd.hasOption("rt")) {
+				retries = parseIntegerOption("retries", cmd.getOptionValue("rt"), retries);
+			}
+			if (cmd.hasOption("i")) {
+				reportInterval = parseIntegerOption("interval", cmd.getOptionValue("i"), reportInterval);
+			}
+			csvFile = cmd.getOptionValue("csv");
+			jsonFile = cmd.getOptionValue("json");
+		}
+		catch (ParseException pe) {
+			System.err.println("Command line option parsing failure: " + pe);
+			return false;
+		}
+		catch (UnknownHostException ex) {
+			System.err.println("Failed to get loopback address: " + ex);
+			return false;
+		}
+		return validate();
+	}
+
+	/**
+	 * Check the settings, and parse the workload mix.
+	 *
+	 * @return true, if the settings are valid
+	 */
+	protected boolean validate()
+	{
+		if ((numClients <= 0) || (numEventLoops <= 0) || (numChannels < 0)) {
+			System.err.println("The number of clients, event loops and channels must be positive");
+			return false;
+		}
+		if (!closedLoop && (rate <= 0)) {
+			System.err.println("The rate must be positive for open loop mode");
+			return false;
+		}
+		if ((duration <= 0) && (count <= 0)) {
+			System.err.println("Must specify a -d/--duration or a -n/--number");
+			return false;
+		}
+		Map<Workload, Integer> weightMap = new EnumMap<Workload, Integer>(Workload.class);
+		for (String item : mix.split(",")) {
+			String[] pair = item.trim().split("=");
+			try {
+				Workload workload = Workload.valueOf(pair[0].trim().toUpperCase());
+				int weight = (pair.length > 1) ? Integer.parseInt(pair[1].trim()) : 1;
+				if (weight < 0) {
+					throw new NumberFormatException("negative weight");
+				}
+				weightMap.put(workload, weight);
+			}
+			catch (IllegalArgumentException ex) {
+				System.err.println("Invalid workload '" + item + "' Exception=" + ex);
+				return false;
+			}
+		}
+		List<Workload> workloadList = new ArrayList<Workload>();
+		List<Integer> weightList = new ArrayList<Integer>();
+		totalWeight = 0;
+		for (Map.Entry<Workload, Integer> entry : weightMap.entrySet()) {
+			if (entry.getValue() > 0) {
+				workloadList.add(entry.getKey());
+				totalWeight += entry.getValue();
+				weightList.add(totalWeight);
+			}
+		}
+		if (totalWeight <= 0) {
+			System.err.println("The workload mix is empty: " + mix);
+			return false;
+		}
+		if (workloadList.contains(Workload.RELAY) && !workloadList.contains(Workload.DORA)) {
+			bindWorkload = Workload.RELAY;
+		}
+		workloads = workloadList.toArray(new Workload[workloadList.size()]);
+		weights = new int[weightList.size()];
+		for (int i=0; i<weights.length; i++) {
+			weights[i] = weightList.get(i);
+		}
+		return true;
+	}
+
+	public LoadStats getStats()
+	{
+		return stats;
+	}
+
+	public InetSocketAddress getServer()
+	{
+		return server;
+	}
+
+	public InetAddress getRelayAddress()
+	{
+		return relayAddr;
+	}
+
+	public boolean isV6()
+	{
+		return v6;
+	}
+
+	public boolean isClosedLoop()
+	{
+		return closedLoop;
+	}
+
+	public int getChannelCount()
+	{
+		return (numChannels > 0) ? numChannels : numEventLoops;
+	}
+
+	public int getTimeoutMillis()
+	{
+		return timeoutMillis;
+	}
+
+	public int getRetries()
+	{
+		return retries;
+	}
+
+	/**
+	 * Reserve the start of a transaction.
+	 *
+	 * @return false if the test is stopping, or has started all the
+	 * transactions it was asked to run
+	 */
+	public boolean reserve()
+	{
+		if (stopping) {
+			return false;
+		}
+		if ((count > 0) && (reserved.incrementAndGet() > count)) {
+			return false;
+		}
+		return true;
+	}
+
+	void transactionStarted()
+	{
+		inflight.incrementAndGet();
+	}
+
+	void transactionDone()
+	{
+		inflight.decrementAndGet();
+		finished.incrementAndGet();
+	}
+
+	/**
+	 * @return the workload which a client with no lease runs to get one,
+	 * which is a DORA unless the mix only binds through the relay
+	 */
+	public Workload getBindWorkload()
+	{
+		return bindWorkload;
+	}
+
+	/**
+	 * @return a workload chosen at random, by the weights of the mix
+	 */
+	public Workload nextWorkload()
+	{
+		if (workloads.length == 1) {
+			return workloads[0];
+		}
+		int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+		for (int i=0; i<weights.length; i++) {
+			if (pick < weights[i]) {
+				return workloads[i];
+			}
+		}
+		return workloads[workloads.length - 1];
+	}
+
+	/**
+	 * Run the load test.
+	 *
+	 * @return the statistics of the test
+	 * @throws Exception the exception
+	 */
+	public LoadStats run() throws Exception
+	{
+		server = new InetSocketAddress(serverAddr, serverPort);
+		stats = new LoadStats();
+		stopping = false;
+		reserved.set(0);
+		finished.set(0);
+		inflight.set(0);
+
+		EventLoopGroup group = null;
+		Class<? extends DatagramChannel> channelClass = null;
+		if (Epoll.isAvailable()) {
+			log.info("Using epoll event loops");
+			group = new EpollEventLoopGroup(numEventLoops);
+			channelClass = EpollDatagramChannel.class;
+		}
+		else {
+			log.info("Using NIO event loops");
+			group = new NioEventLoopGroup(numEventLoops);
+			channelClass = NioDatagramChannel.class;
+		}
+		int numChans = getChannelCount();
+		LoadChannel[] loadChannels = new LoadChannel[numChans];
+		try {
+			for (int i=0; i<numChans; i++) {
+				LoadChannel loadChannel = new LoadChannel(this, i);
+				Bootstrap bootstrap = new Bootstrap()
+						.group(group)
+						.channel(channelClass)
+						.option(ChannelOption.SO_RCVBUF, 4 * 1024 * 1024)
+						.option(ChannelOption.SO_SNDBUF, 4 * 1024 * 1024)
+						.handler(loadChannel);
+				int port = (clientPort > 0) ? clientPort + i : 0;
+				Channel channel = bootstrap.bind(new InetSocketAddress(clientAddr, port))
+											.sync().channel();
+				loadChannel.setChannel(channel);
+				loadChannels[i] = loadChannel;
+			}
+			for (int id=0; id<numClients; id++) {
+				LoadChannel loadChannel = loadChannels[id % numChans];
+				if (v6) {
+					loadChannel.addClient(new VirtualClientV6(loadChannel, id));
+				}
+				else {
+					loadChannel.addClient(new VirtualClientV4(loadChannel, id));
+				}
+			}
+
+			log.info("Starting " + (closedLoop ? "closed" : "open") + " loop test of " +
+					server + " with " + numClients + " clients on " + numChans +
+					" channels, workload=" + mix +
+					(closedLoop ? "" : ", rate=" + (long)rate + "/s"));
+			stats.start();
+			long startNanos = System.nanoTime();
+			for (LoadChannel loadChannel : loadChannels) {
+				if (closedLoop) {
+					loadChannel.startClosedLoop();
+				}
+				else {
+					loadChannel.startOpenLoop(startNanos, rate / numChans);
+				}
+			}
+
+			long deadline = (duration > 0) ?
+					startNanos + TimeUnit.SECONDS.toNanos(duration) : Long.MAX_VALUE;
+			long nextReport = startNanos + TimeUnit.SECONDS.toNanos(reportInterval);
+			while (true) {
+				Thread.sleep(100);
+				long now = System.nanoTime();
+				if ((now - deadline) >= 0) {
+					break;
+				}
+				if ((count > 0) && (finished.get() >= count)) {
+					break;
+				}
+				if ((reportInterval > 0) && ((now - nextReport) >= 0)) {
+					log.info(stats.summary() + " inflight=" + inflight.get());
+					nextReport += TimeUnit.SECONDS.toNanos(reportInterval);
+				}
+			}
+			stopping = true;
+			// wait for the transactions in flight, which end by a reply or a timeout
+			long drainMillis = (long)timeoutMillis * (retries + 1) * 4 + 1000;
+			long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+			while ((inflight.get() > 0) && ((System.nanoTime() - drainDeadline) < 0)) {
+				Thread.sleep(10);
+			}
+			stats.stop();
+			if (inflight.get() > 0) {
+				log.warn(inflight.get() + " transactions still in flight at the end of the test");
+			}
+		}
+		finally {
+			for (LoadChannel loadChannel : loadChannels) {
+				if ((loadChannel != null) && (loadChannel.getChannel() != null)) {
+					loadChannel.getChannel().close();
+				}
+			}
+			group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the settings of the test, for the reports
+	 */
+	public Map<String, String> getSettings()
+	{
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		settings.put("protocol", v6 ? "DHCPv6" : "DHCPv4");
+		settings.put("server", String.valueOf(server));
+		settings.put("mode", closedLoop ? "closed" : "open");
+		if (!closedLoop) {
+			settings.put("rate", Long.toString((long)rate));
+		}
+		settings.put("clients", Integer.toString(numClients));
+		settings.put("eventLoops", Integer.toString(numEventLoops));
+		settings.put("channels", Integer.toString(getChannelCount()));
+		settings.put("duration", Integer.toString(duration));
+		settings.put("number", Long.toString(count));
+		settings.put("workload", mix);
+		settings.put("timeoutMillis", Integer.toString(timeoutMillis));
+		settings.put("retries", Integer.toString(retries));
+		return settings;
+	}
+
+	/**
+	 * Write the results to the console, and to the CSV and JSON files.
+	 *
+	 * @throws IOException the exception
+	 */
+	public void writeReports() throws IOException
+	{
+		stats.writeText(new OutputStreamWriter(System.out));
+		if (csvFile != null) {
+			Writer out = new FileWriter(csvFile);
+			try {
+				stats.writeCsv(out);
+			}
+			finally {
+				out.close();
+			}
+			log.info("Wrote CSV results to " + csvFile);
+		}
+		if (jsonFile != null) {
+			Writer out = new FileWriter(jsonFile);
+			try {
+				stats.writeJson(out, getSettings());
+			}
+			finally {
+				out.close();
+			}
+			log.info("Wrote JSON results to " + jsonFile);
+		}
+	}
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main(String[] args)
+	{
+		LoadGenerator generator = new LoadGenerator();
+		if (!generator.parseOptions(args)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(LoadGenerator.class.getName(), generator.options);
+			System.exit(0);
+		}
+		try {
+			generator.run();
+			generator.writeReports();
+		}
+		catch (Exception ex) {
+			log.error("Load test failed", ex);
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LoadStats.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Title: LoadStats
+ * Description: The counters and latency histograms of a load test, for
+ * each kind of message exchange, such as DISCOVER/OFFER, and for each
+ * kind of transaction, such as a whole DORA, with reports as text, CSV
+ * or JSON.  Latencies are kept in microseconds.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LoadStats
+{
+	/** The percentiles which are reported. */
+	public static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+
+	/**
+	 * The counters and latencies of one kind of exchange or transaction.
+	 */
+	public static class Stat
+	{
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong sent = new AtomicLong();
+		final AtomicLong retransmits = new AtomicLong();
+		final AtomicLong timeouts = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+
+		public LatencyHistogram getLatency() { return latency; }
+		public long getSent() { return sent.get(); }
+		public long getRetransmits() { return retransmits.get(); }
+		public long getTimeouts() { return timeouts.get(); }
+		public long getFailures() { return failures.get(); }
+	}
+
+	private final ConcurrentMap<String, Stat> exchanges = new ConcurrentHashMap<String, Stat>();
+	private final ConcurrentMap<String, Stat> transactions = new ConcurrentHashMap<String, Stat>();
+
+	/** The arrivals which found no idle client, in open loop mode. */
+	private final AtomicLong overruns = new AtomicLong();
+	private final AtomicLong decodeErrors = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+
+	private volatile long startNanos;
+	private volatile long endNanos;
+
+	private static Stat stat(ConcurrentMap<String, Stat> stats, String name)
+	{
+		Stat stat = stats.get(name);
+		if (stat == null) {
+			stat = new Stat();
+			Stat prev = stats.putIfAbsent(name, stat);
+			if (prev != null) {
+				stat = prev;
+			}
+		}
+		return stat;
+	}
+
+	public Stat exchange(String name)
+	{
+		return stat(exchanges, name);
+	}
+
+	public Stat transaction(String name)
+	{
+		return stat(transactions, name);
+	}
+
+	public void start()
+	{
+		startNanos = System.nanoTime();
+		endNanos = 0;
+	}
+
+	public void stop()
+	{
+		endNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return the seconds from the start until the stop, or until now
+	 */
+	public double getElapsedSeconds()
+	{
+		long end = (endNanos != 0) ? endNanos : System.nanoTime();
+		return (end - startNanos) / 1e9;
+	}
+
+	public void overrun()
+	{
+		overruns.incrementAndGet();
+	}
+
+	public void decodeError()
+	{
+		decodeErrors.incrementAndGet();
+	}
+
+	public void unmatched()
+	{
+		unmatched.incrementAndGet();
+	}
+
+	public long getOverruns()
+	{
+		return overruns.get();
+	}
+
+	public long getDecodeErrors()
+	{
+		return decodeErrors.get();
+	}
+
+	public long getUnmatched()
+	{
+		return unmatched.get();
+	}
+
+	/**
+	 * @return the number of transactions which completed
+	 */
+	public long getCompleted()
+	{
+		long completed = 0;
+		for (Stat stat : transactions.values()) {
+			completed += stat.latency.getCount();
+		}
+		return completed;
+	}
+
+	/**
+	 * @return the number of transactions which failed or timed out
+	 */
+	public long getFailed()
+	{
+		long failed = 0;
+		for (Stat stat : transactions.values()) {
+			failed += stat.failures.get() + stat.timeouts.get();
+		}
+		return failed;
+	}
+
+	/**
+	 * @return the completed transactions per second
+	 */
+	public double getThroughput()
+	{
+		double elapsed = getElapsedSeconds();
+		return (elapsed > 0) ? getCompleted() / elapsed : 0;
+	}
+
+	/**
+	 * A one line summary, for progress reports.
+	 */
+	public String summary()
+	{
+		return String.format(Locale.ROOT,
+				"elapsed=%.1fs completed=%d failed=%d overruns=%d throughput=%.1f/s",
+				getElapsedSeconds(), getCompleted(), getFailed(),
+				getOverruns(), getThroughput());
+	}
+
+	/**
+	 * Write a table of all the exchanges and transactions.
+	 *
+	 * @param out the writer
+	 */
+	public void writeText(Writer out)
+	{
+		PrintWriter pw = new PrintWriter(out);
+		pw.println(summary());
+		String header = String.format(Locale.ROOT, "%-12s %-16s %9s %8s %8s %8s %9s %9s",
+				"type", "name", "count", "retrans", "timeout", "failed", "mean(us)", "max(us)");
+		StringBuilder sb = new StringBuilder(header);
+		for (double p : PERCENTILES) {
+			sb.append(String.format(Locale.ROOT, " %9s", "p" + percentileName(p)));
+		}
+		pw.println(sb);
+		writeText(pw, "exchange", exchanges);
+		writeText(pw, "transaction", transactions);
+		pw.flush();
+	}
+
+	private static void writeText(PrintWriter pw, String type, Map<String, Stat> stats)
+	{
+		for (Map.Entry<String, Stat> entry : new TreeMap<String, Stat>(stats).entrySet()) {
+			Stat stat = entry.getValue();
+			StringBuilder sb = new StringBuilder(String.format(Locale.ROOT,
+					"%-12s %-16s %9d %8d %8d %8d %9.1f %9d",
+					type, entry.getKey(), stat.latency.getCount(), stat.retransmits.get(),
+					stat.timeouts.get(), stat.failures.get(),
+					stat.latency.getMean(), stat.latency.getMax()));
+			for (double p : PERCENTILES) {
+				sb.append(String.format(Locale.ROOT, " %9d", stat.latency.getValueAtPercentile(p)));
+			}
+			pw.println(sb);
+		}
+	}
+
+	/**
+	 * Write one CSV row for each exchange and transaction.
+	 *
+	 * @param out the writer
+	 * @throws IOException the exception
+	 */
+	public void writeCsv(Writer out) throws IOException
+	{
+		StringBuilder sb = new StringBuilder(
+				"type,name,sent,count,retransmits,timeouts,failures,min_us,mean_us,max_us");
+		for (double p : PERCENTILES) {
+			sb.append(",p").append(percentileName(p)).append("_us");
+		}
+		sb.append('\n');
+		writeCsv(sb, "exchange", exchanges);
+		writeCsv(sb, "transaction", transactions);
+		out.write(sb.toString());
+		out.flush();
+	}
+
+	private static void writeCsv(StringBuilder sb, String type, Map<String, Stat> stats)
+	{
+		for (Map.Entry<String, Stat> entry : new TreeMap<String, Stat>(stats).entrySet()) {
+			Stat stat = entry.getValue();
+			LatencyHistogram latency = stat.latency;
+			sb.append(type).append(',').append(entry.getKey())
+				.append(',').append(stat.sent.get())
+				.append(',').append(latency.getCount())
+				.append(',').append(stat.retransmits.get())
+				.append(',').append(stat.timeouts.get())
+				.append(',').append(stat.failures.get())
+				.append(',').append(latency.getMin())
+				.append(',').append(String.format(Locale.ROOT, "%.1f", latency.getMean()))
+				.append(',').append(latency.getMax());
+			for (double p : PERCENTILES) {
+				sb.append(',').append(latency.getValueAtPercentile(p));
+			}
+			sb.append('\n');
+		}
+	}
+
+	/**
+	 * Write a JSON object with the summary, the exchanges and the
+	 * transactions of the test.
+	 *
+	 * @param out the writer
+	 * @param settings the settings of the test, to include in the report
+	 * @throws IOException the exception
+	 */
+	public void writeJson(Writer out, Map<String, String> settings) throws IOException
+	{
+		StringBuilder sb = new StringBuilder("{\n");
+		sb.append("  \"settings\": {");
+		boolean first = true;
+		for (Map.Entry<String, String> entry : settings.entrySet()) {
+			sb.append(first ? "\n" : ",\n");
+			sb.append("    \"").append(jsonEscape(entry.getKey())).append("\": \"")
+				.append(jsonEscape(entry.getValue())).append('"');
+			first = false;
+		}
+		sb.append("\n  },\n");
+		sb.append(String.format(Locale.ROOT,
+				"  \"summary\": { \"elapsedSeconds\": %.3f, \"completed\": %d, \"failed\": %d," +
+				" \"overruns\": %d, \"unmatched\": %d, \"decodeErrors\": %d, \"throughput\": %.1f },\n",
+				getElapsedSeconds(), getCompleted(), getFailed(), getOverruns(),
+				getUnmatched(), getDecodeErrors(), getThroughput()));
+		sb.append("  \"exchanges\": ");
+		writeJson(sb, exchanges);
+		sb.append(",\n  \"transactions\": ");
+		writeJson(sb, transactions);
+		sb.append("\n}\n");
+		out.write(sb.toString());
+		out.flush();
+	}
+
+	private static void writeJson(StringBuilder sb, Map<String, Stat> stats)
+	{
+		sb.append('[');
+		boolean first = true;
+		for (Map.Entry<String, Stat> entry : new TreeMap<String, Stat>(stats).entrySet()) {
+			Stat stat = entry.getValue();
+			LatencyHistogram latency = stat.latency;
+			sb.append(first ? "\n" : ",\n");
+			sb.append(String.format(Locale.ROOT,
+					"    { \"name\": \"%s\", \"sent\": %d, \"count\": %d, \"retransmits\": %d," +
+					" \"timeouts\": %d, \"failures\": %d, \"minMicros\": %d, \"meanMicros\": %.1f," +
+					" \"maxMicros\": %d, \"percentiles\": {",
+					entry.getKey(), stat.sent.get(), latency.getCount(), stat.retransmits.get(),
+					stat.timeouts.get(), stat.failures.get(), latency.getMin(),
+					latency.getMean(), latency.getMax()));
+			for (int i=0; i<PERCENTILES.length; i++) {
+				sb.append(i == 0 ? " " : ", ");
+				sb.append('"').append(percentileName(PERCENTILES[i])).append("\": ")
+					.append(latency.getValueAtPercentile(PERCENTILES[i]));
+			}
+			sb.append(" } }");
+			first = false;
+		}
+		sb.append(first ? "]" : "\n  ]");
+	}
+
+	private static String jsonEscape(String s)
+	{
+		if (s == null) {
+			return "";
+		}
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String percentileName(double p)
+	{
+		return (p == Math.rint(p)) ? Long.toString((long) p) : Double.toString(p);
+	}
+}
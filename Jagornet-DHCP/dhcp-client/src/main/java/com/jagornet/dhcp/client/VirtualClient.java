@@ -0,0 +1,280 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file VirtualClient.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.client.LoadGenerator.Workload;
+
+/**
+ * Title: VirtualClient
+ * Description: One simulated client of a load test.  The client is a
+ * state machine which is only ever run on the event loop of its channel,
+ * so it needs no locking, and thousands of clients share a few threads.
+ * Each transaction is a sequence of exchanges, such as DISCOVER/OFFER
+ * then REQUEST/ACK, and each exchange is retransmitted after a timeout.
+ *
+ * @author A. Gregory Rabil
+ */
+public abstract class VirtualClient
+{
+	private static Logger log = LoggerFactory.getLogger(VirtualClient.class);
+
+	protected final LoadChannel channel;
+	protected final int id;
+
+	/** True if the client holds a lease. */
+	protected boolean bound;
+	/** True if the client is on a link behind a relay agent. */
+	protected boolean relayed;
+
+	protected Workload workload;
+	private long txStartNanos;
+
+	private String exchange;
+	private long exchangeStartNanos;
+	private long xid = -1;
+	private ByteBuffer request;
+	private int attempts;
+	private ScheduledFuture<?> timer;
+
+	private final Runnable timeoutTask = new Runnable() {
+		@Override
+		public void run() {
+			timeout();
+		}
+	};
+
+	protected VirtualClient(LoadChannel channel, int id)
+	{
+		this.channel = channel;
+		this.id = id;
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public boolean isBound()
+	{
+		return bound;
+	}
+
+	/**
+	 * Start a transaction.  A workload which needs a lease, such as a
+	 * renew, is run as a DORA by a client which holds no lease, through
+	 * the relay if the client was last bound through the relay.
+	 *
+	 * @param workload the workload
+	 * @param intendedNanos the time the transaction should have started,
+	 * which may be before now, so that a generator which falls behind
+	 * its schedule does not hide the delay from the latencies
+	 */
+	public void start(Workload workload, long intendedNanos)
+	{
+		if (!bound && (workload != Workload.DORA) && (workload != Workload.RELAY)) {
+			workload = relayed ? Workload.RELAY : channel.getGenerator().getBindWorkload();
+		}
+		if (workload == Workload.RELAY) {
+			relayed = true;
+		}
+		else if (workload == Workload.DORA) {
+			relayed = false;
+		}
+		this.workload = workload;
+		txStartNanos = intendedNanos;
+		channel.getStats().transaction(txName()).sent.incrementAndGet();
+		try {
+			begin();
+		}
+		catch (IOException ex) {
+			fail("Failed to encode request: " + ex);
+		}
+	}
+
+	private String txName()
+	{
+		return workload.name().toLowerCase();
+	}
+
+	/**
+	 * Send the first exchange of the current workload.
+	 */
+	protected abstract void begin() throws IOException;
+
+	/**
+	 * Handle a reply for the current exchange.
+	 *
+	 * @param reply the decoded reply
+	 * @return false if the reply is not the one expected, and was ignored
+	 */
+	protected abstract boolean reply(Object reply) throws IOException;
+
+	/**
+	 * Send a request and wait for its reply.
+	 *
+	 * @param exchange the name of the exchange, for the statistics
+	 * @param xid the transaction id of the request
+	 * @param request the encoded request
+	 */
+	protected void send(String exchange, long xid, ByteBuffer request)
+	{
+		endExchange();
+		this.exchange = exchange;
+		this.xid = xid;
+		this.request = request;
+		attempts = 1;
+		exchangeStartNanos = System.nanoTime();
+		channel.register(xid, this);
+		channel.getStats().exchange(exchange).sent.incrementAndGet();
+		channel.send(request);
+		timer = channel.schedule(timeoutTask);
+	}
+
+	/**
+	 * Send a request which has no reply, such as a DHCPv4 RELEASE.
+	 *
+	 * @param exchange the name of the exchange, for the statistics
+	 * @param request the encoded request
+	 */
+	protected void sendOnly(String exchange, ByteBuffer request)
+	{
+		endExchange();
+		this.exchange = exchange;
+		channel.getStats().exchange(exchange).sent.incrementAndGet();
+		channel.send(request);
+	}
+
+	private void timeout()
+	{
+		timer = null;
+		LoadStats.Stat stat = channel.getStats().exchange(exchange);
+		if (attempts <= channel.getRetries()) {
+			attempts++;
+			stat.retransmits.incrementAndGet();
+			channel.send(request);
+			timer = channel.schedule(timeoutTask);
+		}
+		else {
+			if (log.isDebugEnabled()) {
+				log.debug("Client " + id + " timed out on " + exchange);
+			}
+			stat.timeouts.incrementAndGet();
+			channel.getStats().transaction(txName()).timeouts.incrementAndGet();
+			endExchange();
+			channel.done(this);
+		}
+	}
+
+	/**
+	 * Called by the channel for a reply with the transaction id of the
+	 * current exchange.
+	 *
+	 * @param reply the decoded reply
+	 */
+	void replyReceived(Object reply)
+	{
+		String name = exchange;
+		long start = exchangeStartNanos;
+		try {
+			if (!reply(reply)) {
+				channel.getStats().unmatched();
+				return;
+			}
+		}
+		catch (IOException ex) {
+			fail("Failed to encode request: " + ex);
+			return;
+		}
+		channel.getStats().exchange(name).latency.record(
+				TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	/**
+	 * Stop waiting for the reply of the current exchange, before the
+	 * next exchange is sent or the transaction ends.
+	 */
+	protected void endExchange()
+	{
+		if (timer != null) {
+			timer.cancel(false);
+			timer = null;
+		}
+		if (xid >= 0) {
+			channel.unregister(xid, this);
+			xid = -1;
+		}
+		request = null;
+	}
+
+	/**
+	 * End the transaction successfully.
+	 */
+	protected void complete()
+	{
+		endExchange();
+		channel.getStats().transaction(txName()).latency.record(
+				TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - txStartNanos));
+		channel.done(this);
+	}
+
+	/**
+	 * End the transaction with a failure, such as a NAK.
+	 *
+	 * @param reason the reason, for the log
+	 */
+	protected void fail(String reason)
+	{
+		if (log.isDebugEnabled()) {
+			log.debug("Client " + id + " failed " + exchange + ": " + reason);
+		}
+		if (exchange != null) {
+			channel.getStats().exchange(exchange).failures.incrementAndGet();
+		}
+		channel.getStats().transaction(txName()).failures.incrementAndGet();
+		endExchange();
+		channel.done(this);
+	}
+
+	/**
+	 * Build the six byte hardware address of a client.
+	 *
+	 * @param id the id of the client
+	 * @return the hardware address
+	 */
+	public static byte[] buildMac(int id)
+	{
+		return new byte[] { (byte)0xde, (byte)0xb1,
+				(byte)(id >>> 24), (byte)(id >>> 16), (byte)(id >>> 8), (byte)id };
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file VirtualClientV4.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.generic.GenericOpaqueDataOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RequestedIpAddressOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ServerIdOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+/**
+ * Title: VirtualClientV4
+ * Description: A simulated DHCPv4 client.  A client which is behind a
+ * relay sends its messages with the relay address as the giaddr, and a
+ * relay agent information option (82) with its circuit id.
+ *
+ * @author A. Gregory Rabil
+ */
+public class VirtualClientV4 extends VirtualClient
+{
+	private final byte[] mac;
+	private final GenericOpaqueDataOption agentInfo;
+
+	private short expect;
+	private InetAddress leaseAddr;
+	private DhcpV4ServerIdOption serverId;
+
+	public VirtualClientV4(LoadChannel channel, int id)
+	{
+		super(channel, id);
+		mac = buildMac(id);
+		// circuit id sub-option, with the id of the client
+		byte[] circuitId = new byte[] { 1, 4,
+				(byte)(id >>> 24), (byte)(id >>> 16), (byte)(id >>> 8), (byte)id };
+		agentInfo = new GenericOpaqueDataOption(DhcpConstants.V4OPTION_RELAY_INFO,
+				"relayAgentInfo", new BaseOpaqueData(circuitId));
+		agentInfo.setV4(true);
+	}
+
+	@Override
+	protected void begin() throws IOException
+	{
+		switch (workload) {
+			case RENEW:
+				renew("renew");
+				break;
+			case REBIND:
+				renew("rebind");
+				break;
+			case RELEASE:
+				release();
+				break;
+			default:
+				discover();
+				break;
+		}
+	}
+
+	private DhcpV4Message buildMessage(long xid, short msgType)
+	{
+		DhcpV4Message msg = new DhcpV4Message(null, channel.getServer());
+		msg.setOp((short)DhcpConstants.V4_OP_REQUEST);
+		msg.setTransactionId(xid);
+		msg.setHtype((short)1);	// ethernet
+		msg.setHlen((byte)6);
+		msg.setChAddr(mac);
+		if (relayed) {
+			msg.setGiAddr(channel.getGenerator().getRelayAddress());
+			msg.putDhcpOption(agentInfo);
+		}
+		msg.putDhcpOption(new DhcpV4MsgTypeOption(msgType));
+		return msg;
+	}
+
+	private void discover() throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV4Message msg = buildMessage(xid, (short)DhcpConstants.V4MESSAGE_TYPE_DISCOVER);
+		expect = DhcpConstants.V4MESSAGE_TYPE_OFFER;
+		send("discover", xid, msg.encode());
+	}
+
+	private void request(DhcpV4Message offer) throws IOException
+	{
+		// the REQUEST of a DORA uses the xid of the DISCOVER
+		long xid = offer.getTransactionId();
+		DhcpV4Message msg = buildMessage(xid, (short)DhcpConstants.V4MESSAGE_TYPE_REQUEST);
+		msg.putDhcpOption(new DhcpV4RequestedIpAddressOption(offer.getYiAddr().getHostAddress()));
+		// MUST include serverId option for selecting state
+		msg.putDhcpOption(offer.getDhcpV4ServerIdOption());
+		expect = DhcpConstants.V4MESSAGE_TYPE_ACK;
+		send("request", xid, msg.encode());
+	}
+
+	private void renew(String exchange) throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV4Message msg = buildMessage(xid, (short)DhcpConstants.V4MESSAGE_TYPE_REQUEST);
+		msg.setCiAddr(leaseAddr);
+		expect = DhcpConstants.V4MESSAGE_TYPE_ACK;
+		send(exchange, xid, msg.encode());
+	}
+
+	private void release() throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV4Message msg = buildMessage(xid, (short)DhcpConstants.V4MESSAGE_TYPE_RELEASE);
+		msg.setCiAddr(leaseAddr);
+		if (serverId != null) {
+			msg.putDhcpOption(serverId);
+		}
+		bound = false;
+		// there is no reply to a RELEASE
+		sendOnly("release", msg.encode());
+		complete();
+	}
+
+	@Override
+	protected boolean reply(Object reply) throws IOException
+	{
+		DhcpV4Message msg = (DhcpV4Message) reply;
+		short msgType = msg.getMessageType();
+		if (msgType == DhcpConstants.V4MESSAGE_TYPE_NAK) {
+			bound = false;
+			fail("NAK");
+			return true;
+		}
+		if (msgType != expect) {
+			return false;
+		}
+		if (msgType == DhcpConstants.V4MESSAGE_TYPE_OFFER) {
+			request(msg);
+		}
+		else {
+			bound = true;
+			leaseAddr = msg.getYiAddr();
+			if (msg.getDhcpV4ServerIdOption() != null) {
+				serverId = msg.getDhcpV4ServerIdOption();
+			}
+			complete();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file VirtualClientV6.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.jagornet.dhcp.client.LoadGenerator.Workload;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.base.DhcpOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ElapsedTimeOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6IaNaOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6RelayOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ServerIdOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6StatusCodeOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+/**
+ * Title: VirtualClientV6
+ * Description: A simulated DHCPv6 client, with a DUID-LL client id and
+ * a single IA_NA.  A client which is behind a relay sends its messages
+ * inside a RELAY-FORW message, with the relay address as the link address.
+ *
+ * @author A. Gregory Rabil
+ */
+public class VirtualClientV6 extends VirtualClient
+{
+	private final DhcpV6ClientIdOption clientId;
+	private final InetAddress peerAddr;
+
+	private short expect;
+	private DhcpV6IaNaOption iaNa;
+	private DhcpV6ServerIdOption serverId;
+
+	public VirtualClientV6(LoadChannel channel, int id)
+	{
+		super(channel, id);
+		byte[] mac = buildMac(id);
+		// DUID-LL: type 3, hardware type 1 (ethernet), link-layer address
+		byte[] duid = new byte[4 + mac.length];
+		duid[1] = 3;
+		duid[3] = 1;
+		System.arraycopy(mac, 0, duid, 4, mac.length);
+		clientId = new DhcpV6ClientIdOption(new BaseOpaqueData(duid));
+		byte[] peer = new byte[16];
+		peer[0] = (byte)0xfe;
+		peer[1] = (byte)0x80;
+		System.arraycopy(mac, 0, peer, 10, mac.length);
+		try {
+			peerAddr = InetAddress.getByAddress(peer);
+		}
+		catch (UnknownHostException ex) {
+			// only thrown for an address of illegal length
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	@Override
+	protected void begin() throws IOException
+	{
+		switch (workload) {
+			case RENEW:
+				renew("renew", DhcpConstants.V6MESSAGE_TYPE_RENEW, true);
+				break;
+			case REBIND:
+				// a REBIND is sent to any server, so has no server id
+				renew("rebind", DhcpConstants.V6MESSAGE_TYPE_REBIND, false);
+				break;
+			case RELEASE:
+				renew("release", DhcpConstants.V6MESSAGE_TYPE_RELEASE, true);
+				break;
+			default:
+				solicit();
+				break;
+		}
+	}
+
+	private DhcpV6Message buildMessage(long xid, short msgType)
+	{
+		DhcpV6Message msg = new DhcpV6Message(null, channel.getServer());
+		msg.setMessageType(msgType);
+		msg.setTransactionId((int) xid);
+		msg.putDhcpOption(clientId);
+		DhcpV6ElapsedTimeOption elapsedTime = new DhcpV6ElapsedTimeOption();
+		elapsedTime.setUnsignedShort(0);
+		msg.putDhcpOption(elapsedTime);
+		return msg;
+	}
+
+	private ByteBuffer encode(DhcpV6Message msg) throws IOException
+	{
+		if (!relayed) {
+			return msg.encode();
+		}
+		DhcpV6RelayMessage relay = new DhcpV6RelayMessage(null, channel.getServer());
+		relay.setMessageType(DhcpConstants.V6MESSAGE_TYPE_RELAY_FORW);
+		relay.setHopCount((short)0);
+		relay.setLinkAddress(channel.getGenerator().getRelayAddress());
+		relay.setPeerAddress(peerAddr);
+		DhcpV6RelayOption relayOption = new DhcpV6RelayOption();
+		relayOption.setDhcpMessage(msg);
+		relay.putDhcpOption(relayOption);
+		relay.setRelayOption(relayOption);
+		return relay.encode();
+	}
+
+	private void solicit() throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV6Message msg = buildMessage(xid, DhcpConstants.V6MESSAGE_TYPE_SOLICIT);
+		DhcpV6IaNaOption solicitIaNa = new DhcpV6IaNaOption();
+		solicitIaNa.setIaId(1);
+		msg.putDhcpOption(solicitIaNa);
+		expect = DhcpConstants.V6MESSAGE_TYPE_ADVERTISE;
+		send("solicit", xid, encode(msg));
+	}
+
+	private void request(DhcpV6Message advertise) throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV6Message msg = buildMessage(xid, DhcpConstants.V6MESSAGE_TYPE_REQUEST);
+		msg.putDhcpOption(advertise.getDhcpServerIdOption());
+		msg.putDhcpOption(advertise.getIaNaOptions().get(0));
+		expect = DhcpConstants.V6MESSAGE_TYPE_REPLY;
+		send("request", xid, encode(msg));
+	}
+
+	private void renew(String exchange, short msgType, boolean withServerId) throws IOException
+	{
+		long xid = channel.nextXid();
+		DhcpV6Message msg = buildMessage(xid, msgType);
+		if (withServerId) {
+			msg.putDhcpOption(serverId);
+		}
+		msg.putDhcpOption(iaNa);
+		expect = DhcpConstants.V6MESSAGE_TYPE_REPLY;
+		send(exchange, xid, encode(msg));
+	}
+
+	@Override
+	protected boolean reply(Object reply) throws IOException
+	{
+		DhcpV6Message msg = (DhcpV6Message) reply;
+		if (msg.getMessageType() != expect) {
+			return false;
+		}
+		String status = checkStatus(msg);
+		if (status != null) {
+			if (workload != Workload.RELEASE) {
+				bound = false;
+			}
+			fail(status);
+			return true;
+		}
+		if (expect == DhcpConstants.V6MESSAGE_TYPE_ADVERTISE) {
+			request(msg);
+		}
+		else if (workload == Workload.RELEASE) {
+			bound = false;
+			complete();
+		}
+		else {
+			bound = true;
+			iaNa = msg.getIaNaOptions().get(0);
+			if (msg.getDhcpServerIdOption() != null) {
+				serverId = msg.getDhcpServerIdOption();
+			}
+			complete();
+		}
+		return true;
+	}
+
+	/**
+	 * Check the status codes of a reply, for the message and for its IA_NA.
+	 *
+	 * @param msg the reply
+	 * @return a description of the failure, or null if the reply is usable
+	 */
+	private String checkStatus(DhcpV6Message msg)
+	{
+		String status = checkStatus(msg.getDhcpOption(DhcpConstants.V6OPTION_STATUS_CODE));
+		if (status != null) {
+			return status;
+		}
+		if (workload == Workload.RELEASE) {
+			return null;
+		}
+		List<DhcpV6IaNaOption> iaNas = msg.getIaNaOptions();
+		if ((iaNas == null) || iaNas.isEmpty()) {
+			return "no IA_NA";
+		}
+		DhcpV6IaNaOption replyIaNa = iaNas.get(0);
+		status = checkStatus(replyIaNa.getDhcpOptionMap().get(DhcpConstants.V6OPTION_STATUS_CODE));
+		if (status != null) {
+			return status;
+		}
+		if ((replyIaNa.getIaAddrOptions() == null) || replyIaNa.getIaAddrOptions().isEmpty()) {
+			return "no IA_ADDR";
+		}
+		return null;
+	}
+
+	private String checkStatus(DhcpOption option)
+	{
+		if (option instanceof DhcpV6StatusCodeOption) {
+			DhcpV6StatusCodeOption statusCode = (DhcpV6StatusCodeOption) option;
+			if (statusCode.getStatusCode() != DhcpConstants.V6STATUS_CODE_SUCCESS) {
+				return "status=" + statusCode.getStatusCode();
+			}
+		}
+		return null;
+	}
+}
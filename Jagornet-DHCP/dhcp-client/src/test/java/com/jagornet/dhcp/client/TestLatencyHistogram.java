@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLatencyHistogram.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestLatencyHistogram.
+ */
+public class TestLatencyHistogram extends TestCase
+{
+	public void testBuckets() throws Exception
+	{
+		// every value is counted in the bucket whose range holds it
+		long prev = -1;
+		for (long value = 0; value < 10000000L; value += 1 + value / 50) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(value <= LatencyHistogram.highestValueAt(index));
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.highestValueAt(index - 1));
+			}
+			assertTrue(index >= prev);
+			prev = index;
+		}
+		assertTrue(LatencyHistogram.indexOf(Long.MAX_VALUE) >= 0);
+	}
+
+	public void testPercentiles() throws Exception
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(99));
+		for (int i=1; i<=10000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(10000, histogram.getCount());
+		assertEquals(1, histogram.getMin());
+		assertEquals(10000, histogram.getMax());
+		assertEquals(5000.5, histogram.getMean(), 0.001);
+		assertWithin(5000, histogram.getValueAtPercentile(50));
+		assertWithin(9900, histogram.getValueAtPercentile(99));
+		assertWithin(9990, histogram.getValueAtPercentile(99.9));
+		assertEquals(10000, histogram.getValueAtPercentile(100));
+	}
+
+	public void testAdd() throws Exception
+	{
+		LatencyHistogram h1 = new LatencyHistogram();
+		LatencyHistogram h2 = new LatencyHistogram();
+		h1.record(100);
+		h2.record(50);
+		h2.record(200000);
+		h1.add(h2);
+		assertEquals(3, h1.getCount());
+		assertEquals(50, h1.getMin());
+		assertEquals(200000, h1.getMax());
+		assertEquals(100, h1.getValueAtPercentile(50));
+	}
+
+	private void assertWithin(long expected, long actual)
+	{
+		assertTrue("expected " + expected + " but was " + actual,
+				Math.abs(actual - expected) <= expected / 50);
+	}
+}
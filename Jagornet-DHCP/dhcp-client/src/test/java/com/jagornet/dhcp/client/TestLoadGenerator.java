@@ -0,0 +1,155 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLoadGenerator.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.client;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4ServerIdOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestLoadGenerator.  Runs the load generator on loopback
+ * against a stub DHCPv4 server, which offers and acks every request.
+ */
+public class TestLoadGenerator extends TestCase
+{
+	private DatagramSocket socket;
+	private Thread responder;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		responder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				respond();
+			}
+		}, "StubDhcpV4Server");
+		responder.setDaemon(true);
+		responder.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		socket.close();
+		responder.join(5000);
+		super.tearDown();
+	}
+
+	private void respond()
+	{
+		byte[] buf = new byte[1500];
+		while (!socket.isClosed()) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buf, buf.length);
+				socket.receive(packet);
+				DhcpV4Message request = DhcpV4Message.decode(
+						ByteBuffer.wrap(packet.getData(), 0, packet.getLength()), null, null);
+				short reqType = request.getMessageType();
+				short replyType;
+				if (reqType == DhcpConstants.V4MESSAGE_TYPE_DISCOVER) {
+					replyType = DhcpConstants.V4MESSAGE_TYPE_OFFER;
+				}
+				else if (reqType == DhcpConstants.V4MESSAGE_TYPE_REQUEST) {
+					replyType = DhcpConstants.V4MESSAGE_TYPE_ACK;
+				}
+				else {
+					continue;	// no reply to a release
+				}
+				DhcpV4Message reply = new DhcpV4Message(null, null);
+				reply.setOp((short)DhcpConstants.V4_OP_REPLY);
+				reply.setTransactionId(request.getTransactionId());
+				reply.setHtype(request.getHtype());
+				reply.setHlen(request.getHlen());
+				reply.setChAddr(request.getChAddr());
+				reply.setGiAddr(request.getGiAddr());
+				byte[] chAddr = request.getChAddr();
+				reply.setYiAddr(InetAddress.getByAddress(new byte[] {
+						10, 9, chAddr[chAddr.length - 2], chAddr[chAddr.length - 1] }));
+				reply.putDhcpOption(new DhcpV4MsgTypeOption(replyType));
+				reply.putDhcpOption(new DhcpV4ServerIdOption("127.0.0.1"));
+				ByteBuffer bb = reply.encode();
+				byte[] data = new byte[bb.remaining()];
+				bb.get(data);
+				socket.send(new DatagramPacket(data, data.length, packet.getSocketAddress()));
+			}
+			catch (SocketException ex) {
+				// closed
+			}
+			catch (Exception ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+
+	public void testClosedLoop() throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		assertTrue(generator.parseOptions(new String[] {
+				"-sp", Integer.toString(socket.getLocalPort()),
+				"-c", "50", "-n", "2000", "-i", "0", "-to", "500",
+				"-w", "dora=20,renew=50,rebind=10,release=10,relay=10" }));
+		LoadStats stats = generator.run();
+		assertEquals(0, stats.getFailed());
+		assertEquals(0, stats.getDecodeErrors());
+		assertTrue(stats.getCompleted() >= 2000);
+		assertTrue(stats.transaction("renew").getLatency().getCount() > 0);
+		assertTrue(stats.exchange("discover").getLatency().getCount() > 0);
+		// every offer is followed by a request, with the same xid
+		assertEquals(stats.exchange("discover").getLatency().getCount(),
+				stats.exchange("request").getLatency().getCount());
+	}
+
+	public void testOpenLoop() throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		assertTrue(generator.parseOptions(new String[] {
+				"-sp", Integer.toString(socket.getLocalPort()),
+				"-c", "100", "-m", "open", "-r", "500", "-d", "2", "-i", "0", "-to", "500" }));
+		LoadStats stats = generator.run();
+		assertEquals(0, stats.getFailed());
+		long completed = stats.transaction("dora").getLatency().getCount();
+		// about 1000 arrivals at 500/s over 2 seconds, and the stop is
+		// checked every 100ms
+		assertTrue("completed=" + completed, (completed > 500) && (completed <= 1100));
+	}
+
+	public void testBadWorkload() throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator();
+		assertFalse(generator.parseOptions(new String[] { "-w", "dora=50,bogus=50" }));
+		assertFalse(generator.parseOptions(new String[] { "-w", "dora=0" }));
+	}
+}
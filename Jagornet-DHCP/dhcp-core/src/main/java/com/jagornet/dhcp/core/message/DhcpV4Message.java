@@ -28,6 +28,7 @@ package com.jagornet.dhcp.core.message;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -123,6 +124,15 @@ public class DhcpV4Message implements DhcpMessage
     protected String file;
     protected static byte[] magicCookie = new byte[] { (byte)99, (byte)130, (byte)83, (byte)99 };
     protected Map<Integer, DhcpOption> dhcpOptions = new HashMap<Integer, DhcpOption>();
+    
+    // a decoded message keeps the packet, and only decodes the header
+    // addresses, names and options from the packet when they are used
+    private byte[] packet;
+    
+    // the offset in the packet of the last option with each code, plus
+    // one, or zero if the packet does not have the option or the option
+    // was already decoded into the dhcpOptions map
+    private int[] optionOffsets;
 
     /**
      * Construct a DhcpMessage.
@@ -168,26 +178,26 @@ public class DhcpV4Message implements DhcpMessage
         buf.putInt((int)transactionId);
         buf.putShort((short)secs);
         buf.putShort((short)flags);
-        if (ciAddr != null) {
-        	buf.put(ciAddr.getAddress());
+        if (getCiAddr() != null) {
+        	buf.put(getCiAddr().getAddress());
         }
         else {
         	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
         }
-        if (yiAddr != null) {
-        	buf.put(yiAddr.getAddress());
+        if (getYiAddr() != null) {
+        	buf.put(getYiAddr().getAddress());
         }
         else {
         	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
         }
-        if (siAddr != null) {
-        	buf.put(siAddr.getAddress());
+        if (getSiAddr() != null) {
+        	buf.put(getSiAddr().getAddress());
         }
         else {
         	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
         }
-        if (giAddr != null) {
-        	buf.put(giAddr.getAddress());
+        if (getGiAddr() != null) {
+        	buf.put(getGiAddr().getAddress());
         }
         else {
         	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
@@ -195,17 +205,17 @@ public class DhcpV4Message implements DhcpMessage
         buf.put(Arrays.copyOf(chAddr, 16));		// pad to 16 bytes for encoded packet
         
         StringBuffer sNameBuf = new StringBuffer();
-        if (sName != null) {
-        	sNameBuf.append(sName);
+        if (getsName() != null) {
+        	sNameBuf.append(getsName());
         }
-        sNameBuf.setLength(64-sNameBuf.length());
+        sNameBuf.setLength(64);		// pad or truncate to 64 bytes
         buf.put(sNameBuf.toString().getBytes());
         
         StringBuffer fileBuf = new StringBuffer();
-        if (file != null) {
-        	fileBuf.append(file);
+        if (getFile() != null) {
+        	fileBuf.append(getFile());
         }
-        fileBuf.setLength(128-fileBuf.length());
+        fileBuf.setLength(128);		// pad or truncate to 128 bytes
         buf.put(fileBuf.toString().getBytes());
 
         buf.put(encodeOptions());
@@ -235,6 +245,7 @@ public class DhcpV4Message implements DhcpMessage
     protected ByteBuffer encodeOptions() throws IOException
     {
     	ByteBuffer buf = ByteBuffer.allocate(788); // 788 - 236 = 1020 (options)
+        decodePacketOptions();
         if (dhcpOptions != null) {
         	// magic cookie as per rfc1497
         	buf.put(magicCookie);
@@ -270,6 +281,9 @@ public class DhcpV4Message implements DhcpMessage
 	            		" remoteAddr=" + Util.socketAddressAsString(remoteAddr));
 			}
 
+            // reject a malformed packet before decoding any of it
+            validate(buf);
+            
             // we'll "peek" at the message type to use for this mini-factory
 			buf.mark();
             byte _op = buf.get();
@@ -301,7 +315,61 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	/**
-	 * Decode a datagram packet into this DhcpMessage object.
+	 * Check that a packet is a well formed DHCPv4 message, without
+	 * decoding the packet: the packet must have the fixed header, the
+	 * magic cookie, and options which do not extend past the packet.
+	 * 
+	 * @param buf	ByteBuffer containing the packet to be checked,
+	 * 				which is not changed
+	 * @return	the length of the message in the packet, up to the end option
+	 * @throws IOException if the packet is malformed
+	 */
+	public static int validate(ByteBuffer buf) throws IOException
+	{
+		int start = buf.position();
+		int limit = buf.limit();
+    	// buffer must be at least the size of the fixed
+    	// portion of the DHCPv4 header plus the required
+    	// "magic cookie", and at least the message type option
+    	// and the end option: 244 = 236 + 4 + 3 + 1
+		if (limit - start < 244) {
+            String errmsg = "Failed to decode DHCPv4 message: packet too short";
+            log.error(errmsg);
+            throw new IOException(errmsg);
+		}
+		for (int i=0; i<magicCookie.length; i++) {
+			if (buf.get(start + 236 + i) != magicCookie[i]) {
+                String errmsg = "Failed to decode DHCPv4 message: invalid magic cookie";
+                log.error(errmsg);
+                throw new IOException(errmsg);
+			}
+		}
+		int pos = start + 240;
+		while (pos < limit) {
+			int code = buf.get(pos) & 0xff;
+			if (code == DhcpConstants.V4OPTION_EOF) {
+				pos++;
+				break;
+			}
+			if (pos + 1 >= limit) {
+				// no length for the last option, so no more options
+				break;
+			}
+			int len = buf.get(pos + 1) & 0xff;
+			if (pos + 2 + len > limit) {
+                String errmsg = "Failed to decode DHCPv4 message: option code=" + code +
+                				" length=" + len + " exceeds packet";
+                log.error(errmsg);
+                throw new IOException(errmsg);
+			}
+			pos += 2 + len;
+		}
+		return pos - start;
+	}
+
+	/**
+	 * Decode a datagram packet into this DhcpMessage object.  The header
+	 * addresses, names and the options are decoded when they are used.
 	 *  
 	 * @param buf	ByteBuffer containing the packet to be decoded
 	 * @throws IOException
@@ -313,79 +381,37 @@ public class DhcpV4Message implements DhcpMessage
             		Util.socketAddressAsString(remoteAddress));
         
         if ((buf != null) && buf.hasRemaining()) {
-        	// buffer must be at least the size of the fixed
-        	// portion of the DHCPv4 header plus the required
-        	// "magic cookie", and at least the message type option
-        	// and the end option: 244 = 236 + 4 + 3 + 1
-        	if (buf.limit() >= 244) {
-	        	op = buf.get();
-        		log.debug("op=" + op);
-	        	if (op != 1) {
-	        		// TODO
-	        	}
-        		htype = buf.get();
-        		if (log.isDebugEnabled())
-        			log.debug("htype=" + htype);
-      			hlen = buf.get();
-      			log.debug("hlen=" + hlen);
-      			hops = buf.get();
-      			if (log.isDebugEnabled())
-        			log.debug("hops=" + hops);
-      			transactionId = buf.getInt();
-      			if (log.isDebugEnabled())
-        			log.debug("xid=" + transactionId);
-      			secs = buf.getShort();
-      			if (log.isDebugEnabled())
-        			log.debug("secs=" + secs);
-      			flags = buf.getShort();
-      			if (log.isDebugEnabled())
-        			log.debug("flags=" + flags);
-      			byte[] ipbuf = new byte[4];
-      			buf.get(ipbuf);
-      			ciAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("ciaddr=" + ciAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			yiAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("yiaddr=" + yiAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			siAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("siaddr=" + siAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			giAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("giaddr=" + giAddr.getHostAddress());
-      			byte[] chbuf = new byte[16];
-      			buf.get(chbuf);
-      			chAddr = Arrays.copyOf(chbuf, hlen);	// hlen defines len of chAddr
-      			if (log.isDebugEnabled())
-        			log.debug("chaddr=" + Util.toHexString(chAddr));
-      			byte[] sbuf = new byte[64];
-      			buf.get(sbuf);
-      			sName = new String(sbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("sname=" + sName);
-      			byte[] fbuf = new byte[128];
-      			buf.get(fbuf);
-      			file = new String(fbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("file=" + file);
-      			byte[] cookieBuf = new byte[4];
-      			buf.get(cookieBuf);
-      			if (!Arrays.equals(cookieBuf, magicCookie)) {
-                    String errmsg = "Failed to decode DHCPv4 message: invalid magic cookie";
-                    log.error(errmsg);
-                    throw new IOException(errmsg);
-      			}
-      			decodeOptions(buf);
-            }
-            else {
-                String errmsg = "Failed to decode DHCPv4 message: packet too short";
-                log.error(errmsg);
-                throw new IOException(errmsg);
-            }
+        	int len = validate(buf);
+        	// copy the packet, because the buffer may be reused
+        	packet = new byte[len];
+        	buf.get(packet);
+        	op = packet[0];
+        	htype = packet[1];
+        	hlen = packet[2];
+        	hops = packet[3];
+        	transactionId = getInt(packet, 4);
+        	secs = (short)getShort(packet, 8);
+        	flags = (short)getShort(packet, 10);
+        	// the addresses and names are decoded from the packet when used
+        	ciAddr = null;
+        	yiAddr = null;
+        	siAddr = null;
+        	giAddr = null;
+        	sName = null;
+        	file = null;
+        	if (hlen <= 16) {
+        		chAddr = Arrays.copyOfRange(packet, 28, 28 + Math.max(hlen, 0));
+        	}
+        	else {
+        		chAddr = Arrays.copyOf(Arrays.copyOfRange(packet, 28, 44), hlen);	// hlen defines len of chAddr
+        	}
+        	if (log.isDebugEnabled()) {
+        		log.debug("op=" + op + " htype=" + htype + " hlen=" + hlen + 
+        				" hops=" + hops + " xid=" + transactionId + 
+        				" secs=" + secs + " flags=" + flags +
+        				" chaddr=" + Util.toHexString(chAddr));
+        	}
+        	indexOptions();
         }
         else {
             String errmsg = "Failed to decode message: buffer is empty";
@@ -398,31 +424,95 @@ public class DhcpV4Message implements DhcpMessage
         }
     }
     
+    private static int getShort(byte[] b, int offset)
+    {
+    	return ((b[offset] & 0xff) << 8) | (b[offset+1] & 0xff);
+    }
+    
+    private static int getInt(byte[] b, int offset)
+    {
+    	return (getShort(b, offset) << 16) | getShort(b, offset+2);
+    }
+    
     /**
-     * Decode the options.
-     * @param buf	ByteBuffer positioned at the start of the options in the packet
-     * @return	a Map of DhcpOptions keyed by the option code
-     * @throws IOException
+     * Index the options in the packet by option code.
      */
-    protected Map<Integer, DhcpOption> decodeOptions(ByteBuffer buf) 
-            throws IOException
+    private void indexOptions()
     {
-        while (buf.hasRemaining()) {
-            short code = Util.getUnsignedByte(buf);
-            if (log.isDebugEnabled())
+    	optionOffsets = new int[256];
+    	int pos = 240;
+    	while (pos + 1 < packet.length) {
+    		int code = packet[pos] & 0xff;
+    		if (code == DhcpConstants.V4OPTION_EOF) {
+    			break;
+    		}
+    		if (log.isDebugEnabled())
     			log.debug("Option code=" + code);
-            DhcpOption option = DhcpV4OptionFactory.getDhcpOption(code);
-            if (option != null) {
-                option.decode(buf);
-                dhcpOptions.put(option.getCode(), option);
-            }
-            else {
-                break;  // no more options, or one is malformed, so we're done
-            }
+    		// the last option with the same code is the one used
+    		optionOffsets[code] = pos + 1;
+    		pos += 2 + (packet[pos + 1] & 0xff);
+    	}
+    }
+    
+    /**
+     * @param optionCode the option code
+     * @return true if the option is in the packet and not yet decoded
+     */
+    private boolean hasPacketOption(int optionCode)
+    {
+    	return (optionOffsets != null) && (optionCode >= 0) && 
+    			(optionCode < optionOffsets.length) && (optionOffsets[optionCode] != 0);
+    }
+    
+    /**
+     * Decode an option from the packet into the dhcpOptions map.
+     * 
+     * @param optionCode the option code
+     */
+    private void decodePacketOption(int optionCode)
+    {
+    	int pos = optionOffsets[optionCode] - 1;
+    	optionOffsets[optionCode] = 0;
+        DhcpOption option = DhcpV4OptionFactory.getDhcpOption(optionCode);
+        if (option != null) {
+        	try {
+        		// the option decodes the length and the data that follow the code
+        		option.decode(ByteBuffer.wrap(packet, pos + 1, 1 + (packet[pos + 1] & 0xff)));
+        		dhcpOptions.put(option.getCode(), option);
+        	}
+        	catch (IOException ex) {
+        		log.error("Failed to decode option code=" + optionCode + ": " + ex);
+        	}
         }
-        return dhcpOptions;
     }
-
+    
+    /**
+     * Decode all the options in the packet which are not yet decoded,
+     * before the dhcpOptions map is used as a whole.
+     */
+    private void decodePacketOptions()
+    {
+    	if (optionOffsets != null) {
+    		for (int code=0; code<optionOffsets.length; code++) {
+    			if (optionOffsets[code] != 0) {
+    				decodePacketOption(code);
+    			}
+    		}
+    		optionOffsets = null;
+    	}
+    }
+    
+    private InetAddress packetAddress(int offset)
+    {
+    	try {
+    		return InetAddress.getByAddress(Arrays.copyOfRange(packet, offset, offset + 4));
+    	}
+    	catch (UnknownHostException ex) {
+    		// not possible for four bytes
+    		throw new IllegalStateException(ex);
+    	}
+    }
+    
     /**
      * Return the length of this DhcpMessage in bytes.
      * @return	an int containing a length of a least four(4)
@@ -444,6 +534,7 @@ public class DhcpV4Message implements DhcpMessage
     protected int getOptionsLength()
     {
         int len = 0;
+        decodePacketOptions();
         if (dhcpOptions != null) {
             for (DhcpOption option : dhcpOptions.values()) {
                 len += 2;   // option code (1 byte) + length (1 byte) 
@@ -471,7 +562,7 @@ public class DhcpV4Message implements DhcpMessage
 
     public boolean hasOption(int optionCode)
     {
-        if(dhcpOptions.containsKey(optionCode)) {
+        if (hasPacketOption(optionCode) || dhcpOptions.containsKey(optionCode)) {
             return true;
         }
         return false;
@@ -479,30 +570,41 @@ public class DhcpV4Message implements DhcpMessage
 
     public DhcpOption getDhcpOption(int optionCode)
     {
+    	if (hasPacketOption(optionCode)) {
+    		decodePacketOption(optionCode);
+    	}
         return dhcpOptions.get(optionCode);
     }
     public void putDhcpOption(DhcpOption dhcpOption)
     {
         if(dhcpOption != null) {
+        	if (hasPacketOption(dhcpOption.getCode())) {
+        		// the option replaces the option of the packet
+        		optionOffsets[dhcpOption.getCode()] = 0;
+        	}
             dhcpOptions.put(dhcpOption.getCode(), dhcpOption);
         }
     }
     public void putAllDhcpOptions(Map<Integer, DhcpOption> dhcpOptions)
     {
+    	decodePacketOptions();
     	this.dhcpOptions.putAll(dhcpOptions);
     }
     
     public Map<Integer, DhcpOption> getDhcpOptionMap()
     {
+    	decodePacketOptions();
         return dhcpOptions;
     }
     public void setDhcpOptionMap(Map<Integer, DhcpOption> dhcpOptions)
     {
+    	optionOffsets = null;
         this.dhcpOptions = dhcpOptions;
     }
 
     public Collection<DhcpOption> getDhcpOptions()
     {
+    	decodePacketOptions();
         return dhcpOptions.values();
     }
 	
@@ -515,7 +617,7 @@ public class DhcpV4Message implements DhcpMessage
 		if (dhcpServerIdOption == null) {
 			if (dhcpOptions != null) {
 				dhcpServerIdOption = 
-					(DhcpV4ServerIdOption) dhcpOptions.get(DhcpConstants.V4OPTION_SERVERID);
+					(DhcpV4ServerIdOption) getDhcpOption(DhcpConstants.V4OPTION_SERVERID);
 			}
 		}
 		return dhcpServerIdOption;
@@ -531,7 +633,7 @@ public class DhcpV4Message implements DhcpMessage
 		if (requestedOptionCodes == null) {
 			if (dhcpOptions != null) {
 	        	DhcpV4ParamRequestOption pro = 
-	        		(DhcpV4ParamRequestOption) dhcpOptions.get(DhcpConstants.V4OPTION_PARAM_REQUEST_LIST);
+	        		(DhcpV4ParamRequestOption) getDhcpOption(DhcpConstants.V4OPTION_PARAM_REQUEST_LIST);
 	        	if (pro != null) {
         			requestedOptionCodes = new ArrayList<Integer>();
         			for (short ubyte : pro.getUnsignedByteList()) {
@@ -582,6 +684,7 @@ public class DhcpV4Message implements DhcpMessage
     public String toStringWithOptions()
     {
         StringBuffer sb = new StringBuffer(this.toString());
+        decodePacketOptions();
         if ((dhcpOptions != null) && !dhcpOptions.isEmpty()) {
             sb.append(Util.LINE_SEPARATOR);
         	sb.append("dhcpOptions");
@@ -649,6 +752,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public InetAddress getCiAddr() {
+		if ((ciAddr == null) && (packet != null)) {
+			ciAddr = packetAddress(12);
+		}
 		return ciAddr;
 	}
 
@@ -657,6 +763,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public InetAddress getYiAddr() {
+		if ((yiAddr == null) && (packet != null)) {
+			yiAddr = packetAddress(16);
+		}
 		return yiAddr;
 	}
 
@@ -665,6 +774,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public InetAddress getSiAddr() {
+		if ((siAddr == null) && (packet != null)) {
+			siAddr = packetAddress(20);
+		}
 		return siAddr;
 	}
 
@@ -673,6 +785,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public InetAddress getGiAddr() {
+		if ((giAddr == null) && (packet != null)) {
+			giAddr = packetAddress(24);
+		}
 		return giAddr;
 	}
 
@@ -689,6 +804,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public String getsName() {
+		if ((sName == null) && (packet != null)) {
+			sName = new String(packet, 44, 64);
+		}
 		return sName;
 	}
 
@@ -697,6 +815,9 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public String getFile() {
+		if ((file == null) && (packet != null)) {
+			file = new String(packet, 108, 128);
+		}
 		return file;
 	}
 
@@ -712,7 +833,7 @@ public class DhcpV4Message implements DhcpMessage
 	
 	public short getMessageType() {
 		DhcpV4MsgTypeOption msgType = (DhcpV4MsgTypeOption)
-					dhcpOptions.get(DhcpConstants.V4OPTION_MESSAGE_TYPE);
+					getDhcpOption(DhcpConstants.V4OPTION_MESSAGE_TYPE);
 		if (msgType != null) {
 			return msgType.getUnsignedByte();
 		}
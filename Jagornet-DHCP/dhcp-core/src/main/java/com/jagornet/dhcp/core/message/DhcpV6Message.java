@@ -240,6 +240,9 @@ public class DhcpV6Message implements DhcpMessage
 	            		" remoteAddr=" + Util.socketAddressAsString(remoteAddr));
 			}
 
+            // reject a malformed packet before decoding any of it
+            validate(buf);
+            
             // we'll "peek" at the message type to use for this mini-factory
 			buf.mark();
             byte msgtype = buf.get();
@@ -275,6 +278,52 @@ public class DhcpV6Message implements DhcpMessage
 		return dhcpMessage;
 	}
 
+	/**
+	 * Check that a packet is a well formed DHCPv6 message, without
+	 * decoding the packet: the packet must have the fixed header
+	 * for the message type, and options which do not extend past
+	 * the packet.  The options within options are checked when
+	 * the options are decoded.
+	 * 
+	 * @param buf	ByteBuffer containing the packet to be checked,
+	 * 				which is not changed
+	 * @throws IOException if the packet is malformed
+	 */
+	public static void validate(ByteBuffer buf) throws IOException
+	{
+		int start = buf.position();
+		int limit = buf.limit();
+		int msgtype = buf.get(start) & 0xff;
+		// message type and transaction id, or for relay messages the
+		// message type, hop count, link address and peer address
+		int pos = start + 4;
+        if ( (msgtype >= DhcpConstants.V6MESSAGE_TYPE_RELAY_FORW) &&
+        		(msgtype <= DhcpConstants.V6MESSAGE_TYPE_RELAY_REPL) ) {
+        	pos = start + 34;
+        }
+        if (pos > limit) {
+            String errmsg = "Failed to decode DHCPv6 message: packet too short";
+            log.error(errmsg);
+            throw new IOException(errmsg);
+        }
+        while (pos < limit) {
+        	if (pos + 4 > limit) {
+                String errmsg = "Failed to decode DHCPv6 message: option header exceeds packet";
+                log.error(errmsg);
+                throw new IOException(errmsg);
+        	}
+        	int len = ((buf.get(pos + 2) & 0xff) << 8) | (buf.get(pos + 3) & 0xff);
+        	if (pos + 4 + len > limit) {
+        		int code = ((buf.get(pos) & 0xff) << 8) | (buf.get(pos + 1) & 0xff);
+                String errmsg = "Failed to decode DHCPv6 message: option code=" + code +
+                				" length=" + len + " exceeds packet";
+                log.error(errmsg);
+                throw new IOException(errmsg);
+        	}
+        	pos += 4 + len;
+        }
+	}
+
 	/**
 	 * Decode a datagram packet into this DhcpMessage object.
 	 *  
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestDhcpV4Message.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.core.message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.jagornet.dhcp.core.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RequestedIpAddressOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+import junit.framework.TestCase;
+
+public class TestDhcpV4Message extends TestCase
+{
+    public static InetSocketAddress CLIENT_ADDR =
+        new InetSocketAddress("192.168.0.10", DhcpConstants.V4_CLIENT_PORT);
+    public static InetSocketAddress SERVER_ADDR =
+        new InetSocketAddress(DhcpConstants.V4_SERVER_PORT);
+    
+    public static byte[] MAC = new byte[] { 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f };
+    
+    public static DhcpV4Message buildMockDhcpMessage() throws Exception
+    {
+        DhcpV4Message dhcpMessage = new DhcpV4Message(SERVER_ADDR, CLIENT_ADDR);
+        dhcpMessage.setOp((short)DhcpConstants.V4_OP_REQUEST);
+        dhcpMessage.setHtype((short)1);
+        dhcpMessage.setHlen((short)6);
+        dhcpMessage.setTransactionId(90599);
+        dhcpMessage.setCiAddr(InetAddress.getByName("192.168.0.10"));
+        dhcpMessage.setGiAddr(InetAddress.getByName("192.168.0.1"));
+        dhcpMessage.setChAddr(MAC);
+        dhcpMessage.setsName("server");
+        dhcpMessage.putDhcpOption(new DhcpV4MsgTypeOption((short)DhcpConstants.V4MESSAGE_TYPE_REQUEST));
+        dhcpMessage.putDhcpOption(new DhcpV4HostnameOption("jagornet-client"));
+        dhcpMessage.putDhcpOption(new DhcpV4RequestedIpAddressOption("192.168.0.10"));
+        return dhcpMessage;
+    }
+    
+    public void testDecode() throws Exception
+    {
+        ByteBuffer bb = buildMockDhcpMessage().encode();
+        DhcpV4Message dhcpMessage = DhcpV4Message.decode(bb, SERVER_ADDR, CLIENT_ADDR);
+        assertNotNull(dhcpMessage);
+        assertEquals(90599, dhcpMessage.getTransactionId());
+        assertEquals(InetAddress.getByName("192.168.0.10"), dhcpMessage.getCiAddr());
+        assertEquals(InetAddress.getByName("0.0.0.0"), dhcpMessage.getYiAddr());
+        assertEquals(InetAddress.getByName("192.168.0.1"), dhcpMessage.getGiAddr());
+        assertTrue(Arrays.equals(MAC, dhcpMessage.getChAddr()));
+        assertEquals("server", dhcpMessage.getsName().trim());
+        assertEquals(DhcpConstants.V4MESSAGE_TYPE_REQUEST, dhcpMessage.getMessageType());
+        assertTrue(dhcpMessage.hasOption(DhcpConstants.V4OPTION_HOSTNAME));
+        DhcpV4HostnameOption hostname = (DhcpV4HostnameOption)
+        		dhcpMessage.getDhcpOption(DhcpConstants.V4OPTION_HOSTNAME);
+        assertEquals("jagornet-client", hostname.getString());
+        assertEquals(3, dhcpMessage.getDhcpOptionMap().size());
+        
+        // the decoded message encodes to the same packet
+        bb.rewind();
+        assertEquals(bb, dhcpMessage.encode());
+    }
+    
+    public void testPutOption() throws Exception
+    {
+        ByteBuffer bb = buildMockDhcpMessage().encode();
+        DhcpV4Message dhcpMessage = DhcpV4Message.decode(bb, SERVER_ADDR, CLIENT_ADDR);
+        // an option put on the message replaces the option of the packet
+        dhcpMessage.putDhcpOption(new DhcpV4HostnameOption("new-client"));
+        DhcpV4HostnameOption hostname = (DhcpV4HostnameOption)
+        		dhcpMessage.getDhcpOption(DhcpConstants.V4OPTION_HOSTNAME);
+        assertEquals("new-client", hostname.getString());
+        assertEquals(3, dhcpMessage.getDhcpOptionMap().size());
+    }
+    
+    public void testMalformedOption() throws Exception
+    {
+        ByteBuffer bb = buildMockDhcpMessage().encode();
+        byte[] packet = new byte[bb.remaining()];
+        bb.get(packet);
+        // the first option is at offset 240, make its length exceed the packet
+        packet[241] = (byte)255;
+        try {
+        	DhcpV4Message.decode(ByteBuffer.wrap(packet), SERVER_ADDR, CLIENT_ADDR);
+        	fail("Malformed option length not rejected");
+        }
+        catch (IOException ex) {
+        	// expected
+        }
+    }
+    
+    public void testShortPacket() throws Exception
+    {
+        try {
+        	DhcpV4Message.decode(ByteBuffer.allocate(100), SERVER_ADDR, CLIENT_ADDR);
+        	fail("Short packet not rejected");
+        }
+        catch (IOException ex) {
+        	// expected
+        }
+    }
+}
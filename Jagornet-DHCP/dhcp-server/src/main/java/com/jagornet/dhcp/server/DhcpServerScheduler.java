@@ -0,0 +1,597 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file DhcpServerScheduler.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+
+/**
+ * The Class DhcpServerScheduler.  The one scheduling service of the server,
+ * for all periodic and delayed work, e.g. the binding reapers and the HA
+ * polling, so that the work does not need a thread of its own.
+ * 
+ * Periodic and delayed tasks run on a small ScheduledThreadPoolExecutor.
+ * Tasks which block, e.g. the HA polling of the peer, run on a separate
+ * executor, so that they cannot delay the reapers and retries.
+ * The many short timeouts, e.g. one for each recent message, are kept on
+ * a hashed timing wheel, which adds and cancels a timeout in constant time.
+ * Tasks on the wheel run on the wheel's thread, so must not block.
+ * 
+ * The runs, failures, run time and lateness of the tasks are counted for
+ * each task name, and logged periodically.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class DhcpServerScheduler
+{
+	private static Logger log = LoggerFactory.getLogger(DhcpServerScheduler.class);
+	
+	private static DhcpServerScheduler INSTANCE;
+	
+	private final ScheduledThreadPoolExecutor executor;
+	private final ScheduledThreadPoolExecutor blockingExecutor;
+	private final HashedWheelTimer wheelTimer;
+	private ScheduledFuture<?> metricsLogger;
+	
+	private final AtomicLong tasksScheduled = new AtomicLong();
+	private final AtomicLong timeoutsScheduled = new AtomicLong();
+	private final AtomicLong tasksRun = new AtomicLong();
+	private final AtomicLong tasksFailed = new AtomicLong();
+	private final AtomicLong taskRunNanos = new AtomicLong();
+	private final ConcurrentHashMap<String, TaskMetrics> taskMetrics =
+			new ConcurrentHashMap<String, TaskMetrics>();
+	
+	/**
+	 * Get the scheduler of the server, which is created when first used.
+	 * 
+	 * @return the scheduler
+	 */
+	public static synchronized DhcpServerScheduler getInstance()
+	{
+		if (INSTANCE == null) {
+			INSTANCE = new DhcpServerScheduler(
+					DhcpServerPolicies.globalPolicyAsInt(Property.SCHEDULER_THREADPOOL_SIZE),
+					DhcpServerPolicies.globalPolicyAsInt(Property.SCHEDULER_BLOCKING_THREADPOOL_SIZE),
+					DhcpServerPolicies.globalPolicyAsLong(Property.SCHEDULER_TICK_DURATION));
+			INSTANCE.startMetricsLogger(
+					DhcpServerPolicies.globalPolicyAsLong(Property.SCHEDULER_METRICS_LOG_PERIOD));
+		}
+		return INSTANCE;
+	}
+	
+	/**
+	 * Shut down the scheduler of the server, if it was created.  A later
+	 * call to getInstance creates a new scheduler.
+	 * 
+	 * @param timeoutMillis the time to wait for running tasks to finish
+	 */
+	public static synchronized void shutdownInstance(long timeoutMillis)
+	{
+		if (INSTANCE != null) {
+			INSTANCE.shutdown(timeoutMillis);
+			INSTANCE = null;
+		}
+	}
+	
+	/**
+	 * Create a scheduler, with one thread for the blocking tasks.
+	 * 
+	 * @param threads the number of threads for the periodic and delayed tasks
+	 * @param tickMillis the tick of the timing wheel in milliseconds
+	 */
+	public DhcpServerScheduler(int threads, long tickMillis)
+	{
+		this(threads, 1, tickMillis);
+	}
+	
+	/**
+	 * Create a scheduler.
+	 * 
+	 * @param threads the number of threads for the periodic and delayed tasks
+	 * @param blockingThreads the number of threads for the blocking tasks
+	 * @param tickMillis the tick of the timing wheel in milliseconds
+	 */
+	public DhcpServerScheduler(int threads, int blockingThreads, long tickMillis)
+	{
+		executor = newExecutor(threads, "DhcpScheduler");
+		blockingExecutor = newExecutor(blockingThreads, "DhcpBlockingTasks");
+		wheelTimer = new HashedWheelTimer(new SchedulerThreadFactory("DhcpTimeouts"),
+				Math.max(1, tickMillis), TimeUnit.MILLISECONDS);
+		log.info("Scheduler created: threads=" + executor.getCorePoolSize() +
+				" blockingThreads=" + blockingExecutor.getCorePoolSize() +
+				" tickMillis=" + tickMillis);
+	}
+	
+	private static ScheduledThreadPoolExecutor newExecutor(int threads, String prefix)
+	{
+		ScheduledThreadPoolExecutor stpe = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+				new SchedulerThreadFactory(prefix));
+		// a cancelled task, e.g. the reaper of a closed binding manager,
+		// is not left in the queue until its next run
+		stpe.setRemoveOnCancelPolicy(true);
+		stpe.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+		stpe.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		return stpe;
+	}
+	
+	/**
+	 * Log the metrics of the scheduler periodically.
+	 * 
+	 * @param periodSeconds the period of the log in seconds, zero for none
+	 */
+	public synchronized void startMetricsLogger(long periodSeconds)
+	{
+		if (metricsLogger != null) {
+			metricsLogger.cancel(false);
+			metricsLogger = null;
+		}
+		if (periodSeconds > 0) {
+			metricsLogger = scheduleWithFixedDelay("SchedulerMetrics", new Runnable() {
+				@Override
+				public void run() {
+					logMetrics();
+				}
+			}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+		}
+	}
+	
+	/**
+	 * Log the metrics of the scheduler, and of each task.
+	 */
+	public void logMetrics()
+	{
+		log.info("Scheduler metrics: " + this);
+		for (TaskMetrics metrics : taskMetrics.values()) {
+			log.info("Scheduler task metrics: " + metrics);
+		}
+	}
+	
+	/**
+	 * Run a task once after a delay.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param delay the delay
+	 * @param unit the unit of the delay
+	 * @return the future of the task, to cancel the task
+	 */
+	public ScheduledFuture<?> schedule(String name, Runnable task, long delay, TimeUnit unit)
+	{
+		tasksScheduled.incrementAndGet();
+		return executor.schedule(new ScheduledTask(name, task, unit.toNanos(delay), 0),
+				delay, unit);
+	}
+	
+	/**
+	 * Run a task periodically, with the given delay between the end
+	 * of one run and the start of the next, as for java.util.Timer.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param initialDelay the delay before the first run
+	 * @param delay the delay between runs
+	 * @param unit the unit of the delays
+	 * @return the future of the task, to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task,
+			long initialDelay, long delay, TimeUnit unit)
+	{
+		tasksScheduled.incrementAndGet();
+		return executor.scheduleWithFixedDelay(new ScheduledTask(name, task,
+				unit.toNanos(initialDelay), -unit.toNanos(delay)), initialDelay, delay, unit);
+	}
+	
+	/**
+	 * Run a task periodically, at a fixed rate.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param initialDelay the delay before the first run
+	 * @param period the period of the runs
+	 * @param unit the unit of the delay and period
+	 * @return the future of the task, to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(String name, Runnable task,
+			long initialDelay, long period, TimeUnit unit)
+	{
+		tasksScheduled.incrementAndGet();
+		return executor.scheduleAtFixedRate(new ScheduledTask(name, task,
+				unit.toNanos(initialDelay), unit.toNanos(period)), initialDelay, period, unit);
+	}
+	
+	/**
+	 * Run a task which blocks, e.g. on a request to the HA peer, once after
+	 * a delay, on the executor for blocking tasks.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param delay the delay
+	 * @param unit the unit of the delay
+	 * @return the future of the task, to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleBlocking(String name, Runnable task, long delay, TimeUnit unit)
+	{
+		tasksScheduled.incrementAndGet();
+		return blockingExecutor.schedule(new ScheduledTask(name, task, unit.toNanos(delay), 0),
+				delay, unit);
+	}
+	
+	/**
+	 * Run a task which blocks periodically, at a fixed rate, on the executor
+	 * for blocking tasks.  A run which takes longer than the period delays
+	 * the next run of the task, but not the other scheduled tasks.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param initialDelay the delay before the first run
+	 * @param period the period of the runs
+	 * @param unit the unit of the delay and period
+	 * @return the future of the task, to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleBlockingAtFixedRate(String name, Runnable task,
+			long initialDelay, long period, TimeUnit unit)
+	{
+		tasksScheduled.incrementAndGet();
+		return blockingExecutor.scheduleAtFixedRate(new ScheduledTask(name, task,
+				unit.toNanos(initialDelay), unit.toNanos(period)), initialDelay, period, unit);
+	}
+	
+	/**
+	 * Run a short, non-blocking task once after a timeout, on the timing wheel.
+	 * The timeout is accurate to the tick of the wheel.
+	 * 
+	 * @param name the name of the task, for logging
+	 * @param task the task
+	 * @param delay the delay
+	 * @param unit the unit of the delay
+	 * @return the timeout, to cancel the task
+	 */
+	public Timeout newTimeout(String name, Runnable task, long delay, TimeUnit unit)
+	{
+		timeoutsScheduled.incrementAndGet();
+		final ScheduledTask scheduledTask = new ScheduledTask(name, task, unit.toNanos(delay), 0);
+		return wheelTimer.newTimeout(new TimerTask() {
+			@Override
+			public void run(Timeout timeout) {
+				scheduledTask.run();
+			}
+		}, delay, unit);
+	}
+	
+	/**
+	 * Shut down the scheduler.  No new tasks are accepted, queued tasks
+	 * are cancelled, and running tasks are given the timeout to finish
+	 * before they are interrupted.
+	 * 
+	 * @param timeoutMillis the time to wait for running tasks to finish
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		log.info("Shutting down scheduler: " + this);
+		wheelTimer.stop();
+		executor.shutdown();
+		blockingExecutor.shutdown();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		awaitTermination(executor, timeoutMillis);
+		awaitTermination(blockingExecutor,
+				Math.max(0, deadline - System.currentTimeMillis()));
+	}
+	
+	private static void awaitTermination(ScheduledThreadPoolExecutor stpe, long timeoutMillis)
+	{
+		try {
+			if (!stpe.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				log.warn("Scheduled tasks still running after " + timeoutMillis +
+						"ms, interrupting");
+				stpe.shutdownNow();
+			}
+		}
+		catch (InterruptedException ex) {
+			stpe.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public boolean isShutdown()
+	{
+		return executor.isShutdown();
+	}
+	
+	/**
+	 * @return the number of periodic and delayed tasks scheduled
+	 */
+	public long getTasksScheduled()
+	{
+		return tasksScheduled.get();
+	}
+	
+	/**
+	 * @return the number of timeouts scheduled on the timing wheel
+	 */
+	public long getTimeoutsScheduled()
+	{
+		return timeoutsScheduled.get();
+	}
+	
+	/**
+	 * @return the number of runs of all the tasks and timeouts
+	 */
+	public long getTasksRun()
+	{
+		return tasksRun.get();
+	}
+	
+	/**
+	 * @return the number of runs which threw an exception
+	 */
+	public long getTasksFailed()
+	{
+		return tasksFailed.get();
+	}
+	
+	/**
+	 * @return the total run time of all the tasks and timeouts, in milliseconds
+	 */
+	public long getTaskRunMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(taskRunNanos.get());
+	}
+	
+	/**
+	 * @return the number of periodic and delayed tasks waiting to run
+	 */
+	public int getQueuedTasks()
+	{
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * @return the number of blocking tasks waiting to run
+	 */
+	public int getQueuedBlockingTasks()
+	{
+		return blockingExecutor.getQueue().size();
+	}
+	
+	/**
+	 * @return the number of blocking tasks which are running
+	 */
+	public int getActiveBlockingTasks()
+	{
+		return blockingExecutor.getActiveCount();
+	}
+	
+	/**
+	 * @return the number of timeouts waiting on the timing wheel
+	 */
+	public long getPendingTimeouts()
+	{
+		return wheelTimer.pendingTimeouts();
+	}
+	
+	/**
+	 * @return the metrics of each task, by task name
+	 */
+	public Map<String, TaskMetrics> getTaskMetrics()
+	{
+		return Collections.unmodifiableMap(taskMetrics);
+	}
+	
+	/**
+	 * @param name the name of the task
+	 * @return the metrics of the task, or null if the task has not run
+	 */
+	public TaskMetrics getTaskMetrics(String name)
+	{
+		return taskMetrics.get(name);
+	}
+	
+	/**
+	 * Get the metrics of a task, created only the first time the task
+	 * is scheduled, because a timeout is scheduled for each message.
+	 * 
+	 * @param name the name of the task
+	 * @return the metrics of the task
+	 */
+	private TaskMetrics getOrCreateTaskMetrics(String name)
+	{
+		TaskMetrics metrics = taskMetrics.get(name);
+		if (metrics == null) {
+			metrics = new TaskMetrics(name);
+			TaskMetrics existing = taskMetrics.putIfAbsent(name, metrics);
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+		return metrics;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "tasksScheduled=" + getTasksScheduled() +
+				" timeoutsScheduled=" + getTimeoutsScheduled() +
+				" tasksRun=" + getTasksRun() +
+				" tasksFailed=" + getTasksFailed() +
+				" taskRunMillis=" + getTaskRunMillis() +
+				" queuedTasks=" + getQueuedTasks() +
+				" queuedBlockingTasks=" + getQueuedBlockingTasks() +
+				" activeBlockingTasks=" + getActiveBlockingTasks() +
+				" pendingTimeouts=" + getPendingTimeouts();
+	}
+	
+	/**
+	 * The metrics of the runs of the tasks with one name.  The lateness of
+	 * a run is the time from when the run was due to when it started, which
+	 * grows when the threads of the scheduler are busy.
+	 */
+	public static class TaskMetrics
+	{
+		private final String name;
+		private final AtomicLong runs = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong runNanos = new AtomicLong();
+		private final AtomicLong maxRunNanos = new AtomicLong();
+		private final AtomicLong lateNanos = new AtomicLong();
+		private final AtomicLong maxLateNanos = new AtomicLong();
+		
+		TaskMetrics(String name)
+		{
+			this.name = name;
+		}
+		
+		void record(long lateness, long runTime, boolean failed)
+		{
+			runs.incrementAndGet();
+			if (failed) {
+				failures.incrementAndGet();
+			}
+			runNanos.addAndGet(runTime);
+			setMax(maxRunNanos, runTime);
+			if (lateness > 0) {
+				lateNanos.addAndGet(lateness);
+				setMax(maxLateNanos, lateness);
+			}
+		}
+		
+		private static void setMax(AtomicLong max, long value)
+		{
+			long current = max.get();
+			while ((value > current) && !max.compareAndSet(current, value)) {
+				current = max.get();
+			}
+		}
+		
+		public String getName() { return name; }
+		public long getRuns() { return runs.get(); }
+		public long getFailures() { return failures.get(); }
+		public long getRunMillis() { return TimeUnit.NANOSECONDS.toMillis(runNanos.get()); }
+		public long getMaxRunMillis() { return TimeUnit.NANOSECONDS.toMillis(maxRunNanos.get()); }
+		public long getLateMillis() { return TimeUnit.NANOSECONDS.toMillis(lateNanos.get()); }
+		public long getMaxLateMillis() { return TimeUnit.NANOSECONDS.toMillis(maxLateNanos.get()); }
+		
+		@Override
+		public String toString()
+		{
+			return name + ": runs=" + getRuns() +
+					" failures=" + getFailures() +
+					" runMillis=" + getRunMillis() +
+					" maxRunMillis=" + getMaxRunMillis() +
+					" lateMillis=" + getLateMillis() +
+					" maxLateMillis=" + getMaxLateMillis();
+		}
+	}
+	
+	/**
+	 * A task which counts its runs, and logs a failed run.  An exception
+	 * does not stop the later runs of a periodic task.
+	 */
+	class ScheduledTask implements Runnable
+	{
+		private final String name;
+		private final Runnable task;
+		private final TaskMetrics metrics;
+		// as for ScheduledThreadPoolExecutor: positive for a fixed rate,
+		// negative for a fixed delay, and zero for a task which runs once
+		private final long periodNanos;
+		private long dueNanos;
+		
+		ScheduledTask(String name, Runnable task, long delayNanos, long periodNanos)
+		{
+			this.name = name;
+			this.task = task;
+			this.periodNanos = periodNanos;
+			dueNanos = System.nanoTime() + delayNanos;
+			metrics = getOrCreateTaskMetrics(name);
+		}
+		
+		@Override
+		public void run()
+		{
+			long start = System.nanoTime();
+			boolean failed = false;
+			try {
+				task.run();
+			}
+			catch (Exception ex) {
+				failed = true;
+				tasksFailed.incrementAndGet();
+				log.error("Scheduled task failed: " + name, ex);
+			}
+			finally {
+				long end = System.nanoTime();
+				tasksRun.incrementAndGet();
+				taskRunNanos.addAndGet(end - start);
+				metrics.record(start - dueNanos, end - start, failed);
+				if (periodNanos > 0) {
+					dueNanos += periodNanos;
+				}
+				else if (periodNanos < 0) {
+					dueNanos = end - periodNanos;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Daemon threads, so that the scheduler does not keep the server running.
+	 */
+	static class SchedulerThreadFactory implements ThreadFactory
+	{
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		SchedulerThreadFactory(String prefix)
+		{
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -65,10 +65,12 @@ import com.jagornet.dhcp.server.db.DbSchemaManager;
 import com.jagornet.dhcp.server.db.IaManager;
 import com.jagornet.dhcp.server.netty.NettyDhcpServer;
 import com.jagornet.dhcp.server.request.binding.BaseBindingManager;
+import com.jagornet.dhcp.server.request.binding.BindingManagerLoader;
 import com.jagornet.dhcp.server.request.binding.V4AddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6NaAddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6PrefixBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6TaAddrBindingManager;
+import com.jagornet.dhcp.server.request.ddns.DdnsUpdateEngine;
 import com.jagornet.dhcp.server.rest.JerseyRestServer;
 
 import io.netty.channel.Channel;
@@ -133,6 +135,9 @@ public class JagornetDhcpServer
     
     protected JerseyRestServer jerseyServer = null;
     
+    /** The loader of the binding managers, which load while the server starts. */
+    protected BindingManagerLoader bindingManagerLoader = null;
+    
     public static synchronized JagornetDhcpServer getInstance() throws Exception
     {
     	if (INSTANCE == null) {
@@ -204,6 +209,10 @@ public class JagornetDhcpServer
         serverConfig = DhcpServerConfiguration.getInstance();
         serverConfig.init(configFilename);
         
+        // create the scheduler for the periodic work of the managers
+        // with the thread pool size policy of the configuration
+        DhcpServerScheduler.getInstance();
+        
         String schemaType = DhcpServerPolicies.globalPolicy(Property.DATABASE_SCHEMA_TYTPE);
     	int schemaVersion = DhcpServerPolicies.globalPolicyAsInt(Property.DATABASE_SCHEMA_VERSION);
         String[] appContext = getAppContextFiles(schemaType, schemaVersion);     
@@ -293,6 +302,16 @@ public class JagornetDhcpServer
     			v6UcastAddrs, v6McastNetIfs, v6PortNumber);
     	
     	nettyServer.start();
+    	
+    	// the links answer requests as they are loaded, so wait
+    	// for the remaining links before the HA and REST services
+    	try {
+    		bindingManagerLoader.await();
+    	}
+    	catch (Exception ex) {
+    		log.error("Failed to load binding managers", ex);
+    		throw ex;
+    	}
     	    	
     	if (httpsAddr != null) {
 	    	//HttpServer jerseyHttpServer = JerseyRestServer.startGrizzlyServer();
@@ -343,18 +362,17 @@ public class JagornetDhcpServer
 		//		done by Spring in the context.xml file?
 		//		Maybe init is here for error handling at startup?
 		
+		// the managers are loaded by link, in parallel if poolInitThreads > 1,
+		// and each link answers requests when every manager has loaded it
+		bindingManagerLoader = new BindingManagerLoader(serverConfig.getLinkMap());
+		
 		V4AddrBindingManager v4AddrBindingMgr = 
 			(V4AddrBindingManager) context.getBean("v4AddrBindingManager");
 		if (v4AddrBindingMgr != null) {
-			try {
-				log.info("Initializing V4 Address Binding Manager");
-				v4AddrBindingMgr.init();
-				serverConfig.setV4AddrBindingMgr(v4AddrBindingMgr);
-			}
-			catch (Exception ex) {
-				log.error("Failed initialize V4 Address Binding Manager", ex);
-				throw ex;
-			}
+			log.info("Adding V4 Address Binding Manager to the loader");
+			serverConfig.setV4AddrBindingMgr(v4AddrBindingMgr);
+			bindingManagerLoader.addManager("V4 Address Binding Manager",
+					(BaseBindingManager) v4AddrBindingMgr);
 		}
 		else {
 			log.warn("No V4 Address Binding Manager available");
@@ -363,15 +381,10 @@ public class JagornetDhcpServer
 		V6NaAddrBindingManager v6NaAddrBindingMgr = 
 			(V6NaAddrBindingManager) context.getBean("v6NaAddrBindingManager");
 		if (v6NaAddrBindingMgr != null) {
-			try {
-				log.info("Initializing V6 NA Address Binding Manager");
-				v6NaAddrBindingMgr.init();
-				serverConfig.setV6NaAddrBindingMgr(v6NaAddrBindingMgr);
-			}
-			catch (Exception ex) {
-				log.error("Failed initialize V6 NA Address Binding Manager", ex);
-				throw ex;
-			}
+			log.info("Adding V6 NA Address Binding Manager to the loader");
+			serverConfig.setV6NaAddrBindingMgr(v6NaAddrBindingMgr);
+			bindingManagerLoader.addManager("V6 NA Address Binding Manager",
+					(BaseBindingManager) v6NaAddrBindingMgr);
 		}
 		else {
 			log.warn("No V6 NA Address Binding Manager available");
@@ -380,15 +393,10 @@ public class JagornetDhcpServer
 		V6TaAddrBindingManager v6TaAddrBindingMgr = 
 			(V6TaAddrBindingManager) context.getBean("v6TaAddrBindingManager");
 		if (v6TaAddrBindingMgr != null) {
-			try {
-				log.info("Initializing V6 TA Address Binding Manager");
-				v6TaAddrBindingMgr.init();
-				serverConfig.setV6TaAddrBindingMgr(v6TaAddrBindingMgr);
-			}
-			catch (Exception ex) {
-				log.error("Failed initialize V6 TA Address Binding Manager", ex);
-				throw ex;
-			}
+			log.info("Adding V6 TA Address Binding Manager to the loader");
+			serverConfig.setV6TaAddrBindingMgr(v6TaAddrBindingMgr);
+			bindingManagerLoader.addManager("V6 TA Address Binding Manager",
+					(BaseBindingManager) v6TaAddrBindingMgr);
 		}
 		else {
 			log.warn("No V6 TA Address Binding Manager available");
@@ -397,15 +405,10 @@ public class JagornetDhcpServer
 		V6PrefixBindingManager v6PrefixBindingMgr = 
 			(V6PrefixBindingManager) context.getBean("v6PrefixBindingManager");
 		if (v6PrefixBindingMgr != null) {
-			try {
-				log.info("Initializing V6 Prefix Binding Manager");
-				v6PrefixBindingMgr.init();
-				serverConfig.setV6PrefixBindingMgr(v6PrefixBindingMgr);
-			}
-			catch (Exception ex) {
-				log.error("Failed initialize V6 Prefix Binding Manager", ex);
-				throw ex;
-			}
+			log.info("Adding V6 Prefix Binding Manager to the loader");
+			serverConfig.setV6PrefixBindingMgr(v6PrefixBindingMgr);
+			bindingManagerLoader.addManager("V6 Prefix Binding Manager",
+					(BaseBindingManager) v6PrefixBindingMgr);
 		}
 		else {
 			log.warn("No V6 Prefix Binding Manager available");
@@ -425,6 +428,12 @@ public class JagornetDhcpServer
             	  if (v6PrefixBindingMgr != null) {
             		  ((BaseBindingManager) v6PrefixBindingMgr).close();
             	  }
+            	  if (serverConfig.getHaPrimaryFSM() != null) {
+            		  serverConfig.getHaPrimaryFSM().shutdown();
+            	  }
+            	  DdnsUpdateEngine.shutdownInstance(5000);
+            	  // after the managers have cancelled their tasks
+            	  DhcpServerScheduler.shutdownInstance(5000);
                 }
             });
         
@@ -436,7 +445,9 @@ public class JagornetDhcpServer
 			log.warn("No IA Manager available");
 		}
 		
-		log.info("Managers loaded.");
+		bindingManagerLoader.start();
+		
+		log.info("Managers created, binding managers loading...");
     }
     
 	/**
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file CompiledPolicies.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.jagornet.dhcp.core.message.DhcpMessage;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.xml.PoliciesType;
+import com.jagornet.dhcp.server.config.xml.Policy;
+
+/**
+ * The Class CompiledPolicies.  The policies of one level of the server
+ * configuration, e.g. the global, link, pool or binding policies, compiled
+ * into a table of typed values by Property, so that resolving a policy
+ * does not search the policy list or parse the policy value.
+ *
+ * @author A. Gregory Rabil
+ */
+public class CompiledPolicies
+{
+	/** The empty policies, for a level which does not define any policies. */
+	public static final CompiledPolicies EMPTY = new CompiledPolicies();
+
+	/** The Property for each lower case policy name. */
+	private static final Map<String, Property> PROPERTY_NAMES = new HashMap<String, Property>();
+	static {
+		for (Property prop : Property.values()) {
+			PROPERTY_NAMES.put(prop.key().toLowerCase(), prop);
+		}
+	}
+
+	private final EnumMap<Property, PolicyValue> values =
+			new EnumMap<Property, PolicyValue>(Property.class);
+
+	private CompiledPolicies()
+	{
+		// empty
+	}
+
+	/**
+	 * Compile the given policies.
+	 *
+	 * @param policies the policies
+	 */
+	public CompiledPolicies(PoliciesType policies)
+	{
+		if (policies != null) {
+			List<Policy> policyList = policies.getPolicyList();
+			if (policyList != null) {
+				for (Policy policy : policyList) {
+					if ((policy.getName() != null) && (policy.getValue() != null)) {
+						Property prop = PROPERTY_NAMES.get(policy.getName().toLowerCase());
+						// the first policy with the name wins, as for the policy list
+						if ((prop != null) && !values.containsKey(prop)) {
+							values.put(prop, new PolicyValue(policy.getValue()));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compile the given properties.
+	 *
+	 * @param properties the properties, with the defaults of all Properties
+	 */
+	public CompiledPolicies(Properties properties)
+	{
+		for (Property prop : Property.values()) {
+			String value = properties.getProperty(prop.key());
+			if (value != null) {
+				values.put(prop, new PolicyValue(value));
+			}
+		}
+	}
+
+	/**
+	 * Get the value of a policy.
+	 *
+	 * @param prop the prop
+	 * @return the value, or null if the policy is not defined at this level
+	 */
+	public PolicyValue get(Property prop)
+	{
+		return values.get(prop);
+	}
+
+	/**
+	 * A policy value, parsed once to each type.
+	 */
+	public static final class PolicyValue
+	{
+		private final String value;
+		private final boolean booleanValue;
+		private final Integer intValue;
+		private final Long longValue;
+		private final Float floatValue;
+
+		public PolicyValue(String value)
+		{
+			this.value = value;
+			booleanValue = Boolean.parseBoolean(value);
+			Long l = null;
+			Float f = null;
+			if (value != null) {
+				try {
+					l = Long.valueOf(value);
+				}
+				catch (NumberFormatException ex) {
+					// not a number, parsing again when used throws the exception
+				}
+				try {
+					f = Float.valueOf(value);
+				}
+				catch (NumberFormatException ex) {
+					// not a number
+				}
+			}
+			longValue = l;
+			intValue = ((l != null) && (l.longValue() == l.intValue())) ?
+					Integer.valueOf(l.intValue()) : null;
+			floatValue = f;
+		}
+
+		public boolean asBoolean()
+		{
+			return booleanValue;
+		}
+
+		public int asInt()
+		{
+			// throw the same exception as the uncompiled policy
+			return (intValue != null) ? intValue.intValue() : Integer.parseInt(value);
+		}
+
+		public long asLong()
+		{
+			return (longValue != null) ? longValue.longValue() : Long.parseLong(value);
+		}
+
+		public float asFloat()
+		{
+			return (floatValue != null) ? floatValue.floatValue() : Float.parseFloat(value);
+		}
+
+		@Override
+		public String toString()
+		{
+			return value;
+		}
+	}
+
+	/**
+	 * The policies of a list of filters, e.g. the global filters or the
+	 * filters of a link or pool.  Only the filters which define a policy
+	 * can change the effective value of that policy, so the filters are
+	 * only matched to the request for the policies that they define.
+	 */
+	public static final class FilterPolicies
+	{
+		private final Filter[] filters;
+		private final CompiledPolicies[] policies;
+		private final EnumSet<Property> properties = EnumSet.noneOf(Property.class);
+
+		/**
+		 * Compile the policies of the given filters.
+		 *
+		 * @param filterList the filters
+		 */
+		public FilterPolicies(List<? extends Filter> filterList)
+		{
+			int n = (filterList != null) ? filterList.size() : 0;
+			filters = new Filter[n];
+			policies = new CompiledPolicies[n];
+			for (int i=0; i<n; i++) {
+				filters[i] = filterList.get(i);
+				policies[i] = new CompiledPolicies(filters[i].getPolicies());
+				properties.addAll(policies[i].values.keySet());
+			}
+		}
+
+		/**
+		 * Get the value of a policy for a request.  The value is taken from
+		 * the last filter that the request matches, if that filter defines
+		 * the policy.
+		 *
+		 * @param requestMsg the request msg
+		 * @param prop the prop
+		 * @return the value, or null if the filters do not set the policy
+		 * 			for the request
+		 */
+		public PolicyValue get(DhcpMessage requestMsg, Property prop)
+		{
+			if ((requestMsg == null) || !properties.contains(prop)) {
+				return null;
+			}
+			for (int i=filters.length-1; i>=0; i--) {
+				if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filters[i])) {
+					return policies[i].get(prop);
+				}
+			}
+			return null;
+		}
+	}
+}
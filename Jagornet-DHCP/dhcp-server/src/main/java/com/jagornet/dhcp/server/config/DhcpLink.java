@@ -25,6 +25,8 @@
  */
 package com.jagornet.dhcp.server.config;
 
+import java.util.concurrent.atomic.LongAdder;
+
 import com.jagornet.dhcp.core.util.Subnet;
 import com.jagornet.dhcp.server.config.xml.Link;
 
@@ -37,9 +39,17 @@ import com.jagornet.dhcp.server.config.xml.Link;
 public class DhcpLink
 {
 	
-	public enum State  { OK, NOT_SYNCED, SYNCING };
+	/**
+	 * The state of the link.  A link is LOADING at startup until
+	 * the binding managers have loaded its pools, and requests
+	 * received on a link which is not OK are dropped.
+	 */
+	public enum State  { OK, NOT_SYNCED, SYNCING, LOADING };
 
-	private State state;
+	private volatile State state;
+	
+	/** The number of client requests received for the link. */
+	private final LongAdder requestCount = new LongAdder();
 	
 	/** The subnet. */
 	private Subnet subnet;
@@ -192,4 +202,18 @@ public class DhcpLink
 		this.state = state;
 	}
 	
+	/**
+	 * Count a client request received for the link.
+	 */
+	public void requestReceived() {
+		requestCount.increment();
+	}
+	
+	/**
+	 * @return the number of client requests received for the link
+	 */
+	public long getRequestCount() {
+		return requestCount.sum();
+	}
+	
 }
@@ -35,10 +35,12 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.JAXBContext;
@@ -74,63 +76,29 @@ import com.fasterxml.jackson.module.jaxb.JaxbAnnotationIntrospector;
 import com.jagornet.dhcp.core.message.DhcpMessage;
 import com.jagornet.dhcp.core.message.DhcpV4Message;
 import com.jagornet.dhcp.core.message.DhcpV6Message;
-import com.jagornet.dhcp.core.option.base.BaseDomainNameListOption;
-import com.jagornet.dhcp.core.option.base.BaseDomainNameOption;
-import com.jagornet.dhcp.core.option.base.BaseEmptyOption;
-import com.jagornet.dhcp.core.option.base.BaseIpAddressListOption;
-import com.jagornet.dhcp.core.option.base.BaseIpAddressOption;
 import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
-import com.jagornet.dhcp.core.option.base.BaseOpaqueDataListOption;
-import com.jagornet.dhcp.core.option.base.BaseOpaqueDataOption;
-import com.jagornet.dhcp.core.option.base.BaseStringOption;
-import com.jagornet.dhcp.core.option.base.BaseUnsignedByteListOption;
-import com.jagornet.dhcp.core.option.base.BaseUnsignedByteOption;
-import com.jagornet.dhcp.core.option.base.BaseUnsignedIntOption;
-import com.jagornet.dhcp.core.option.base.BaseUnsignedShortListOption;
-import com.jagornet.dhcp.core.option.base.BaseUnsignedShortOption;
 import com.jagornet.dhcp.core.option.base.DhcpOption;
 import com.jagornet.dhcp.core.option.v4.DhcpV4ServerIdOption;
-import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6ServerIdOption;
-import com.jagornet.dhcp.core.option.v6.DhcpV6UserClassOption;
-import com.jagornet.dhcp.core.option.v6.DhcpV6VendorClassOption;
 import com.jagornet.dhcp.core.util.DhcpConstants;
 import com.jagornet.dhcp.core.util.Subnet;
 import com.jagornet.dhcp.core.util.Util;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
-import com.jagornet.dhcp.server.config.xml.ClientClassExpression;
 import com.jagornet.dhcp.server.config.xml.DhcpServerConfig;
-import com.jagornet.dhcp.server.config.xml.DomainNameListOptionType;
-import com.jagornet.dhcp.server.config.xml.DomainNameOptionType;
 import com.jagornet.dhcp.server.config.xml.Filter;
-import com.jagornet.dhcp.server.config.xml.FilterExpression;
-import com.jagornet.dhcp.server.config.xml.FilterExpressionsType;
 import com.jagornet.dhcp.server.config.xml.FiltersType;
-import com.jagornet.dhcp.server.config.xml.IpAddressListOptionType;
-import com.jagornet.dhcp.server.config.xml.IpAddressOptionType;
 import com.jagornet.dhcp.server.config.xml.Link;
 import com.jagornet.dhcp.server.config.xml.LinkFilter;
 import com.jagornet.dhcp.server.config.xml.LinkFiltersType;
 import com.jagornet.dhcp.server.config.xml.LinksType;
 import com.jagornet.dhcp.server.config.xml.OpaqueData;
-import com.jagornet.dhcp.server.config.xml.OpaqueDataListOptionType;
-import com.jagornet.dhcp.server.config.xml.OpaqueDataOptionType;
-import com.jagornet.dhcp.server.config.xml.Operator;
-import com.jagornet.dhcp.server.config.xml.OptionExpression;
 import com.jagornet.dhcp.server.config.xml.PoliciesType;
 import com.jagornet.dhcp.server.config.xml.Policy;
-import com.jagornet.dhcp.server.config.xml.StringOptionType;
-import com.jagornet.dhcp.server.config.xml.UnsignedByteListOptionType;
-import com.jagornet.dhcp.server.config.xml.UnsignedByteOptionType;
-import com.jagornet.dhcp.server.config.xml.UnsignedIntOptionType;
-import com.jagornet.dhcp.server.config.xml.UnsignedShortListOptionType;
-import com.jagornet.dhcp.server.config.xml.UnsignedShortOptionType;
 import com.jagornet.dhcp.server.config.xml.V4AddressBinding;
 import com.jagornet.dhcp.server.config.xml.V4AddressBindingsType;
 import com.jagornet.dhcp.server.config.xml.V4AddressPool;
 import com.jagornet.dhcp.server.config.xml.V4AddressPoolsType;
 import com.jagornet.dhcp.server.config.xml.V4ServerIdOption;
-import com.jagornet.dhcp.server.config.xml.V4VendorClassOption;
 import com.jagornet.dhcp.server.config.xml.V6AddressBinding;
 import com.jagornet.dhcp.server.config.xml.V6AddressBindingsType;
 import com.jagornet.dhcp.server.config.xml.V6AddressPool;
@@ -140,16 +108,16 @@ import com.jagornet.dhcp.server.config.xml.V6PrefixBindingsType;
 import com.jagornet.dhcp.server.config.xml.V6PrefixPool;
 import com.jagornet.dhcp.server.config.xml.V6PrefixPoolsType;
 import com.jagornet.dhcp.server.config.xml.V6ServerIdOption;
-import com.jagornet.dhcp.server.config.xml.V6UserClassOption;
-import com.jagornet.dhcp.server.config.xml.V6VendorClassOption;
 import com.jagornet.dhcp.server.db.IaManager;
 import com.jagornet.dhcp.server.ha.HaBackupFSM;
 import com.jagornet.dhcp.server.ha.HaPrimaryFSM;
+import com.jagornet.dhcp.server.request.binding.BaseBindingManager;
 import com.jagornet.dhcp.server.request.binding.Range;
 import com.jagornet.dhcp.server.request.binding.V4AddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6NaAddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6PrefixBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6TaAddrBindingManager;
+import com.jagornet.dhcp.server.request.ddns.DdnsUpdate;
 
 /**
  * Title: DhcpServerConfiguration
@@ -186,6 +154,9 @@ public class DhcpServerConfiguration
     
     private SortedMap<Subnet, DhcpLink> linkMap;
     
+    private final ConcurrentHashMap<EffectiveOptionsKey, Map<Integer, DhcpOption>> effectiveOptionsCache =
+    		new ConcurrentHashMap<EffectiveOptionsKey, Map<Integer, DhcpOption>>();
+    
     private V6NaAddrBindingManager v6NaAddrBindingMgr;
     private V6TaAddrBindingManager v6TaAddrBindingMgr;
     private V6PrefixBindingManager v6PrefixBindingMgr;
@@ -224,6 +195,8 @@ public class DhcpServerConfiguration
     	DhcpServerConfig xmlServerConfig = loadConfig(configFilename);
     	if (xmlServerConfig != null) {
     		boolean needWrite = false;
+    		// the options of the previous configuration
+    		OptionWireCache.clear();
         	
         	V4ServerIdOption v4ServerId = xmlServerConfig.getV4ServerIdOption();
         	if ((v4ServerId == null) ||
@@ -233,6 +206,7 @@ public class DhcpServerConfiguration
         		needWrite = true;
         	}
         	dhcpV4ServerIdOption = new DhcpV4ServerIdOption(v4ServerId.getIpAddress());
+        	OptionWireCache.put(dhcpV4ServerIdOption);
 
         	V6ServerIdOption v6ServerId = xmlServerConfig.getV6ServerIdOption();
         	if ((v6ServerId == null) ||
@@ -244,6 +218,7 @@ public class DhcpServerConfiguration
         	BaseOpaqueData baseOpaqueData = 
         			OpaqueDataUtil.toBaseOpaqueData(v6ServerId.getOpaqueData());
         	dhcpV6ServerIdOption = new DhcpV6ServerIdOption(baseOpaqueData);
+        	OptionWireCache.put(dhcpV6ServerIdOption);
         	
         	globalPolicies = xmlServerConfig.getPolicies();
 	    	globalV6MsgConfigOptions = new DhcpV6ConfigOptions(xmlServerConfig.getV6MsgConfigOptions());
@@ -257,6 +232,15 @@ public class DhcpServerConfiguration
 	    	
 	    	globalFilters = xmlServerConfig.getFilters();
 	    	
+	    	// the effective options of the previous configuration
+	    	effectiveOptionsCache.clear();
+	    	
+	    	FilterMatcher.compileFilters(globalFilters, xmlServerConfig.getLinks());
+	    	DhcpServerPolicies.compilePolicies(globalPolicies, globalFilters,
+	    			xmlServerConfig.getLinks());
+	    	// the resolvers of the previous DDNS policies
+	    	DdnsUpdate.clearResolvers();
+	    	
 	    	initLinkMap(xmlServerConfig.getLinks());
 	    	
 	        // must initLinkMap before initHighAvailability because
@@ -302,6 +286,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6MsgConfigOptions(DhcpV6ConfigOptions globalV6MsgConfigOptions) {
 		this.globalV6MsgConfigOptions = globalV6MsgConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6IaNaConfigOptions() {
@@ -310,6 +295,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6IaNaConfigOptions(DhcpV6ConfigOptions globalV6IaNaConfigOptions) {
 		this.globalV6IaNaConfigOptions = globalV6IaNaConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6NaAddrConfigOptions() {
@@ -318,6 +304,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6NaAddrConfigOptions(DhcpV6ConfigOptions globalV6NaAddrConfigOptions) {
 		this.globalV6NaAddrConfigOptions = globalV6NaAddrConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6IaTaConfigOptions() {
@@ -326,6 +313,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6IaTaConfigOptions(DhcpV6ConfigOptions globalV6IaTaConfigOptions) {
 		this.globalV6IaTaConfigOptions = globalV6IaTaConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6TaAddrConfigOptions() {
@@ -334,6 +322,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6TaAddrConfigOptions(DhcpV6ConfigOptions globalV6TaAddrConfigOptions) {
 		this.globalV6TaAddrConfigOptions = globalV6TaAddrConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6IaPdConfigOptions() {
@@ -342,6 +331,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6IaPdConfigOptions(DhcpV6ConfigOptions globalV6IaPdConfigOptions) {
 		this.globalV6IaPdConfigOptions = globalV6IaPdConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV6ConfigOptions getGlobalV6PrefixConfigOptions() {
@@ -350,6 +340,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV6PrefixConfigOptions(DhcpV6ConfigOptions globalV6PrefixConfigOptions) {
 		this.globalV6PrefixConfigOptions = globalV6PrefixConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public DhcpV4ConfigOptions getGlobalV4ConfigOptions() {
@@ -358,6 +349,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalV4ConfigOptions(DhcpV4ConfigOptions globalV4ConfigOptions) {
 		this.globalV4ConfigOptions = globalV4ConfigOptions;
+		effectiveOptionsCache.clear();
 	}
 
 	public FiltersType getGlobalFilters() {
@@ -366,6 +358,7 @@ public class DhcpServerConfiguration
 
 	public void setGlobalFilters(FiltersType globalFilters) {
 		this.globalFilters = globalFilters;
+		effectiveOptionsCache.clear();
 	}
 
 	/**
@@ -589,6 +582,7 @@ public class DhcpServerConfiguration
 	}
 
 	public void setV6NaAddrBindingMgr(V6NaAddrBindingManager v6NaAddrBindingMgr) {
+		closeReplacedBindingMgr(this.v6NaAddrBindingMgr, v6NaAddrBindingMgr);
 		this.v6NaAddrBindingMgr = v6NaAddrBindingMgr;
 	}
 
@@ -597,6 +591,7 @@ public class DhcpServerConfiguration
 	}
 
 	public void setV6TaAddrBindingMgr(V6TaAddrBindingManager v6TaAddrBindingMgr) {
+		closeReplacedBindingMgr(this.v6TaAddrBindingMgr, v6TaAddrBindingMgr);
 		this.v6TaAddrBindingMgr = v6TaAddrBindingMgr;
 	}
 
@@ -605,6 +600,7 @@ public class DhcpServerConfiguration
 	}
 
 	public void setV6PrefixBindingMgr(V6PrefixBindingManager v6PrefixBindingMgr) {
+		closeReplacedBindingMgr(this.v6PrefixBindingMgr, v6PrefixBindingMgr);
 		this.v6PrefixBindingMgr = v6PrefixBindingMgr;
 	}
     
@@ -613,9 +609,23 @@ public class DhcpServerConfiguration
 	}
 
 	public void setV4AddrBindingMgr(V4AddrBindingManager v4AddrBindingMgr) {
+		closeReplacedBindingMgr(this.v4AddrBindingMgr, v4AddrBindingMgr);
 		this.v4AddrBindingMgr = v4AddrBindingMgr;
 	}
 
+	/**
+	 * Close a binding manager which is replaced, so that its reaper
+	 * does not keep running against the bindings of the new manager.
+	 * 
+	 * @param oldMgr the replaced manager
+	 * @param newMgr the new manager
+	 */
+	private void closeReplacedBindingMgr(Object oldMgr, Object newMgr) {
+		if ((oldMgr != null) && (oldMgr != newMgr) && (oldMgr instanceof BaseBindingManager)) {
+			((BaseBindingManager)oldMgr).close();
+		}
+	}
+
 	public IaManager getIaMgr() {
 		return iaMgr;
 	}
@@ -784,8 +794,18 @@ public class DhcpServerConfiguration
         return link;
     }
     
-    private DhcpLink findLink(InetAddress addr)
+    /**
+     * Find the configured link whose subnet contains the given address.
+     * 
+     * @param addr the address
+     * 
+     * @return the dhcp link, or null if no link contains the address
+     */
+    public DhcpLink findLink(InetAddress addr)
     {
+    	if ((linkMap == null) || linkMap.isEmpty()) {
+    		return null;
+    	}
         Subnet s = null;
         if (addr instanceof Inet4Address) {
         	s = new Subnet(addr, 32);
@@ -1266,16 +1286,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveMsgOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6MsgConfigOptions != null) {
-    		optionMap.putAll(globalV6MsgConfigOptions.getDhcpOptionMap());
-    	}
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredMsgOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_MSG, requestMsg, null, null);
     }
 
     /**
@@ -1289,40 +1300,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveMsgOptions(DhcpV6Message requestMsg, 
     													DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveMsgOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getMsgConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredMsgOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_MSG, requestMsg, dhcpLink, null);
     }
     
     public Map<Integer, DhcpOption> effectiveMsgOptions(DhcpV6Message requestMsg, 
     													DhcpLink dhcpLink,
     													DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveMsgOptions(requestMsg, dhcpLink);
-    	if (configObj != null) {
-	    	DhcpV6ConfigOptions configOptions = configObj.getMsgConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredMsgOptions(requestMsg, configObj.getFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_MSG, requestMsg, dhcpLink, configObj);
     }
     
     /**
@@ -1334,17 +1319,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaNaOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6IaNaConfigOptions != null) {
-    		optionMap.putAll(globalV6IaNaConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredIaNaOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_NA, requestMsg, null, null);
     }
 
     /**
@@ -1358,40 +1333,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveIaNaOptions(DhcpV6Message requestMsg, 
     													 DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaNaOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaNaConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredIaNaOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_NA, requestMsg, dhcpLink, null);
     }
 
     public Map<Integer, DhcpOption> effectiveIaNaOptions(DhcpV6Message requestMsg,
 														 DhcpLink dhcpLink, 
 														 DhcpV6OptionConfigObject configObj)
 	{
-		Map<Integer, DhcpOption> optionMap = effectiveIaNaOptions(requestMsg, dhcpLink);
-		if (configObj != null) {
-			DhcpV6ConfigOptions configOptions = configObj.getIaConfigOptions();
-			if (configOptions != null) {
-				optionMap.putAll(configOptions.getDhcpOptionMap());
-			}
-			
-			Map<Integer, DhcpOption> filteredOptions = 
-					filteredIaNaOptions(requestMsg, configObj.getFilters());
-			if (filteredOptions != null) {
-				optionMap.putAll(filteredOptions);
-			}
-		}
-		return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_NA, requestMsg, dhcpLink, configObj);
 	}
     
     /**
@@ -1403,17 +1352,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6NaAddrConfigOptions != null) {
-    		optionMap.putAll(globalV6NaAddrConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredNaAddrOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_NA_ADDR, requestMsg, null, null);
     }
 
     /**
@@ -1427,20 +1366,7 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg,
     													   DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveNaAddrOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getNaAddrConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredNaAddrOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_NA_ADDR, requestMsg, dhcpLink, null);
     }
 
     /**
@@ -1448,28 +1374,15 @@ public class DhcpServerConfiguration
      * 
      * @param requestMsg the request msg
      * @param link the link
-     * @param pool the pool
+     * @param configObj the config object
      * 
      * @return the map< integer, dhcp option>
      */
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg,
-    													   DhcpLink dhcpLink,
+    													   DhcpLink dhcpLink, 
     													   DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveNaAddrOptions(requestMsg, dhcpLink);
-    	if (configObj != null) {
-	    	DhcpV6ConfigOptions configOptions = configObj.getAddrConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredNaAddrOptions(requestMsg, configObj.getFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_NA_ADDR, requestMsg, dhcpLink, configObj);
     }
     
     /**
@@ -1481,17 +1394,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaTaOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6IaTaConfigOptions != null) {
-    		optionMap.putAll(globalV6IaTaConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredIaTaOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_TA, requestMsg, null, null);
     }
 
     /**
@@ -1505,43 +1408,16 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveIaTaOptions(DhcpV6Message requestMsg,
     													 DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaTaOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaTaConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredIaTaOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_TA, requestMsg, dhcpLink, null);
     }
 
     public Map<Integer, DhcpOption> effectiveIaTaOptions(DhcpV6Message requestMsg,
 														 DhcpLink dhcpLink, 
 														 DhcpV6OptionConfigObject configObj)
 	{
-		Map<Integer, DhcpOption> optionMap = effectiveIaTaOptions(requestMsg, dhcpLink);
-		if (configObj != null) {
-			DhcpV6ConfigOptions configOptions = configObj.getIaConfigOptions();
-			if (configOptions != null) {
-				optionMap.putAll(configOptions.getDhcpOptionMap());
-			}
-			
-			Map<Integer, DhcpOption> filteredOptions = 
-					filteredIaTaOptions(requestMsg, configObj.getFilters());
-			if (filteredOptions != null) {
-				optionMap.putAll(filteredOptions);
-			}
-		}
-		return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_TA, requestMsg, dhcpLink, configObj);
 	}
     
-    
     /**
      * Effective ta addr options.
      * 
@@ -1551,17 +1427,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveTaAddrOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6TaAddrConfigOptions != null) {
-    		optionMap.putAll(globalV6TaAddrConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredTaAddrOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_TA_ADDR, requestMsg, null, null);
     }
 
     /**
@@ -1575,20 +1441,7 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveTaAddrOptions(DhcpV6Message requestMsg,
     													   DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveTaAddrOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getTaAddrConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredTaAddrOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_TA_ADDR, requestMsg, dhcpLink, null);
     }
 
     /**
@@ -1596,7 +1449,7 @@ public class DhcpServerConfiguration
      * 
      * @param requestMsg the request msg
      * @param link the link
-     * @param pool the pool
+     * @param configObj the config object
      * 
      * @return the map< integer, dhcp option>
      */
@@ -1604,20 +1457,7 @@ public class DhcpServerConfiguration
     													   DhcpLink dhcpLink, 
     													   DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveTaAddrOptions(requestMsg, dhcpLink);
-    	if (configObj != null)  {
-	    	DhcpV6ConfigOptions configOptions = configObj.getAddrConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredTaAddrOptions(requestMsg, configObj.getFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_TA_ADDR, requestMsg, dhcpLink, configObj);
     }
     
     /**
@@ -1629,17 +1469,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaPdOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6IaPdConfigOptions != null) {
-    		optionMap.putAll(globalV6IaPdConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredIaPdOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_PD, requestMsg, null, null);
     }
 
     /**
@@ -1653,40 +1483,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveIaPdOptions(DhcpV6Message requestMsg,
     													 DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaPdOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaPdConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredIaPdOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_PD, requestMsg, dhcpLink, null);
     }
 
     public Map<Integer, DhcpOption> effectiveIaPdOptions(DhcpV6Message requestMsg,
 														 DhcpLink dhcpLink, 
 														 DhcpV6OptionConfigObject configObj)
 	{
-		Map<Integer, DhcpOption> optionMap = effectiveIaPdOptions(requestMsg, dhcpLink);
-		if (configObj != null) {
-			DhcpV6ConfigOptions configOptions = configObj.getIaConfigOptions();
-			if (configOptions != null) {
-				optionMap.putAll(configOptions.getDhcpOptionMap());
-			}
-			
-			Map<Integer, DhcpOption> filteredOptions = 
-					filteredIaPdOptions(requestMsg, configObj.getFilters());
-			if (filteredOptions != null) {
-				optionMap.putAll(filteredOptions);
-			}
-		}
-		return optionMap;
+    	return effectiveOptions(OptionsKind.V6_IA_PD, requestMsg, dhcpLink, configObj);
 	}
     
     /**
@@ -1698,17 +1502,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectivePrefixOptions(DhcpV6Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV6PrefixConfigOptions != null) {
-    		optionMap.putAll(globalV6PrefixConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredPrefixOptions(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_PREFIX, requestMsg, null, null);
     }
 
     /**
@@ -1722,20 +1516,7 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectivePrefixOptions(DhcpV6Message requestMsg,
     													   DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectivePrefixOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink != null)) {
-	    	DhcpV6ConfigOptions configOptions = dhcpLink.getPrefixConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredPrefixOptions(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_PREFIX, requestMsg, dhcpLink, null);
     }
 
     /**
@@ -1743,7 +1524,7 @@ public class DhcpServerConfiguration
      * 
      * @param requestMsg the request msg
      * @param link the link
-     * @param pool the pool
+     * @param configObj the config object
      * 
      * @return the map< integer, dhcp option>
      */
@@ -1751,20 +1532,7 @@ public class DhcpServerConfiguration
     													   DhcpLink dhcpLink, 
     													   DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectivePrefixOptions(requestMsg, dhcpLink);
-    	if (configObj != null) {
-	    	DhcpV6ConfigOptions configOptions = configObj.getAddrConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredPrefixOptions(requestMsg, configObj.getFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V6_PREFIX, requestMsg, dhcpLink, configObj);
     }
     
     /**
@@ -1776,17 +1544,7 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveV4AddrOptions(DhcpV4Message requestMsg)
     {
-    	Map<Integer, DhcpOption> optionMap = new TreeMap<Integer, DhcpOption>();
-    	if (globalV4ConfigOptions != null) {
-    		optionMap.putAll(globalV4ConfigOptions.getDhcpOptionMap());
-    	}
-    	
-    	Map<Integer, DhcpOption> filteredOptions = 
-    		filteredV4Options(requestMsg, globalFilters);
-    	if (filteredOptions != null) {
-    		optionMap.putAll(filteredOptions);
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V4, requestMsg, null, null);
     }
 
     /**
@@ -1800,20 +1558,7 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveV4AddrOptions(DhcpV4Message requestMsg,
     													   DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveV4AddrOptions(requestMsg);
-    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
-	    	DhcpV4ConfigOptions configOptions = dhcpLink.getV4ConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredV4Options(requestMsg, dhcpLink.getLink().getLinkFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V4, requestMsg, dhcpLink, null);
     }
 
     /**
@@ -1829,516 +1574,303 @@ public class DhcpServerConfiguration
     													   DhcpLink dhcpLink, 
     													   DhcpV4OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveV4AddrOptions(requestMsg, dhcpLink);
-    	if (configObj != null) {
-	    	DhcpV4ConfigOptions configOptions = configObj.getV4ConfigOptions();
-	    	if (configOptions != null) {
-	    		optionMap.putAll(configOptions.getDhcpOptionMap());
-	    	}
-	    	
-	    	Map<Integer, DhcpOption> filteredOptions = 
-	    		filteredV4Options(requestMsg, configObj.getFilters());
-	    	if (filteredOptions != null) {
-	    		optionMap.putAll(filteredOptions);
-	    	}
-    	}
-    	return optionMap;
+    	return effectiveOptions(OptionsKind.V4, requestMsg, dhcpLink, configObj);
     }
-
+    
     /**
-     * Filtered msg options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
+     * The kinds of configured options, by the level of the reply
+     * which the options are returned in.
      */
-    protected Map<Integer, DhcpOption> filteredMsgOptions(DhcpV6Message requestMsg, 
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredMsgOptions(requestMsg, filters);
-    	}
-    	return null;
-    }
+    protected static enum OptionsKind { V6_MSG, V6_IA_NA, V6_NA_ADDR, V6_IA_TA, V6_TA_ADDR,
+    									V6_IA_PD, V6_PREFIX, V4 };
 
     /**
-     * Filtered msg options.
-     * 
+     * Effective options.  The effective options are the global options,
+     * overridden by the link options and the pool or binding options,
+     * where the options of each level are overridden by the options of
+     * the first filter at that level which matches the request.  So the
+     * effective options only depend on the link, the pool or binding,
+     * and which filter matched at each level, and the merged options of
+     * each such combination are built once and cached until the server
+     * configuration is loaded again.
+     * 
+     * @param kind the kind of options
      * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
+     * @param dhcpLink the link, or null for the global options
+     * @param configObj the pool or binding, or null for the link options
      * 
-     * @return the map< integer, dhcp option>
+     * @return the unmodifiable map< integer, dhcp option>
      */
-    protected Map<Integer, DhcpOption> filteredMsgOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
+    protected Map<Integer, DhcpOption> effectiveOptions(OptionsKind kind, DhcpMessage requestMsg,
+    		DhcpLink dhcpLink, DhcpConfigObject configObj)
     {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredMsgOptions(requestMsg, filters);
+    	if ((dhcpLink != null) && (dhcpLink.getLink() == null)) {
+    		dhcpLink = null;
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered msg options.
-     * 
-     * @param requestMsg the request msg
-     * @param filters the filters
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    private Map<Integer, DhcpOption> filteredMsgOptions(DhcpV6Message requestMsg,
-    		List<? extends Filter> filters)
-    {
-		if ((filters != null) && !filters.isEmpty()) {
-            for (Filter filter : filters) {
-            	if (msgMatchesFilter(requestMsg, filter)) {
-                    log.info("Request matches filter: " + filter.getName());
-                	DhcpV6ConfigOptions filterConfigOptions = 
-                		new DhcpV6ConfigOptions(filter.getV6MsgConfigOptions());
-                	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-                	}
-            	}
-            }
-		}
-    	return null;
-    }
-    
-    /**
-     * Filtered ia na options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredIaNaOptions(DhcpV6Message requestMsg,
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredIaNaOptions(requestMsg, filters);
+    	int globalFilter = matchingFilter(requestMsg, 
+    			(globalFilters != null) ? globalFilters.getFilterList() : null);
+    	int linkFilter = -1;
+    	if (dhcpLink != null) {
+    		LinkFiltersType linkFiltersType = dhcpLink.getLink().getLinkFilters();
+    		linkFilter = matchingFilter(requestMsg,
+    				(linkFiltersType != null) ? linkFiltersType.getLinkFilterList() : null);
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered ia na options.
-     * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredIaNaOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
-    {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredIaNaOptions(requestMsg, filters);
+    	int configObjFilter = -1;
+    	if (configObj != null) {
+    		FiltersType filtersType = configObj.getFilters();
+    		configObjFilter = matchingFilter(requestMsg,
+    				(filtersType != null) ? filtersType.getFilterList() : null);
     	}
-    	return null;
-    }
-
-	/**
-	 * Filtered ia na options.
-	 * 
-	 * @param requestMsg the request msg
-	 * @param filters the filters
-	 * 
-	 * @return the map< integer, dhcp option>
-	 */
-	private Map<Integer, DhcpOption> filteredIaNaOptions(DhcpV6Message requestMsg,
-			List<? extends Filter> filters)
-	{
-		if ((filters != null) && !filters.isEmpty()) {
-		    for (Filter filter : filters) {
-		    	if (msgMatchesFilter(requestMsg, filter)) {
-		            log.info("Request matches filter: " + filter.getName());
-		        	DhcpV6ConfigOptions filterConfigOptions = 
-		        		new DhcpV6ConfigOptions(filter.getV6IaNaConfigOptions());
-		        	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-		        	}
-		    	}
-		    }
-		}
-		return null;
-	}
-
-    /**
-     * Filtered na addr options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredNaAddrOptions(DhcpV6Message requestMsg, 
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredNaAddrOptions(requestMsg, filters);
+    	
+    	EffectiveOptionsKey key = new EffectiveOptionsKey(kind, dhcpLink, configObj,
+    			globalFilter, linkFilter, configObjFilter);
+    	Map<Integer, DhcpOption> optionMap = effectiveOptionsCache.get(key);
+    	if (optionMap == null) {
+    		optionMap = new TreeMap<Integer, DhcpOption>();
+    		optionMap.putAll(globalOptions(kind));
+    		if (globalFilter >= 0) {
+    			optionMap.putAll(filterOptions(kind, globalFilters.getFilterList().get(globalFilter)));
+    		}
+    		if (dhcpLink != null) {
+    			putAllOptions(optionMap, kind, dhcpLink);
+    			if (linkFilter >= 0) {
+    				optionMap.putAll(filterOptions(kind, 
+    						dhcpLink.getLink().getLinkFilters().getLinkFilterList().get(linkFilter)));
+    			}
+    		}
+    		if (configObj != null) {
+    			putAllOptions(optionMap, kind, configObj);
+    			if (configObjFilter >= 0) {
+    				optionMap.putAll(filterOptions(kind, 
+    						configObj.getFilters().getFilterList().get(configObjFilter)));
+    			}
+    		}
+    		optionMap = Collections.unmodifiableMap(optionMap);
+    		Map<Integer, DhcpOption> existing = effectiveOptionsCache.putIfAbsent(key, optionMap);
+    		if (existing != null) {
+    			optionMap = existing;
+    		}
     	}
-    	return null;
+    	return optionMap;
     }
-
+    
     /**
-     * Filtered na addr options.
-     * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
-     * 
-     * @return the map< integer, dhcp option>
+     * Clear the cached effective options.  The cache is keyed by the pools
+     * and static bindings, so it is cleared when they are rebuilt, so that
+     * it does not keep the replaced pools and static bindings.
      */
-    protected Map<Integer, DhcpOption> filteredNaAddrOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
+    public void clearEffectiveOptions()
     {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredNaAddrOptions(requestMsg, filters);
-    	}
-    	return null;
+    	effectiveOptionsCache.clear();
     }
-
+    
     /**
-     * Filtered na addr options.
+     * Find the first filter which matches the request.
      * 
      * @param requestMsg the request msg
      * @param filters the filters
      * 
-     * @return the map< integer, dhcp option>
+     * @return the index of the filter, or -1 if no filter matches
      */
-    private Map<Integer, DhcpOption> filteredNaAddrOptions(DhcpV6Message requestMsg,
-    		List<? extends Filter> filters)
+    private static int matchingFilter(DhcpMessage requestMsg, List<? extends Filter> filters)
     {
-		if ((filters != null) && !filters.isEmpty()) {
-            for (Filter filter : filters) {
+		if (filters != null) {
+			for (int i=0; i<filters.size(); i++) {
+				Filter filter = filters.get(i);
             	if (msgMatchesFilter(requestMsg, filter)) {
                     log.info("Request matches filter: " + filter.getName());
-                	DhcpV6ConfigOptions filterConfigOptions = 
-                		new DhcpV6ConfigOptions(filter.getV6NaAddrConfigOptions());
-                	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-                	}
+                    return i;
             	}
-            }
+			}
 		}
-		return null;
+		return -1;
     }
     
     /**
-     * Filtered ia ta options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredIaTaOptions(DhcpV6Message requestMsg,
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredIaTaOptions(requestMsg, filters);
-    	}
-    	return null;
-    }
-
-    /**
-     * Filtered ia ta options.
+     * Global options.
      * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
+     * @param kind the kind of options
      * 
      * @return the map< integer, dhcp option>
      */
-    protected Map<Integer, DhcpOption> filteredIaTaOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
+    private Map<Integer, DhcpOption> globalOptions(OptionsKind kind)
     {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredIaTaOptions(requestMsg, filters);
+    	DhcpV6ConfigOptions v6ConfigOptions = null;
+    	switch (kind) {
+	    	case V6_MSG: v6ConfigOptions = globalV6MsgConfigOptions; break;
+	    	case V6_IA_NA: v6ConfigOptions = globalV6IaNaConfigOptions; break;
+	    	case V6_NA_ADDR: v6ConfigOptions = globalV6NaAddrConfigOptions; break;
+	    	case V6_IA_TA: v6ConfigOptions = globalV6IaTaConfigOptions; break;
+	    	case V6_TA_ADDR: v6ConfigOptions = globalV6TaAddrConfigOptions; break;
+	    	case V6_IA_PD: v6ConfigOptions = globalV6IaPdConfigOptions; break;
+	    	case V6_PREFIX: v6ConfigOptions = globalV6PrefixConfigOptions; break;
+	    	case V4:
+	    		if (globalV4ConfigOptions != null) {
+	    			return globalV4ConfigOptions.getDhcpOptionMap();
+	    		}
+	    		break;
     	}
-    	return null;
-    }
-
-	/**
-	 * Filtered ia ta options.
-	 * 
-	 * @param requestMsg the request msg
-	 * @param filters the filters
-	 * 
-	 * @return the map< integer, dhcp option>
-	 */
-	private Map<Integer, DhcpOption> filteredIaTaOptions(DhcpV6Message requestMsg,
-			List<? extends Filter> filters)
-	{
-		if ((filters != null) && !filters.isEmpty()) {
-		    for (Filter filter : filters) {
-		    	if (msgMatchesFilter(requestMsg, filter)) {
-		            log.info("Request matches filter: " + filter.getName());
-		        	DhcpV6ConfigOptions filterConfigOptions = 
-		        		new DhcpV6ConfigOptions(filter.getV6IaTaConfigOptions());
-		        	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-		        	}
-		    	}
-		    }
-		}
-		return null;
-	}
-
-    /**
-     * Filtered ta addr options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredTaAddrOptions(DhcpV6Message requestMsg, 
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredTaAddrOptions(requestMsg, filters);
+    	if (v6ConfigOptions != null) {
+    		return v6ConfigOptions.getDhcpOptionMap();
     	}
-    	return null;
+    	return Collections.emptyMap();
     }
-
+    
     /**
-     * Filtered ta addr options.
+     * Put all the options of a link.
      * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
-     * 
-     * @return the map< integer, dhcp option>
+     * @param optionMap the map to put the options in
+     * @param kind the kind of options
+     * @param dhcpLink the link
      */
-    protected Map<Integer, DhcpOption> filteredTaAddrOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
-    {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredTaAddrOptions(requestMsg, filters);
+    private static void putAllOptions(Map<Integer, DhcpOption> optionMap, 
+    		OptionsKind kind, DhcpLink dhcpLink)
+    {
+    	DhcpV6ConfigOptions v6ConfigOptions = null;
+    	switch (kind) {
+	    	case V6_MSG: v6ConfigOptions = dhcpLink.getMsgConfigOptions(); break;
+	    	case V6_IA_NA: v6ConfigOptions = dhcpLink.getIaNaConfigOptions(); break;
+	    	case V6_NA_ADDR: v6ConfigOptions = dhcpLink.getNaAddrConfigOptions(); break;
+	    	case V6_IA_TA: v6ConfigOptions = dhcpLink.getIaTaConfigOptions(); break;
+	    	case V6_TA_ADDR: v6ConfigOptions = dhcpLink.getTaAddrConfigOptions(); break;
+	    	case V6_IA_PD: v6ConfigOptions = dhcpLink.getIaPdConfigOptions(); break;
+	    	case V6_PREFIX: v6ConfigOptions = dhcpLink.getPrefixConfigOptions(); break;
+	    	case V4:
+	    		DhcpV4ConfigOptions v4ConfigOptions = dhcpLink.getV4ConfigOptions();
+	    		if (v4ConfigOptions != null) {
+	    			optionMap.putAll(v4ConfigOptions.getDhcpOptionMap());
+	    		}
+	    		break;
+    	}
+    	if (v6ConfigOptions != null) {
+    		optionMap.putAll(v6ConfigOptions.getDhcpOptionMap());
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered ta addr options.
-     * 
-     * @param requestMsg the request msg
-     * @param filters the filters
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    private Map<Integer, DhcpOption> filteredTaAddrOptions(DhcpV6Message requestMsg,
-    		List<? extends Filter> filters)
-    {
-		if ((filters != null) && !filters.isEmpty()) {
-            for (Filter filter : filters) {
-            	if (msgMatchesFilter(requestMsg, filter)) {
-                    log.info("Request matches filter: " + filter.getName());
-                	DhcpV6ConfigOptions filterConfigOptions = 
-                		new DhcpV6ConfigOptions(filter.getV6TaAddrConfigOptions());
-                	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-                	}
-            	}
-            }
-		}
-		return null;
     }
     
     /**
-     * Filtered ia pd options.
+     * Put all the options of a pool or binding.
      * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
+     * @param optionMap the map to put the options in
+     * @param kind the kind of options
+     * @param configObj the pool or binding
      */
-    protected Map<Integer, DhcpOption> filteredIaPdOptions(DhcpV6Message requestMsg,
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredIaPdOptions(requestMsg, filters);
+    private static void putAllOptions(Map<Integer, DhcpOption> optionMap, 
+    		OptionsKind kind, DhcpConfigObject configObj)
+    {
+    	DhcpV6ConfigOptions v6ConfigOptions = null;
+    	if (kind == OptionsKind.V4) {
+    		if (configObj instanceof DhcpV4OptionConfigObject) {
+	    		DhcpV4ConfigOptions v4ConfigOptions = 
+	    				((DhcpV4OptionConfigObject)configObj).getV4ConfigOptions();
+	    		if (v4ConfigOptions != null) {
+	    			optionMap.putAll(v4ConfigOptions.getDhcpOptionMap());
+	    		}
+    		}
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered ia pd options.
-     * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredIaPdOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
-    {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredIaPdOptions(requestMsg, filters);
+    	else if (configObj instanceof DhcpV6OptionConfigObject) {
+    		DhcpV6OptionConfigObject v6ConfigObj = (DhcpV6OptionConfigObject)configObj;
+	    	switch (kind) {
+		    	case V6_MSG: 
+		    		v6ConfigOptions = v6ConfigObj.getMsgConfigOptions(); 
+		    		break;
+		    	case V6_IA_NA: 
+		    	case V6_IA_TA: 
+		    	case V6_IA_PD: 
+		    		v6ConfigOptions = v6ConfigObj.getIaConfigOptions(); 
+		    		break;
+		    	default:
+		    		v6ConfigOptions = v6ConfigObj.getAddrConfigOptions(); 
+		    		break;
+	    	}
     	}
-    	return null;
-    }
-
-	/**
-	 * Filtered ia pd options.
-	 * 
-	 * @param requestMsg the request msg
-	 * @param filters the filters
-	 * 
-	 * @return the map< integer, dhcp option>
-	 */
-	private Map<Integer, DhcpOption> filteredIaPdOptions(DhcpV6Message requestMsg,
-			List<? extends Filter> filters)
-	{
-		if ((filters != null) && !filters.isEmpty()) {
-		    for (Filter filter : filters) {
-		    	if (msgMatchesFilter(requestMsg, filter)) {
-		            log.info("Request matches filter: " + filter.getName());
-		        	DhcpV6ConfigOptions filterConfigOptions = 
-		        		new DhcpV6ConfigOptions(filter.getV6IaPdConfigOptions());
-		        	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-		        	}
-		    	}
-		    }
-		}
-		return null;
-	}
-
-    /**
-     * Filtered prefix options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredPrefixOptions(DhcpV6Message requestMsg, 
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredPrefixOptions(requestMsg, filters);
+    	if (v6ConfigOptions != null) {
+    		optionMap.putAll(v6ConfigOptions.getDhcpOptionMap());
     	}
-    	return null;
     }
-
+    
     /**
-     * Filtered prefix options.
+     * Filter options.
      * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
+     * @param kind the kind of options
+     * @param filter the filter
      * 
      * @return the map< integer, dhcp option>
      */
-    protected Map<Integer, DhcpOption> filteredPrefixOptions(DhcpV6Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
-    {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredPrefixOptions(requestMsg, filters);
+    private static Map<Integer, DhcpOption> filterOptions(OptionsKind kind, Filter filter)
+    {
+    	switch (kind) {
+	    	case V6_MSG: 
+	    		return new DhcpV6ConfigOptions(filter.getV6MsgConfigOptions()).getDhcpOptionMap();
+	    	case V6_IA_NA: 
+	    		return new DhcpV6ConfigOptions(filter.getV6IaNaConfigOptions()).getDhcpOptionMap();
+	    	case V6_NA_ADDR: 
+	    		return new DhcpV6ConfigOptions(filter.getV6NaAddrConfigOptions()).getDhcpOptionMap();
+	    	case V6_IA_TA: 
+	    		return new DhcpV6ConfigOptions(filter.getV6IaTaConfigOptions()).getDhcpOptionMap();
+	    	case V6_TA_ADDR: 
+	    		return new DhcpV6ConfigOptions(filter.getV6TaAddrConfigOptions()).getDhcpOptionMap();
+	    	case V6_IA_PD: 
+	    		return new DhcpV6ConfigOptions(filter.getV6IaPdConfigOptions()).getDhcpOptionMap();
+	    	case V6_PREFIX: 
+	    		return new DhcpV6ConfigOptions(filter.getV6PrefixConfigOptions()).getDhcpOptionMap();
+	    	default:
+	    		return new DhcpV4ConfigOptions(filter.getV4ConfigOptions()).getDhcpOptionMap();
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered prefix options.
-     * 
-     * @param requestMsg the request msg
-     * @param filters the filters
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    private Map<Integer, DhcpOption> filteredPrefixOptions(DhcpV6Message requestMsg,
-    		List<? extends Filter> filters)
-    {
-		if ((filters != null) && !filters.isEmpty()) {
-            for (Filter filter : filters) {
-            	if (msgMatchesFilter(requestMsg, filter)) {
-                    log.info("Request matches filter: " + filter.getName());
-                	DhcpV6ConfigOptions filterConfigOptions = 
-                		new DhcpV6ConfigOptions(filter.getV6PrefixConfigOptions());
-                	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-                	}
-            	}
-            }
-		}
-		return null;
     }
-
+    
     /**
-     * Filtered v4 options.
-     * 
-     * @param requestMsg the request msg
-     * @param filtersType the filters type
-     * 
-     * @return the map< integer, dhcp option>
+     * The key of the cached effective options: the kind of options, the link
+     * and pool or binding of the request, by identity, and the index of the
+     * filter matched at each level.
      */
-    protected Map<Integer, DhcpOption> filteredV4Options(DhcpV4Message requestMsg, 
-    		FiltersType filtersType)
-    {
-    	if (filtersType != null) {
-    		List<Filter> filters = filtersType.getFilterList();
-    		return filteredV4Options(requestMsg, filters);
+    private static final class EffectiveOptionsKey
+    {
+    	private final OptionsKind kind;
+    	private final DhcpLink dhcpLink;
+    	private final DhcpConfigObject configObj;
+    	private final int globalFilter;
+    	private final int linkFilter;
+    	private final int configObjFilter;
+    	private final int hash;
+    	
+    	EffectiveOptionsKey(OptionsKind kind, DhcpLink dhcpLink, DhcpConfigObject configObj,
+    			int globalFilter, int linkFilter, int configObjFilter)
+    	{
+    		this.kind = kind;
+    		this.dhcpLink = dhcpLink;
+    		this.configObj = configObj;
+    		this.globalFilter = globalFilter;
+    		this.linkFilter = linkFilter;
+    		this.configObjFilter = configObjFilter;
+    		int h = kind.hashCode();
+    		h = 31*h + System.identityHashCode(dhcpLink);
+    		h = 31*h + System.identityHashCode(configObj);
+    		h = 31*h + globalFilter;
+    		h = 31*h + linkFilter;
+    		h = 31*h + configObjFilter;
+    		hash = h;
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered v4 options.
-     * 
-     * @param requestMsg the request msg
-     * @param linkFiltersType the link filters type
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    protected Map<Integer, DhcpOption> filteredV4Options(DhcpV4Message requestMsg, 
-    		LinkFiltersType linkFiltersType)
-    {
-    	if (linkFiltersType != null) {
-    		List<LinkFilter> filters = linkFiltersType.getLinkFilterList();
-    		return filteredV4Options(requestMsg, filters);
+    	
+    	@Override
+    	public int hashCode()
+    	{
+    		return hash;
+    	}
+    	
+    	@Override
+    	public boolean equals(Object obj)
+    	{
+    		if (this == obj) {
+    			return true;
+    		}
+    		if (!(obj instanceof EffectiveOptionsKey)) {
+    			return false;
+    		}
+    		EffectiveOptionsKey that = (EffectiveOptionsKey)obj;
+    		return (kind == that.kind) && (dhcpLink == that.dhcpLink) &&
+    				(configObj == that.configObj) && (globalFilter == that.globalFilter) &&
+    				(linkFilter == that.linkFilter) && (configObjFilter == that.configObjFilter);
     	}
-    	return null;
-    }
-
-    /**
-     * Filtered v4 options.
-     * 
-     * @param requestMsg the request msg
-     * @param filters the filters
-     * 
-     * @return the map< integer, dhcp option>
-     */
-    private Map<Integer, DhcpOption> filteredV4Options(DhcpV4Message requestMsg,
-    		List<? extends Filter> filters)
-    {
-		if ((filters != null) && !filters.isEmpty()) {
-            for (Filter filter : filters) {
-            	if (msgMatchesFilter(requestMsg, filter)) {
-                    log.info("Request matches filter: " + filter.getName());
-                	DhcpV4ConfigOptions filterConfigOptions = 
-                		new DhcpV4ConfigOptions(filter.getV4ConfigOptions());
-                	if (filterConfigOptions != null) {
-		        		return filterConfigOptions.getDhcpOptionMap();
-                	}
-            	}
-            }
-		}
-		return null;
     }
     
     /**
@@ -2351,351 +1883,7 @@ public class DhcpServerConfiguration
      */
     public static boolean msgMatchesFilter(DhcpMessage requestMsg, Filter filter)
     {
-        boolean matches = true;     // assume match
-    	FilterExpressionsType filterExprs = filter.getFilterExpressions();
-    	if (filterExprs != null) {
-        	List<FilterExpression> expressions = filterExprs.getFilterExpressionList();
-            if (expressions != null) {
-		        for (FilterExpression expression : expressions) {
-		        	if (expression.getClientClassExpression() != null) {
-		        		matches = msgMatchesClientClass(requestMsg, expression.getClientClassExpression());
-		        		if (!matches)
-		        			break;
-		        	}
-		        	else if (expression.getOptionExpression() != null) {
-		        		OptionExpression optexpr = expression.getOptionExpression();
-			            DhcpOption option = requestMsg.getDhcpOption(optexpr.getCode());
-			            if (option != null) {
-			                // found the filter option in the request,
-			                // so check if the expression matches
-			                if (!evaluateExpression(optexpr, option)) {
-			                    // it must match all expressions for the filter
-			                    // group (i.e. expressions are ANDed), so if
-			                    // just one doesn't match, then we're done
-			                    matches = false;
-			                    break;
-			                }
-			            }
-			            else {
-			                // if the expression option wasn't found in the
-			                // request message, then it can't match
-			                matches = false;
-			                break;
-			            }
-		        	}
-		        	else {
-		        		log.warn("Unsupported filter expression: " + expression);
-		        	}
-		        }
-            }
-    	}
-        return matches;
-    }
-    
-    /**
-     * Evaluate expression.  Determine if an option matches based on an expression.
-     * 
-     * @param expression the option expression
-     * @param option the option to compare
-     * 
-     * @return true, if successful
-     */
-    protected static boolean evaluateExpression(OptionExpression expression, DhcpOption option)
-    {
-        if (option.isV4() == expression.isV4()) {
-        	if (option.getCode() == expression.getCode()) {
-        		if (option instanceof BaseEmptyOption) {
-        			return true;
-        		}
-        		else if (option instanceof BaseDomainNameOption) {
-        			String domainName = ((BaseDomainNameOption)option).getDomainName();
-        	        DomainNameOptionType exprOption = expression.getDomainNameOption();
-        	        if (exprOption != null) {
-        	            return compareStringOption(domainName, exprOption.getDomainName(),
-        	            		expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseDomainNameListOption) {
-        			List<String> domainNameList = ((BaseDomainNameListOption)option).getDomainNameList();
-        	        DomainNameListOptionType exprOption = expression.getDomainNameListOption();
-        	        if (exprOption != null) {   	
-        	            return compareStringListOption(domainNameList, exprOption.getDomainNameList(),
-        	            		expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseIpAddressOption) {
-        			String ipAddress = ((BaseIpAddressOption)option).getIpAddress();
-        	        IpAddressOptionType exprOption = expression.getIpAddressOption();
-        	        if (exprOption != null) {
-        	            return compareStringOption(ipAddress, exprOption.getIpAddress(),
-        	            		expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseIpAddressListOption) {
-        			List<String> ipAddressList = ((BaseIpAddressListOption)option).getIpAddressList();
-        	        IpAddressListOptionType exprOption = expression.getIpAddressListOption();
-        	        if (exprOption != null) {
-        	            return compareStringListOption(ipAddressList, exprOption.getIpAddressList(),
-        	            		expression.getOperator());
-        	        }        			
-        		}
-        		else if (option instanceof BaseOpaqueDataOption) {
-        			com.jagornet.dhcp.core.option.base.BaseOpaqueData opaqueData = 
-        					((BaseOpaqueDataOption)option).getOpaqueData();
-        	        return OpaqueDataUtil.matches(expression, opaqueData);
-        		}
-        		else if (option instanceof BaseOpaqueDataListOption) {
-        			List<com.jagornet.dhcp.core.option.base.BaseOpaqueData> opaqueDataList =
-        					((BaseOpaqueDataListOption)option).getOpaqueDataList();
-        			OpaqueDataListOptionType exprOpaqueDataListOption = 
-        					expression.getOpaqueDataListOption();
-        			if (exprOpaqueDataListOption != null) {
-        	        	List<OpaqueData> exprOpaqueDataList = 
-        	        			exprOpaqueDataListOption.getOpaqueDataList();
-                    	return OpaqueDataUtil.matches(opaqueDataList, exprOpaqueDataList,
-                    			expression.getOperator());
-        				
-        			}
-        		}
-        		else if (option instanceof BaseStringOption) {
-        			String string = ((BaseStringOption)option).getString();
-        	        StringOptionType exprOption = expression.getStringOption();
-        	        if (exprOption != null) {
-        	            return compareStringOption(string, exprOption.getString(),
-        	            		expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseUnsignedByteOption) {
-        			short unsignedByte = ((BaseUnsignedByteOption)option).getUnsignedByte();
-        	        UnsignedByteOptionType exprOption = expression.getUByteOption();
-        	        if (exprOption != null) {
-        	        	return compareNumberOption(unsignedByte, exprOption.getUnsignedByte(),
-        	        			expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseUnsignedByteListOption) {
-        			List<Short> unsignedByteList =
-        					((BaseUnsignedByteListOption)option).getUnsignedByteList();
-        	        UnsignedByteListOptionType exprOption = expression.getUByteListOption();
-        	        if (exprOption != null) {
-        	            return compareNumberListOption(unsignedByteList, 
-        	            		exprOption.getUnsignedByteList(), expression.getOperator());
-        	        }
-        		}
-        		else if (option instanceof BaseUnsignedIntOption) {
-        			long unsignedInt = ((BaseUnsignedIntOption)option).getUnsignedInt();
-        	        UnsignedIntOptionType exprOption = expression.getUIntOption();
-        	        if (exprOption != null) {
-        	        	return compareNumberOption(unsignedInt, exprOption.getUnsignedInt(),
-        	        			expression.getOperator());
-        	        }
-        	        
-        	        // then see if we have an opaque option
-        	        OpaqueDataOptionType opaqueOption = expression.getOpaqueDataOption();
-        	        if (opaqueOption != null) {
-        		        OpaqueData opaque = opaqueOption.getOpaqueData();
-        		        if (opaque != null) {
-        		            String ascii = opaque.getAsciiValue();
-        		            if (ascii != null) {
-        		                try {
-        		                	// need a long to handle unsigned int
-        		                    if (unsignedInt == Long.parseLong(ascii)) {
-        		                        return true;
-        		                    }
-        		                }
-        		                catch (NumberFormatException ex) {
-        		                	log.error("Invalid unsigned byte ASCII value for OpaqueData: " + ascii, ex);
-        		                }
-        		            }
-        		            else {
-        		                byte[] hex = opaque.getHexValue();
-        		                if ( (hex != null) && 
-        		                     (hex.length >= 1) && (hex.length <= 4) ) {
-        		                	long hexLong = Long.valueOf(Util.toHexString(hex), 16);
-        		                    if (unsignedInt == hexLong) {
-        		                        return true;
-        		                    }
-        		                }
-        		            }
-        		        }
-        	        }
-        		}
-        		else if (option instanceof BaseUnsignedShortOption) {
-        			int unsignedShort = ((BaseUnsignedShortOption)option).getUnsignedShort();
-        	        UnsignedShortOptionType exprOption = expression.getUShortOption();
-        	        if (exprOption != null) {
-        	        	return compareNumberOption(unsignedShort, exprOption.getUnsignedShort(),
-        	        			expression.getOperator());
-        	        }
-        	        
-        	        // then see if we have an opaque option
-        	        OpaqueDataOptionType opaqueOption = expression.getOpaqueDataOption();
-        	        if (opaqueOption != null) {
-        		        OpaqueData opaque = opaqueOption.getOpaqueData();
-        		        if (opaque != null) {
-        		            String ascii = opaque.getAsciiValue();
-        		            if (ascii != null) {
-        		                try {
-        		                	// need an Integer to handle unsigned short
-        		                    if (unsignedShort == Integer.parseInt(ascii)) {
-        		                        return true;
-        		                    }
-        		                }
-        		                catch (NumberFormatException ex) { 
-        		                	log.error("Invalid unsigned short ASCII value for OpaqueData: " + ascii, ex);
-        		                }
-        		            }
-        		            else {
-        		                byte[] hex = opaque.getHexValue();
-        		                if ( (hex != null) && 
-        		                     (hex.length >= 1) && (hex.length <= 2) ) {
-        		                	int hexUnsignedShort = Integer.valueOf(Util.toHexString(hex), 16);
-        		                    if (unsignedShort == hexUnsignedShort) {
-        		                        return true;
-        		                    }
-        		                }
-        		            }
-        		        }
-        	        }
-        		}
-        		else if (option instanceof BaseUnsignedShortListOption) {
-        			List<Integer> unsignedShortList = 
-        					((BaseUnsignedShortListOption)option).getUnsignedShortList();
-        	        UnsignedShortListOptionType exprOption = expression.getUShortListOption();
-        	        if (exprOption != null) {
-        	            return compareNumberListOption(unsignedShortList, 
-        	            		exprOption.getUnsignedShortList(), expression.getOperator());
-        	        }
-        		}
-        		else {
-        			log.error("Unable to compare unknown option class: " +
-        						option.getClass().getName());
-        		}
-        	}
-        	
-        }
-        return false;
-    }
-
-	private static boolean compareStringOption(String optString, String exprString, Operator op) {
-		if (op.equals(Operator.EQUALS)) {
-			return optString.equals(exprString);
-		}
-		else if (op.equals(Operator.STARTS_WITH)) {
-			return optString.startsWith(exprString);
-		}
-		else if (op.equals(Operator.ENDS_WITH)) {
-			return optString.endsWith(exprString);
-		}
-		else if (op.equals(Operator.CONTAINS)) {
-			return optString.contains(exprString);
-		}
-		else if (op.equals(Operator.REG_EXP)) {
-			return optString.matches(exprString);
-		}
-		else {
-			log.warn("Unsupported expression operator: " + op);
-		}
-		return false;
-	}
-
-	private static boolean compareStringListOption(List<String> optDomainNameList,
-			List<String> exprDomainNameList, Operator op) {
-		if (op.equals(Operator.EQUALS)) {
-			return optDomainNameList.equals(exprDomainNameList);
-		}
-		else if (op.equals(Operator.CONTAINS)) {
-			return optDomainNameList.containsAll(exprDomainNameList);
-		}
-		else {
-			log.warn("Unsupported expression operator: " + op);
-		}
-		return false;
-	}
-
-	private static boolean compareNumberOption(Number optNumber, Number exprNumber, Operator op) {
-		if (op.equals(Operator.EQUALS)) {
-			return (optNumber.longValue() == exprNumber.longValue());
-		}
-		else if (op.equals(Operator.LESS_THAN)) {
-			return (optNumber.longValue() < exprNumber.longValue());
-		}
-		else if (op.equals(Operator.LESS_THAN_OR_EQUAL)) {
-			return (optNumber.longValue() <= exprNumber.longValue());
-		}
-		else if (op.equals(Operator.GREATER_THAN)) {
-			return (optNumber.longValue() > exprNumber.longValue());
-		}
-		else if (op.equals(Operator.GREATER_THAN_OR_EQUAL)) {
-			return (optNumber.longValue() >= exprNumber.longValue());
-		}
-		else {
-			log.warn("Unsupported expression operator: " + op);
-		}
-		return false;
-	}
-
-	private static boolean compareNumberListOption(List<? extends Number> optNumberList, 
-			List<? extends Number> exprNumberList, Operator op) {
-		if (op.equals(Operator.EQUALS)) {
-			return optNumberList.equals(exprNumberList);
-		}
-		else if (op.equals(Operator.CONTAINS)) {
-			return optNumberList.containsAll(exprNumberList);
-		}
-		else {
-			log.warn("Unsupported expression operator: " + op);
-		}
-		return false;
-	}
-    
-    protected static boolean msgMatchesClientClass(DhcpMessage requestMsg, 
-    		ClientClassExpression ccexpr)
-    {
-		if (ccexpr.getV6UserClassOption() != null) {
-			V6UserClassOption ccexprOption = ccexpr.getV6UserClassOption();
-			DhcpV6UserClassOption ucOption = (DhcpV6UserClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV6UserClassOption().getCode());
-			if (ucOption != null) {
-				return OpaqueDataUtil.matches(ucOption.getOpaqueDataList(), 
-						ccexprOption.getOpaqueDataList(), ccexpr.getOperator());
-			}
-			else {
-				return false;
-			}
-		}
-		else if (ccexpr.getV6VendorClassOption() != null) {
-			V6VendorClassOption ccexprOption = ccexpr.getV6VendorClassOption();
-			DhcpV6VendorClassOption vcOption = (DhcpV6VendorClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV6VendorClassOption().getCode());
-			if (vcOption != null) {
-				return OpaqueDataUtil.matches(vcOption.getOpaqueDataList(), 
-						ccexprOption.getOpaqueDataList(), ccexpr.getOperator());
-			}
-			else {
-				return false;
-			}
-		}
-		else if (ccexpr.getV4VendorClassOption() != null) {
-			V4VendorClassOption ccexprOption = ccexpr.getV4VendorClassOption();
-			DhcpV4VendorClassOption vcOption = (DhcpV4VendorClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV4VendorClassOption().getCode());
-			if (vcOption != null) {
-				com.jagornet.dhcp.core.option.base.BaseOpaqueData baseOpaqueData = 
-						vcOption.getOpaqueData();
-				if (baseOpaqueData != null) {
-					return OpaqueDataUtil.matches(baseOpaqueData, 
-							ccexprOption.getOpaqueData(), ccexpr.getOperator());
-				}
-			}
-			else {
-				return false;
-			}
-		}
-		else {
-			log.warn("Unsupported client class expression: " + ccexpr);
-		}
-		return true;
+    	return FilterMatcher.get(filter).matches(requestMsg);
     }
     
     public static void registerJsonDeserializers(SimpleModule module) {
@@ -29,14 +29,18 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jagornet.dhcp.core.message.DhcpMessage;
-import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.CompiledPolicies.FilterPolicies;
+import com.jagornet.dhcp.server.config.CompiledPolicies.PolicyValue;
 import com.jagornet.dhcp.server.config.xml.FiltersType;
 import com.jagornet.dhcp.server.config.xml.Link;
-import com.jagornet.dhcp.server.config.xml.LinkFilter;
 import com.jagornet.dhcp.server.config.xml.LinkFiltersType;
+import com.jagornet.dhcp.server.config.xml.LinksType;
 import com.jagornet.dhcp.server.config.xml.PoliciesType;
 import com.jagornet.dhcp.server.config.xml.Policy;
 import com.jagornet.dhcp.server.rest.JerseyRestServer;
@@ -50,6 +54,8 @@ import com.jagornet.dhcp.server.rest.JerseyRestServer;
  * name.  Some policies are supported only globally, e.g. queueSize, whereas others may be
  * defined at various "levels" of the DHCP server's XML configuration, e.g. preferredLifetime,
  * which will allow for lower-level overrides of global or other hierarchical policy values.
+ * The policies of each level are compiled into a table of typed values, see
+ * {@link CompiledPolicies}, when the configuration is loaded.
  * 
  * @author A. Gregory Rabil
  */
@@ -62,19 +68,43 @@ public class DhcpServerPolicies
 		
 		BINDING_MANAGER_REAPER_STARTUP_DELAY("binding.manager.reaper.startupDelay", "10000"),
 		BINDING_MANAGER_REAPER_RUN_PERIOD("binding.manager.reaper.runPeriod", "60000"),
+		BINDING_MANAGER_REAPER_FULL_SCAN_PERIOD("binding.manager.reaper.fullScanPeriod", "3600000"),
 		BINDING_MANAGER_OFFER_EXPIRATION("binding.manager.offerExpiration", "120000"),
 		BINDING_MANAGER_DELETE_OLD_BINDINGS("binding.manager.deleteOldBindings", "false"),
 		// caching is buggy and not really faster, so turn it off for now
 		BINDING_MANAGER_IA_CACHE_SIZE("binding.manager.iaCacheSize", "0"),
 		// caching is buggy and not really faster, so turn it off for now
 		BINDING_MANAGER_LEASE_CACHE_SIZE("binding.manager.leaseCacheSize", "0"),
+		BINDING_MANAGER_FREELIST_TYPE("binding.manager.freeListType", "bitset"),	// bitset, atomic
+		BINDING_MANAGER_POOL_INIT_THREADS("binding.manager.poolInitThreads", "1"),	// 0 = number of processors
 
 		CHANNEL_THREADPOOL_SIZE("channel.threadPoolSize", "16"),
 		CHANNEL_READ_BUFFER_SIZE("channel.readBufferSize", "307200"),		// 300 bytes x 1K clients
 		CHANNEL_WRITE_BUFFER_SIZE("channel.writeBufferSize", "307200"),		// 300 bytes x 1K clients
+		CHANNEL_PARTITION("channel.partition", "none"),		// none, client, link
+		CHANNEL_PARTITION_LANES("channel.partitionLanes", "0"),		// 0 = channel.threadPoolSize
+		ADMISSION_CLIENT_RATE("admission.clientRate", "0"),		// requests/second, 0 = no limit
+		ADMISSION_CLIENT_BURST("admission.clientBurst", "10"),
+		ADMISSION_RELAY_RATE("admission.relayRate", "0"),		// requests/second, 0 = no limit
+		ADMISSION_RELAY_BURST("admission.relayBurst", "1000"),
+		ADMISSION_DUPLICATE_WINDOW("admission.duplicateWindow", "0"),	// milliseconds
+		ADMISSION_SHED_DEPTH("admission.shedDepth", "0"),
+		ADMISSION_MAX_DEPTH("admission.maxDepth", "0"),
+		
+		SCHEDULER_THREADPOOL_SIZE("scheduler.threadPoolSize", "2"),
+		SCHEDULER_BLOCKING_THREADPOOL_SIZE("scheduler.blockingThreadPoolSize", "1"),
+		SCHEDULER_TICK_DURATION("scheduler.tickDuration", "100"),	// milliseconds
+		SCHEDULER_METRICS_LOG_PERIOD("scheduler.metricsLogPeriod", "3600"),	// seconds, 0 = never
 		
 		DATABASE_SCHEMA_TYTPE("database.schemaType", "jdbc-h2"),	// h2 performs best
 		DATABASE_SCHEMA_VERSION("database.schemaVersion", "2"),
+		DATABASE_SHARD_BY_LINK("database.shardByLink", "false"),
+		DATABASE_GROUP_COMMIT("database.groupCommit", "false"),
+		DATABASE_GROUP_COMMIT_INTERVAL("database.groupCommitInterval", "5"),
+		DATABASE_GROUP_COMMIT_SIZE("database.groupCommitSize", "500"),
+		DATABASE_OPTION_SETS("database.optionSets", "false"),	// one-way migration
+		DATABASE_FILE_JOURNAL_SIZE("database.fileJournalSize", "16777216"),
+		DATABASE_FILE_SYNC_WRITES("database.fileSyncWrites", "true"),
 		
 		DDNS_UPDATE("ddns.update", "none"),	// acceptable values: none, server, client, etc...
 		DDNS_SYNCHRONIZE("ddns.synchronize", "false"),
@@ -97,6 +127,12 @@ public class DhcpServerPolicies
 		DDNS_REVERSE_ZONE_TSIG_KEYNAME("ddns.reverse.zone.tsig.keyName", ""),
 		DDNS_REVERSE_ZONE_TSIG_ALGORITHM("ddns.reverse.zone.tsig.algorithm", ""),
 		DDNS_REVERSE_ZONE_TSIG_KEYDATA("ddns.reverse.zone.tsig.keyData", ""),
+		DDNS_THREADS("ddns.threads", "4"),
+		DDNS_QUEUE_SIZE("ddns.queueSize", "10000"),
+		DDNS_BATCH_SIZE("ddns.batchSize", "16"),
+		DDNS_RETRIES("ddns.retries", "2"),
+		DDNS_RETRY_DELAY("ddns.retryDelay", "1000"),
+		DDNS_TIMEOUT("ddns.timeout", "10000"),
 		
 		DHCP_PROCESSOR_RECENT_MESSAGE_TIMER("dhcp.processor.recentMessageTimer", "5000"),
 		DHCP_IGNORE_LOOPBACK("dhcp.ignoreLoopback", "true"),
@@ -111,6 +147,9 @@ public class DhcpServerPolicies
 		V4_IGNORED_MACS("v4.ignoredMacAddrs", "000000000000, FFFFFFFFFFFF"),
 		V4_DEFAULT_LEASETIME("v4.defaultLeasetime", "3600"),
 		V4_PINGCHECK_TIMEOUT("v4.pingCheckTimeout", "0"),
+		V4_PINGCHECK_QUEUE_SIZE("v4.pingCheckQueueSize", "4"),
+		V4_PINGCHECK_THREADS("v4.pingCheckThreads", "4"),
+		V4_PINGCHECK_CONFLICT_HOLD("v4.pingCheckConflictHold", "3600"),
 
 		V6_IA_NA_T1("v6.iaNaT1", "0.5"),
 		V6_IA_NA_T2("v6.iaNaT2", "0.8"),
@@ -128,12 +167,23 @@ public class DhcpServerPolicies
 		HA_DATABASE_FILE("ha.stateDbFile", "db/ha/jagornet-ha-state.db"),
 		HA_DATABASE_MAX_STORED_STATES("ha.maxStoredStates", "10"),
 		HA_BINDING_UPDATE_MODE("ha.bindingUpdateMode", "sync"),	// sync, async, database
+		HA_BINDING_UPDATE_QUEUE_SIZE("ha.bindingUpdateQueueSize", "10000"),
+		HA_BINDING_UPDATE_BATCH_SIZE("ha.bindingUpdateBatchSize", "100"),
+		HA_BINDING_UPDATE_BATCH_INTERVAL("ha.bindingUpdateBatchInterval", "0"),	// milliseconds
+		HA_BINDING_UPDATE_RETRIES("ha.bindingUpdateRetries", "3"),
+		HA_BINDING_UPDATE_RETRY_DELAY("ha.bindingUpdateRetryDelay", "1000"),	// milliseconds
 		HA_PEER_SERVER("ha.peerServer", ""),
 		HA_PEER_PORT("ha.peerPort", String.valueOf(JerseyRestServer.HTTPS_SERVER_PORT)),
 		HA_POLL_SECONDS("ha.pollSeconds", "30"),
 		HA_POLL_REPLY_TIMEOUT("ha.pollReplyTimeout", "1000"),	// milliseconds
 		HA_POLL_REPLY_FAILURE_COUNT("ha.pollReplyFailureCount", "5"),
 		HA_CONTROL_REQUEST_ALL_LEASES_ON_RESTART("ha.requestAllLeasesOnRestart", "true"),
+		HA_LINK_SYNC_CHUNK_SIZE("ha.linkSyncChunkSize", "1000"),
+		HA_LINK_SYNC_THREADS("ha.linkSyncThreads", "4"),
+		HA_LINK_SYNC_PRIORITY("ha.linkSyncPriority", "leases"),	// none, leases, traffic
+		HA_LINK_SYNC_RETRIES("ha.linkSyncRetries", "3"),
+		HA_LINK_SYNC_RETRY_DELAY("ha.linkSyncRetryDelay", "1000"),	// milliseconds
+		HA_LINK_SYNC_TIMEOUT("ha.linkSyncTimeout", "0"),	// seconds, 0 = no deadline
 		
 		REST_API_USERNAME("rest.api.username", "jagornet"),
 		REST_API_PASSWORD("rest.api.password", "jagornet"),
@@ -180,8 +230,76 @@ public class DhcpServerPolicies
 		}
 	}
 	
+	/** The version of the SERVER properties, incremented for each change. */
+	private static final AtomicInteger SERVER_PROPERTIES_VERSION = new AtomicInteger();
+	
 	/** The SERVER properties. */
-	protected static Properties SERVER_PROPERTIES = new Properties(DEFAULT_PROPERTIES);
+	protected static Properties SERVER_PROPERTIES = new ServerProperties(DEFAULT_PROPERTIES);
+	
+	/** The compiled SERVER properties. */
+	private static volatile CompiledServerProperties compiledServerProperties;
+	
+	/** The compiled policies of the configuration, by PoliciesType. */
+	private static final Map<PoliciesType, CompiledPolicies> COMPILED_POLICIES =
+			new ConcurrentHashMap<PoliciesType, CompiledPolicies>();
+	
+	/** The compiled filter policies of the configuration, by FiltersType or LinkFiltersType. */
+	private static final Map<Object, FilterPolicies> COMPILED_FILTER_POLICIES =
+			new ConcurrentHashMap<Object, FilterPolicies>();
+	
+	/**
+	 * The server properties, which count the changes to the properties,
+	 * so that the compiled properties are recompiled after a change.
+	 */
+	private static class ServerProperties extends Properties
+	{
+		private static final long serialVersionUID = 1L;
+
+		ServerProperties(Properties defaults)
+		{
+			super(defaults);
+		}
+
+		@Override
+		public synchronized Object put(Object key, Object value)
+		{
+			Object old = super.put(key, value);
+			SERVER_PROPERTIES_VERSION.incrementAndGet();
+			return old;
+		}
+
+		@Override
+		public synchronized Object remove(Object key)
+		{
+			Object old = super.remove(key);
+			SERVER_PROPERTIES_VERSION.incrementAndGet();
+			return old;
+		}
+
+		@Override
+		public synchronized void clear()
+		{
+			super.clear();
+			SERVER_PROPERTIES_VERSION.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * The SERVER properties compiled from a version of the properties.
+	 */
+	private static class CompiledServerProperties
+	{
+		final Properties properties;
+		final int version;
+		final CompiledPolicies policies;
+
+		CompiledServerProperties(Properties properties, int version)
+		{
+			this.properties = properties;
+			this.version = version;
+			this.policies = new CompiledPolicies(properties);
+		}
+	}
 	
 	/**
 	 * Load properties file.
@@ -227,6 +345,114 @@ public class DhcpServerPolicies
 		return SERVER_PROPERTIES;
 	}
 	
+	/**
+	 * Compile the policies of all levels of the given configuration,
+	 * replacing the policies compiled for any previous configuration.
+	 * 
+	 * @param globalPolicies the global policies
+	 * @param globalFilters the global filters
+	 * @param linksType the links
+	 */
+	public static void compilePolicies(PoliciesType globalPolicies,
+			FiltersType globalFilters, LinksType linksType)
+	{
+		COMPILED_POLICIES.clear();
+		COMPILED_FILTER_POLICIES.clear();
+		compiled(globalPolicies);
+		compiled(globalFilters);
+		if (linksType != null) {
+			List<Link> links = linksType.getLinkList();
+			if (links != null) {
+				for (Link link : links) {
+					compiled(link.getPolicies());
+					compiled(link.getLinkFilters());
+				}
+			}
+		}
+		// the pool and binding policies are compiled on first use, because
+		// the pool and binding objects are created by the binding managers
+	}
+	
+	/**
+	 * Get the compiled policies for the given policies.
+	 * 
+	 * @param policies the policies
+	 * @return the compiled policies
+	 */
+	protected static CompiledPolicies compiled(PoliciesType policies)
+	{
+		if (policies == null) {
+			return CompiledPolicies.EMPTY;
+		}
+		CompiledPolicies compiled = COMPILED_POLICIES.get(policies);
+		if (compiled == null) {
+			compiled = new CompiledPolicies(policies);
+			COMPILED_POLICIES.put(policies, compiled);
+		}
+		return compiled;
+	}
+	
+	/**
+	 * Get the compiled filter policies for the given filters.
+	 * 
+	 * @param filtersType the filters
+	 * @return the compiled filter policies, or null if no filters
+	 */
+	protected static FilterPolicies compiled(FiltersType filtersType)
+	{
+		if (filtersType == null) {
+			return null;
+		}
+		FilterPolicies compiled = COMPILED_FILTER_POLICIES.get(filtersType);
+		if (compiled == null) {
+			compiled = new FilterPolicies(filtersType.getFilterList());
+			COMPILED_FILTER_POLICIES.put(filtersType, compiled);
+		}
+		return compiled;
+	}
+	
+	/**
+	 * Get the compiled filter policies for the given link filters.
+	 * 
+	 * @param linkFiltersType the link filters
+	 * @return the compiled filter policies, or null if no filters
+	 */
+	protected static FilterPolicies compiled(LinkFiltersType linkFiltersType)
+	{
+		if (linkFiltersType == null) {
+			return null;
+		}
+		FilterPolicies compiled = COMPILED_FILTER_POLICIES.get(linkFiltersType);
+		if (compiled == null) {
+			compiled = new FilterPolicies(linkFiltersType.getLinkFilterList());
+			COMPILED_FILTER_POLICIES.put(linkFiltersType, compiled);
+		}
+		return compiled;
+	}
+	
+	/**
+	 * Get the value of a property from the SERVER properties.
+	 * 
+	 * @param prop the prop
+	 * @return the value
+	 */
+	protected static PolicyValue serverPropertyValue(Property prop)
+	{
+		CompiledServerProperties compiled = compiledServerProperties;
+		int version = SERVER_PROPERTIES_VERSION.get();
+		if ((compiled == null) || (compiled.version != version) ||
+				(compiled.properties != SERVER_PROPERTIES)) {
+			compiled = new CompiledServerProperties(SERVER_PROPERTIES, version);
+			compiledServerProperties = compiled;
+		}
+		PolicyValue value = compiled.policies.get(prop);
+		if (value == null) {
+			// the property was set to a non-string value
+			value = new PolicyValue(SERVER_PROPERTIES.getProperty(prop.key()));
+		}
+		return value;
+	}
+	
     /**
      * Global policy.
      * 
@@ -236,13 +462,24 @@ public class DhcpServerPolicies
      */
     public static String globalPolicy(Property prop)
     {
-    	String policy = 
-    		getPolicy(DhcpServerConfiguration.getInstance().getGlobalPolicies(),
-    				prop.key());
+    	return globalPolicyValue(prop).toString();
+    }
+    
+    /**
+     * Global policy value.
+     * 
+     * @param prop the prop
+     * 
+     * @return the policy value
+     */
+    protected static PolicyValue globalPolicyValue(Property prop)
+    {
+    	PolicyValue policy = 
+    		compiled(DhcpServerConfiguration.getInstance().getGlobalPolicies()).get(prop);
     	if (policy != null) {
     		return policy;
     	}
-    	return SERVER_PROPERTIES.getProperty(prop.key());
+    	return serverPropertyValue(prop);
     }
 
     /**
@@ -254,7 +491,7 @@ public class DhcpServerPolicies
 	 */
 	public static boolean globalPolicyAsBoolean(Property prop)
     {
-    	return Boolean.parseBoolean(globalPolicy(prop));
+    	return globalPolicyValue(prop).asBoolean();
     }
     
     /**
@@ -266,7 +503,7 @@ public class DhcpServerPolicies
 	 */
 	public static int globalPolicyAsInt(Property prop)
     {
-    	return Integer.parseInt(globalPolicy(prop));
+    	return globalPolicyValue(prop).asInt();
     }
     
     /**
@@ -278,7 +515,7 @@ public class DhcpServerPolicies
 	 */
 	public static long globalPolicyAsLong(Property prop)
     {
-    	return Long.parseLong(globalPolicy(prop));
+    	return globalPolicyValue(prop).asLong();
     }
     
     
@@ -291,7 +528,7 @@ public class DhcpServerPolicies
 	 */
 	public static float globalPolicyAsFloat(Property prop)
     {
-    	return Float.parseFloat(globalPolicy(prop));
+    	return globalPolicyValue(prop).asFloat();
     }
 	
 	/**
@@ -302,21 +539,28 @@ public class DhcpServerPolicies
 	 * @return the string
 	 */
     public static String globalPolicy(DhcpMessage requestMsg, Property prop)
+    {
+    	return globalPolicyValue(requestMsg, prop).toString();
+    }
+    
+    /**
+     * Global policy value.
+     *
+     * @param requestMsg the request msg
+     * @param prop the prop
+     * @return the policy value
+     */
+    protected static PolicyValue globalPolicyValue(DhcpMessage requestMsg, Property prop)
     {
     	DhcpServerConfiguration config = DhcpServerConfiguration.getInstance();
-    	String policy = null;
+    	PolicyValue policy = null;
     	if (requestMsg != null) {
-    		FiltersType filtersType = config.getGlobalFilters();
-    		if (filtersType != null) {
-    			List<Filter> filters = filtersType.getFilterList();
-    			for (Filter filter : filters) {
-					if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filter)) {
-						policy = getPolicy(filter.getPolicies(), prop.key());
-					}
-				}
+    		FilterPolicies filterPolicies = compiled(config.getGlobalFilters());
+    		if (filterPolicies != null) {
 				// if the client request matches at least one global filter,
 				// and that filter has configured a value for the policy, then 
 				// return that value from the last filter that the client matches
+    			policy = filterPolicies.get(requestMsg, prop);
     			if (policy != null) {
     				return policy;
     			}
@@ -324,12 +568,12 @@ public class DhcpServerPolicies
     	}
 		// client does not match a global filter 
 		// get the value of the global policy, if any
-    	policy = getPolicy(config.getGlobalPolicies(), prop.key());
+    	policy = compiled(config.getGlobalPolicies()).get(prop);
     	if (policy != null) {
     		return policy;
     	}
     	// fall back to the configured default value
-    	return SERVER_PROPERTIES.getProperty(prop.key());
+    	return serverPropertyValue(prop);
     }
 
 
@@ -342,7 +586,7 @@ public class DhcpServerPolicies
      */
 	public static boolean globalPolicyAsBoolean(DhcpMessage requestMsg, Property prop)
     {
-    	return Boolean.parseBoolean(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asBoolean();
     }
     
     /**
@@ -354,7 +598,7 @@ public class DhcpServerPolicies
      */
 	public static int globalPolicyAsInt(DhcpMessage requestMsg, Property prop)
     {
-    	return Integer.parseInt(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asInt();
     }
     
     /**
@@ -366,7 +610,7 @@ public class DhcpServerPolicies
      */
 	public static long globalPolicyAsLong(DhcpMessage requestMsg, Property prop)
     {
-    	return Long.parseLong(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asLong();
     }
     
     
@@ -379,7 +623,7 @@ public class DhcpServerPolicies
      */
 	public static float globalPolicyAsFloat(DhcpMessage requestMsg, Property prop)
     {
-    	return Float.parseFloat(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asFloat();
     }
     
     /**
@@ -392,11 +636,24 @@ public class DhcpServerPolicies
      */
     public static String effectivePolicy(Link link, Property prop)
     {
-    	String policy = getPolicy(link.getPolicies(), prop.key());
+    	return effectivePolicyValue(link, prop).toString();
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the policy value
+     */
+    protected static PolicyValue effectivePolicyValue(Link link, Property prop)
+    {
+    	PolicyValue policy = compiled(link.getPolicies()).get(prop);
     	if (policy != null) {
     		return policy;
     	}
-    	return globalPolicy(prop);
+    	return globalPolicyValue(prop);
     }
     
     /**
@@ -409,7 +666,7 @@ public class DhcpServerPolicies
 	 */
 	public static boolean effectivePolicyAsBoolean(Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asBoolean();
     }
     
     /**
@@ -422,7 +679,7 @@ public class DhcpServerPolicies
 	 */
 	public static int effectivePolicyAsInt(Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asInt();
     }
     
     /**
@@ -435,7 +692,7 @@ public class DhcpServerPolicies
 	 */
 	public static long effectivePolicyAsLong(Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asLong();
     }
     
     /**
@@ -448,7 +705,7 @@ public class DhcpServerPolicies
 	 */
 	public static float effectivePolicyAsFloat(Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asFloat();
     }
 	
 	/**
@@ -462,35 +719,42 @@ public class DhcpServerPolicies
 	public static String effectivePolicy(DhcpMessage requestMsg, 
 			Link link, Property prop)
 	{
-		String policy = null;
+		return effectivePolicyValue(requestMsg, link, prop).toString();
+	}
+	
+	/**
+	 * Effective policy value.
+	 *
+	 * @param requestMsg the request msg
+	 * @param link the link
+	 * @param prop the prop
+	 * @return the policy value
+	 */
+	protected static PolicyValue effectivePolicyValue(DhcpMessage requestMsg, 
+			Link link, Property prop)
+	{
+		PolicyValue policy = null;
 		if ((requestMsg != null) && (link != null)) {
-			LinkFiltersType linkFiltersType = link.getLinkFilters();
-			if (linkFiltersType != null) {
-				List<LinkFilter> linkFilters = linkFiltersType.getLinkFilterList();
-				if (linkFilters != null) {
-					for (LinkFilter linkFilter : linkFilters) {
-						if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, linkFilter)) {
-							policy = getPolicy(linkFilter.getPolicies(), prop.key());
-						}
-					}
-					// if the client request matches at least one filter on the link,
-					// and that filter has configured a value for the policy, then return
-					// that value from the last filter that the client matches
-			    	if (policy != null) {
-			    		return policy;
-			    	}
-				}
+			FilterPolicies filterPolicies = compiled(link.getLinkFilters());
+			if (filterPolicies != null) {
+				// if the client request matches at least one filter on the link,
+				// and that filter has configured a value for the policy, then return
+				// that value from the last filter that the client matches
+				policy = filterPolicies.get(requestMsg, prop);
+		    	if (policy != null) {
+		    		return policy;
+		    	}
 			}
 		}
 		if (link != null) {
 			// client does not match a link filter 
 			// get the value of the policy on the link, if any
-			policy = getPolicy(link.getPolicies(), prop.key());
+			policy = compiled(link.getPolicies()).get(prop);
 			if (policy != null) {
 				return policy;
 			}
 		}
-    	return globalPolicy(prop);
+    	return globalPolicyValue(prop);
 	}
     
     /**
@@ -504,7 +768,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asBoolean();
     }
     
     /**
@@ -518,7 +782,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asInt();
     }
     
     /**
@@ -532,7 +796,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asLong();
     }
     
     /**
@@ -546,7 +810,7 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asFloat();
     }
     
     /**
@@ -560,20 +824,35 @@ public class DhcpServerPolicies
      */
     public static String effectivePolicy(DhcpConfigObject configObj, Link link, Property prop)
     {
-    	String policy = null;
+    	return effectivePolicyValue(configObj, link, prop).toString();
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param pool the pool
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the policy value
+     */
+    protected static PolicyValue effectivePolicyValue(DhcpConfigObject configObj, 
+    		Link link, Property prop)
+    {
+    	PolicyValue policy = null;
     	if (configObj != null) {
-	    	policy = getPolicy(configObj.getPolicies(), prop.key());
+	    	policy = compiled(configObj.getPolicies()).get(prop);
 	    	if (policy != null) {
 	    		return policy;
 	    	}
     	}
     	if (link != null) {
-	    	policy = getPolicy(link.getPolicies(), prop.key());
+	    	policy = compiled(link.getPolicies()).get(prop);
 	    	if (policy != null) {
 	    		return policy;
 	    	}
     	}
-    	return globalPolicy(prop);
+    	return globalPolicyValue(prop);
     }
     
     /**
@@ -588,7 +867,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asBoolean();
     }
     
     /**
@@ -603,7 +882,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asInt();
     }
     
     /**
@@ -618,7 +897,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asLong();
     }
     
     /**
@@ -633,7 +912,7 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asFloat();
     }
 	
     /**
@@ -649,34 +928,43 @@ public class DhcpServerPolicies
     public static String effectivePolicy(DhcpMessage requestMsg, 
     		DhcpConfigObject configObj, Link link, Property prop)
     {
-		String policy = null;
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).toString();
+    }
+	
+    /**
+     * Effective policy value.
+     *
+     * @param requestMsg the request msg
+     * @param configObj the pool or binding
+     * @param link the link
+     * @param prop the prop
+     * @return the policy value
+     */
+    protected static PolicyValue effectivePolicyValue(DhcpMessage requestMsg, 
+    		DhcpConfigObject configObj, Link link, Property prop)
+    {
+		PolicyValue policy = null;
 		if ((requestMsg != null) && (configObj != null)) {
-			if (configObj.getFilters() != null) {
-				List<Filter> filters = configObj.getFilters().getFilterList();
-				if (filters != null) {
-					for (Filter filter : filters) {
-						if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filter)) {
-							policy = getPolicy(filter.getPolicies(), prop.key());
-						}
-					}
-					// if the client request matches at least one filter on the pool,
-					// and that filter has configured a value for the policy, then return
-					// that value from the last filter that the client matches
-			    	if (policy != null) {
-			    		return policy;
-			    	}
-				}
+			FilterPolicies filterPolicies = compiled(configObj.getFilters());
+			if (filterPolicies != null) {
+				// if the client request matches at least one filter on the pool,
+				// and that filter has configured a value for the policy, then return
+				// that value from the last filter that the client matches
+				policy = filterPolicies.get(requestMsg, prop);
+		    	if (policy != null) {
+		    		return policy;
+		    	}
 			}
 		}
 		if (configObj != null) {
 			// client does not match a pool filter 
 			// get the value of the policy on the pool, if any
-			policy = getPolicy(configObj.getPolicies(), prop.key());
+			policy = compiled(configObj.getPolicies()).get(prop);
 			if (policy != null) {
 				return policy;
 			}
 		}
-    	return effectivePolicy(requestMsg, link, prop);
+    	return effectivePolicyValue(requestMsg, link, prop);
     }
     
     /**
@@ -691,7 +979,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asBoolean();
     }
     
     /**
@@ -706,7 +994,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asInt();
     }
     
     /**
@@ -721,7 +1009,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asLong();
     }
     
     /**
@@ -736,7 +1024,7 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asFloat();
     }    
 
     /**
@@ -195,6 +195,9 @@ public class DhcpV4ConfigOptions
 			optionMap.putAll(GenericOptionFactory.genericOptions(configOptions.getV4OtherOptions()));
 		}
 		
+		// encode the configured options once for all replies
+		OptionWireCache.put(optionMap);
+		
 		return optionMap;
     }
 
@@ -321,6 +321,9 @@ public class DhcpV6ConfigOptions
 			optionMap.putAll(GenericOptionFactory.genericOptions(configOptions.getV6OtherOptions()));
 		}
 		
+		// encode the configured options once for all replies
+		OptionWireCache.put(optionMap);
+		
 		return optionMap;
     }
 
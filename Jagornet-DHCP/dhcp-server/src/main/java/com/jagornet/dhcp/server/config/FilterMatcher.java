@@ -0,0 +1,744 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FilterMatcher.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.message.DhcpMessage;
+import com.jagornet.dhcp.core.option.base.BaseDomainNameListOption;
+import com.jagornet.dhcp.core.option.base.BaseDomainNameOption;
+import com.jagornet.dhcp.core.option.base.BaseEmptyOption;
+import com.jagornet.dhcp.core.option.base.BaseIpAddressListOption;
+import com.jagornet.dhcp.core.option.base.BaseIpAddressOption;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueDataListOption;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueDataOption;
+import com.jagornet.dhcp.core.option.base.BaseStringOption;
+import com.jagornet.dhcp.core.option.base.BaseUnsignedByteListOption;
+import com.jagornet.dhcp.core.option.base.BaseUnsignedByteOption;
+import com.jagornet.dhcp.core.option.base.BaseUnsignedIntOption;
+import com.jagornet.dhcp.core.option.base.BaseUnsignedShortListOption;
+import com.jagornet.dhcp.core.option.base.BaseUnsignedShortOption;
+import com.jagornet.dhcp.core.option.base.DhcpOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6UserClassOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6VendorClassOption;
+import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.config.xml.ClientClassExpression;
+import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.xml.FilterExpression;
+import com.jagornet.dhcp.server.config.xml.FilterExpressionsType;
+import com.jagornet.dhcp.server.config.xml.FiltersType;
+import com.jagornet.dhcp.server.config.xml.Link;
+import com.jagornet.dhcp.server.config.xml.LinkFilter;
+import com.jagornet.dhcp.server.config.xml.LinkFiltersType;
+import com.jagornet.dhcp.server.config.xml.LinksType;
+import com.jagornet.dhcp.server.config.xml.OpaqueData;
+import com.jagornet.dhcp.server.config.xml.OpaqueDataOptionType;
+import com.jagornet.dhcp.server.config.xml.Operator;
+import com.jagornet.dhcp.server.config.xml.OptionExpression;
+import com.jagornet.dhcp.server.config.xml.V4AddressPool;
+import com.jagornet.dhcp.server.config.xml.V4AddressPoolsType;
+import com.jagornet.dhcp.server.config.xml.V6AddressPool;
+import com.jagornet.dhcp.server.config.xml.V6AddressPoolsType;
+import com.jagornet.dhcp.server.config.xml.V6PrefixPool;
+import com.jagornet.dhcp.server.config.xml.V6PrefixPoolsType;
+
+/**
+ * The Class FilterMatcher.  A filter of the server configuration compiled
+ * into an immutable list of expression matchers, with the expression values
+ * decoded, e.g. regular expressions compiled, opaque data converted and
+ * numbers parsed, when the configuration is loaded instead of per request.
+ *
+ * While a request is processed, the result of matching the request to each
+ * filter is kept in a match vector of the processing thread, so that each
+ * filter is matched at most once per request, no matter how many times the
+ * filter is checked for pool selection, policies and options.
+ *
+ * @author A. Gregory Rabil
+ */
+public class FilterMatcher
+{
+	private static Logger log = LoggerFactory.getLogger(FilterMatcher.class);
+
+	/** The compiled filters of the current configuration. */
+	private static volatile CompiledFilters compiledFilters = new CompiledFilters();
+
+	/** The match vector of the request being processed by a thread. */
+	private static final ThreadLocal<MatchVector> MATCH_VECTOR = new ThreadLocal<MatchVector>();
+
+	private final CompiledFilters filters;
+	private final int index;
+	private final String name;
+	private final ExpressionMatcher[] expressions;
+
+	/**
+	 * Compile the given filter.
+	 *
+	 * @param filters the compiled filters of the configuration
+	 * @param filter the filter
+	 */
+	protected FilterMatcher(CompiledFilters filters, Filter filter)
+	{
+		this.filters = filters;
+		index = filters.nextIndex.getAndIncrement();
+		name = filter.getName();
+		List<ExpressionMatcher> matchers = new ArrayList<ExpressionMatcher>();
+    	FilterExpressionsType filterExprs = filter.getFilterExpressions();
+    	if (filterExprs != null) {
+        	List<FilterExpression> expressions = filterExprs.getFilterExpressionList();
+            if (expressions != null) {
+		        for (FilterExpression expression : expressions) {
+		        	if (expression.getClientClassExpression() != null) {
+		        		matchers.add(new ClientClassMatcher(expression.getClientClassExpression()));
+		        	}
+		        	else if (expression.getOptionExpression() != null) {
+		        		matchers.add(new OptionMatcher(expression.getOptionExpression()));
+		        	}
+		        	else {
+		        		log.warn("Unsupported filter expression: " + expression);
+		        	}
+		        }
+            }
+    	}
+    	this.expressions = matchers.toArray(new ExpressionMatcher[matchers.size()]);
+	}
+
+	/**
+	 * Get the compiled filter for the given filter, compiling
+	 * the filter if it was not compiled with the configuration.
+	 *
+	 * @param filter the filter
+	 * @return the filter matcher
+	 */
+	public static FilterMatcher get(Filter filter)
+	{
+		return compiledFilters.get(filter);
+	}
+
+	/**
+	 * Compile the filters of the given configuration, replacing
+	 * the filters compiled for any previous configuration.
+	 *
+	 * @param globalFilters the global filters
+	 * @param linksType the links
+	 * @return the compiled filters
+	 */
+	public static CompiledFilters compileFilters(FiltersType globalFilters, LinksType linksType)
+	{
+		CompiledFilters filters = new CompiledFilters();
+		compile(filters, globalFilters);
+		if (linksType != null) {
+			List<Link> links = linksType.getLinkList();
+			if (links != null) {
+				for (Link link : links) {
+					LinkFiltersType linkFiltersType = link.getLinkFilters();
+					if ((linkFiltersType != null) && (linkFiltersType.getLinkFilterList() != null)) {
+						for (LinkFilter linkFilter : linkFiltersType.getLinkFilterList()) {
+							filters.get(linkFilter);
+							compilePools(filters, linkFilter.getV4AddrPools());
+							compilePools(filters, linkFilter.getV6NaAddrPools());
+							compilePools(filters, linkFilter.getV6TaAddrPools());
+							compilePools(filters, linkFilter.getV6PrefixPools());
+						}
+					}
+					compilePools(filters, link.getV4AddrPools());
+					compilePools(filters, link.getV6NaAddrPools());
+					compilePools(filters, link.getV6TaAddrPools());
+					compilePools(filters, link.getV6PrefixPools());
+				}
+			}
+		}
+		compiledFilters = filters;
+		log.info("Compiled " + filters.matchers.size() + " filters");
+		return filters;
+	}
+
+	private static void compile(CompiledFilters filters, FiltersType filtersType)
+	{
+		if ((filtersType != null) && (filtersType.getFilterList() != null)) {
+			for (Filter filter : filtersType.getFilterList()) {
+				filters.get(filter);
+			}
+		}
+	}
+
+	private static void compilePools(CompiledFilters filters, V4AddressPoolsType poolsType)
+	{
+		if ((poolsType != null) && (poolsType.getPoolList() != null)) {
+			for (V4AddressPool pool : poolsType.getPoolList()) {
+				compile(filters, pool.getFilters());
+			}
+		}
+	}
+
+	private static void compilePools(CompiledFilters filters, V6AddressPoolsType poolsType)
+	{
+		if ((poolsType != null) && (poolsType.getPoolList() != null)) {
+			for (V6AddressPool pool : poolsType.getPoolList()) {
+				compile(filters, pool.getFilters());
+			}
+		}
+	}
+
+	private static void compilePools(CompiledFilters filters, V6PrefixPoolsType poolsType)
+	{
+		if ((poolsType != null) && (poolsType.getPoolList() != null)) {
+			for (V6PrefixPool pool : poolsType.getPoolList()) {
+				compile(filters, pool.getFilters());
+			}
+		}
+	}
+
+	/**
+	 * Start processing a request on this thread.  Until {@link #endRequest()}
+	 * the match results of the filters for the request are remembered.
+	 *
+	 * @param requestMsg the request msg
+	 */
+	public static void beginRequest(DhcpMessage requestMsg)
+	{
+		MatchVector vector = MATCH_VECTOR.get();
+		if (vector == null) {
+			vector = new MatchVector();
+			MATCH_VECTOR.set(vector);
+		}
+		vector.reset(compiledFilters, requestMsg);
+	}
+
+	/**
+	 * End processing a request on this thread.
+	 */
+	public static void endRequest()
+	{
+		MatchVector vector = MATCH_VECTOR.get();
+		if (vector != null) {
+			vector.reset(null, null);
+		}
+	}
+
+	/**
+	 * Check if a request matches the filter.  All of the expressions
+	 * of the filter must match the request.
+	 *
+	 * @param requestMsg the request msg
+	 * @return true, if successful
+	 */
+	public boolean matches(DhcpMessage requestMsg)
+	{
+		MatchVector vector = MATCH_VECTOR.get();
+		// the indexes of the filters of another configuration differ
+		if ((vector != null) && (vector.requestMsg == requestMsg) && (vector.filters == filters)) {
+			int result = vector.get(index);
+			if (result != MatchVector.UNKNOWN) {
+				return (result == MatchVector.MATCH);
+			}
+			boolean matches = evaluate(requestMsg);
+			vector.set(index, matches);
+			return matches;
+		}
+		return evaluate(requestMsg);
+	}
+
+	protected boolean evaluate(DhcpMessage requestMsg)
+	{
+		for (ExpressionMatcher expression : expressions) {
+			// it must match all expressions for the filter
+			// group (i.e. expressions are ANDed), so if
+			// just one doesn't match, then we're done
+			if (!expression.matches(requestMsg)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * The compiled filters of one configuration.  The filters of each
+	 * configuration are indexed from zero, so the match vector is only as
+	 * large as the filters of the configuration, no matter how many times
+	 * the configuration is reloaded.
+	 */
+	public static class CompiledFilters
+	{
+		/** The compiled filters, by Filter. */
+		private final Map<Filter, FilterMatcher> matchers =
+				new ConcurrentHashMap<Filter, FilterMatcher>();
+
+		/** The index of the next compiled filter in the match vector. */
+		private final AtomicInteger nextIndex = new AtomicInteger();
+
+		/**
+		 * Get the compiled filter for the given filter, compiling
+		 * the filter if it was not compiled with the configuration.
+		 *
+		 * @param filter the filter
+		 * @return the filter matcher
+		 */
+		public FilterMatcher get(Filter filter)
+		{
+			FilterMatcher matcher = matchers.get(filter);
+			if (matcher == null) {
+				matcher = new FilterMatcher(this, filter);
+				FilterMatcher existing = matchers.putIfAbsent(filter, matcher);
+				if (existing != null) {
+					matcher = existing;
+				}
+			}
+			return matcher;
+		}
+	}
+
+	/**
+	 * The match results of the filters for one request.
+	 */
+	private static class MatchVector
+	{
+		static final int UNKNOWN = 0;
+		static final int MATCH = 1;
+		static final int NO_MATCH = 2;
+
+		CompiledFilters filters;
+		DhcpMessage requestMsg;
+		byte[] results = new byte[64];
+
+		void reset(CompiledFilters filters, DhcpMessage requestMsg)
+		{
+			this.filters = filters;
+			this.requestMsg = requestMsg;
+			Arrays.fill(results, (byte)UNKNOWN);
+		}
+
+		int get(int index)
+		{
+			return (index < results.length) ? results[index] : UNKNOWN;
+		}
+
+		void set(int index, boolean matches)
+		{
+			if (index >= results.length) {
+				results = Arrays.copyOf(results, Math.max(index + 1, results.length * 2));
+			}
+			results[index] = (byte)(matches ? MATCH : NO_MATCH);
+		}
+	}
+
+	/**
+	 * A compiled expression of a filter.
+	 */
+	protected interface ExpressionMatcher
+	{
+		boolean matches(DhcpMessage requestMsg);
+	}
+
+	/**
+	 * The compiled value of an opaque data expression.
+	 */
+	protected static class OpaqueDataMatcher
+	{
+		private final OpaqueData opaqueData;
+		private final Operator op;
+		private final Pattern pattern;
+
+		OpaqueDataMatcher(OpaqueData opaqueData, Operator op)
+		{
+			this.opaqueData = opaqueData;
+			this.op = op;
+			this.pattern = ((opaqueData != null) && Operator.REG_EXP.equals(op)) ?
+					compilePattern(opaqueData.getAsciiValue()) : null;
+		}
+
+		boolean matches(BaseOpaqueData myBaseOpaqueData)
+		{
+			if ((pattern != null) && (myBaseOpaqueData.getAscii() != null)) {
+				return pattern.matcher(myBaseOpaqueData.getAscii()).matches();
+			}
+			return OpaqueDataUtil.matches(myBaseOpaqueData, opaqueData, op);
+		}
+	}
+
+	/**
+	 * Compile a regular expression, or return null if the expression is
+	 * not valid, so that matching uses the uncompiled expression, and
+	 * fails as before.
+	 */
+	private static Pattern compilePattern(String regex)
+	{
+		if (regex != null) {
+			try {
+				return Pattern.compile(regex);
+			}
+			catch (PatternSyntaxException ex) {
+				log.error("Invalid regular expression: " + regex, ex);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The compiled expression of a client class expression.
+	 */
+	protected static class ClientClassMatcher implements ExpressionMatcher
+	{
+		private final ClientClassExpression ccexpr;
+		private final int code;
+		private final List<BaseOpaqueData> v6ClassList;
+		private final OpaqueDataMatcher v4VendorClass;
+
+		ClientClassMatcher(ClientClassExpression ccexpr)
+		{
+			this.ccexpr = ccexpr;
+			List<OpaqueData> classList = null;
+			OpaqueDataMatcher vendorClass = null;
+			if (ccexpr.getV6UserClassOption() != null) {
+				code = ccexpr.getV6UserClassOption().getCode();
+				classList = ccexpr.getV6UserClassOption().getOpaqueDataList();
+			}
+			else if (ccexpr.getV6VendorClassOption() != null) {
+				code = ccexpr.getV6VendorClassOption().getCode();
+				classList = ccexpr.getV6VendorClassOption().getOpaqueDataList();
+			}
+			else if (ccexpr.getV4VendorClassOption() != null) {
+				code = ccexpr.getV4VendorClassOption().getCode();
+				vendorClass = new OpaqueDataMatcher(ccexpr.getV4VendorClassOption().getOpaqueData(),
+						ccexpr.getOperator());
+			}
+			else {
+				code = -1;
+				log.warn("Unsupported client class expression: " + ccexpr);
+			}
+			v6ClassList = toBaseOpaqueDataList(classList);
+			v4VendorClass = vendorClass;
+		}
+
+		@Override
+		public boolean matches(DhcpMessage requestMsg)
+		{
+			if (ccexpr.getV6UserClassOption() != null) {
+				DhcpV6UserClassOption ucOption =
+						(DhcpV6UserClassOption) requestMsg.getDhcpOption(code);
+				if (ucOption != null) {
+					return OpaqueDataUtil.matchesList(ucOption.getOpaqueDataList(),
+							v6ClassList, ccexpr.getOperator());
+				}
+				return false;
+			}
+			else if (ccexpr.getV6VendorClassOption() != null) {
+				DhcpV6VendorClassOption vcOption =
+						(DhcpV6VendorClassOption) requestMsg.getDhcpOption(code);
+				if (vcOption != null) {
+					return OpaqueDataUtil.matchesList(vcOption.getOpaqueDataList(),
+							v6ClassList, ccexpr.getOperator());
+				}
+				return false;
+			}
+			else if (ccexpr.getV4VendorClassOption() != null) {
+				DhcpV4VendorClassOption vcOption =
+						(DhcpV4VendorClassOption) requestMsg.getDhcpOption(code);
+				if (vcOption != null) {
+					BaseOpaqueData baseOpaqueData = vcOption.getOpaqueData();
+					if (baseOpaqueData != null) {
+						return v4VendorClass.matches(baseOpaqueData);
+					}
+				}
+				else {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static List<BaseOpaqueData> toBaseOpaqueDataList(List<OpaqueData> opaqueDataList)
+	{
+		if (opaqueDataList == null) {
+			return null;
+		}
+		List<BaseOpaqueData> baseOpaqueDataList =
+				new ArrayList<BaseOpaqueData>(opaqueDataList.size());
+		for (OpaqueData opaqueData : opaqueDataList) {
+			baseOpaqueDataList.add(OpaqueDataUtil.toBaseOpaqueData(opaqueData));
+		}
+		return Collections.unmodifiableList(baseOpaqueDataList);
+	}
+
+	/**
+	 * The compiled expression of an option expression.  The type of the
+	 * option in the request selects the comparison, as for the interpreted
+	 * expression, but the values of the expression are decoded once.
+	 */
+	protected static class OptionMatcher implements ExpressionMatcher
+	{
+		private final OptionExpression expression;
+		private final int code;
+		private final boolean v4;
+		private final Operator op;
+		private final Pattern domainNamePattern;
+		private final Pattern ipAddressPattern;
+		private final Pattern stringPattern;
+		private final OpaqueDataMatcher opaqueData;
+		private final List<BaseOpaqueData> opaqueDataList;
+		/** the opaque data value of the expression, for unsigned int and short options */
+		private final Long opaqueUnsignedInt;
+		private final Integer opaqueUnsignedShort;
+
+		OptionMatcher(OptionExpression expression)
+		{
+			this.expression = expression;
+			code = expression.getCode();
+			v4 = expression.isV4();
+			op = expression.getOperator();
+			boolean regex = Operator.REG_EXP.equals(op);
+			domainNamePattern = (regex && (expression.getDomainNameOption() != null)) ?
+					compilePattern(expression.getDomainNameOption().getDomainName()) : null;
+			ipAddressPattern = (regex && (expression.getIpAddressOption() != null)) ?
+					compilePattern(expression.getIpAddressOption().getIpAddress()) : null;
+			stringPattern = (regex && (expression.getStringOption() != null)) ?
+					compilePattern(expression.getStringOption().getString()) : null;
+			OpaqueDataOptionType opaqueOption = expression.getOpaqueDataOption();
+			opaqueData = (opaqueOption != null) ?
+					new OpaqueDataMatcher(opaqueOption.getOpaqueData(), op) : null;
+			opaqueDataList = (expression.getOpaqueDataListOption() != null) ?
+					toBaseOpaqueDataList(expression.getOpaqueDataListOption().getOpaqueDataList()) :
+					null;
+			Long uint = null;
+			Integer ushort = null;
+			if ((opaqueOption != null) && (opaqueOption.getOpaqueData() != null)) {
+				OpaqueData opaque = opaqueOption.getOpaqueData();
+	            String ascii = opaque.getAsciiValue();
+	            if (ascii != null) {
+	                try {
+	                	// need a long to handle unsigned int
+	                	uint = Long.parseLong(ascii);
+	                }
+	                catch (NumberFormatException ex) {
+	                	// not an unsigned int expression
+	                }
+	                try {
+	                	// need an Integer to handle unsigned short
+	                	ushort = Integer.parseInt(ascii);
+	                }
+	                catch (NumberFormatException ex) {
+	                	// not an unsigned short expression
+	                }
+	            }
+	            else {
+	                byte[] hex = opaque.getHexValue();
+	                if ( (hex != null) &&
+	                     (hex.length >= 1) && (hex.length <= 4) ) {
+	                	uint = Long.valueOf(Util.toHexString(hex), 16);
+	                }
+	                if ( (hex != null) &&
+	                     (hex.length >= 1) && (hex.length <= 2) ) {
+	                	ushort = Integer.valueOf(Util.toHexString(hex), 16);
+	                }
+	            }
+			}
+			opaqueUnsignedInt = uint;
+			opaqueUnsignedShort = ushort;
+		}
+
+		@Override
+		public boolean matches(DhcpMessage requestMsg)
+		{
+            DhcpOption option = requestMsg.getDhcpOption(code);
+            if (option == null) {
+                // if the expression option wasn't found in the
+                // request message, then it can't match
+            	return false;
+            }
+            return matches(option);
+		}
+
+		protected boolean matches(DhcpOption option)
+		{
+	        if ((option.isV4() != v4) || (option.getCode() != code)) {
+	        	return false;
+	        }
+    		if (option instanceof BaseEmptyOption) {
+    			return true;
+    		}
+    		else if (option instanceof BaseDomainNameOption) {
+    	        if (expression.getDomainNameOption() != null) {
+    	            return compareString(((BaseDomainNameOption)option).getDomainName(),
+    	            		expression.getDomainNameOption().getDomainName(), domainNamePattern);
+    	        }
+    		}
+    		else if (option instanceof BaseDomainNameListOption) {
+    	        if (expression.getDomainNameListOption() != null) {
+    	            return compareList(((BaseDomainNameListOption)option).getDomainNameList(),
+    	            		expression.getDomainNameListOption().getDomainNameList());
+    	        }
+    		}
+    		else if (option instanceof BaseIpAddressOption) {
+    	        if (expression.getIpAddressOption() != null) {
+    	            return compareString(((BaseIpAddressOption)option).getIpAddress(),
+    	            		expression.getIpAddressOption().getIpAddress(), ipAddressPattern);
+    	        }
+    		}
+    		else if (option instanceof BaseIpAddressListOption) {
+    	        if (expression.getIpAddressListOption() != null) {
+    	            return compareList(((BaseIpAddressListOption)option).getIpAddressList(),
+    	            		expression.getIpAddressListOption().getIpAddressList());
+    	        }
+    		}
+    		else if (option instanceof BaseOpaqueDataOption) {
+    			return (opaqueData != null) &&
+    					opaqueData.matches(((BaseOpaqueDataOption)option).getOpaqueData());
+    		}
+    		else if (option instanceof BaseOpaqueDataListOption) {
+    			if (opaqueDataList != null) {
+    				return OpaqueDataUtil.matchesList(
+    						((BaseOpaqueDataListOption)option).getOpaqueDataList(),
+    						opaqueDataList, op);
+    			}
+    		}
+    		else if (option instanceof BaseStringOption) {
+    	        if (expression.getStringOption() != null) {
+    	            return compareString(((BaseStringOption)option).getString(),
+    	            		expression.getStringOption().getString(), stringPattern);
+    	        }
+    		}
+    		else if (option instanceof BaseUnsignedByteOption) {
+    	        if (expression.getUByteOption() != null) {
+    	        	return compareNumber(((BaseUnsignedByteOption)option).getUnsignedByte(),
+    	        			expression.getUByteOption().getUnsignedByte());
+    	        }
+    		}
+    		else if (option instanceof BaseUnsignedByteListOption) {
+    	        if (expression.getUByteListOption() != null) {
+    	            return compareList(((BaseUnsignedByteListOption)option).getUnsignedByteList(),
+    	            		expression.getUByteListOption().getUnsignedByteList());
+    	        }
+    		}
+    		else if (option instanceof BaseUnsignedIntOption) {
+    			long unsignedInt = ((BaseUnsignedIntOption)option).getUnsignedInt();
+    	        if (expression.getUIntOption() != null) {
+    	        	return compareNumber(unsignedInt, expression.getUIntOption().getUnsignedInt());
+    	        }
+    	        // then see if we have an opaque option
+    	        return (opaqueUnsignedInt != null) && (unsignedInt == opaqueUnsignedInt.longValue());
+    		}
+    		else if (option instanceof BaseUnsignedShortOption) {
+    			int unsignedShort = ((BaseUnsignedShortOption)option).getUnsignedShort();
+    	        if (expression.getUShortOption() != null) {
+    	        	return compareNumber(unsignedShort, expression.getUShortOption().getUnsignedShort());
+    	        }
+    	        // then see if we have an opaque option
+    	        return (opaqueUnsignedShort != null) &&
+    	        		(unsignedShort == opaqueUnsignedShort.intValue());
+    		}
+    		else if (option instanceof BaseUnsignedShortListOption) {
+    	        if (expression.getUShortListOption() != null) {
+    	            return compareList(((BaseUnsignedShortListOption)option).getUnsignedShortList(),
+    	            		expression.getUShortListOption().getUnsignedShortList());
+    	        }
+    		}
+    		else {
+    			log.error("Unable to compare unknown option class: " +
+    						option.getClass().getName());
+    		}
+	        return false;
+		}
+
+		private boolean compareString(String optString, String exprString, Pattern pattern)
+		{
+			if (op.equals(Operator.EQUALS)) {
+				return optString.equals(exprString);
+			}
+			else if (op.equals(Operator.STARTS_WITH)) {
+				return optString.startsWith(exprString);
+			}
+			else if (op.equals(Operator.ENDS_WITH)) {
+				return optString.endsWith(exprString);
+			}
+			else if (op.equals(Operator.CONTAINS)) {
+				return optString.contains(exprString);
+			}
+			else if (op.equals(Operator.REG_EXP)) {
+				return (pattern != null) ? pattern.matcher(optString).matches() :
+						optString.matches(exprString);
+			}
+			else {
+				log.warn("Unsupported expression operator: " + op);
+			}
+			return false;
+		}
+
+		private boolean compareList(List<?> optList, List<?> exprList)
+		{
+			if (op.equals(Operator.EQUALS)) {
+				return optList.equals(exprList);
+			}
+			else if (op.equals(Operator.CONTAINS)) {
+				return optList.containsAll(exprList);
+			}
+			else {
+				log.warn("Unsupported expression operator: " + op);
+			}
+			return false;
+		}
+
+		private boolean compareNumber(Number optNumber, Number exprNumber)
+		{
+			if (op.equals(Operator.EQUALS)) {
+				return (optNumber.longValue() == exprNumber.longValue());
+			}
+			else if (op.equals(Operator.LESS_THAN)) {
+				return (optNumber.longValue() < exprNumber.longValue());
+			}
+			else if (op.equals(Operator.LESS_THAN_OR_EQUAL)) {
+				return (optNumber.longValue() <= exprNumber.longValue());
+			}
+			else if (op.equals(Operator.GREATER_THAN)) {
+				return (optNumber.longValue() > exprNumber.longValue());
+			}
+			else if (op.equals(Operator.GREATER_THAN_OR_EQUAL)) {
+				return (optNumber.longValue() >= exprNumber.longValue());
+			}
+			else {
+				log.warn("Unsupported expression operator: " + op);
+			}
+			return false;
+		}
+	}
+}
@@ -27,6 +27,7 @@ package com.jagornet.dhcp.server.config;
 
 import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.List;
@@ -180,13 +181,35 @@ public class OpaqueDataUtil
     		List<OpaqueData> thatOpaqueDataList, Operator op) {
     	
     	if (thatOpaqueDataList != null) {
+    		List<BaseOpaqueData> thatBaseOpaqueDataList = 
+    				new ArrayList<BaseOpaqueData>(thatOpaqueDataList.size());
+    		for (OpaqueData thatOpaqueData : thatOpaqueDataList) {
+    			thatBaseOpaqueDataList.add(OpaqueDataUtil.toBaseOpaqueData(thatOpaqueData));
+    		}
+    		return matchesList(myBaseOpaqueDataList, thatBaseOpaqueDataList, op);
+    	}
+    	return false;
+    }
+    
+    /**
+     * Match a list of opaque data to an expression list which has
+     * already been converted, e.g. by a compiled filter.
+     * 
+     * @param myBaseOpaqueDataList the list to match
+     * @param thatBaseOpaqueDataList the expression list
+     * @param op the operator
+     * @return true, if successful
+     */
+    public static boolean matchesList(List<BaseOpaqueData> myBaseOpaqueDataList,
+    		List<BaseOpaqueData> thatBaseOpaqueDataList, Operator op) {
+    	
+    	if (thatBaseOpaqueDataList != null) {
     		if (op.equals(Operator.EQUALS)) {
-        		if (thatOpaqueDataList.size() != myBaseOpaqueDataList.size()) {
+        		if (thatBaseOpaqueDataList.size() != myBaseOpaqueDataList.size()) {
         			return false;
         		}
-        		for (int i=0; i<thatOpaqueDataList.size(); i++) {
-        			BaseOpaqueData thatOpaque = 
-        					OpaqueDataUtil.toBaseOpaqueData(thatOpaqueDataList.get(i));
+        		for (int i=0; i<thatBaseOpaqueDataList.size(); i++) {
+        			BaseOpaqueData thatOpaque = thatBaseOpaqueDataList.get(i);
         			BaseOpaqueData myOpaque = myBaseOpaqueDataList.get(i);
         			if (!OpaqueDataUtil.equals(thatOpaque, myOpaque)) {
         				return false;
@@ -195,12 +218,11 @@ public class OpaqueDataUtil
         		return true;
     		}
     		else if (op.equals(Operator.CONTAINS)) {
-    			if (thatOpaqueDataList.size() > myBaseOpaqueDataList.size()) {
+    			if (thatBaseOpaqueDataList.size() > myBaseOpaqueDataList.size()) {
     				return false;
     			}
-    			for (int i=0; i<thatOpaqueDataList.size(); i++) {
-    				BaseOpaqueData thatOpaque = 
-    						OpaqueDataUtil.toBaseOpaqueData(thatOpaqueDataList.get(i));
+    			for (int i=0; i<thatBaseOpaqueDataList.size(); i++) {
+    				BaseOpaqueData thatOpaque = thatBaseOpaqueDataList.get(i);
         			boolean found = false;
     				for (int j=0; j<myBaseOpaqueDataList.size(); j++) {
     					BaseOpaqueData myOpaque = myBaseOpaqueDataList.get(j);
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file OptionWireCache.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.option.base.DhcpOption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The Class OptionWireCache.  The wire format of the options configured
+ * for the server, encoded once when the configuration is loaded, so that
+ * replies copy the encoded bytes instead of encoding the options again.
+ *
+ * The options are cached by identity, because the option objects of the
+ * configuration are shared by the replies, and options are not expected
+ * to be changed after they are configured.  The options are referenced
+ * weakly, so the encoding of an option is removed once the option is no
+ * longer configured, e.g. when the binding managers rebuild their pools.
+ * The encodings are heap buffers, so they need not be released, and are
+ * never freed while a reply is copying them.
+ *
+ * @author A. Gregory Rabil
+ */
+public class OptionWireCache
+{
+	private static Logger log = LoggerFactory.getLogger(OptionWireCache.class);
+
+	private static final ConcurrentHashMap<Object, ByteBuf> ENCODED_OPTIONS =
+			new ConcurrentHashMap<Object, ByteBuf>();
+
+	/** The options which are no longer referenced by the configuration. */
+	private static final ReferenceQueue<DhcpOption> UNUSED_OPTIONS =
+			new ReferenceQueue<DhcpOption>();
+
+	/**
+	 * Encode and cache the given options.
+	 *
+	 * @param optionMap the options
+	 */
+	public static void put(Map<Integer, DhcpOption> optionMap)
+	{
+		if (optionMap != null) {
+			for (DhcpOption option : optionMap.values()) {
+				put(option);
+			}
+		}
+	}
+
+	/**
+	 * Encode and cache the given option.
+	 *
+	 * @param option the option
+	 */
+	public static void put(DhcpOption option)
+	{
+		if (option == null) {
+			return;
+		}
+		removeUnused();
+		try {
+			ByteBuffer encoded = option.encode();
+			byte[] b = new byte[encoded.remaining()];
+			encoded.get(b);
+			ENCODED_OPTIONS.put(new WeakOptionKey(option, UNUSED_OPTIONS),
+					Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(b).asReadOnly()));
+		}
+		catch (Exception ex) {
+			// the option is encoded when each reply is sent instead
+			log.warn("Failed to encode configured option: " + option + ": " + ex);
+		}
+	}
+
+	/**
+	 * Get the cached wire format of an option.
+	 *
+	 * @param option the option
+	 * @return the read only encoded option, or null if not cached
+	 */
+	public static ByteBuf get(DhcpOption option)
+	{
+		return ENCODED_OPTIONS.get(new OptionKey(option));
+	}
+
+	/**
+	 * Write the wire format of an option, from the cache if the option
+	 * is configured, or by encoding the option.
+	 *
+	 * @param option the option
+	 * @param buf the buffer to write to
+	 * @throws IOException
+	 */
+	public static void write(DhcpOption option, ByteBuf buf) throws IOException
+	{
+		ByteBuf encoded = get(option);
+		if (encoded != null) {
+			// leave the indexes of the shared buffer alone
+			buf.writeBytes(encoded, encoded.readerIndex(), encoded.readableBytes());
+		}
+		else {
+			buf.writeBytes(option.encode());
+		}
+	}
+
+	/**
+	 * Remove all the cached options, before loading a new configuration.
+	 */
+	public static void clear()
+	{
+		ENCODED_OPTIONS.clear();
+		removeUnused();
+	}
+
+	/**
+	 * Remove the cached options which are no longer configured.
+	 */
+	protected static void removeUnused()
+	{
+		Reference<? extends DhcpOption> ref;
+		while ((ref = UNUSED_OPTIONS.poll()) != null) {
+			ENCODED_OPTIONS.remove(ref);
+		}
+	}
+
+	/**
+	 * @return the number of cached options
+	 */
+	public static int size()
+	{
+		removeUnused();
+		return ENCODED_OPTIONS.size();
+	}
+
+	/**
+	 * The identity of an option, to look up an option.  Some options define
+	 * equals by value, which must not share the wire format of another
+	 * option object.
+	 */
+	private static final class OptionKey
+	{
+		private final DhcpOption option;
+
+		OptionKey(DhcpOption option)
+		{
+			this.option = option;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return System.identityHashCode(option);
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return (obj instanceof WeakOptionKey) && (((WeakOptionKey)obj).get() == option);
+		}
+	}
+
+	/**
+	 * The identity of a cached option, which does not keep the option.
+	 */
+	private static final class WeakOptionKey extends WeakReference<DhcpOption>
+	{
+		private final int hash;
+
+		WeakOptionKey(DhcpOption option, ReferenceQueue<DhcpOption> queue)
+		{
+			super(option, queue);
+			hash = System.identityHashCode(option);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (obj == this) {
+				return true;
+			}
+			DhcpOption option = get();
+			if (option == null) {
+				return false;
+			}
+			if (obj instanceof OptionKey) {
+				return ((OptionKey)obj).option == option;
+			}
+			return (obj instanceof WeakOptionKey) && (((WeakOptionKey)obj).get() == option);
+		}
+	}
+}
@@ -36,6 +36,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
@@ -49,6 +50,8 @@ import org.springframework.jdbc.core.JdbcTemplate;
 
 import com.jagornet.dhcp.core.util.DhcpConstants;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 
 /**
  * The Class DbSchemaManager.
@@ -67,6 +70,7 @@ public class DbSchemaManager
     public static String APP_CONTEXT_JDBC_DATASOURCE_FILENAME = "context_jdbc_datasource.xml";
     public static String APP_CONTEXT_JDBC_V1SCHEMA_FILENAME = "context_jdbc_v1schema.xml";
     public static String APP_CONTEXT_JDBC_V2SCHEMA_FILENAME = "context_jdbc_v2schema.xml";  
+    public static String APP_CONTEXT_JDBC_V2SCHEMA_SHARDED_FILENAME = "context_jdbc_v2schema_sharded.xml";  
     
     // other schema types support only v2 schema
     public static String SCHEMATYPE_SQLITE = "sqlite";
@@ -92,7 +96,7 @@ public class DbSchemaManager
 	public static String SCHEMA_V2_FILENAME = "classpath:jagornet-dhcp-server-schema-v2.sql";
 	public static String SCHEMA_DERBY_V2_FILENAME = "classpath:jagornet-dhcp-server-schema-derby-v2.sql";
 
-    public static String[] TABLE_NAMES_V2 = { "DHCPLEASE" };
+    public static String[] TABLE_NAMES_V2 = { "DHCPLEASE", "DHCPOPTIONSET" };
     
     public static List<String> getDbContextFiles(String schemaType, int schemaVersion) throws Exception {
     	
@@ -109,7 +113,12 @@ public class DbSchemaManager
         		versionContext = APP_CONTEXT_JDBC_V1SCHEMA_FILENAME;
         	}
         	else if (schemaVersion == 2) {
-        		versionContext = APP_CONTEXT_JDBC_V2SCHEMA_FILENAME;
+        		if (DhcpServerPolicies.globalPolicyAsBoolean(Property.DATABASE_SHARD_BY_LINK)) {
+        			versionContext = APP_CONTEXT_JDBC_V2SCHEMA_SHARDED_FILENAME;
+        		}
+        		else {
+        			versionContext = APP_CONTEXT_JDBC_V2SCHEMA_FILENAME;
+        		}
         	}
         	else {
         		throw new DhcpServerConfigException("Unsupported schema version: " + schemaVersion);
@@ -185,6 +194,15 @@ public class DbSchemaManager
         }
         else {
         	schemaTableNames = TABLE_NAMES_V2;
+        	if (!schemaCreated && tableNames.contains(TABLE_NAMES_V2[0])) {
+        		// create the tables added to the schema since the database was created
+        		for (String tableName : schemaTableNames) {
+        			if (!tableNames.contains(tableName)) {
+        				createTable(dataSource, schemaFilename, tableName);
+        				tableNames.add(tableName);
+        			}
+        		}
+        	}
         }
         
 		if (tableNames.size() == schemaTableNames.length) {
@@ -254,4 +272,27 @@ public class DbSchemaManager
 			jdbc.execute(ddl);
 		}
 	}
+	
+	/**
+	 * Creates one table of the schema, with its indexes.
+	 * 
+	 * @param dataSource the data source
+	 * @param schemaFilename the schema file
+	 * @param tableName the name of the table
+	 * 
+	 * @throws IOException if there is a problem reading the schema file
+	 */
+	public static void createTable(DataSource dataSource, String schemaFilename, String tableName)
+						throws IOException
+	{
+		log.info("Creating JDBC table " + tableName + " from file: " + schemaFilename);
+	    JdbcTemplate jdbc = new JdbcTemplate(dataSource);
+	    Pattern tablePattern = Pattern.compile("CREATE (TABLE|INDEX \\w+ ON) " + tableName + "\\b.*",
+	    		Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	    for (String ddl : getSchemaDDL(schemaFilename)) {
+	    	if (tablePattern.matcher(ddl.trim()).matches()) {
+	    		jdbc.execute(ddl);
+	    	}
+		}
+	}
 }
@@ -314,6 +314,10 @@ public class DhcpLease implements Cloneable
 			//TODO: consider a Set?
 			iaDhcpOptions = new ArrayList<DhcpOption>();
 		}
+		else if (!(iaDhcpOptions instanceof ArrayList)) {
+			// the options may be shared and unmodifiable, e.g. an option set
+			iaDhcpOptions = new ArrayList<DhcpOption>(iaDhcpOptions);
+		}
 		iaDhcpOptions.add(iaDhcpOption);
 	}
 
@@ -347,6 +351,10 @@ public class DhcpLease implements Cloneable
 			//TODO: consider a Set?
 			iaAddrDhcpOptions = new ArrayList<DhcpOption>();
 		}
+		else if (!(iaAddrDhcpOptions instanceof ArrayList)) {
+			// the options may be shared and unmodifiable, e.g. an option set
+			iaAddrDhcpOptions = new ArrayList<DhcpOption>(iaAddrDhcpOptions);
+		}
 		iaAddrDhcpOptions.add(iaDhcpOption);
 	}
 
@@ -0,0 +1,1081 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FileLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.DuplicateKeyException;
+
+import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.request.binding.Range;
+
+/**
+ * The FileLeaseManager implementation class for the IaManager interface.
+ * The leases are kept in memory, indexed by IP address, and every change
+ * is appended to a memory-mapped journal file.  At startup the journal is
+ * replayed to rebuild the index.  When the journal is three quarters full,
+ * it is compacted in the background by writing a new journal with only the
+ * current leases, and the changes made while it is written, which then
+ * replaces the old journal.
+ *
+ * Each journal record is: length (int), operation (byte), IP address
+ * (length byte + address), and for a put, the fixed lease fields followed
+ * by the variable length DUID and options, then a CRC32 of the record.
+ * The length is written last, so a record which was only partially written
+ * ends the journal when it is replayed.
+ *
+ * @author A. Gregory Rabil
+ */
+public class FileLeaseManager extends LeaseManager
+{
+	private static Logger log = LoggerFactory.getLogger(FileLeaseManager.class);
+
+	public static String JOURNAL_DIR = DbSchemaManager.DB_HOME + "fileleases/";
+	public static String JOURNAL_FILENAME = "jagornet-dhcp-leases.journal";
+
+	protected static final byte OP_PUT = 1;
+	protected static final byte OP_DELETE = 2;
+
+	// the fraction of the journal which is used when it is compacted
+	protected static final double COMPACT_THRESHOLD = 0.75;
+
+	protected static final Comparator<InetAddress> INETADDR_COMPARATOR =
+			new Comparator<InetAddress>() {
+				@Override
+				public int compare(InetAddress a, InetAddress b) {
+					return Util.compareInetAddrs(a, b);
+				}
+			};
+
+	/**
+	 * The stored form of a lease, which is immutable, so that it can be
+	 * read without locking.  A new DhcpLease is built for each caller, as
+	 * for a lease read from a database.
+	 */
+	protected static class LeaseRecord
+	{
+		final InetAddress ipAddress;
+		final byte[] duid;
+		final byte iatype;
+		final long iaid;
+		final short prefixLength;
+		final byte state;
+		final byte haPeerState;
+		final long startTime;
+		final long preferredEndTime;
+		final long validEndTime;
+		final byte[] options;
+		final byte[] iaOptions;
+		final byte[] ipAddrOptions;
+
+		LeaseRecord(InetAddress ipAddress, byte[] duid, byte iatype, long iaid,
+				short prefixLength, byte state, byte haPeerState,
+				long startTime, long preferredEndTime, long validEndTime,
+				byte[] options, byte[] iaOptions, byte[] ipAddrOptions)
+		{
+			this.ipAddress = ipAddress;
+			this.duid = duid;
+			this.iatype = iatype;
+			this.iaid = iaid;
+			this.prefixLength = prefixLength;
+			this.state = state;
+			this.haPeerState = haPeerState;
+			this.startTime = startTime;
+			this.preferredEndTime = preferredEndTime;
+			this.validEndTime = validEndTime;
+			this.options = options;
+			this.iaOptions = iaOptions;
+			this.ipAddrOptions = ipAddrOptions;
+		}
+
+		static LeaseRecord fromDhcpLease(DhcpLease lease)
+		{
+			return new LeaseRecord(lease.getIpAddress(), lease.getDuid(),
+					lease.getIatype(), lease.getIaid(), lease.getPrefixLength(),
+					lease.getState(), lease.getHaPeerState(),
+					toMillis(lease.getStartTime()),
+					toMillis(lease.getPreferredEndTime()),
+					toMillis(lease.getValidEndTime()),
+					encodeOptions(lease.getDhcpOptions()),
+					encodeOptions(lease.getIaDhcpOptions()),
+					encodeOptions(lease.getIaAddrDhcpOptions()));
+		}
+
+		DhcpLease toDhcpLease()
+		{
+			DhcpLease lease = new DhcpLease();
+			lease.setIpAddress(ipAddress);
+			lease.setDuid(duid);
+			lease.setIatype(iatype);
+			lease.setIaid(iaid);
+			lease.setPrefixLength(prefixLength);
+			lease.setState(state);
+			lease.setHaPeerState(haPeerState);
+			lease.setStartTime(toDate(startTime));
+			lease.setPreferredEndTime(toDate(preferredEndTime));
+			lease.setValidEndTime(toDate(validEndTime));
+			lease.setDhcpOptions(decodeOptions(options));
+			lease.setIaDhcpOptions(decodeOptions(iaOptions));
+			lease.setIaAddrDhcpOptions(decodeOptions(ipAddrOptions));
+			return lease;
+		}
+
+		LeaseRecord withState(byte state, byte haPeerState, short prefixLength,
+				long startTime, long preferredEndTime, long validEndTime)
+		{
+			return new LeaseRecord(ipAddress, duid, iatype, iaid,
+					prefixLength, state, haPeerState,
+					startTime, preferredEndTime, validEndTime,
+					options, iaOptions, ipAddrOptions);
+		}
+
+		LeaseRecord withOptions(byte[] iaOptions, byte[] ipAddrOptions)
+		{
+			return new LeaseRecord(ipAddress, duid, iatype, iaid,
+					prefixLength, state, haPeerState,
+					startTime, preferredEndTime, validEndTime,
+					options, iaOptions, ipAddrOptions);
+		}
+
+		String iaKey()
+		{
+			return FileLeaseManager.iaKey(duid, iatype, iaid);
+		}
+	}
+
+	protected String journalDir = JOURNAL_DIR;
+	protected File journalFile;
+	protected MappedByteBuffer journal;
+	protected int journalSize;
+	protected boolean syncWrites;
+
+	// compacts the journal off the request path
+	protected ExecutorService compactor;
+	// the records appended while a compaction is writing the new journal,
+	// or null if no compaction is running
+	protected List<ByteBuffer> compactionRecords;
+	// incremented by each compaction, so that a background compaction
+	// can tell if the journal was compacted while it was writing
+	protected long compactions;
+
+	// the primary index of the leases, sorted by IP address
+	protected final ConcurrentSkipListMap<InetAddress, LeaseRecord> leaseMap =
+			new ConcurrentSkipListMap<InetAddress, LeaseRecord>(INETADDR_COMPARATOR);
+	// the IP addresses of the leases of each IA
+	protected final Map<String, Set<InetAddress>> iaMap =
+			new ConcurrentHashMap<String, Set<InetAddress>>();
+
+	public String getJournalDir() {
+		return journalDir;
+	}
+	public void setJournalDir(String journalDir) {
+		this.journalDir = journalDir;
+	}
+
+	// Spring bean init-method
+	public void init() throws Exception {
+		super.init();
+		journalSize = DhcpServerPolicies.globalPolicyAsInt(Property.DATABASE_FILE_JOURNAL_SIZE);
+		syncWrites = DhcpServerPolicies.globalPolicyAsBoolean(Property.DATABASE_FILE_SYNC_WRITES);
+		File dir = new File(journalDir);
+		FileUtils.forceMkdir(dir);
+		if (compactor == null) {
+			compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FileLeaseCompactor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		synchronized (this) {
+			leaseMap.clear();
+			iaMap.clear();
+			journalFile = new File(dir, JOURNAL_FILENAME);
+			long start = System.currentTimeMillis();
+			int records = 0;
+			if (journalFile.exists()) {
+				records = replay();
+			}
+			// start with a compacted journal
+			compact();
+			log.info("Loaded " + leaseMap.size() + " leases from " + records +
+					" journal records in " + (System.currentTimeMillis() - start) + "ms");
+		}
+	}
+
+	// Spring bean destroy-method
+	public void close() {
+		if (compactor != null) {
+			// let a running compaction finish, it needs the lock to do so
+			compactor.shutdown();
+			try {
+				if (!compactor.awaitTermination(30, TimeUnit.SECONDS)) {
+					log.warn("Lease journal compaction did not finish");
+				}
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			compactor = null;
+		}
+		synchronized (this) {
+			if (journal != null) {
+				journal.force();
+				unmap(journal);
+				journal = null;
+			}
+		}
+	}
+
+	/**
+	 * Replay the journal file into the lease index.
+	 *
+	 * @return the number of records replayed
+	 * @throws IOException
+	 */
+	protected int replay() throws IOException
+	{
+		int records = 0;
+		try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r");
+				FileChannel channel = raf.getChannel()) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (buf.remaining() >= 4) {
+				int pos = buf.position();
+				int len = buf.getInt();
+				if ((len <= 0) || (len > buf.remaining())) {
+					break;
+				}
+				ByteBuffer rec = buf.slice();
+				rec.limit(len);
+				buf.position(pos + 4 + len);
+				if (!applyRecord(rec)) {
+					log.warn("Corrupt lease journal record at position " + pos +
+							 ", ignoring the rest of the journal");
+					break;
+				}
+				records++;
+			}
+			unmap(buf);
+		}
+		return records;
+	}
+
+	/**
+	 * Apply a journal record to the lease index.
+	 *
+	 * @param rec the record, without the length
+	 * @return false if the record is corrupt
+	 */
+	protected boolean applyRecord(ByteBuffer rec)
+	{
+		CRC32 crc = new CRC32();
+		byte[] body = new byte[rec.remaining() - 4];
+		rec.get(body);
+		crc.update(body);
+		if ((int)crc.getValue() != rec.getInt()) {
+			return false;
+		}
+		ByteBuffer bb = ByteBuffer.wrap(body);
+		try {
+			byte op = bb.get();
+			byte[] ip = new byte[bb.get()];
+			bb.get(ip);
+			InetAddress inetAddr = InetAddress.getByAddress(ip);
+			if (op == OP_PUT) {
+				byte iatype = bb.get();
+				long iaid = bb.getLong();
+				short prefixLength = bb.getShort();
+				byte state = bb.get();
+				byte haPeerState = bb.get();
+				long startTime = bb.getLong();
+				long preferredEndTime = bb.getLong();
+				long validEndTime = bb.getLong();
+				byte[] duid = getBytes(bb);
+				byte[] options = getBytes(bb);
+				byte[] iaOptions = getBytes(bb);
+				byte[] ipAddrOptions = getBytes(bb);
+				putRecord(new LeaseRecord(inetAddr, duid, iatype, iaid,
+						prefixLength, state, haPeerState,
+						startTime, preferredEndTime, validEndTime,
+						options, iaOptions, ipAddrOptions));
+			}
+			else if (op == OP_DELETE) {
+				removeRecord(inetAddr);
+			}
+			else {
+				return false;
+			}
+		}
+		catch (UnknownHostException | RuntimeException ex) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compact the journal, by writing the current leases to a new journal
+	 * which replaces the old journal.  The new journal is at least twice
+	 * the size of the current leases, so there is room to append changes.
+	 *
+	 * @throws IOException
+	 */
+	protected synchronized void compact() throws IOException
+	{
+		// a running background compaction is superseded by this one
+		compactions++;
+		compactionRecords = null;
+		List<ByteBuffer> records = encodeLeases();
+		long size = recordsSize(records);
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		MappedByteBuffer buf = writeJournal(tmpFile, records, size);
+		replaceJournal(tmpFile, buf);
+		log.debug("Compacted lease journal: leases=" + records.size() +
+				  " size=" + size + " capacity=" + buf.capacity());
+	}
+
+	/**
+	 * Start a background compaction of the journal, unless one is running.
+	 * The changes appended to the journal while the new journal is written
+	 * are also appended to the new journal before it replaces the old one.
+	 */
+	protected synchronized void startCompaction()
+	{
+		if ((compactionRecords != null) || (compactor == null) || compactor.isShutdown()) {
+			return;
+		}
+		final long compaction = compactions;
+		// the changes from now on are also appended to the new journal,
+		// so the leases may be read while they are being changed
+		compactionRecords = new ArrayList<ByteBuffer>();
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					compactInBackground(compaction);
+				}
+				catch (Exception ex) {
+					log.error("Failed to compact lease journal", ex);
+					synchronized (FileLeaseManager.this) {
+						if (compactions == compaction) {
+							compactionRecords = null;
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Write a new journal with the current leases, without holding the lock,
+	 * then replace the journal with it, after appending the changes made
+	 * while it was written.  The leases are immutable, and each change is
+	 * a complete put or delete, so appending the changes to leases which
+	 * were read while they were changed results in the current leases.
+	 *
+	 * @param compaction the compaction count when the compaction started
+	 * @throws IOException
+	 */
+	protected void compactInBackground(long compaction) throws IOException
+	{
+		List<ByteBuffer> records = encodeLeases();
+		long size = recordsSize(records);
+		// not the temporary file of a compaction with the lock
+		File tmpFile = new File(journalFile.getPath() + ".compact");
+		MappedByteBuffer buf = writeJournal(tmpFile, records, size);
+		synchronized (this) {
+			if (compactions != compaction) {
+				// the journal was compacted while this one was written
+				unmap(buf);
+				Files.deleteIfExists(tmpFile.toPath());
+				return;
+			}
+			try {
+				compactions++;
+				long changes = recordsSize(compactionRecords);
+				if (changes + 4 > buf.remaining()) {
+					// too many changes while writing, compact with the lock
+					unmap(buf);
+					Files.deleteIfExists(tmpFile.toPath());
+					compact();
+					return;
+				}
+				for (ByteBuffer bb : compactionRecords) {
+					buf.put(bb);
+				}
+				buf.force();
+				replaceJournal(tmpFile, buf);
+				log.debug("Compacted lease journal: leases=" + records.size() +
+						  " changes=" + compactionRecords.size() +
+						  " size=" + (size + changes) + " capacity=" + buf.capacity());
+			}
+			finally {
+				compactionRecords = null;
+			}
+		}
+	}
+
+	protected List<ByteBuffer> encodeLeases()
+	{
+		List<ByteBuffer> records = new ArrayList<ByteBuffer>(leaseMap.size());
+		for (LeaseRecord record : leaseMap.values()) {
+			records.add(encodeRecord(OP_PUT, record.ipAddress, record));
+		}
+		return records;
+	}
+
+	protected static long recordsSize(List<ByteBuffer> records)
+	{
+		long size = 0;
+		for (ByteBuffer bb : records) {
+			size += bb.remaining();
+		}
+		return size;
+	}
+
+	/**
+	 * Write the records to a new temporary journal file.
+	 *
+	 * @param tmpFile the temporary journal file
+	 * @param records the records
+	 * @param size the size of the records
+	 * @return the mapped new journal, positioned after the records
+	 * @throws IOException
+	 */
+	protected MappedByteBuffer writeJournal(File tmpFile, List<ByteBuffer> records, long size)
+			throws IOException
+	{
+		long capacity = Math.max(journalSize, size * 2);
+		if (capacity > Integer.MAX_VALUE) {
+			throw new IOException("Lease journal too large: " + capacity);
+		}
+		Files.deleteIfExists(tmpFile.toPath());
+		MappedByteBuffer buf;
+		try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+				FileChannel channel = raf.getChannel()) {
+			buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			for (ByteBuffer bb : records) {
+				buf.put(bb);
+			}
+			buf.force();
+		}
+		// the mapping remains valid after the file is renamed and closed
+		return buf;
+	}
+
+	/**
+	 * Replace the journal file with the new temporary journal file.
+	 * The old journal is unmapped first, so that its file can be replaced.
+	 *
+	 * @param tmpFile the temporary journal file
+	 * @param buf the mapped new journal
+	 * @throws IOException
+	 */
+	protected synchronized void replaceJournal(File tmpFile, MappedByteBuffer buf)
+			throws IOException
+	{
+		if (journal != null) {
+			unmap(journal);
+			journal = null;
+		}
+		try {
+			Files.move(tmpFile.toPath(), journalFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException ex) {
+			unmap(buf);
+			throw ex;
+		}
+		journal = buf;
+	}
+
+	/**
+	 * Release the mapping of a journal, instead of waiting for the buffer
+	 * to be garbage collected.  The buffer must not be used afterwards.
+	 *
+	 * @param buf the mapped buffer
+	 */
+	protected static void unmap(MappedByteBuffer buf)
+	{
+		try {
+			try {
+				// Java 9 and later
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buf);
+			}
+			catch (NoSuchMethodException ex) {
+				// Java 8
+				Method cleanerMethod = buf.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buf);
+				if (cleaner != null) {
+					Method clean = cleaner.getClass().getMethod("clean");
+					clean.setAccessible(true);
+					clean.invoke(cleaner);
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.debug("Unable to unmap lease journal, left to garbage collection: " + ex);
+		}
+	}
+
+	/**
+	 * Append a record to the journal.  A compaction is started in the
+	 * background when the journal is three quarters full.  If the journal
+	 * is full before the compaction finishes, it is compacted with the lock.
+	 *
+	 * @param op the operation
+	 * @param inetAddr the IP address of the lease
+	 * @param record the lease for a put, or null for a delete
+	 */
+	protected synchronized void append(byte op, InetAddress inetAddr, LeaseRecord record)
+	{
+		try {
+			if (journal == null) {
+				throw new IOException("Lease journal is closed");
+			}
+			ByteBuffer bb = encodeRecord(op, inetAddr, record);
+			// keep room for the zero length which ends the journal
+			if (bb.remaining() + 4 > journal.remaining()) {
+				// the current leases include this change
+				compact();
+				return;
+			}
+			if (compactionRecords != null) {
+				compactionRecords.add(bb.duplicate());
+			}
+			int pos = journal.position();
+			int len = bb.getInt();
+			journal.position(pos + 4);
+			journal.put(bb);
+			// write the length last, so a partial record is not replayed
+			journal.putInt(pos, len);
+			if (syncWrites) {
+				journal.force();
+			}
+			if (journal.position() > journal.capacity() * COMPACT_THRESHOLD) {
+				startCompaction();
+			}
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Failed to write lease journal", ex);
+		}
+	}
+
+	protected static ByteBuffer encodeRecord(byte op, InetAddress inetAddr, LeaseRecord record)
+	{
+		byte[] ip = inetAddr.getAddress();
+		int len = 1 + 1 + ip.length + 4;
+		if (op == OP_PUT) {
+			len += 1 + 8 + 2 + 1 + 1 + 8 + 8 + 8 +
+					bytesLength(record.duid) + bytesLength(record.options) +
+					bytesLength(record.iaOptions) + bytesLength(record.ipAddrOptions);
+		}
+		ByteBuffer bb = ByteBuffer.allocate(4 + len);
+		bb.putInt(len);
+		bb.put(op);
+		bb.put((byte)ip.length);
+		bb.put(ip);
+		if (op == OP_PUT) {
+			bb.put(record.iatype);
+			bb.putLong(record.iaid);
+			bb.putShort(record.prefixLength);
+			bb.put(record.state);
+			bb.put(record.haPeerState);
+			bb.putLong(record.startTime);
+			bb.putLong(record.preferredEndTime);
+			bb.putLong(record.validEndTime);
+			putBytes(bb, record.duid);
+			putBytes(bb, record.options);
+			putBytes(bb, record.iaOptions);
+			putBytes(bb, record.ipAddrOptions);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), 4, bb.position() - 4);
+		bb.putInt((int)crc.getValue());
+		bb.flip();
+		return bb;
+	}
+
+	protected static int bytesLength(byte[] b)
+	{
+		return 4 + ((b != null) ? b.length : 0);
+	}
+
+	protected static void putBytes(ByteBuffer bb, byte[] b)
+	{
+		if (b != null) {
+			bb.putInt(b.length);
+			bb.put(b);
+		}
+		else {
+			bb.putInt(-1);
+		}
+	}
+
+	protected static byte[] getBytes(ByteBuffer bb)
+	{
+		int len = bb.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		bb.get(b);
+		return b;
+	}
+
+	protected static long toMillis(Date date)
+	{
+		return (date != null) ? date.getTime() : -1;
+	}
+
+	protected static Date toDate(long millis)
+	{
+		return (millis >= 0) ? new Date(millis) : null;
+	}
+
+	protected static String iaKey(byte[] duid, byte iatype, long iaid)
+	{
+		return Util.toHexString(duid) + "/" + iatype + "/" + iaid;
+	}
+
+	protected void putRecord(LeaseRecord record)
+	{
+		LeaseRecord old = leaseMap.put(record.ipAddress, record);
+		if (old != null) {
+			removeIaIndex(old);
+		}
+		Set<InetAddress> ips = iaMap.get(record.iaKey());
+		if (ips == null) {
+			ips = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+			iaMap.put(record.iaKey(), ips);
+		}
+		ips.add(record.ipAddress);
+	}
+
+	protected LeaseRecord removeRecord(InetAddress inetAddr)
+	{
+		LeaseRecord old = leaseMap.remove(inetAddr);
+		if (old != null) {
+			removeIaIndex(old);
+		}
+		return old;
+	}
+
+	protected void removeIaIndex(LeaseRecord record)
+	{
+		String key = record.iaKey();
+		Set<InetAddress> ips = iaMap.get(key);
+		if (ips != null) {
+			ips.remove(record.ipAddress);
+			if (ips.isEmpty()) {
+				iaMap.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Store a lease, by indexing it and then appending it to the journal,
+	 * so that a compaction of the journal includes the lease.
+	 */
+	protected void store(LeaseRecord record)
+	{
+		putRecord(record);
+		append(OP_PUT, record.ipAddress, record);
+	}
+
+	protected NavigableMap<InetAddress, LeaseRecord> range(InetAddress startAddr, InetAddress endAddr)
+	{
+		if (Util.compareInetAddrs(startAddr, endAddr) > 0) {
+			return Collections.emptyNavigableMap();
+		}
+		return leaseMap.subMap(startAddr, true, endAddr, true);
+	}
+
+	/**
+	 * Insert dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	public synchronized int insertDhcpLease(final DhcpLease lease)
+	{
+		if (leaseMap.containsKey(lease.getIpAddress())) {
+			throw new DuplicateKeyException("Lease exists for IP=" +
+					lease.getIpAddress().getHostAddress());
+		}
+		store(LeaseRecord.fromDhcpLease(lease));
+		return 1;
+	}
+
+	/**
+	 * Update dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	public synchronized int updateDhcpLease(final DhcpLease lease)
+	{
+		LeaseRecord old = leaseMap.get(lease.getIpAddress());
+		if (old == null) {
+			return 0;
+		}
+		// the identity of the lease is not updated
+		LeaseRecord record = LeaseRecord.fromDhcpLease(lease);
+		store(new LeaseRecord(old.ipAddress, old.duid, old.iatype, old.iaid,
+				old.prefixLength, record.state, record.haPeerState,
+				record.startTime, record.preferredEndTime, record.validEndTime,
+				record.options, record.iaOptions, record.ipAddrOptions));
+		return 1;
+	}
+
+	/**
+	 * Delete dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	public int deleteDhcpLease(final DhcpLease lease)
+	{
+		return deleteIpAddress(lease.getIpAddress());
+	}
+
+	@Override
+	public synchronized int updateIpAddress(final InetAddress inetAddr,
+			final byte state, final byte haPeerState, final short prefixlen,
+			final Date start, final Date preferred, final Date valid)
+	{
+		LeaseRecord old = leaseMap.get(inetAddr);
+		if (old == null) {
+			return 0;
+		}
+		store(old.withState(state, haPeerState,
+				(prefixlen > 0) ? prefixlen : old.prefixLength,
+				toMillis(start), toMillis(preferred), toMillis(valid)));
+		return 1;
+	}
+
+	@Override
+	public synchronized int updateHaPeerState(final InetAddress inetAddr,
+			final byte state, final Date validEndTime, final byte haPeerState)
+	{
+		LeaseRecord old = leaseMap.get(inetAddr);
+		if ((old == null) || (old.state != state) ||
+				(old.validEndTime != toMillis(validEndTime))) {
+			return 0;
+		}
+		store(old.withState(old.state, haPeerState, old.prefixLength,
+				old.startTime, old.preferredEndTime, old.validEndTime));
+		return 1;
+	}
+
+	@Override
+	public synchronized int deleteIpAddress(final InetAddress inetAddr)
+	{
+		if (!leaseMap.containsKey(inetAddr)) {
+			return 0;
+		}
+		removeRecord(inetAddr);
+		append(OP_DELETE, inetAddr, null);
+		return 1;
+	}
+
+	@Override
+	public synchronized int updateIaOptions(final InetAddress inetAddr,
+			final Collection<DhcpOption> iaOptions)
+	{
+		LeaseRecord old = leaseMap.get(inetAddr);
+		if (old == null) {
+			return 0;
+		}
+		store(old.withOptions(encodeOptions(iaOptions), old.ipAddrOptions));
+		return 1;
+	}
+
+	@Override
+	public synchronized int updateIpAddrOptions(final InetAddress inetAddr,
+			final Collection<DhcpOption> ipAddrOptions)
+	{
+		LeaseRecord old = leaseMap.get(inetAddr);
+		if (old == null) {
+			return 0;
+		}
+		store(old.withOptions(old.iaOptions, encodeOptions(ipAddrOptions)));
+		return 1;
+	}
+
+	@Override
+	public List<DhcpLease> findDhcpLeasesForIA(final byte[] duid,
+			final byte iatype, final long iaid)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		Set<InetAddress> ips = iaMap.get(iaKey(duid, iatype, iaid));
+		if (ips != null) {
+			for (InetAddress ip : ips) {
+				LeaseRecord record = leaseMap.get(ip);
+				// check the record, in case it changed since the lookup
+				if ((record != null) && (record.iatype == iatype) &&
+						(record.iaid == iaid) && Arrays.equals(record.duid, duid)) {
+					leases.add(record.toDhcpLease());
+				}
+			}
+			leases.sort((a, b) -> Util.compareInetAddrs(a.getIpAddress(), b.getIpAddress()));
+		}
+		return leases;
+	}
+
+	@Override
+	public DhcpLease findDhcpLeaseForInetAddr(final InetAddress inetAddr)
+	{
+		LeaseRecord record = leaseMap.get(inetAddr);
+		return (record != null) ? record.toDhcpLease() : null;
+	}
+
+	@Override
+	public List<InetAddress> findExistingLeaseIPs(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		return new ArrayList<InetAddress>(range(startAddr, endAddr).keySet());
+	}
+
+	@Override
+	public void findExistingLeaseIPs(final InetAddress startAddr,
+			final InetAddress endAddr, InetAddressCallbackHandler inetAddressCallbackHandler)
+	{
+		try {
+			for (InetAddress inetAddr : range(startAddr, endAddr).keySet()) {
+				inetAddressCallbackHandler.processInetAddress(inetAddr);
+			}
+		}
+		catch (IOException ex) {
+			throw new DataRetrievalFailureException("Unable to process ipaddress", ex);
+		}
+	}
+
+	@Override
+	public void findExistingLeases(final InetAddress startAddr,
+			final InetAddress endAddr, DhcpLeaseCallbackHandler dhcpLeaseCallbackHandler)
+	{
+		processLeases(range(startAddr, endAddr).values(), false, dhcpLeaseCallbackHandler);
+	}
+
+	@Override
+	public void findUnsyncedLeases(final InetAddress startAddr,
+			final InetAddress endAddr, DhcpLeaseCallbackHandler dhcpLeaseCallbackHandler)
+	{
+		processLeases(range(startAddr, endAddr).values(), true, dhcpLeaseCallbackHandler);
+	}
+
+	protected void processLeases(Collection<LeaseRecord> records, boolean unsyncedOnly,
+			DhcpLeaseCallbackHandler dhcpLeaseCallbackHandler)
+	{
+		try {
+			for (LeaseRecord record : records) {
+				if (!unsyncedOnly || (record.haPeerState == IaAddress.UNKNOWN)) {
+					dhcpLeaseCallbackHandler.processDhcpLease(record.toDhcpLease());
+				}
+			}
+		}
+		catch (Exception ex) {
+			throw new DataRetrievalFailureException("Unable to process dhcplease", ex);
+		}
+	}
+
+	@Override
+	public synchronized int setAllLeasesUnsynced()
+	{
+		int cnt = 0;
+		for (LeaseRecord record : leaseMap.values()) {
+			store(record.withState(record.state, IaAddress.UNKNOWN, record.prefixLength,
+					record.startTime, record.preferredEndTime, record.validEndTime));
+			cnt++;
+		}
+		return cnt;
+	}
+
+	protected boolean isUnused(LeaseRecord record, long offerExpiration)
+	{
+		return (record.state == IaAddress.AVAILABLE) ||
+				((record.state == IaAddress.OFFERED) &&
+						(record.startTime >= 0) && (record.startTime <= offerExpiration));
+	}
+
+	@Override
+	public List<DhcpLease> findUnusedLeases(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		final long offerExpiration = new Date().getTime() - offerExpireMillis;
+		List<LeaseRecord> records = new ArrayList<LeaseRecord>();
+		for (LeaseRecord record : range(startAddr, endAddr).values()) {
+			if (isUnused(record, offerExpiration)) {
+				records.add(record);
+			}
+		}
+		// same order as the database query: state, validendtime, ipaddress
+		records.sort(new Comparator<LeaseRecord>() {
+			@Override
+			public int compare(LeaseRecord a, LeaseRecord b) {
+				int c = Byte.compare(a.state, b.state);
+				if (c == 0) {
+					c = Long.compare(a.validEndTime, b.validEndTime);
+				}
+				if (c == 0) {
+					c = Util.compareInetAddrs(a.ipAddress, b.ipAddress);
+				}
+				return c;
+			}
+		});
+		List<DhcpLease> leases = new ArrayList<DhcpLease>(records.size());
+		for (LeaseRecord record : records) {
+			leases.add(record.toDhcpLease());
+		}
+		return leases;
+	}
+
+	@Override
+	public DhcpLease findUnusedLease(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		LeaseRecord offered = null;
+		final long offerExpiration = new Date().getTime() - offerExpireMillis;
+		for (LeaseRecord record : range(startAddr, endAddr).values()) {
+			if (record.state == IaAddress.AVAILABLE) {
+				return record.toDhcpLease();
+			}
+			if ((offered == null) && isUnused(record, offerExpiration)) {
+				offered = record;
+			}
+		}
+		// no "available" leases, so use an expired offer
+		return (offered != null) ? offered.toDhcpLease() : null;
+	}
+
+	@Override
+	public List<DhcpLease> findExpiredLeases(final byte iatype)
+	{
+		return findLeasedLeases(iatype, true);
+	}
+
+	@Override
+	public List<DhcpLease> findUnexpiredLeases(final byte iatype)
+	{
+		return findLeasedLeases(iatype, false);
+	}
+
+	protected List<DhcpLease> findLeasedLeases(final byte iatype, boolean expired)
+	{
+		long now = new Date().getTime();
+		List<LeaseRecord> records = new ArrayList<LeaseRecord>();
+		for (LeaseRecord record : leaseMap.values()) {
+			if ((record.iatype == iatype) && (record.state == IaAddress.LEASED) &&
+					(record.validEndTime >= 0) &&
+					((record.validEndTime < now) == expired)) {
+				records.add(record);
+			}
+		}
+		records.sort((a, b) -> Long.compare(a.validEndTime, b.validEndTime));
+		List<DhcpLease> leases = new ArrayList<DhcpLease>(records.size());
+		for (LeaseRecord record : records) {
+			leases.add(record.toDhcpLease());
+		}
+		return leases;
+	}
+
+	@Override
+	public synchronized void reconcileLeases(final List<Range> ranges)
+	{
+		List<InetAddress> deletes = new ArrayList<InetAddress>();
+		for (InetAddress inetAddr : leaseMap.keySet()) {
+			boolean inRange = false;
+			for (Range range : ranges) {
+				if (range.contains(inetAddr)) {
+					inRange = true;
+					break;
+				}
+			}
+			if (!inRange) {
+				deletes.add(inetAddr);
+			}
+		}
+		for (InetAddress inetAddr : deletes) {
+			deleteIpAddress(inetAddr);
+		}
+		log.info("Deleted " + deletes.size() + " leases not in configured ranges");
+	}
+
+	@Override
+	public synchronized int deleteAllLeases()
+	{
+		int cnt = leaseMap.size();
+		leaseMap.clear();
+		iaMap.clear();
+		try {
+			compact();
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Failed to write lease journal", ex);
+		}
+		log.info("Deleted all " + cnt + " leases");
+		return cnt;
+	}
+}
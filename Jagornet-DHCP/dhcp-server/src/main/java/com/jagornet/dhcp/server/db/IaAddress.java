@@ -229,6 +229,10 @@ public class IaAddress
 		if (dhcpOptions == null) {
 			dhcpOptions = new ArrayList<DhcpOption>();
 		}
+		else if (!(dhcpOptions instanceof ArrayList)) {
+			// the options may be shared and unmodifiable, e.g. an option set
+			dhcpOptions = new ArrayList<DhcpOption>(dhcpOptions);
+		}
 		// first remove the option, if it exists
 		for (DhcpOption dhcpOption : dhcpOptions) {
 			if (dhcpOption.getCode() == newOption.getCode()) {
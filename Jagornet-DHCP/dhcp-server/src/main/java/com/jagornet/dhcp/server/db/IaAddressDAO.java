@@ -129,6 +129,15 @@ public interface IaAddressDAO
 	 */
 	public List<IaAddress> findExpiredAddresses(byte iatype);
 
+	/**
+	 * Find all leased and not older than now.
+	 * 
+	 * @param iatype the ia type
+	 * 
+	 * @return the list< ia address>
+	 */
+	public List<IaAddress> findUnexpiredAddresses(byte iatype);
+
 	/**
 	 * Find unused by range.
 	 * 
@@ -230,6 +230,15 @@ public interface IaManager
 	 */
 	public List<IaAddress> findExpiredIaAddresses(byte iatype);
 
+	/**
+	 * Find the leased IA Addresses for the given IA type which have not yet expired.
+	 * 
+	 * @param iatype the IA type
+	 * 
+	 * @return the list of leased IaAddress objects for the type, sorted by valid end time
+	 */
+	public List<IaAddress> findUnexpiredIaAddresses(byte iatype);
+
 	/**
 	 * Find the unused IA Prefixes within an inclusive address range.
 	 * 
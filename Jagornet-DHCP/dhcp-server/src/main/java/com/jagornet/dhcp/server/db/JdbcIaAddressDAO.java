@@ -284,6 +284,28 @@ public class JdbcIaAddressDAO extends JdbcDaoSupport implements IaAddressDAO
                 new IaAddrRowMapper());
 	}
 
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaAddressDAO#findUnexpiredAddresses(byte)
+	 */
+	public List<IaAddress> findUnexpiredAddresses(final byte iatype)
+	{
+        return getJdbcTemplate().query(
+                "select * from iaaddress a" +
+                " join identityassoc ia on ia.id=a.identityassoc_id" +
+                " where ia.iatype = ?" +
+                " and a.state = " + IaAddress.LEASED +
+                " and a.validendtime >= ? order by a.validendtime",
+                new PreparedStatementSetter() {
+            		@Override
+            		public void setValues(PreparedStatement ps) throws SQLException {
+            			ps.setByte(1, iatype);
+            			java.sql.Timestamp ts = new java.sql.Timestamp(new Date().getTime());
+            			ps.setTimestamp(2, ts, Util.GMT_CALENDAR);
+            		}
+                },
+                new IaAddrRowMapper());
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaAddressDAO#findUnusedByRange(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -437,6 +437,14 @@ public class JdbcIaManager extends JdbcDaoSupport implements IaManager
 		return iaAddrDao.findExpiredAddresses(iatype);
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaManager#findUnexpiredIaAddresses(byte)
+	 */
+	@Override
+	public List<IaAddress> findUnexpiredIaAddresses(byte iatype) {
+		return iaAddrDao.findUnexpiredAddresses(iatype);
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findUnusedIaPrefixes(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -31,6 +31,7 @@ import java.net.UnknownHostException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -42,6 +43,7 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
@@ -65,11 +67,30 @@ public class JdbcLeaseManager extends LeaseManager
 	
 	protected DataSource dataSource;
 	protected JdbcTemplate jdbcTemplate;
+	protected LeaseGroupCommitJournal groupCommitJournal;
+	protected JdbcOptionSetStore optionSetStore;
 	
 	protected static String LIMIT_ONE_CLAUSE = 
 			DhcpServerPolicies.globalPolicy(Property.DATABASE_SCHEMA_TYTPE).equals("jdbc-derby") ?
 					" fetch first 1 rows only" : " limit 1";
 	
+	protected static final String INSERT_DHCPLEASE_SQL = "insert into dhcplease" +
+			" (ipaddress, duid, iatype, iaid, prefixlen, state, hapeerstate," +
+			" starttime, preferredendtime, validendtime," +
+			" options, ia_options, ipaddr_options)" +
+			" values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	protected static final String UPDATE_DHCPLEASE_SQL = "update dhcplease" +
+			" set state=?," +
+			" hapeerstate=?," +
+			" starttime=?," +
+			" preferredendtime=?," +
+			" validendtime=?," +
+			" options=?," +
+			" ia_options=?," +
+			" ipaddr_options=?" +
+			" where ipaddress=?";
+	
 	public DataSource getDataSource() {
 		return dataSource;
 	}
@@ -86,6 +107,8 @@ public class JdbcLeaseManager extends LeaseManager
 	
 	// Spring bean init-method
 	public void init() throws Exception {
+		// stop the journal of any previous init
+		close();
 		super.init();
         String schemaType = DhcpServerPolicies.globalPolicy(Property.DATABASE_SCHEMA_TYTPE);
         if (schemaType.toLowerCase().contains("derby")) {
@@ -94,6 +117,97 @@ public class JdbcLeaseManager extends LeaseManager
         else {
         	DbSchemaManager.validateSchema(dataSource, DbSchemaManager.SCHEMA_V2_FILENAME, 2);
         }
+        // leases which refer to option sets are read even if the policy is disabled
+        optionSetStore = new JdbcOptionSetStore(getJdbcTemplate());
+        optionSetStore.load();
+        if (DhcpServerPolicies.globalPolicyAsBoolean(Property.DATABASE_GROUP_COMMIT)) {
+        	groupCommitJournal = new LeaseGroupCommitJournal(getJdbcTemplate(),
+        			DhcpServerPolicies.globalPolicyAsLong(Property.DATABASE_GROUP_COMMIT_INTERVAL),
+        			DhcpServerPolicies.globalPolicyAsInt(Property.DATABASE_GROUP_COMMIT_SIZE));
+        	groupCommitJournal.start();
+        }
+	}
+	
+	// Spring bean destroy-method
+	public void close() {
+		if (groupCommitJournal != null) {
+			groupCommitJournal.stop();
+			groupCommitJournal = null;
+		}
+	}
+	
+	public LeaseGroupCommitJournal getGroupCommitJournal() {
+		return groupCommitJournal;
+	}
+	
+	public JdbcOptionSetStore getOptionSetStore() {
+		return optionSetStore;
+	}
+	
+	/**
+	 * Encode the options columns of the lease, storing their option sets
+	 * if the database.optionSets policy is enabled.  This is done before
+	 * the statement is executed, or queued for a group commit, so that the
+	 * parameters of the statement are set without encoding the options
+	 * again or querying the database.
+	 *
+	 * @param lease the lease
+	 * @return the bytes of the options, ia_options and ipaddr_options columns
+	 */
+	protected byte[][] internOptions(DhcpLease lease)
+	{
+		return new byte[][] {
+			internOptions(lease.getDhcpOptions()),
+			internOptions(lease.getIaDhcpOptions()),
+			internOptions(lease.getIaAddrDhcpOptions())
+		};
+	}
+	
+	/**
+	 * Encode the options of a lease column, as a reference to the
+	 * option set of the options if it is stored.
+	 *
+	 * @param options the options
+	 * @return the bytes of the column
+	 */
+	protected byte[] internOptions(Collection<DhcpOption> options)
+	{
+		if (optionSetStore != null) {
+			return optionSetStore.intern(options,
+					DhcpServerPolicies.globalPolicyAsBoolean(Property.DATABASE_OPTION_SETS));
+		}
+		return encodeOptions(options);
+	}
+	
+	/**
+	 * Decode the options of a lease column.
+	 *
+	 * @param buf the bytes of the column
+	 * @return the options
+	 */
+	protected Collection<DhcpOption> decodeLeaseOptions(byte[] buf)
+	{
+		if (optionSetStore != null) {
+			return optionSetStore.decode(buf);
+		}
+		return decodeOptions(buf);
+	}
+	
+	/**
+	 * Execute a lease update statement, in a group commit of the
+	 * journal if the database.groupCommit policy is enabled.
+	 *
+	 * @param sql the update statement
+	 * @param pss the setter of the statement parameters
+	 * @return the number of rows updated
+	 */
+	protected int update(String sql, PreparedStatementSetter pss)
+	{
+		LeaseGroupCommitJournal journal = groupCommitJournal;
+		if (journal != null) {
+			return journal.update(sql, pss);
+		}
+		return getJdbcTemplate().update(sql, pss);
 	}
 	
 	/**
@@ -103,50 +217,13 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	public int insertDhcpLease(final DhcpLease lease)
 	{
-		int cnt = getJdbcTemplate().update("insert into dhcplease" +
-				" (ipaddress, duid, iatype, iaid, prefixlen, state, hapeerstate," +
-				" starttime, preferredendtime, validendtime," +
-				" options, ia_options, ipaddr_options)" +
-				" values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+		final byte[][] options = internOptions(lease);
+		int cnt = update(INSERT_DHCPLEASE_SQL,
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				int i = 1;
-				ps.setBytes(i++, lease.getIpAddress().getAddress());
-				ps.setBytes(i++, lease.getDuid());
-				ps.setByte(i++, lease.getIatype());
-				ps.setLong(i++, lease.getIaid());
-				ps.setShort(i++, lease.getPrefixLength());
-				ps.setByte(i++, lease.getState());
-				ps.setByte(i++, lease.getHaPeerState());
-				if (lease.getStartTime() != null) {
-					java.sql.Timestamp sts = 
-							new java.sql.Timestamp(lease.getStartTime().getTime());
-					ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				if (lease.getPreferredEndTime() != null) {
-					java.sql.Timestamp pts =
-							new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
-					ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				if (lease.getValidEndTime() != null) {
-					java.sql.Timestamp vts = 
-						new java.sql.Timestamp(lease.getValidEndTime().getTime());
-					ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				ps.setBytes(i++, encodeOptions(lease.getDhcpOptions()));
-				ps.setBytes(i++, encodeOptions(lease.getIaDhcpOptions()));
-				ps.setBytes(i++, encodeOptions(lease.getIaAddrDhcpOptions()));
+				setInsertValues(ps, lease, options);
 			}
 		});
 		log.debug("Inserted " + cnt + " dhcplease objects");
@@ -160,57 +237,168 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	public int updateDhcpLease(final DhcpLease lease)
 	{
-		int cnt = getJdbcTemplate().update("update dhcplease" +
-				" set state=?," +
-				" hapeerstate=?," +
-				" starttime=?," +
-				" preferredendtime=?," +
-				" validendtime=?," +
-				" options=?," +
-				" ia_options=?," +
-				" ipaddr_options=?" +
-				" where ipaddress=?",
+		final byte[][] options = internOptions(lease);
+		int cnt = update(UPDATE_DHCPLEASE_SQL,
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				int i = 1;
-				ps.setByte(i++, lease.getState());
-				ps.setByte(i++, lease.getHaPeerState());
-				if (lease.getStartTime() != null) {
-					java.sql.Timestamp sts = 
-							new java.sql.Timestamp(lease.getStartTime().getTime());
-					ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				if (lease.getPreferredEndTime() != null) {
-					java.sql.Timestamp pts =
-							new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
-					ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				if (lease.getValidEndTime() != null) {
-					java.sql.Timestamp vts = 
-						new java.sql.Timestamp(lease.getValidEndTime().getTime());
-					ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				ps.setBytes(i++, encodeOptions(lease.getDhcpOptions()));
-				ps.setBytes(i++, encodeOptions(lease.getIaDhcpOptions()));
-				ps.setBytes(i++, encodeOptions(lease.getIaAddrDhcpOptions()));
-				ps.setBytes(i++, lease.getIpAddress().getAddress());
+				setUpdateValues(ps, lease, options);
 			}
 		});
 		log.debug("Updated " + cnt + " dhcplease objects");
 		return cnt;
 	}
 	
+	/**
+	 * Set the parameters of the dhcplease insert statement.
+	 *
+	 * @param ps the prepared statement
+	 * @param lease the lease
+	 * @param options the encoded options columns, from internOptions
+	 * @throws SQLException
+	 */
+	protected void setInsertValues(PreparedStatement ps, DhcpLease lease, byte[][] options)
+			throws SQLException
+	{
+		int i = 1;
+		ps.setBytes(i++, lease.getIpAddress().getAddress());
+		ps.setBytes(i++, lease.getDuid());
+		ps.setByte(i++, lease.getIatype());
+		ps.setLong(i++, lease.getIaid());
+		ps.setShort(i++, lease.getPrefixLength());
+		ps.setByte(i++, lease.getState());
+		ps.setByte(i++, lease.getHaPeerState());
+		if (lease.getStartTime() != null) {
+			java.sql.Timestamp sts = 
+					new java.sql.Timestamp(lease.getStartTime().getTime());
+			ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		if (lease.getPreferredEndTime() != null) {
+			java.sql.Timestamp pts =
+					new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
+			ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		if (lease.getValidEndTime() != null) {
+			java.sql.Timestamp vts = 
+				new java.sql.Timestamp(lease.getValidEndTime().getTime());
+			ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		ps.setBytes(i++, options[0]);
+		ps.setBytes(i++, options[1]);
+		ps.setBytes(i++, options[2]);
+	}
+	
+	/**
+	 * Set the parameters of the dhcplease update statement.
+	 *
+	 * @param ps the prepared statement
+	 * @param lease the lease
+	 * @param options the encoded options columns, from internOptions
+	 * @throws SQLException
+	 */
+	protected void setUpdateValues(PreparedStatement ps, DhcpLease lease, byte[][] options)
+			throws SQLException
+	{
+		int i = 1;
+		ps.setByte(i++, lease.getState());
+		ps.setByte(i++, lease.getHaPeerState());
+		if (lease.getStartTime() != null) {
+			java.sql.Timestamp sts = 
+					new java.sql.Timestamp(lease.getStartTime().getTime());
+			ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		if (lease.getPreferredEndTime() != null) {
+			java.sql.Timestamp pts =
+					new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
+			ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		if (lease.getValidEndTime() != null) {
+			java.sql.Timestamp vts = 
+				new java.sql.Timestamp(lease.getValidEndTime().getTime());
+			ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		ps.setBytes(i++, options[0]);
+		ps.setBytes(i++, options[1]);
+		ps.setBytes(i++, options[2]);
+		ps.setBytes(i++, lease.getIpAddress().getAddress());
+	}
+	
+	/**
+	 * Insert or update the dhcp leases in two batch statements: all of
+	 * the leases are updated, and those which did not exist are inserted.
+	 *
+	 * @param leases the leases
+	 * @return the number of rows inserted or updated for each lease
+	 */
+	@Override
+	public int[] upsertDhcpLeases(final List<DhcpLease> leases)
+	{
+		final List<byte[][]> options = new ArrayList<byte[][]>(leases.size());
+		for (DhcpLease lease : leases) {
+			options.add(internOptions(lease));
+		}
+		final int[] counts = getJdbcTemplate().batchUpdate(UPDATE_DHCPLEASE_SQL,
+				new BatchPreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				setUpdateValues(ps, leases.get(i), options.get(i));
+			}
+			@Override
+			public int getBatchSize() {
+				return leases.size();
+			}
+		});
+		final List<Integer> inserts = new ArrayList<Integer>();
+		for (int i=0; i<counts.length; i++) {
+			// some drivers only report SUCCESS_NO_INFO for batch statements
+			if (counts[i] == 0) {
+				inserts.add(i);
+			}
+			else if (counts[i] == Statement.SUCCESS_NO_INFO) {
+				counts[i] = 1;
+			}
+		}
+		if (!inserts.isEmpty()) {
+			int[] insertCounts = getJdbcTemplate().batchUpdate(INSERT_DHCPLEASE_SQL,
+					new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setInsertValues(ps, leases.get(inserts.get(i)), options.get(inserts.get(i)));
+				}
+				@Override
+				public int getBatchSize() {
+					return inserts.size();
+				}
+			});
+			for (int i=0; i<insertCounts.length; i++) {
+				counts[inserts.get(i)] = 
+						(insertCounts[i] == Statement.SUCCESS_NO_INFO) ? 1 : insertCounts[i];
+			}
+		}
+		log.debug("Upserted " + leases.size() + " dhcplease objects: " +
+				  inserts.size() + " inserted");
+		return counts;
+	}
+	
 	/**
 	 * Delete dhcp lease.
 	 *
@@ -218,7 +406,7 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	public int deleteDhcpLease(final DhcpLease lease)
 	{
-		int cnt = getJdbcTemplate().update("delete from dhcplease" +
+		int cnt = update("delete from dhcplease" +
 				" where ipaddress=?",
 				new PreparedStatementSetter() {
 			@Override
@@ -237,14 +425,15 @@ public class JdbcLeaseManager extends LeaseManager
 	public int updateIaOptions(final InetAddress inetAddr, 
 							   final Collection<DhcpOption> iaOptions)
 	{
-		int cnt = getJdbcTemplate().update("update dhcplease" +
+		final byte[] options = internOptions(iaOptions);
+		int cnt = update("update dhcplease" +
 				" set ia_options=?" +
 				" where ipaddress=?",
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				ps.setBytes(1, encodeOptions(iaOptions));
+				ps.setBytes(1, options);
 				ps.setBytes(2, inetAddr.getAddress());
 			}
 		});
@@ -258,14 +447,15 @@ public class JdbcLeaseManager extends LeaseManager
 	public int updateIpAddrOptions(final InetAddress inetAddr,
 								   final Collection<DhcpOption> ipAddrOptions)
 	{
-		int cnt = getJdbcTemplate().update("update dhcplease" +
+		final byte[] options = internOptions(ipAddrOptions);
+		int cnt = update("update dhcplease" +
 				" set ipaddr_options=?" +
 				" where ipaddress=?",
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				ps.setBytes(1, encodeOptions(ipAddrOptions));
+				ps.setBytes(1, options);
 				ps.setBytes(2, inetAddr.getAddress());
 			}
 		});
@@ -332,11 +522,36 @@ public class JdbcLeaseManager extends LeaseManager
         return null;
 	}
 
+	@Override
+	public int updateHaPeerState(final InetAddress inetAddr,
+								 final byte state, final Date validEndTime,
+								 final byte haPeerState) {
+		int cnt = update("update dhcplease" +
+				" set hapeerstate = ?" +
+				" where ipaddress = ?" +
+				" and state = ?" +
+				((validEndTime != null) ? " and validendtime = ?" : " and validendtime is null"),
+				new PreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps) throws SQLException {
+				ps.setByte(1, haPeerState);
+				ps.setBytes(2, inetAddr.getAddress());
+				ps.setByte(3, state);
+				if (validEndTime != null) {
+					java.sql.Timestamp vts = new java.sql.Timestamp(validEndTime.getTime());
+					ps.setTimestamp(4, vts, Util.GMT_CALENDAR);
+				}
+			}
+		});
+		log.debug("Updated hapeerstate in " + cnt + " dhcplease objects");
+		return cnt;
+	}
+
 	@Override
 	public int updateIpAddress(final InetAddress inetAddr, 
 							   final byte state, final byte haPeerState, final short prefixlen,
 							   final Date start, final Date preferred, final Date valid) {
-		int cnt = getJdbcTemplate().update("update dhcplease" +
+		int cnt = update("update dhcplease" +
 				" set state = ?," +
 				" hapeerstate = ?," +
 				((prefixlen > 0) ? " prefixlen = ?," : "") + 
@@ -384,7 +599,7 @@ public class JdbcLeaseManager extends LeaseManager
 	@Override
 	public int deleteIpAddress(final InetAddress inetAddr)
 	{
-		int cnt = getJdbcTemplate().update("delete from dhcplease" +
+		int cnt = update("delete from dhcplease" +
 				" where ipaddress = ?",
 				new PreparedStatementSetter() {
 			@Override
@@ -647,6 +862,24 @@ public class JdbcLeaseManager extends LeaseManager
                 new DhcpLeaseRowMapper());
 	}
 	
+	public List<DhcpLease> findUnexpiredLeases(final byte iatype) {
+        return getJdbcTemplate().query(
+                "select * from dhcplease" +
+                " where iatype = ?" +
+                " and state = " + IaAddress.LEASED +
+                " and validendtime >= ?" +
+                " order by validendtime",
+                new PreparedStatementSetter() {
+            		@Override
+            		public void setValues(PreparedStatement ps) throws SQLException {
+            			ps.setByte(1, iatype);
+            			java.sql.Timestamp ts = new java.sql.Timestamp(new Date().getTime());
+            			ps.setTimestamp(2, ts, Util.GMT_CALENDAR);
+            		}
+                },
+                new DhcpLeaseRowMapper());
+	}
+	
 	@Override
 	public void reconcileLeases(final List<Range> ranges) {
 		List<byte[]> args = new ArrayList<byte[]>();
@@ -708,9 +941,9 @@ public class JdbcLeaseManager extends LeaseManager
 			lease.setStartTime(rs.getTimestamp("starttime", Util.GMT_CALENDAR));
 			lease.setPreferredEndTime(rs.getTimestamp("preferredendtime", Util.GMT_CALENDAR));
 			lease.setValidEndTime(rs.getTimestamp("validendtime", Util.GMT_CALENDAR));
-			lease.setDhcpOptions(decodeOptions(rs.getBytes("options")));
-			lease.setIaDhcpOptions(decodeOptions(rs.getBytes("ia_options")));
-			lease.setIaAddrDhcpOptions(decodeOptions(rs.getBytes("ipaddr_options")));
+			lease.setDhcpOptions(decodeLeaseOptions(rs.getBytes("options")));
+			lease.setIaDhcpOptions(decodeLeaseOptions(rs.getBytes("ia_options")));
+			lease.setIaAddrDhcpOptions(decodeLeaseOptions(rs.getBytes("ipaddr_options")));
             return lease;
 		};
     }
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file JdbcOptionSetStore.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.db;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * The Class JdbcOptionSetStore.
+ * Stores each distinct set of lease options once, in the dhcpoptionset
+ * table, keyed by an id which is a hash of the encoded options.  The
+ * options columns of a lease then hold a reference to the option set,
+ * instead of the encoded options, and all the leases with the same
+ * options share one decoded, unmodifiable list of the options, which
+ * is stored again as the reference without being encoded.
+ * The option sets of the leases are built from the configuration, so
+ * there are few of them, and they are never deleted.
+ * <p>
+ * A reference is the REFERENCE_MARKER, which is not a valid option code,
+ * followed by the id.  The options columns may still hold the encoded
+ * options, for the leases stored before option sets, and for options
+ * which are no longer than a reference.
+ *
+ * @author A. Gregory Rabil
+ */
+public class JdbcOptionSetStore
+{
+	private static Logger log = LoggerFactory.getLogger(JdbcOptionSetStore.class);
+
+	/** The first two bytes of an option set reference. */
+	public static final short REFERENCE_MARKER = (short)0xffff;
+
+	/** The length of an option set reference: the marker and the id. */
+	public static final int REFERENCE_LENGTH = 10;
+
+	protected static final String INSERT_OPTIONSET_SQL = "insert into dhcpoptionset" +
+			" (id, options) values (?, ?)";
+
+	/**
+	 * The shared, unmodifiable options of an option set, with the
+	 * reference to the option set.  It is a list, which is equal to
+	 * the options decoded from a lease.
+	 */
+	static class OptionSetList extends AbstractList<DhcpOption> implements RandomAccess
+	{
+		final JdbcOptionSetStore store;
+		final byte[] reference;
+		final DhcpOption[] options;
+
+		OptionSetList(JdbcOptionSetStore store, long id, Collection<DhcpOption> options)
+		{
+			this.store = store;
+			this.reference = reference(id);
+			this.options = options.toArray(new DhcpOption[options.size()]);
+		}
+
+		@Override
+		public DhcpOption get(int index)
+		{
+			return options[index];
+		}
+
+		@Override
+		public int size()
+		{
+			return options.length;
+		}
+	}
+
+	/**
+	 * An option set, with its encoded and decoded options.
+	 */
+	static class OptionSet
+	{
+		final byte[] encoded;
+		final OptionSetList options;
+
+		OptionSet(JdbcOptionSetStore store, long id, byte[] encoded)
+		{
+			this.encoded = encoded;
+			this.options = new OptionSetList(store, id, LeaseManager.decodeOptions(encoded));
+		}
+	}
+
+	private final JdbcTemplate jdbcTemplate;
+
+	/** The option sets by id. */
+	private final ConcurrentMap<Long, OptionSet> setsById = new ConcurrentHashMap<Long, OptionSet>();
+
+	/** The ids of the option sets, by the encoded options. */
+	private final ConcurrentMap<ByteBuffer, Long> idsByOptions = new ConcurrentHashMap<ByteBuffer, Long>();
+
+	/**
+	 * Instantiates a new option set store.
+	 *
+	 * @param jdbcTemplate the template of the lease database
+	 */
+	public JdbcOptionSetStore(JdbcTemplate jdbcTemplate)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	/**
+	 * Load all of the option sets of the database.
+	 */
+	public void load()
+	{
+		jdbcTemplate.query("select id, options from dhcpoptionset",
+				new RowCallbackHandler() {
+			@Override
+			public void processRow(ResultSet rs) throws SQLException {
+				cache(rs.getLong("id"), rs.getBytes("options"));
+			}
+		});
+		log.info("Loaded " + setsById.size() + " option sets");
+	}
+
+	/**
+	 * Encode the options of a lease column, as a reference to the option
+	 * set of the options if it is stored, or else as the encoded options.
+	 * The shared options of an option set are not encoded again.  This is
+	 * called before the statement which stores the options is queued or
+	 * executed, and the result is used to set its parameters, so that the
+	 * options are encoded once and the parameters never need the database.
+	 *
+	 * @param options the options
+	 * @param storeSet if true, the option set is stored if it is not,
+	 * so that the options are encoded as a reference
+	 * @return the bytes of the column
+	 */
+	public byte[] intern(Collection<DhcpOption> options, boolean storeSet)
+	{
+		if ((options instanceof OptionSetList) && (((OptionSetList) options).store == this)) {
+			return ((OptionSetList) options).reference.clone();
+		}
+		byte[] encoded = LeaseManager.encodeOptions(options);
+		if ((encoded == null) || (encoded.length <= REFERENCE_LENGTH)) {
+			return encoded;
+		}
+		Long id = idsByOptions.get(ByteBuffer.wrap(encoded));
+		if ((id == null) && storeSet) {
+			id = store(encoded);
+		}
+		return (id != null) ? reference(id) : encoded;
+	}
+
+	/**
+	 * Store an option set, in the database and in the maps.
+	 *
+	 * @param encoded the encoded options
+	 * @return the id of the option set, or null if the id collides
+	 * with the option set of other options
+	 */
+	protected synchronized Long store(byte[] encoded)
+	{
+		Long cached = idsByOptions.get(ByteBuffer.wrap(encoded));
+		if (cached != null) {
+			return cached;
+		}
+		long id = contentId(encoded);
+		OptionSet optionSet = setsById.get(id);
+		byte[] stored = (optionSet != null) ? optionSet.encoded : find(id);
+		if (stored == null) {
+			try {
+				insert(id, encoded);
+				stored = encoded;
+			}
+			catch (DataIntegrityViolationException ex) {
+				// stored by another server sharing the database
+				stored = find(id);
+			}
+		}
+		if (Arrays.equals(stored, encoded)) {
+			cache(id, encoded);
+			return id;
+		}
+		// the options are stored in the leases
+		log.warn("Option set id collision: id=" + id);
+		return null;
+	}
+
+	/**
+	 * Decode the options of a lease column, which is either a reference
+	 * to an option set or the encoded options.
+	 *
+	 * @param buf the bytes of the column
+	 * @return the options, which are shared if they are an option set
+	 * @throws DataRetrievalFailureException if the option set is not found
+	 */
+	public Collection<DhcpOption> decode(byte[] buf)
+	{
+		if (!isReference(buf)) {
+			return LeaseManager.decodeOptions(buf);
+		}
+		long id = ByteBuffer.wrap(buf, 2, 8).getLong();
+		OptionSet optionSet = setsById.get(id);
+		if (optionSet == null) {
+			// stored by another server sharing the database
+			byte[] stored = find(id);
+			if (stored == null) {
+				throw new DataRetrievalFailureException("Option set not found: id=" + id);
+			}
+			optionSet = cache(id, stored);
+		}
+		return optionSet.options;
+	}
+
+	/**
+	 * @param id the id of an option set
+	 * @return the bytes of a reference to the option set
+	 */
+	public static byte[] reference(long id)
+	{
+		ByteBuffer bb = ByteBuffer.allocate(REFERENCE_LENGTH);
+		bb.putShort(REFERENCE_MARKER);
+		bb.putLong(id);
+		return bb.array();
+	}
+
+	/**
+	 * @param buf the bytes of a lease column
+	 * @return true if the bytes are a reference to an option set
+	 */
+	public static boolean isReference(byte[] buf)
+	{
+		return (buf != null) && (buf.length == REFERENCE_LENGTH) &&
+				(ByteBuffer.wrap(buf).getShort() == REFERENCE_MARKER);
+	}
+
+	/**
+	 * @return the number of option sets
+	 */
+	public int size()
+	{
+		return setsById.size();
+	}
+
+	private OptionSet cache(long id, byte[] encoded)
+	{
+		OptionSet optionSet = new OptionSet(this, id, encoded);
+		OptionSet prev = setsById.putIfAbsent(id, optionSet);
+		if (prev != null) {
+			return prev;
+		}
+		idsByOptions.put(ByteBuffer.wrap(encoded), id);
+		return optionSet;
+	}
+
+	private byte[] find(long id)
+	{
+		List<byte[]> options = jdbcTemplate.query(
+				"select options from dhcpoptionset where id = ?",
+				new Object[] { id },
+				new RowMapper<byte[]>() {
+					@Override
+					public byte[] mapRow(ResultSet rs, int rowNum) throws SQLException {
+						return rs.getBytes("options");
+					}
+				});
+		return options.isEmpty() ? null : options.get(0);
+	}
+
+	private void insert(final long id, final byte[] encoded)
+	{
+		jdbcTemplate.update(INSERT_OPTIONSET_SQL,
+				new PreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps) throws SQLException {
+				ps.setLong(1, id);
+				ps.setBytes(2, encoded);
+			}
+		});
+		log.info("Stored option set: id=" + id + " length=" + encoded.length);
+	}
+
+	/**
+	 * The id of an option set, which is the first eight bytes of the
+	 * SHA-1 digest of the encoded options.
+	 *
+	 * @param encoded the encoded options
+	 * @return the id
+	 */
+	public static long contentId(byte[] encoded)
+	{
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(encoded);
+			return ByteBuffer.wrap(digest).getLong();
+		}
+		catch (NoSuchAlgorithmException ex) {
+			// every Java platform must support SHA-1
+			throw new IllegalStateException(ex);
+		}
+	}
+}
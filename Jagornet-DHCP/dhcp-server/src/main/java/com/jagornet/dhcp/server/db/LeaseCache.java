@@ -1,66 +1,306 @@
 package com.jagornet.dhcp.server.db;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jagornet.dhcp.core.util.Util;
+
+/**
+ * The Class LeaseCache.  A concurrent cache of DhcpLeases keyed by IP address,
+ * with secondary indexes to support the range and expiration queries of the
+ * LeaseManager without scanning the whole cache:
+ *  - a navigable index sorted by IP address for range scans
+ *  - a per-state index, also sorted by IP address
+ *  - an expiration index sorted by valid end time
+ *
+ * Lookups never lock.  Modifications lock only the segment which holds the
+ * IP address, and each segment evicts its own least recently used entries
+ * using a "second chance" approximation of LRU, so that lookups only need
+ * to mark an entry as accessed instead of reordering a global LRU list.
+ *
+ * Leases which are modified in place after being put in the cache must be
+ * put again so that the indexes are updated.
+ */
 public class LeaseCache {
-	
+
 	private static Logger log = LoggerFactory.getLogger(LeaseCache.class);
 
-	private Map<InetAddress, DhcpLease> leaseCache;
-	
+	private static final int SEGMENTS = 16;
+
+	private static final Comparator<InetAddress> INETADDR_COMPARATOR =
+			(ip1, ip2) -> Util.compareInetAddrs(ip1, ip2);
+
+	/**
+	 * A cached lease, along with the values by which it is currently indexed.
+	 */
+	private static class Entry {
+		final InetAddress ipAddress;
+		volatile DhcpLease lease;
+		volatile boolean accessed;
+		byte state;
+		ExpiryKey expiryKey;
+
+		Entry(InetAddress ipAddress) {
+			this.ipAddress = ipAddress;
+		}
+	}
+
+	/**
+	 * The key of the expiration index.
+	 */
+	private static class ExpiryKey implements Comparable<ExpiryKey> {
+		final long validEndTime;
+		final InetAddress ipAddress;
+
+		ExpiryKey(long validEndTime, InetAddress ipAddress) {
+			this.validEndTime = validEndTime;
+			this.ipAddress = ipAddress;
+		}
+
+		@Override
+		public int compareTo(ExpiryKey that) {
+			int c = Long.compare(this.validEndTime, that.validEndTime);
+			if (c == 0) {
+				// a null address is used as a search key, sorted first
+				if (this.ipAddress == null) {
+					return (that.ipAddress == null) ? 0 : -1;
+				}
+				if (that.ipAddress == null) {
+					return 1;
+				}
+				c = Util.compareInetAddrs(this.ipAddress, that.ipAddress);
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * A segment of the cache, which guards modifications and eviction
+	 * for the IP addresses which hash to it.
+	 */
+	private static class Segment {
+		final int capacity;
+		// insertion order, second chance is given by moving to the end
+		final LinkedHashMap<InetAddress, Entry> evictionOrder =
+				new LinkedHashMap<InetAddress, Entry>();
+
+		Segment(int capacity) {
+			this.capacity = capacity;
+		}
+	}
+
+	private final ConcurrentHashMap<InetAddress, Entry> leaseMap;
+	private final ConcurrentSkipListMap<InetAddress, DhcpLease> addressIndex;
+	private final ConcurrentHashMap<Byte, NavigableSet<InetAddress>> stateIndex;
+	private final ConcurrentSkipListMap<ExpiryKey, DhcpLease> expiryIndex;
+	private final Segment[] segments;
+
 	public LeaseCache(int cacheSize) {
 		log.info("Creating Lease cache size=" + cacheSize);
-		leaseCache = Collections.synchronizedMap(
-				new LinkedHashMap<InetAddress, DhcpLease>(16, 0.75f, true) {
-					private static final long serialVersionUID = 1L;
-					@Override
-				     protected boolean removeEldestEntry(
-				    		 Map.Entry<InetAddress, DhcpLease> eldest) {
-				        return (size() > cacheSize);
-				     }
-					
-				});
-	}
-	
+		leaseMap = new ConcurrentHashMap<InetAddress, Entry>();
+		addressIndex = new ConcurrentSkipListMap<InetAddress, DhcpLease>(INETADDR_COMPARATOR);
+		stateIndex = new ConcurrentHashMap<Byte, NavigableSet<InetAddress>>();
+		expiryIndex = new ConcurrentSkipListMap<ExpiryKey, DhcpLease>();
+		int numSegments = Math.min(SEGMENTS, Math.max(1, cacheSize));
+		segments = new Segment[numSegments];
+		for (int i=0; i<numSegments; i++) {
+			// spread any remainder over the first segments
+			int capacity = (cacheSize / numSegments) + ((i < (cacheSize % numSegments)) ? 1 : 0);
+			segments[i] = new Segment(capacity);
+		}
+	}
+
+	private Segment segmentFor(InetAddress inetAddr) {
+		int h = inetAddr.hashCode();
+		h ^= (h >>> 16);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
 	public void clear() {
-		leaseCache.clear();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				for (Entry entry : segment.evictionOrder.values()) {
+					leaseMap.remove(entry.ipAddress);
+					unindex(entry);
+				}
+				segment.evictionOrder.clear();
+			}
+		}
 	}
-	
+
 	public void putLease(DhcpLease lease) {
-		leaseCache.put(lease.getIpAddress(), lease);
+		InetAddress inetAddr = lease.getIpAddress();
+		Segment segment = segmentFor(inetAddr);
+		synchronized (segment) {
+			Entry entry = leaseMap.get(inetAddr);
+			if (entry == null) {
+				entry = new Entry(inetAddr);
+				entry.accessed = true;	// so that it gets a first chance
+				index(entry, lease);
+				leaseMap.put(inetAddr, entry);
+				segment.evictionOrder.put(inetAddr, entry);
+				evict(segment);
+			}
+			else {
+				unindex(entry);
+				index(entry, lease);
+				entry.accessed = true;
+			}
+		}
 	}
-	
+
 	public DhcpLease getLease(InetAddress inetAddr) {
-		return leaseCache.get(inetAddr);
+		Entry entry = leaseMap.get(inetAddr);
+		if (entry != null) {
+			entry.accessed = true;
+			return entry.lease;
+		}
+		return null;
 	}
-	
+
 	public DhcpLease removeLease(InetAddress inetAddr) {
-		return leaseCache.remove(inetAddr);
+		Segment segment = segmentFor(inetAddr);
+		synchronized (segment) {
+			Entry entry = leaseMap.remove(inetAddr);
+			if (entry != null) {
+				segment.evictionOrder.remove(inetAddr);
+				unindex(entry);
+				return entry.lease;
+			}
+		}
+		return null;
 	}
-	
+
 	public Collection<DhcpLease> getAllLeases() {
-		return leaseCache.values();
+		return addressIndex.values();
+	}
+
+	/**
+	 * Find the cached leases in the given range of IP addresses.
+	 *
+	 * @param startAddr the start of the range
+	 * @param endAddr the end of the range
+	 * @return the leases, sorted by IP address
+	 */
+	public Collection<DhcpLease> findLeases(InetAddress startAddr, InetAddress endAddr) {
+		return addressIndex.subMap(startAddr, true, endAddr, true).values();
+	}
+
+	/**
+	 * Find the cached leases in the given range of IP addresses which are
+	 * available, or were offered before the given offer expiration time.
+	 *
+	 * @param startAddr the start of the range
+	 * @param endAddr the end of the range
+	 * @param offerExpiration the offer expiration time
+	 * @return the leases, sorted by valid end time
+	 */
+	public List<DhcpLease> findAvailableLeases(InetAddress startAddr, InetAddress endAddr,
+			long offerExpiration) {
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		addLeasesInState(leases, IaAddress.AVAILABLE, startAddr, endAddr, offerExpiration);
+		addLeasesInState(leases, IaAddress.OFFERED, startAddr, endAddr, offerExpiration);
+		leases.sort(Comparator.comparing(DhcpLease::getValidEndTime));
+		return leases;
+	}
+
+	private void addLeasesInState(List<DhcpLease> leases, byte state,
+			InetAddress startAddr, InetAddress endAddr, long offerExpiration) {
+		NavigableSet<InetAddress> ips = stateIndex.get(state);
+		if (ips != null) {
+			for (InetAddress ip : ips.subSet(startAddr, true, endAddr, true)) {
+				Entry entry = leaseMap.get(ip);
+				// the lease may have changed since the index was read
+				if ((entry != null) && entry.lease.isAvailable(offerExpiration)) {
+					leases.add(entry.lease);
+				}
+			}
+		}
 	}
-	
+
+	/**
+	 * Find the cached leases of the given type which are expired,
+	 * and not reserved.
+	 *
+	 * @param iatype the IA type
+	 * @return the leases, sorted by valid end time
+	 */
 	public List<DhcpLease> expiredLeases(byte iatype) {
 		long now = new Date().getTime();
-		return leaseCache.values().stream()
-			.filter(l -> 
-				(l.getIatype() == iatype) && 
-				(l.getState() != IaAddress.RESERVED) &&
-				(l.getValidEndTime().getTime() < now))
-			.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
-			.collect(Collectors.toList());
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (DhcpLease l : expiryIndex.headMap(new ExpiryKey(now, null), false).values()) {
+			if ((l.getIatype() == iatype) &&
+					(l.getState() != IaAddress.RESERVED) &&
+					(l.getValidEndTime().getTime() < now)) {
+				leases.add(l);
+			}
+		}
+		return leases;
+	}
+
+	public int size() {
+		return leaseMap.size();
+	}
+
+	/**
+	 * Index the entry for the given lease.  Called with the segment locked.
+	 */
+	private void index(Entry entry, DhcpLease lease) {
+		entry.lease = lease;
+		entry.state = lease.getState();
+		Date validEndTime = lease.getValidEndTime();
+		entry.expiryKey = new ExpiryKey((validEndTime != null) ?
+				validEndTime.getTime() : Long.MAX_VALUE, entry.ipAddress);
+		addressIndex.put(entry.ipAddress, lease);
+		stateIndex.computeIfAbsent(entry.state,
+				s -> new ConcurrentSkipListSet<InetAddress>(INETADDR_COMPARATOR))
+			.add(entry.ipAddress);
+		expiryIndex.put(entry.expiryKey, lease);
+	}
+
+	/**
+	 * Remove the index entries for the entry.  Called with the segment locked.
+	 */
+	private void unindex(Entry entry) {
+		addressIndex.remove(entry.ipAddress);
+		NavigableSet<InetAddress> ips = stateIndex.get(entry.state);
+		if (ips != null) {
+			ips.remove(entry.ipAddress);
+		}
+		expiryIndex.remove(entry.expiryKey);
+	}
+
+	/**
+	 * Evict entries from the segment until it is within its capacity.
+	 * Entries which have been accessed since they were last considered
+	 * are given a second chance.  Called with the segment locked.
+	 */
+	private void evict(Segment segment) {
+		while (segment.evictionOrder.size() > segment.capacity) {
+			Iterator<Entry> iter = segment.evictionOrder.values().iterator();
+			Entry eldest = iter.next();
+			iter.remove();
+			if (eldest.accessed && !segment.evictionOrder.isEmpty()) {
+				eldest.accessed = false;
+				segment.evictionOrder.put(eldest.ipAddress, eldest);
+			}
+			else {
+				leaseMap.remove(eldest.ipAddress);
+				unindex(eldest);
+			}
+		}
 	}
 }
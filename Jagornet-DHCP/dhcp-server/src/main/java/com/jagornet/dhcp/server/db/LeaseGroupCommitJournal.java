@@ -0,0 +1,301 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LeaseGroupCommitJournal.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * The LeaseGroupCommitJournal queues the lease update statements of the
+ * request threads, and executes them in group commits: one transaction
+ * for all of the statements queued within the commit interval, or up to
+ * the commit size.  The request thread waits until the transaction which
+ * holds its statement is committed, so the reply to the client is only
+ * sent after the binding is durable, but many bindings share the cost of
+ * a single commit.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LeaseGroupCommitJournal implements Runnable
+{
+	private static Logger log = LoggerFactory.getLogger(LeaseGroupCommitJournal.class);
+
+	/**
+	 * A statement waiting to be committed.
+	 */
+	protected static class Entry
+	{
+		final String sql;
+		final PreparedStatementSetter setter;
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+
+		Entry(String sql, PreparedStatementSetter setter)
+		{
+			this.sql = sql;
+			this.setter = setter;
+		}
+	}
+
+	private final JdbcTemplate jdbcTemplate;
+	private final TransactionTemplate transactionTemplate;
+	private final long commitInterval;
+	private final int commitSize;
+	private final LinkedBlockingQueue<Entry> journal = new LinkedBlockingQueue<Entry>();
+	private final AtomicLong groupCommits = new AtomicLong();
+	private final AtomicLong statements = new AtomicLong();
+	private volatile boolean running;
+	private Thread committer;
+
+	/**
+	 * Create a journal for the given JdbcTemplate.
+	 *
+	 * @param jdbcTemplate the JdbcTemplate of the lease database
+	 * @param commitInterval the maximum milliseconds to wait for
+	 * 			more statements to join a group commit
+	 * @param commitSize the maximum statements in a group commit
+	 */
+	public LeaseGroupCommitJournal(JdbcTemplate jdbcTemplate, long commitInterval, int commitSize)
+	{
+		this.jdbcTemplate = jdbcTemplate;
+		this.transactionTemplate = new TransactionTemplate(
+				new DataSourceTransactionManager(jdbcTemplate.getDataSource()));
+		this.commitInterval = commitInterval;
+		this.commitSize = Math.max(1, commitSize);
+	}
+
+	public synchronized void start()
+	{
+		if (committer == null) {
+			running = true;
+			committer = new Thread(this, "LeaseGroupCommitJournal");
+			committer.setDaemon(true);
+			committer.start();
+			log.info("Started lease group commit journal: commitInterval=" +
+					commitInterval + "ms commitSize=" + commitSize);
+		}
+	}
+
+	/**
+	 * Stop the committer thread, after committing the queued statements.
+	 */
+	public synchronized void stop()
+	{
+		if (committer != null) {
+			running = false;
+			try {
+				committer.join(10000);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			committer = null;
+			// commit anything queued after the committer stopped
+			List<Entry> entries = new ArrayList<Entry>();
+			journal.drainTo(entries);
+			if (!entries.isEmpty()) {
+				commit(entries);
+			}
+			log.info("Stopped lease group commit journal: groupCommits=" +
+					groupCommits.get() + " statements=" + statements.get());
+		}
+	}
+
+	/**
+	 * Queue an update statement and wait until it is committed.
+	 *
+	 * @param sql the update statement
+	 * @param setter the setter of the statement parameters
+	 * @return the number of rows updated by the statement
+	 */
+	public int update(String sql, PreparedStatementSetter setter)
+	{
+		if (!running) {
+			return jdbcTemplate.update(sql, setter);
+		}
+		Entry entry = new Entry(sql, setter);
+		journal.add(entry);
+		if (!running && journal.remove(entry)) {
+			// stopped before the entry could be committed by the journal
+			return jdbcTemplate.update(sql, setter);
+		}
+		try {
+			return entry.result.get();
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new DataAccessResourceFailureException("Group commit failed", ex.getCause());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new DataAccessResourceFailureException("Interrupted waiting for group commit", ex);
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		List<Entry> entries = new ArrayList<Entry>(commitSize);
+		while (running) {
+			try {
+				// poll, rather than interrupt the committer to stop it,
+				// because some JDBC drivers close the database when
+				// a thread is interrupted during I/O
+				Entry entry = journal.poll(1000, TimeUnit.MILLISECONDS);
+				if (entry == null) {
+					continue;
+				}
+				entries.add(entry);
+				long deadline = System.currentTimeMillis() + commitInterval;
+				while (entries.size() < commitSize) {
+					journal.drainTo(entries, commitSize - entries.size());
+					long wait = deadline - System.currentTimeMillis();
+					if ((entries.size() >= commitSize) || (wait <= 0)) {
+						break;
+					}
+					entry = journal.poll(wait, TimeUnit.MILLISECONDS);
+					if (entry == null) {
+						break;
+					}
+					entries.add(entry);
+				}
+			}
+			catch (InterruptedException ex) {
+				log.warn("Lease group commit journal interrupted");
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+			if (!entries.isEmpty()) {
+				commit(entries);
+				entries.clear();
+			}
+		}
+	}
+
+	/**
+	 * Execute the statements in one transaction, batching the consecutive
+	 * statements with the same SQL, so the order of the statements for the
+	 * same lease is kept.  If the transaction fails, the statements are
+	 * executed one at a time, so each waiting thread gets its own result.
+	 *
+	 * @param entries the statements to commit
+	 */
+	protected void commit(final List<Entry> entries)
+	{
+		final int[] counts = new int[entries.size()];
+		try {
+			transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus status) {
+					int i = 0;
+					while (i < entries.size()) {
+						int j = i + 1;
+						while ((j < entries.size()) &&
+								entries.get(j).sql.equals(entries.get(i).sql)) {
+							j++;
+						}
+						executeBatch(entries.subList(i, j), counts, i);
+						i = j;
+					}
+				}
+			});
+		}
+		catch (Exception ex) {
+			log.warn("Group commit of " + entries.size() +
+					" statements failed, executing individually: " + ex);
+			for (Entry entry : entries) {
+				try {
+					entry.result.complete(jdbcTemplate.update(entry.sql, entry.setter));
+				}
+				catch (Exception e) {
+					entry.result.completeExceptionally(e);
+				}
+			}
+			return;
+		}
+		groupCommits.incrementAndGet();
+		statements.addAndGet(entries.size());
+		if (log.isDebugEnabled()) {
+			log.debug("Group committed " + entries.size() + " statements");
+		}
+		for (int i=0; i<entries.size(); i++) {
+			entries.get(i).result.complete(counts[i]);
+		}
+	}
+
+	protected void executeBatch(final List<Entry> batch, int[] counts, int offset)
+	{
+		if (batch.size() == 1) {
+			Entry entry = batch.get(0);
+			counts[offset] = jdbcTemplate.update(entry.sql, entry.setter);
+			return;
+		}
+		int[] batchCounts = jdbcTemplate.batchUpdate(batch.get(0).sql,
+				new BatchPreparedStatementSetter() {
+			@Override
+			public void setValues(PreparedStatement ps, int i) throws SQLException {
+				batch.get(i).setter.setValues(ps);
+			}
+			@Override
+			public int getBatchSize() {
+				return batch.size();
+			}
+		});
+		for (int i=0; i<batchCounts.length; i++) {
+			// some drivers only report SUCCESS_NO_INFO for batch statements
+			counts[offset + i] =
+					(batchCounts[i] == Statement.SUCCESS_NO_INFO) ? 1 : batchCounts[i];
+		}
+	}
+
+	public long getGroupCommits() {
+		return groupCommits.get();
+	}
+
+	public long getStatements() {
+		return statements.get();
+	}
+}
@@ -31,11 +31,11 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -55,10 +55,31 @@ public abstract class LeaseManager implements IaManager {
 	public abstract int insertDhcpLease(final DhcpLease lease);
 	public abstract int updateDhcpLease(final DhcpLease lease);
 	public abstract int deleteDhcpLease(final DhcpLease lease);
+	public int[] upsertDhcpLeases(final List<DhcpLease> leases) {
+		// subclasses should override to batch the statements
+		int[] counts = new int[leases.size()];
+		for (int i=0; i<leases.size(); i++) {
+			DhcpLease lease = leases.get(i);
+			if (findDhcpLeaseForInetAddr(lease.getIpAddress()) == null) {
+				counts[i] = insertDhcpLease(lease);
+			}
+			else {
+				counts[i] = updateDhcpLease(lease);
+			}
+		}
+		return counts;
+	}
 	public abstract int updateIpAddress(final InetAddress inetAddr, 
 			final byte state, final byte haPeerState, final short prefixlen,
 			final Date start, final Date preferred, final Date valid);
 	public abstract int deleteIpAddress(final InetAddress inetAddr);
+	/**
+	 * Update the HA peer state of a lease, only if the state and the valid
+	 * end time of the lease are unchanged, i.e. the lease was not renewed
+	 * or released since it was sent to the peer.
+	 */
+	public abstract int updateHaPeerState(final InetAddress inetAddr,
+			final byte state, final Date validEndTime, final byte haPeerState);
 	public abstract int updateIaOptions(final InetAddress inetAddr, 
 			final Collection<DhcpOption> iaOptions);
 	public abstract int updateIpAddrOptions(final InetAddress inetAddr,
@@ -91,6 +112,7 @@ public abstract class LeaseManager implements IaManager {
 	public abstract DhcpLease findUnusedLease(final InetAddress startAddr, 
 			final InetAddress endAddr);
 	public abstract List<DhcpLease> findExpiredLeases(final byte iatype);
+	public abstract List<DhcpLease> findUnexpiredLeases(final byte iatype);
 	public abstract void reconcileLeases(final List<Range> ranges);
 	public abstract int deleteAllLeases();
 	
@@ -280,14 +302,9 @@ public abstract class LeaseManager implements IaManager {
 	public List<IdentityAssoc> findExpiredIAs(byte iatype) {
 		List<IdentityAssoc> ias = null;
 		if (useLeaseCache()) {
-			// tempting to use parallelStream, but the thread overhead
-			// is not worth it with a cache size of only 1000 leases
-			ias = leaseCache.getAllLeases().stream()
-							.filter(l -> 
-									(l.getIatype() == iatype) && 
-									(l.getState() == IaAddress.LEASED) &&
-									(l.getValidEndTime().getTime() < new Date().getTime()))
-							.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
+			// the cache's expiration index is already sorted by valid end time
+			ias = leaseCache.expiredLeases(iatype).stream()
+							.filter(l -> (l.getState() == IaAddress.LEASED))
 							.map(LeaseManager::toIdentityAssoc)
 							.collect(Collectors.toList());
 			
@@ -331,8 +348,12 @@ public abstract class LeaseManager implements IaManager {
 			}
 			else {
 				if(!Arrays.equals(dbOption.getValue(), newVal)) {
-					dbOption.setValue(newVal);
-					setDhcpOption(iaAddr, dbOption);
+					// replace, don't modify, the option because it may
+					// be shared with other leases, e.g. in an option set
+					DhcpOption newOption = new com.jagornet.dhcp.server.db.DhcpOption();
+					newOption.setCode(dbOption.getCode());
+					newOption.setValue(newVal);
+					setDhcpOption(iaAddr, newOption);
 				}
 			}
 		} 
@@ -356,6 +377,9 @@ public abstract class LeaseManager implements IaManager {
 		if (lease != null) {
 			Collection<DhcpOption> iaAddrOptions = lease.getIaAddrDhcpOptions();
 			if (iaAddrOptions != null) {
+				// remove from a copy because the options may be
+				// shared and unmodifiable, e.g. an option set
+				iaAddrOptions = new ArrayList<DhcpOption>(iaAddrOptions);
 				boolean deleted = false;
 				for (DhcpOption iaAddrOption : iaAddrOptions) {
 					if (iaAddrOption.getCode() == baseOption.getCode()) {
@@ -412,10 +436,11 @@ public abstract class LeaseManager implements IaManager {
 				lease.setStartTime(iaAddr.getStartTime());
 				lease.setPreferredEndTime(iaAddr.getPreferredEndTime());
 				lease.setValidEndTime(iaAddr.getValidEndTime());
-				// no need to put the object back in the cache
-				// because it was updated via reference from get
-				IdentityAssoc ia = iaCache.getIA(lease.getDuid(),
-						lease.getIatype(), lease.getIaid());
+				// the object was updated via reference from get, but
+				// put it back in the cache so that it is re-indexed
+				leaseCache.putLease(lease);
+				IdentityAssoc ia = useIaCache() ? iaCache.getIA(lease.getDuid(),
+						lease.getIatype(), lease.getIaid()) : null;
 				if (ia != null) {
 					// we may not need to update the object in the IA cache
 					// because the iaAddr in the IA will be updated directly
@@ -442,14 +467,54 @@ public abstract class LeaseManager implements IaManager {
 		}
 	}
 
+	/**
+	 * Set the HA peer state of a lease acknowledged by the peer, in the
+	 * database and in the caches, unless the lease has been changed since
+	 * the acknowledged lease was sent.
+	 * 
+	 * @param dhcpLease the acknowledged lease
+	 * @param haPeerState the HA peer state
+	 * @return true if the lease was updated
+	 */
+	public boolean updateHaPeerState(DhcpLease dhcpLease, byte haPeerState) {
+		InetAddress inetAddr = dhcpLease.getIpAddress();
+		if (updateHaPeerState(inetAddr, dhcpLease.getState(),
+				dhcpLease.getValidEndTime(), haPeerState) != 1) {
+			return false;
+		}
+		if (useLeaseCache()) {
+			DhcpLease lease = leaseCache.getLease(inetAddr);
+			if ((lease != null) && (lease.getState() == dhcpLease.getState()) &&
+					Objects.equals(lease.getValidEndTime(), dhcpLease.getValidEndTime())) {
+				// the HA peer state is not indexed, so the object
+				// updated via reference from get is not put back
+				lease.setHaPeerState(haPeerState);
+				IdentityAssoc ia = useIaCache() ? iaCache.getIA(lease.getDuid(),
+						lease.getIatype(), lease.getIaid()) : null;
+				if (ia != null) {
+					Iterator<IaAddress> iaAddrIter = 
+							(Iterator<IaAddress>) ia.getIaAddresses().iterator();
+					while (iaAddrIter.hasNext()) {
+						IaAddress currIaAddr = iaAddrIter.next();
+						if (Util.compareInetAddrs(currIaAddr.getIpAddress(), inetAddr) == 0) {
+							currIaAddr.setHaPeerState(haPeerState);
+							break;
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public void deleteIaAddr(IaAddress iaAddr) {
 		deleteIpAddress(iaAddr.getIpAddress());
 		if (useLeaseCache()) {
 			DhcpLease oldLease = leaseCache.removeLease(iaAddr.getIpAddress());
 			if (oldLease != null) {
-				IdentityAssoc ia = iaCache.getIA(oldLease.getDuid(),
-						oldLease.getIatype(), oldLease.getIaid());
+				IdentityAssoc ia = useIaCache() ? iaCache.getIA(oldLease.getDuid(),
+						oldLease.getIatype(), oldLease.getIaid()) : null;
 				if (ia != null) {
 					Iterator<IaAddress> iaAddrIter = 
 							(Iterator<IaAddress>) ia.getIaAddresses().iterator();
@@ -486,11 +551,7 @@ public abstract class LeaseManager implements IaManager {
 	public List<InetAddress> findExistingIPs(InetAddress startAddr, InetAddress endAddr) {
 		List<InetAddress> ips = null;
 		if (useLeaseCache()) {
-			ips = leaseCache.getAllLeases().stream()
-					.filter(l -> 
-							(Util.compareInetAddrs(l.getIpAddress(), startAddr) >= 0) && 
-							(Util.compareInetAddrs(l.getIpAddress(), endAddr) <= 0))
-//					.sorted(Comparator.comparing(DhcpLease::getIpAddress))
+			ips = leaseCache.findLeases(startAddr, endAddr).stream()
 					.map(l -> l.getIpAddress())
 					.collect(Collectors.toList());
 			
@@ -520,16 +581,7 @@ public abstract class LeaseManager implements IaManager {
 		List<IaAddress> iaAddresses = null;
 		if (useLeaseCache()) {
 			final long offerExpiration = new Date().getTime() - offerExpireMillis;
-			iaAddresses = leaseCache.getAllLeases().stream()
-					.filter(l -> 
-								((l.getState() == IaAddress.AVAILABLE) ||
-								((l.getState() == IaAddress.OFFERED) && 
-								 (l.getStartTime().getTime() < offerExpiration))) 
-								&&
-								((Util.compareInetAddrs(l.getIpAddress(), startAddr) >= 0) &&
-								(Util.compareInetAddrs(l.getIpAddress(), endAddr) <= 0))
-							)
-					.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
+			iaAddresses = leaseCache.findAvailableLeases(startAddr, endAddr, offerExpiration).stream()
 					.map(LeaseManager::toIaAddress)
 					.collect(Collectors.toList());
 			
@@ -560,11 +612,10 @@ public abstract class LeaseManager implements IaManager {
 		IaAddress iaAddress = null;
 		if (useLeaseCache()) {
 			final long offerExpiration = new Date().getTime() - offerExpireMillis;
-			Optional<IaAddress> cachedIaAddress = leaseCache.getAllLeases().stream()
-					.reduce((DhcpLease l1, DhcpLease l2) ->
-					((l1.isInRange(startAddr, endAddr) && l1.isAvailable(offerExpiration) &&
-					l2.isInRange(startAddr, endAddr) && l2.isAvailable(offerExpiration) &&
-					(l1.getValidEndTime().compareTo(l2.getValidEndTime()) <= 0)) ? l1 : l2))
+			// the available leases are sorted by valid end time, so take the first
+			Optional<IaAddress> cachedIaAddress = 
+					leaseCache.findAvailableLeases(startAddr, endAddr, offerExpiration).stream()
+					.findFirst()
 					.map(LeaseManager::toIaAddress);
 			if (cachedIaAddress.isPresent()) {
 				iaAddress = cachedIaAddress.get();
@@ -600,12 +651,7 @@ public abstract class LeaseManager implements IaManager {
 	public List<IaAddress> findExpiredIaAddresses(byte iatype) {
 		List<IaAddress> iaAddresses = null;
 		if (useLeaseCache()) {
-			iaAddresses = leaseCache.getAllLeases().stream()
-							.filter(l -> 
-									(l.getIatype() == iatype) && 
-									(l.getState() != IaAddress.RESERVED) &&
-									(l.getValidEndTime().getTime() < new Date().getTime()))
-							.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
+			iaAddresses = leaseCache.expiredLeases(iatype).stream()
 							.map(LeaseManager::toIaAddress)
 							.collect(Collectors.toList());
 		}
@@ -615,21 +661,18 @@ public abstract class LeaseManager implements IaManager {
 		return iaAddresses;
 	}
 
+	@Override
+	public List<IaAddress> findUnexpiredIaAddresses(byte iatype) {
+		// the lease cache may not hold every lease, so always go to the database
+		return toIaAddresses(findUnexpiredLeases(iatype));
+	}
+
 	@Override
 	public List<IaPrefix> findUnusedIaPrefixes(InetAddress startAddr, InetAddress endAddr) {
 		List<IaPrefix> iaPrefixes = null;
 		if (useLeaseCache()) {
 			final long offerExpiration = new Date().getTime() - offerExpireMillis;
-			iaPrefixes = leaseCache.getAllLeases().stream()
-					.filter(l -> 
-								((l.getState() == IaAddress.AVAILABLE) ||
-								((l.getState() == IaAddress.OFFERED) && 
-								 (l.getStartTime().getTime() < offerExpiration))) 
-								&&
-								((Util.compareInetAddrs(l.getIpAddress(), startAddr) >= 0) &&
-								(Util.compareInetAddrs(l.getIpAddress(), endAddr) <= 0))
-							)
-					.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
+			iaPrefixes = leaseCache.findAvailableLeases(startAddr, endAddr, offerExpiration).stream()
 					.map(LeaseManager::toIaPrefix)
 					.collect(Collectors.toList());
 		}
@@ -643,12 +686,7 @@ public abstract class LeaseManager implements IaManager {
 	public List<IaPrefix> findExpiredIaPrefixes() {
 		List<IaPrefix> iaPrefixes = null;
 		if (useLeaseCache()) {
-			iaPrefixes = leaseCache.getAllLeases().stream()
-							.filter(l -> 
-									(l.getIatype() == IdentityAssoc.PD_TYPE) && 
-									(l.getState() != IaAddress.RESERVED) &&
-									(l.getValidEndTime().getTime() < new Date().getTime()))
-							.sorted(Comparator.comparing(DhcpLease::getValidEndTime))
+			iaPrefixes = leaseCache.expiredLeases(IdentityAssoc.PD_TYPE).stream()
 							.map(LeaseManager::toIaPrefix)
 							.collect(Collectors.toList());
 		}
@@ -727,8 +765,8 @@ public abstract class LeaseManager implements IaManager {
 				lease.setIaAddrDhcpOptions(iaAddr.getDhcpOptions());
 				// no need to put the object back in the cache
 				// because it was updated via reference from get
-				IdentityAssoc ia = iaCache.getIA(lease.getDuid(),
-						lease.getIatype(), lease.getIaid());
+				IdentityAssoc ia = useIaCache() ? iaCache.getIA(lease.getDuid(),
+						lease.getIatype(), lease.getIaid()) : null;
 				if (ia != null) {
 					Iterator<IaAddress> iaAddrIter = 
 							(Iterator<IaAddress>) ia.getIaAddresses().iterator();
@@ -940,16 +978,17 @@ public abstract class LeaseManager implements IaManager {
 	public static byte[] encodeOptions(Collection<DhcpOption> dhcpOptions)
 	{
         if (dhcpOptions != null) {
-        	ByteBuffer bb = ByteBuffer.allocate(1024);
+        	int len = 0;
+            for (DhcpOption option : dhcpOptions) {
+            	len += 4 + option.getValue().length;
+            }
+        	ByteBuffer bb = ByteBuffer.allocate(len);
             for (DhcpOption option : dhcpOptions) {
         		bb.putShort((short)option.getCode());
         		bb.putShort((short)option.getValue().length);
         		bb.put(option.getValue());
             }
-            bb.flip();
-            byte[] b = new byte[bb.limit()];
-            bb.get(b);
-            return b;
+            return bb.array();
         }
         return null;
 	}
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file ShardedJdbcLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.db;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.util.Subnet;
+import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.request.binding.Range;
+
+/**
+ * The ShardedJdbcLeaseManager implementation class for the IaManager interface.
+ * The leases are partitioned by the subnet of the configured DhcpLink which
+ * contains the lease IP address.  Each link has its own database, so that
+ * requests for different links do not contend for the same database file
+ * lock, and the pools of different links can be loaded in parallel.
+ *
+ * The database of each link is named by appending the link address to the
+ * database name of the configured jdbc.url.  Leases which are not on any
+ * configured link are stored in the configured database.
+ *
+ * @author A. Gregory Rabil
+ */
+public class ShardedJdbcLeaseManager extends LeaseManager
+{
+	private static Logger log = LoggerFactory.getLogger(ShardedJdbcLeaseManager.class);
+
+	/**
+	 * The lease store for one link.
+	 */
+	protected static class Shard
+	{
+		final DhcpLink dhcpLink;
+		final BasicDataSource dataSource;
+		final JdbcLeaseManager leaseManager;
+
+		Shard(DhcpLink dhcpLink, BasicDataSource dataSource, JdbcLeaseManager leaseManager)
+		{
+			this.dhcpLink = dhcpLink;
+			this.dataSource = dataSource;
+			this.leaseManager = leaseManager;
+		}
+
+		boolean overlaps(InetAddress startAddr, InetAddress endAddr)
+		{
+			Subnet subnet = dhcpLink.getSubnet();
+			return (Util.compareInetAddrs(startAddr, subnet.getEndAddress()) <= 0) &&
+					(Util.compareInetAddrs(endAddr, subnet.getSubnetAddress()) >= 0);
+		}
+
+		boolean contains(InetAddress startAddr, InetAddress endAddr)
+		{
+			Subnet subnet = dhcpLink.getSubnet();
+			return subnet.contains(startAddr) && subnet.contains(endAddr);
+		}
+	}
+
+	protected DataSource dataSource;
+
+	// the lease store for leases not on any configured link
+	protected JdbcLeaseManager defaultShard;
+
+	// the lease store of each configured link, keyed by link address
+	protected Map<String, Shard> linkShards;
+
+	public DataSource getDataSource() {
+		return dataSource;
+	}
+	public void setDataSource(DataSource dataSource) {
+		this.dataSource = dataSource;
+	}
+
+	// Spring bean init-method
+	public void init() throws Exception {
+		// release the shards of any previous init
+		close();
+		super.init();
+		defaultShard = createShardLeaseManager(dataSource);
+		linkShards = new LinkedHashMap<String, Shard>();
+		SortedMap<Subnet, DhcpLink> linkMap = DhcpServerConfiguration.getInstance().getLinkMap();
+		if (linkMap != null) {
+			for (DhcpLink dhcpLink : linkMap.values()) {
+				BasicDataSource shardDataSource = createShardDataSource(dhcpLink);
+				JdbcLeaseManager shardLeaseManager = createShardLeaseManager(shardDataSource);
+				linkShards.put(dhcpLink.getLinkAddress(),
+						new Shard(dhcpLink, shardDataSource, shardLeaseManager));
+				log.info("Initialized lease store for link: " + dhcpLink.getLinkAddress() +
+						 " url=" + shardDataSource.getUrl());
+			}
+		}
+		log.info("Initialized " + linkShards.size() + " link lease stores");
+	}
+
+	// Spring bean destroy-method
+	public void close() {
+		if (defaultShard != null) {
+			defaultShard.close();
+			defaultShard = null;
+		}
+		if (linkShards != null) {
+			for (Shard shard : linkShards.values()) {
+				try {
+					shard.leaseManager.close();
+					shard.dataSource.close();
+				}
+				catch (Exception ex) {
+					log.error("Failed to close lease store for link: " +
+							  shard.dhcpLink.getLinkAddress(), ex);
+				}
+			}
+			linkShards = null;
+		}
+	}
+
+	/**
+	 * Create the data source for the lease store of a link, with the same
+	 * settings as the configured data source, but a database of its own.
+	 *
+	 * @param dhcpLink the link
+	 * @return the data source
+	 * @throws DhcpServerConfigException if the configured data source
+	 * 				is not a BasicDataSource
+	 */
+	protected BasicDataSource createShardDataSource(DhcpLink dhcpLink)
+			throws DhcpServerConfigException
+	{
+		if (!(dataSource instanceof BasicDataSource)) {
+			throw new DhcpServerConfigException("Sharded lease store requires a " +
+					BasicDataSource.class.getName() + " dataSource");
+		}
+		BasicDataSource baseDataSource = (BasicDataSource) dataSource;
+		BasicDataSource shardDataSource = new BasicDataSource();
+		shardDataSource.setDriverClassName(baseDataSource.getDriverClassName());
+		shardDataSource.setUrl(buildShardUrl(baseDataSource.getUrl(), dhcpLink.getLinkAddress()));
+		shardDataSource.setUsername(baseDataSource.getUsername());
+		shardDataSource.setPassword(baseDataSource.getPassword());
+		return shardDataSource;
+	}
+
+	/**
+	 * Build the JDBC URL of the database for a link, by appending the link
+	 * address to the database name, before any URL attributes.  For example:
+	 * jdbc:derby:db/jagornet-dhcp;create=true for link 10.0.0.0/24 becomes
+	 * jdbc:derby:db/jagornet-dhcp-10_0_0_0_24;create=true
+	 *
+	 * @param url the configured JDBC URL
+	 * @param linkAddress the link address
+	 * @return the JDBC URL for the link
+	 */
+	public static String buildShardUrl(String url, String linkAddress)
+	{
+		String suffix = "-" + linkAddress.replaceAll("[^A-Za-z0-9]", "_");
+		int attrs = url.indexOf(';');
+		if (attrs < 0) {
+			return url + suffix;
+		}
+		return url.substring(0, attrs) + suffix + url.substring(attrs);
+	}
+
+	protected JdbcLeaseManager createShardLeaseManager(DataSource shardDataSource)
+			throws Exception
+	{
+		JdbcLeaseManager shardLeaseManager = new JdbcLeaseManager();
+		shardLeaseManager.setDataSource(shardDataSource);
+		// validates or creates the schema in the shard database
+		shardLeaseManager.init();
+		return shardLeaseManager;
+	}
+
+	/**
+	 * Get the lease store for an IP address.
+	 *
+	 * @param inetAddr the IP address
+	 * @return the lease store of the link containing the address,
+	 * 			or the default lease store if no link contains it
+	 */
+	protected JdbcLeaseManager getShard(InetAddress inetAddr)
+	{
+		if ((linkShards != null) && !linkShards.isEmpty()) {
+			DhcpLink dhcpLink = DhcpServerConfiguration.getInstance().findLink(inetAddr);
+			if (dhcpLink != null) {
+				Shard shard = linkShards.get(dhcpLink.getLinkAddress());
+				if (shard != null) {
+					return shard.leaseManager;
+				}
+			}
+		}
+		return defaultShard;
+	}
+
+	/**
+	 * Get the lease stores which may hold leases in an IP address range.
+	 *
+	 * @param startAddr the start address of the range
+	 * @param endAddr the end address of the range
+	 * @return the lease stores of the links overlapping the range, and the
+	 * 			default lease store unless one link contains the whole range
+	 */
+	protected List<JdbcLeaseManager> getShards(InetAddress startAddr, InetAddress endAddr)
+	{
+		List<JdbcLeaseManager> shards = new ArrayList<JdbcLeaseManager>();
+		boolean contained = false;
+		if (linkShards != null) {
+			for (Shard shard : linkShards.values()) {
+				if (shard.overlaps(startAddr, endAddr)) {
+					shards.add(shard.leaseManager);
+					if (shard.contains(startAddr, endAddr)) {
+						contained = true;
+					}
+				}
+			}
+		}
+		if (!contained) {
+			shards.add(defaultShard);
+		}
+		return shards;
+	}
+
+	/**
+	 * Get all of the lease stores.
+	 *
+	 * @return the lease stores of the links, and the default lease store
+	 */
+	protected List<JdbcLeaseManager> getAllShards()
+	{
+		List<JdbcLeaseManager> shards = new ArrayList<JdbcLeaseManager>();
+		if (linkShards != null) {
+			for (Shard shard : linkShards.values()) {
+				shards.add(shard.leaseManager);
+			}
+		}
+		shards.add(defaultShard);
+		return shards;
+	}
+
+	@Override
+	public int insertDhcpLease(final DhcpLease lease)
+	{
+		return getShard(lease.getIpAddress()).insertDhcpLease(lease);
+	}
+
+	@Override
+	public int updateDhcpLease(final DhcpLease lease)
+	{
+		return getShard(lease.getIpAddress()).updateDhcpLease(lease);
+	}
+
+	@Override
+	public int deleteDhcpLease(final DhcpLease lease)
+	{
+		return getShard(lease.getIpAddress()).deleteDhcpLease(lease);
+	}
+
+	@Override
+	public int[] upsertDhcpLeases(final List<DhcpLease> leases)
+	{
+		// group the leases by shard, keeping the index of each lease in the list
+		Map<JdbcLeaseManager, List<Integer>> shardIndexes =
+				new LinkedHashMap<JdbcLeaseManager, List<Integer>>();
+		for (int i=0; i<leases.size(); i++) {
+			JdbcLeaseManager shard = getShard(leases.get(i).getIpAddress());
+			List<Integer> indexes = shardIndexes.get(shard);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>();
+				shardIndexes.put(shard, indexes);
+			}
+			indexes.add(i);
+		}
+		int[] counts = new int[leases.size()];
+		for (Map.Entry<JdbcLeaseManager, List<Integer>> entry : shardIndexes.entrySet()) {
+			List<Integer> indexes = entry.getValue();
+			List<DhcpLease> shardLeases = new ArrayList<DhcpLease>(indexes.size());
+			for (Integer i : indexes) {
+				shardLeases.add(leases.get(i));
+			}
+			int[] shardCounts = entry.getKey().upsertDhcpLeases(shardLeases);
+			for (int i=0; i<shardCounts.length; i++) {
+				counts[indexes.get(i)] = shardCounts[i];
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public int updateIpAddress(final InetAddress inetAddr,
+			final byte state, final byte haPeerState, final short prefixlen,
+			final Date start, final Date preferred, final Date valid)
+	{
+		return getShard(inetAddr).updateIpAddress(inetAddr,
+				state, haPeerState, prefixlen, start, preferred, valid);
+	}
+
+	@Override
+	public int updateHaPeerState(final InetAddress inetAddr,
+			final byte state, final Date validEndTime, final byte haPeerState)
+	{
+		return getShard(inetAddr).updateHaPeerState(inetAddr,
+				state, validEndTime, haPeerState);
+	}
+
+	@Override
+	public int deleteIpAddress(final InetAddress inetAddr)
+	{
+		return getShard(inetAddr).deleteIpAddress(inetAddr);
+	}
+
+	@Override
+	public int updateIaOptions(final InetAddress inetAddr,
+							   final Collection<DhcpOption> iaOptions)
+	{
+		return getShard(inetAddr).updateIaOptions(inetAddr, iaOptions);
+	}
+
+	@Override
+	public int updateIpAddrOptions(final InetAddress inetAddr,
+			   					   final Collection<DhcpOption> ipAddrOptions)
+	{
+		return getShard(inetAddr).updateIpAddrOptions(inetAddr, ipAddrOptions);
+	}
+
+	@Override
+	public List<DhcpLease> findDhcpLeasesForIA(final byte[] duid,
+			final byte iatype, final long iaid)
+	{
+		// the leases of an IA are not keyed by address, so search all shards
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (JdbcLeaseManager shard : getAllShards()) {
+			List<DhcpLease> shardLeases = shard.findDhcpLeasesForIA(duid, iatype, iaid);
+			if (shardLeases != null) {
+				leases.addAll(shardLeases);
+			}
+		}
+		return leases;
+	}
+
+	@Override
+	public DhcpLease findDhcpLeaseForInetAddr(final InetAddress inetAddr)
+	{
+		return getShard(inetAddr).findDhcpLeaseForInetAddr(inetAddr);
+	}
+
+	@Override
+	public List<InetAddress> findExistingLeaseIPs(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		List<JdbcLeaseManager> shards = getShards(startAddr, endAddr);
+		if (shards.size() == 1) {
+			return shards.get(0).findExistingLeaseIPs(startAddr, endAddr);
+		}
+		List<InetAddress> inetAddrs = new ArrayList<InetAddress>();
+		for (JdbcLeaseManager shard : shards) {
+			List<InetAddress> shardAddrs = shard.findExistingLeaseIPs(startAddr, endAddr);
+			if (shardAddrs != null) {
+				inetAddrs.addAll(shardAddrs);
+			}
+		}
+		inetAddrs.sort((a, b) -> Util.compareInetAddrs(a, b));
+		return inetAddrs;
+	}
+
+	@Override
+	public void findExistingLeaseIPs(final InetAddress startAddr,
+			final InetAddress endAddr, InetAddressCallbackHandler inetAddressCallbackHandler)
+	{
+		for (JdbcLeaseManager shard : getShards(startAddr, endAddr)) {
+			shard.findExistingLeaseIPs(startAddr, endAddr, inetAddressCallbackHandler);
+		}
+	}
+
+	@Override
+	public void findExistingLeases(final InetAddress startAddr,
+			final InetAddress endAddr, DhcpLeaseCallbackHandler dhcpLeaseCallbackHandler)
+	{
+		for (JdbcLeaseManager shard : getShards(startAddr, endAddr)) {
+			shard.findExistingLeases(startAddr, endAddr, dhcpLeaseCallbackHandler);
+		}
+	}
+
+	@Override
+	public void findUnsyncedLeases(final InetAddress startAddr,
+			final InetAddress endAddr, DhcpLeaseCallbackHandler dhcpLeaseCallbackHandler)
+	{
+		for (JdbcLeaseManager shard : getShards(startAddr, endAddr)) {
+			shard.findUnsyncedLeases(startAddr, endAddr, dhcpLeaseCallbackHandler);
+		}
+	}
+
+	@Override
+	public int setAllLeasesUnsynced()
+	{
+		int cnt = 0;
+		for (JdbcLeaseManager shard : getAllShards()) {
+			cnt += shard.setAllLeasesUnsynced();
+		}
+		return cnt;
+	}
+
+	@Override
+	public List<DhcpLease> findUnusedLeases(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (JdbcLeaseManager shard : getShards(startAddr, endAddr)) {
+			List<DhcpLease> shardLeases = shard.findUnusedLeases(startAddr, endAddr);
+			if (shardLeases != null) {
+				leases.addAll(shardLeases);
+			}
+		}
+		return leases;
+	}
+
+	@Override
+	public DhcpLease findUnusedLease(final InetAddress startAddr,
+			final InetAddress endAddr)
+	{
+		for (JdbcLeaseManager shard : getShards(startAddr, endAddr)) {
+			DhcpLease lease = shard.findUnusedLease(startAddr, endAddr);
+			if (lease != null) {
+				return lease;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public List<DhcpLease> findExpiredLeases(final byte iatype)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (JdbcLeaseManager shard : getAllShards()) {
+			leases = mergeByValidEndTime(leases, shard.findExpiredLeases(iatype));
+		}
+		return leases;
+	}
+
+	@Override
+	public List<DhcpLease> findUnexpiredLeases(final byte iatype)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (JdbcLeaseManager shard : getAllShards()) {
+			leases = mergeByValidEndTime(leases, shard.findUnexpiredLeases(iatype));
+		}
+		return leases;
+	}
+
+	/**
+	 * Merge two lists of leases, each ordered by valid end time, into one
+	 * list with the same ordering.  Leases without a valid end time sort last,
+	 * as they do in the ordered queries of the shards.
+	 *
+	 * @param leases the leases merged so far
+	 * @param shardLeases the ordered leases of the next shard
+	 * @return the merged list of leases
+	 */
+	protected static List<DhcpLease> mergeByValidEndTime(List<DhcpLease> leases,
+			List<DhcpLease> shardLeases)
+	{
+		if ((shardLeases == null) || shardLeases.isEmpty()) {
+			return leases;
+		}
+		if (leases.isEmpty()) {
+			return new ArrayList<DhcpLease>(shardLeases);
+		}
+		List<DhcpLease> merged = new ArrayList<DhcpLease>(leases.size() + shardLeases.size());
+		int i = 0;
+		int j = 0;
+		while ((i < leases.size()) && (j < shardLeases.size())) {
+			if (compareValidEndTime(shardLeases.get(j), leases.get(i)) < 0) {
+				merged.add(shardLeases.get(j++));
+			}
+			else {
+				merged.add(leases.get(i++));
+			}
+		}
+		merged.addAll(leases.subList(i, leases.size()));
+		merged.addAll(shardLeases.subList(j, shardLeases.size()));
+		return merged;
+	}
+
+	private static int compareValidEndTime(DhcpLease lease1, DhcpLease lease2)
+	{
+		Date end1 = lease1.getValidEndTime();
+		Date end2 = lease2.getValidEndTime();
+		if (end1 == null) {
+			return (end2 == null) ? 0 : 1;
+		}
+		if (end2 == null) {
+			return -1;
+		}
+		return end1.compareTo(end2);
+	}
+
+	@Override
+	public void reconcileLeases(final List<Range> ranges)
+	{
+		// the ranges are the pools of one link,
+		// so only reconcile the shards of the pools
+		List<JdbcLeaseManager> shards = new ArrayList<JdbcLeaseManager>();
+		for (Range range : ranges) {
+			JdbcLeaseManager shard = getShard(range.getStartAddress());
+			if (!shards.contains(shard)) {
+				shards.add(shard);
+			}
+		}
+		for (JdbcLeaseManager shard : shards) {
+			shard.reconcileLeases(ranges);
+		}
+	}
+
+	@Override
+	public int deleteAllLeases()
+	{
+		int cnt = 0;
+		for (JdbcLeaseManager shard : getAllShards()) {
+			cnt += shard.deleteAllLeases();
+		}
+		return cnt;
+	}
+}
@@ -1,17 +1,17 @@
 package com.jagornet.dhcp.server.ha;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jagornet.dhcp.server.DhcpServerScheduler;
 import com.jagornet.dhcp.server.config.DhcpLink;
 import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
@@ -49,14 +49,15 @@ public class HaBackupFSM implements Runnable {
 	private HaPrimaryFSM.State primaryState;
 	private HaStateDbManager haStateDbManager;
 	private Collection<DhcpLink> dhcpLinks;
-	private CountDownLatch linkSyncLatch;
+	private LinkSyncScheduler linkSyncScheduler;
+	private Map<String, LinkSyncProgress> linkSyncProgress =
+			new ConcurrentHashMap<String, LinkSyncProgress>();
 
 	// REST client for communicating to primary
 	private JerseyRestClient restClient;
 	// REST service for handling requests from primary
 	private DhcpLeasesService dhcpLeasesService;
 	
-	private ScheduledExecutorService pollingTaskExecutor = null;
 	private ScheduledFuture<?> scheduledPollingFuture = null;
 	private PollingTask pollingTask = null;
 	private int pollReplyTimeoutCnt = 0;
@@ -66,7 +67,6 @@ public class HaBackupFSM implements Runnable {
 		this.primaryPort = primaryPort;
 		requestAllLeasesOnRestart = 
 				DhcpServerPolicies.globalPolicyAsBoolean(Property.HA_CONTROL_REQUEST_ALL_LEASES_ON_RESTART);
-    	pollingTaskExecutor = Executors.newSingleThreadScheduledExecutor();
     	pollingTask = new PollingTask();
 	}
 
@@ -111,14 +111,15 @@ public class HaBackupFSM implements Runnable {
 		log.info("HA Primary state: " + primaryHaState);
 		primaryState = HaPrimaryFSM.State.valueOf(primaryHaState);
 		
-		// primary is available, start link sync from primary
+		// primary is available, start link sync from primary,
+		// which starts polling when all links are synced
 		try {
 			startLinkSync();
 		}
 		catch (Exception ex) {
 			log.error("Failed to start Link Sync");
+			startPollingTask();
 		}
-		startPollingTask();
 	}
 
 	public void startPollingTask() {
@@ -126,53 +127,47 @@ public class HaBackupFSM implements Runnable {
 				Property.HA_POLL_SECONDS);
 		// TODO: consider scheduleWithFixedDelay?
 		setState(State.BACKUP_POLLING);
-		scheduledPollingFuture = pollingTaskExecutor.scheduleAtFixedRate(
-				pollingTask, 0, pollSeconds, TimeUnit.SECONDS);
+		// the polling waits for the reply of the primary
+		scheduledPollingFuture = DhcpServerScheduler.getInstance().scheduleBlockingAtFixedRate(
+				"HaPolling", pollingTask, 0, pollSeconds, TimeUnit.SECONDS);
 	}
 	
 	protected void startLinkSync() throws Exception {
 		if (!dhcpLinks.isEmpty()) {
-	    	linkSyncLatch = new CountDownLatch(dhcpLinks.size());
 	    	boolean unsyncedLeasesOnly =  requestAllLeasesOnRestart ||
 										  getState().equals(State.BACKUP_INIT) ?
 												  false : true;
 			setState(State.BACKUP_SYNCING_FROM_PRIMARY);
-			Instant start = Instant.now();
-			// check the state of the primary
-			// set links unavailable
+			// the links are unavailable until each is synced
+			List<LinkSyncThread> linkSyncs = new ArrayList<LinkSyncThread>();
 			for (DhcpLink dhcpLink : dhcpLinks) {
-				dhcpLink.setState(DhcpLink.State.NOT_SYNCED);
-				Thread linkSyncThread = new Thread(
-						new LinkSyncThread(dhcpLink, 
-						linkSyncLatch, restClient, 
-						dhcpLeasesService, unsyncedLeasesOnly), 
-						"BackupLinkSyncFromPrimary-" + dhcpLink.getLinkAddress()
-						);
-				linkSyncThread.start();
-			}
-
-	    	try {
-//TODO	    		
-//	    		int timeout = 60;
-//	    		log.info("Waiting total of " + timeout + " seconds for " + 
-//	    				dhcpLinks.size() + " links to sync");
-//	    		linkSyncLatch.await(timeout, TimeUnit.SECONDS);
-	    		log.info("Waiting for " +  dhcpLinks.size() + " links to sync");
-	    		linkSyncLatch.await();
-				Instant finish = Instant.now();
-			    long timeElapsed = Duration.between(start, finish).toMillis();
-			    log.info("Link sync threads completed: timeElapsed=" + 
-			    		 timeElapsed + "ms");
-			} 
-	    	catch (InterruptedException e) {
-				log.error("Link sync interrupted: ", e);
+				LinkSyncProgress progress = new LinkSyncProgress(dhcpLink.getLinkAddress());
+				linkSyncProgress.put(dhcpLink.getLinkAddress(), progress);
+				linkSyncs.add(new LinkSyncThread(dhcpLink, restClient, 
+						dhcpLeasesService, unsyncedLeasesOnly, progress));
 			}
+			linkSyncScheduler = new LinkSyncScheduler("BackupLinkSyncFromPrimary",
+					new Runnable() {
+						@Override
+						public void run() {
+							startPollingTask();
+						}
+					});
+			linkSyncScheduler.start(linkSyncs);
 		}
 		else {
 			log.error("No links to sync!");
+			startPollingTask();
 		}
 	}
 	
+	/**
+	 * @return the lease sync progress of each link, keyed by link address
+	 */
+	public Map<String, LinkSyncProgress> getLinkSyncProgress() {
+		return linkSyncProgress;
+	}
+	
 	public String getPrimaryHost() {
 		return primaryHost;
 	}
@@ -0,0 +1,400 @@
+package com.jagornet.dhcp.server.ha;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.db.DhcpLease;
+import com.jagornet.dhcp.server.rest.api.DhcpLeaseBulkFormat;
+import com.jagornet.dhcp.server.rest.api.DhcpLeasesResource;
+import com.jagornet.dhcp.server.rest.api.DhcpLeasesService;
+import com.jagornet.dhcp.server.rest.cli.JerseyRestClient;
+
+/**
+ * The queue of binding updates to be sent from the HA primary to the backup.
+ *
+ * Updates are coalesced per IP address, so that only the latest state of a
+ * lease which is updated again before it is sent is replicated.  The queue
+ * is drained by a single thread, which sends the updates in batches to the
+ * bulk endpoint of DhcpLeasesResource when either the batch size is reached,
+ * or the batch interval has passed since the first update of the batch was
+ * queued.  The backup acknowledges each lease by the sequence number it was
+ * sent with, and the HA peer state of each acknowledged lease is then set
+ * as synced.  A batch which cannot be sent is queued again, ahead of the
+ * later updates, after a backoff.  Leases which are not acknowledged, are
+ * not sent after the retries, or are dropped because the queue is full,
+ * are left unsynced for the next link sync.
+ */
+public class HaBindingUpdateQueue implements Runnable {
+
+	private static Logger log = LoggerFactory.getLogger(HaBindingUpdateQueue.class);
+
+	/** the longest backoff between the retries of a batch */
+	public static final long MAX_RETRY_DELAY = 60000;
+
+	/**
+	 * A queued update, with the future to complete when it is acknowledged.
+	 */
+	private static class PendingUpdate {
+		final long seq;
+		DhcpLease dhcpLease;
+		int attempts;
+		final CompletableFuture<Boolean> acked = new CompletableFuture<Boolean>();
+
+		PendingUpdate(long seq, DhcpLease dhcpLease) {
+			this.seq = seq;
+			this.dhcpLease = dhcpLease;
+		}
+	}
+
+	private JerseyRestClient restClient;
+	private DhcpLeasesService dhcpLeasesService;
+	private int maxSize;
+	private int batchSize;
+	private long batchInterval;
+	private int maxRetries;
+	private long retryDelay;
+
+	// guarded by synchronizing on the map itself
+	private final LinkedHashMap<InetAddress, PendingUpdate> pending =
+			new LinkedHashMap<InetAddress, PendingUpdate>();
+	private long nextSeq = 1;
+	private volatile boolean running;
+	private Thread thread;
+
+	private final AtomicLong queuedCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong batchCount = new AtomicLong();
+	private final AtomicLong ackedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private final AtomicLong retriedCount = new AtomicLong();
+
+	public HaBindingUpdateQueue(JerseyRestClient restClient, DhcpLeasesService dhcpLeasesService,
+								int maxSize, int batchSize, long batchInterval) {
+		this(restClient, dhcpLeasesService, maxSize, batchSize, batchInterval, 0, 0);
+	}
+
+	/**
+	 * Create a queue.
+	 *
+	 * @param restClient the client for the backup
+	 * @param dhcpLeasesService the service to set the HA peer state of the leases
+	 * @param maxSize the most updates in the queue
+	 * @param batchSize the most updates sent in one request
+	 * @param batchInterval the longest wait for a batch to fill in milliseconds
+	 * @param maxRetries the number of retries of a batch which cannot be sent
+	 * @param retryDelay the backoff before the first retry in milliseconds,
+	 * 			which is doubled for each later retry
+	 */
+	public HaBindingUpdateQueue(JerseyRestClient restClient, DhcpLeasesService dhcpLeasesService,
+								int maxSize, int batchSize, long batchInterval,
+								int maxRetries, long retryDelay) {
+		this.restClient = restClient;
+		this.dhcpLeasesService = dhcpLeasesService;
+		this.maxSize = maxSize;
+		this.batchSize = Math.max(1, batchSize);
+		this.batchInterval = batchInterval;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelay = Math.max(0, retryDelay);
+	}
+
+	public synchronized void start() {
+		running = true;
+		thread = new Thread(this, "HA-BindingUpdates");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the thread of the queue.  The updates still queued, or waiting
+	 * to be retried, are completed as not acknowledged.
+	 */
+	public synchronized void stop() {
+		running = false;
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+		if ((thread != null) && (thread != Thread.currentThread())) {
+			try {
+				// wait for a batch being sent
+				thread.join(5000);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+	}
+
+	/**
+	 * Queue an update of the lease to be sent to the backup.  If an update
+	 * for the same IP address is already queued, it is replaced.
+	 *
+	 * @param dhcpLease the updated lease
+	 * @return a future which is completed with true if the backup
+	 * 			acknowledges the update, or false otherwise
+	 */
+	public Future<Boolean> queueUpdate(DhcpLease dhcpLease) {
+		synchronized (pending) {
+			PendingUpdate update = pending.get(dhcpLease.getIpAddress());
+			if (update != null) {
+				update.dhcpLease = dhcpLease;
+				coalescedCount.incrementAndGet();
+				return update.acked;
+			}
+			if (pending.size() >= maxSize) {
+				droppedCount.incrementAndGet();
+				log.warn("HA binding update queue full, not sending update for: " +
+						 dhcpLease.getIpAddress().getHostAddress());
+				return CompletableFuture.completedFuture(Boolean.FALSE);
+			}
+			update = new PendingUpdate(nextSeq++, dhcpLease);
+			pending.put(dhcpLease.getIpAddress(), update);
+			queuedCount.incrementAndGet();
+			pending.notifyAll();
+			return update.acked;
+		}
+	}
+
+	@Override
+	public void run() {
+		log.info("HA binding update queue started: maxSize=" + maxSize +
+				 " batchSize=" + batchSize + " batchInterval=" + batchInterval);
+		int failures = 0;
+		while (running) {
+			Map<Long, PendingUpdate> batch = null;
+			try {
+				batch = takeBatch();
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+			boolean sent = false;
+			try {
+				sent = sendBatch(batch);
+			}
+			catch (Exception ex) {
+				log.error("Failed to send HA binding updates", ex);
+			}
+			if (sent) {
+				failures = 0;
+				continue;
+			}
+			failures++;
+			requeue(batch);
+			long delay = Math.min(retryDelay << Math.min(failures - 1, 16), MAX_RETRY_DELAY);
+			try {
+				backoff(delay);
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+		}
+		synchronized (pending) {
+			for (PendingUpdate update : pending.values()) {
+				update.acked.complete(Boolean.FALSE);
+			}
+			pending.clear();
+		}
+		log.info("HA binding update queue stopped: " + toString());
+	}
+
+	/**
+	 * Wait for a batch of updates to be ready, and remove it from the queue.
+	 */
+	private Map<Long, PendingUpdate> takeBatch() throws InterruptedException {
+		Map<Long, PendingUpdate> batch = new LinkedHashMap<Long, PendingUpdate>();
+		synchronized (pending) {
+			while (running && pending.isEmpty()) {
+				pending.wait();
+			}
+			long deadline = System.currentTimeMillis() + batchInterval;
+			long remaining = batchInterval;
+			while (running && (pending.size() < batchSize) && (remaining > 0)) {
+				pending.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+			Iterator<PendingUpdate> iter = pending.values().iterator();
+			while (iter.hasNext() && (batch.size() < batchSize)) {
+				PendingUpdate update = iter.next();
+				iter.remove();
+				batch.put(update.seq, update);
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * Put the updates of a batch which could not be sent back at the head
+	 * of the queue, unless they have been retried too often.  An update
+	 * which was queued again for the same IP address while the batch was
+	 * sent is retried in its place, and acknowledges both.
+	 */
+	private void requeue(Map<Long, PendingUpdate> batch) {
+		synchronized (pending) {
+			Map<InetAddress, PendingUpdate> queued =
+					new LinkedHashMap<InetAddress, PendingUpdate>(pending);
+			pending.clear();
+			for (final PendingUpdate update : batch.values()) {
+				InetAddress ip = update.dhcpLease.getIpAddress();
+				PendingUpdate newer = queued.remove(ip);
+				if (newer != null) {
+					newer.acked.thenAccept(new Consumer<Boolean>() {
+						@Override
+						public void accept(Boolean acked) {
+							update.acked.complete(acked);
+						}
+					});
+					pending.put(ip, newer);
+				}
+				else if (running && (++update.attempts <= maxRetries)) {
+					retriedCount.incrementAndGet();
+					pending.put(ip, update);
+				}
+				else {
+					failedCount.incrementAndGet();
+					update.acked.complete(Boolean.FALSE);
+				}
+			}
+			pending.putAll(queued);
+		}
+	}
+
+	/**
+	 * Wait before the next batch is sent, unless the queue is stopped.
+	 */
+	private void backoff(long delay) throws InterruptedException {
+		synchronized (pending) {
+			long deadline = System.currentTimeMillis() + delay;
+			long remaining = delay;
+			while (running && (remaining > 0)) {
+				pending.wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Send a batch of updates to the backup.
+	 *
+	 * @param batch the updates, by sequence number
+	 * @return true if the backup replied, or false if the request failed
+	 */
+	private boolean sendBatch(Map<Long, PendingUpdate> batch) throws Exception {
+		Map<Long, DhcpLease> dhcpLeases = new LinkedHashMap<Long, DhcpLease>();
+		for (PendingUpdate update : batch.values()) {
+			dhcpLeases.put(update.seq, update.dhcpLease);
+		}
+		batchCount.incrementAndGet();
+		String response = sendLeases(DhcpLeaseBulkFormat.encodeLeases(dhcpLeases));
+		if (response == null) {
+			log.warn("No response to batch of " + batch.size() + " HA binding updates");
+			return false;
+		}
+		Set<Long> acks = DhcpLeaseBulkFormat.decodeAcks(response);
+		log.info("Binding update batch of " + batch.size() +
+				 " leases acknowledged for " + acks.size() + " leases");
+		for (PendingUpdate update : batch.values()) {
+			if (acks.contains(update.seq)) {
+				ackedCount.incrementAndGet();
+				leaseSynced(update.dhcpLease);
+				update.acked.complete(Boolean.TRUE);
+			}
+			else {
+				failedCount.incrementAndGet();
+				// not necessary to update the lease, since
+				// we set haPeerState=UNKNOWN when creating/updating the lease
+				update.acked.complete(Boolean.FALSE);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Send the encoded batch to the backup.
+	 *
+	 * @param data the batch, in DhcpLeaseBulkFormat
+	 * @return the acknowledgements, or null if the request failed
+	 */
+	protected String sendLeases(byte[] data) {
+		// this is an HA update, so it will set the
+		// haPeerState of the leases before updating
+		Map<String, Object> queryParams = new HashMap<String, Object>();
+		queryParams.put(DhcpLeasesResource.QUERYPARAM_HAUPDATE, Boolean.TRUE.toString());
+		return restClient.doPutBytes(DhcpLeasesResource.buildBulkPutPath(), data, queryParams);
+	}
+
+	/**
+	 * Update the HA peer state of the lease acknowledged by the backup as synced.
+	 * Only the HA peer state is updated, and only if the lease is unchanged
+	 * since it was sent, so that a renew or release while the batch was sent
+	 * is not overwritten, and is left unsynced for its own update.
+	 *
+	 * @param dhcpLease the lease
+	 */
+	protected void leaseSynced(DhcpLease dhcpLease) {
+		if (!dhcpLeasesService.updateHaPeerState(dhcpLease, dhcpLease.getState())) {
+			log.debug("Lease changed since HA update was sent, left unsynced: " +
+					  dhcpLease.getIpAddress().getHostAddress());
+		}
+	}
+
+	public int size() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	public long getQueuedCount() {
+		return queuedCount.get();
+	}
+
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	public long getAckedCount() {
+		return ackedCount.get();
+	}
+
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	public long getRetriedCount() {
+		return retriedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "queued=" + queuedCount.get() +
+				" coalesced=" + coalescedCount.get() +
+				" dropped=" + droppedCount.get() +
+				" batches=" + batchCount.get() +
+				" acked=" + ackedCount.get() +
+				" failed=" + failedCount.get() +
+				" retried=" + retriedCount.get();
+	}
+}
@@ -1,14 +1,13 @@
 package com.jagornet.dhcp.server.ha;
 
-import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-
-import javax.ws.rs.client.InvocationCallback;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,7 +22,6 @@ import com.jagornet.dhcp.server.db.DhcpLease;
 import com.jagornet.dhcp.server.db.LeaseManager;
 import com.jagornet.dhcp.server.request.binding.BaseBindingManager;
 import com.jagornet.dhcp.server.request.binding.Binding;
-import com.jagornet.dhcp.server.rest.api.DhcpLeasesResource;
 import com.jagornet.dhcp.server.rest.api.DhcpLeasesService;
 import com.jagornet.dhcp.server.rest.api.DhcpServerStatusResource;
 import com.jagornet.dhcp.server.rest.cli.JerseyRestClient;
@@ -57,12 +55,17 @@ public class HaPrimaryFSM implements Runnable {
 	private UpdateMode updateMode;
 	private HaStateDbManager haStateDbManager;
 	private Collection<DhcpLink> dhcpLinks;
-	private CountDownLatch linkSyncLatch;
+	private LinkSyncScheduler linkSyncScheduler;
+	private Map<String, LinkSyncProgress> linkSyncProgress =
+			new ConcurrentHashMap<String, LinkSyncProgress>();
 
 	// REST client for communicating to backup
 	private JerseyRestClient restClient;
 	// REST service for handling requests from backup
 	private DhcpLeasesService dhcpLeasesService;
+	// queue of binding updates to be sent to backup
+	private volatile HaBindingUpdateQueue bindingUpdateQueue;
+	private long syncUpdateTimeout;
 	
 	public HaPrimaryFSM(String backupHost, int backupPort) {
 		this.backupHost = backupHost;
@@ -98,6 +101,22 @@ public class HaPrimaryFSM implements Runnable {
 		// client implementation for sending updates to backup server
 		restClient = new JerseyRestClient(backupHost, backupPort,
 										  haUsername, haPassword);
+		
+		// stop the queue of a previous init
+		stopBindingUpdateQueue();
+		if (updateMode != UpdateMode.DATABASE) {
+			bindingUpdateQueue = new HaBindingUpdateQueue(restClient, dhcpLeasesService,
+					DhcpServerPolicies.globalPolicyAsInt(Property.HA_BINDING_UPDATE_QUEUE_SIZE),
+					DhcpServerPolicies.globalPolicyAsInt(Property.HA_BINDING_UPDATE_BATCH_SIZE),
+					DhcpServerPolicies.globalPolicyAsLong(Property.HA_BINDING_UPDATE_BATCH_INTERVAL),
+					DhcpServerPolicies.globalPolicyAsInt(Property.HA_BINDING_UPDATE_RETRIES),
+					DhcpServerPolicies.globalPolicyAsLong(Property.HA_BINDING_UPDATE_RETRY_DELAY));
+			bindingUpdateQueue.start();
+			// allow for the request to the backup, and the wait for the batch
+			syncUpdateTimeout = 
+					DhcpServerPolicies.globalPolicyAsLong(Property.HA_POLL_REPLY_TIMEOUT) +
+					DhcpServerPolicies.globalPolicyAsLong(Property.HA_BINDING_UPDATE_BATCH_INTERVAL);
+		}
 
 		// get the last stored state and take the appropriate action for startup
 		haStateDbManager = new HaStateDbManager();
@@ -111,6 +130,20 @@ public class HaPrimaryFSM implements Runnable {
 		haPrimaryThread.start();
 	}
 	
+	/**
+	 * Stop sending binding updates to the backup, when the server is stopped.
+	 */
+	public void shutdown() {
+		stopBindingUpdateQueue();
+	}
+	
+	private synchronized void stopBindingUpdateQueue() {
+		if (bindingUpdateQueue != null) {
+			bindingUpdateQueue.stop();
+			bindingUpdateQueue = null;
+		}
+	}
+	
 	@Override
 	public void run() {
 		String backupHaState = restClient.doGet(DhcpServerStatusResource.PATH +
@@ -125,60 +158,55 @@ public class HaPrimaryFSM implements Runnable {
 		log.info("HA Backup state: " + backupHaState);
 		backupState = HaBackupFSM.State.valueOf(backupHaState);
 		
-		// backup is available, start link sync from backup
+		// backup is available, start link sync from backup,
+		// which sets the running state when all links are synced
 		try {
 			startLinkSync();
 		}
 		catch (Exception ex) {
 			log.error("Failed to start Link Sync");
+			setState(State.PRIMARY_RUNNING);
 		}
-		setState(State.PRIMARY_RUNNING);
 	}
 	
 	protected void startLinkSync() throws Exception {
 		if (!dhcpLinks.isEmpty()) {
-	    	linkSyncLatch = new CountDownLatch(dhcpLinks.size());
 	    	// request all leases from the backup if configured to do so,
 	    	// or if this primary is initializing for the first time
 	    	boolean unsyncedLeasesOnly =  requestAllLeasesOnRestart ||
 	    								  getState().equals(State.PRIMARY_INIT) ?
 	    										  false : true;
 			setState(State.PRIMARY_SYNCING_FROM_BACKUP);
-			Instant start = Instant.now();
-			// check the state of the backup
-			// set links unavailable
+			// the links are unavailable until each is synced
+			List<LinkSyncThread> linkSyncs = new ArrayList<LinkSyncThread>();
 			for (DhcpLink dhcpLink : dhcpLinks) {
-				dhcpLink.setState(DhcpLink.State.NOT_SYNCED);
-				Thread linkSyncThread = new Thread(
-						new LinkSyncThread(dhcpLink, 
-						linkSyncLatch, restClient, 
-						dhcpLeasesService, unsyncedLeasesOnly), 
-						"PrimaryLinkSyncFromBackup-" + dhcpLink.getLinkAddress()
-						);
-				linkSyncThread.start();
-			}
-	    	try {
-// TODO
-//	    		int timeout = 60;
-//	    		log.info("Waiting total of " + timeout + " seconds for " + 
-//	    				dhcpLinks.size() + " links to sync");
-//	    		linkSyncLatch.await(timeout, TimeUnit.SECONDS);
-	    		log.info("Waiting for " +  dhcpLinks.size() + " links to sync");
-	    		linkSyncLatch.await();
-				Instant finish = Instant.now();
-			    long timeElapsed = Duration.between(start, finish).toMillis();
-			    log.info("Link sync threads completed: timeElapsed=" + 
-			    		 timeElapsed + "ms");
-			} 
-	    	catch (InterruptedException e) {
-				log.error("Link sync interrupted: ", e);
+				LinkSyncProgress progress = new LinkSyncProgress(dhcpLink.getLinkAddress());
+				linkSyncProgress.put(dhcpLink.getLinkAddress(), progress);
+				linkSyncs.add(new LinkSyncThread(dhcpLink, restClient, 
+						dhcpLeasesService, unsyncedLeasesOnly, progress));
 			}
+			linkSyncScheduler = new LinkSyncScheduler("PrimaryLinkSyncFromBackup",
+					new Runnable() {
+						@Override
+						public void run() {
+							setState(State.PRIMARY_RUNNING);
+						}
+					});
+			linkSyncScheduler.start(linkSyncs);
 		}
 		else {
 			log.error("No links to sync!");
+			setState(State.PRIMARY_RUNNING);
 		}
 	}
 	
+	/**
+	 * @return the lease sync progress of each link, keyed by link address
+	 */
+	public Map<String, LinkSyncProgress> getLinkSyncProgress() {
+		return linkSyncProgress;
+	}
+	
 	public String getBackupHost() {
 		return backupHost;
 	}
@@ -237,67 +265,27 @@ public class HaPrimaryFSM implements Runnable {
 				log.info("HA binding update delegated to database replication");
 			}
 			else {
-				log.info("Sending binding updates to backup server");
-				//TODO: consider posting the whole binding rather than one DhcpLease
-				// at a time, even though Binding probably only contains one DhcpLease?
+				HaBindingUpdateQueue queue = bindingUpdateQueue;
+				if (queue == null) {
+					log.warn("HA binding update queue stopped, not sending binding update");
+					return;
+				}
+				log.info("Queueing binding updates to backup server");
 				Collection<com.jagornet.dhcp.server.db.DhcpOption> dhcpOptions = 
-						BaseBindingManager.convertDhcpOptions(dhcpOptionMap);				
+						BaseBindingManager.convertDhcpOptions(dhcpOptionMap);
+				List<Future<Boolean>> acks = new ArrayList<Future<Boolean>>();
 				for (Binding binding : bindings) {
 					List<DhcpLease> dhcpLeases = LeaseManager.toDhcpLeases(binding, dhcpOptions);
 					for (DhcpLease dhcpLease : dhcpLeases) {
-						String leaseJson = dhcpLease.toJson();
-						// Expected response is that the haPeerState is
-						// set to the value of the state...
-						// TODO: consider an alternative, architected return value?
-						DhcpLease expectedDhcpLease = dhcpLease.clone();
-						expectedDhcpLease.setHaPeerState(expectedDhcpLease.getState());
-						String expectedLeaseJson = expectedDhcpLease.toJson();
-						// this is an HA update, so it will set the
-						// haPeerState of the lease before updating
-						Map<String, Object> queryParams = new HashMap<String, Object>();
-						queryParams.put(DhcpLeasesResource.QUERYPARAM_HAUPDATE, Boolean.TRUE.toString());
-						// NOTE: relying on the PUT behavior with no
-						// "format" query param, which defaults to JSON
-						if (updateMode == UpdateMode.SYNC) {
-							// PUT for create/update
-							String response = restClient.doPut(
-									DhcpLeasesResource.buildPutPath(
-											dhcpLease.getIpAddress().getHostAddress()), 
-									leaseJson, queryParams);
-							log.info("Binding update response: " + response);
-							if (expectedLeaseJson.equals(response)) {
-								// if response matches what we sent, then success
-								// so update the HA peer state of the lease as synced
-								dhcpLease.setHaPeerState(dhcpLease.getState());
-								if (dhcpLeasesService.updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease)) {
-									log.info("HA peer state updated successfully");
-								}
-								else {
-									log.error("HA peer state update failed");
-								}
-							}
-							else {
-								log.warn("Response (sync) does not match expected JSON data");
-								// if the response doesn't match what we sent, then failure
-								// so update the HA peer state of the lease as unknown
-// not necessary, since we set haPeerState=UNKNOWN when creating/updating the lease
-//								dhcpLease.setHaPeerState(IaAddress.UNKNOWN);
-//								dhcpLeasesService.updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease);
-							}
-						}
-						else { 
-							//TODO: something with the callback!
-							//TODO: callback should be passed DhcpLease
-//							HaBindingCallbackString callback = new HaBindingCallbackString(binding);
-//							HaBindingCallbackResponse callback = new HaBindingCallbackResponse(binding);
-							HaDhcpLeaseCallbackString callback = new HaDhcpLeaseCallbackString(dhcpLease, expectedLeaseJson);
-							restClient.doPutAsync(
-									DhcpLeasesResource.buildPutPath(
-											dhcpLease.getIpAddress().getHostAddress()),
-									leaseJson, callback, queryParams);
-						}
+						// the queue sets the HA peer state of the lease
+						// as synced when the backup acknowledges it
+						acks.add(queue.queueUpdate(dhcpLease));
 					}
 				}
+				if (updateMode == UpdateMode.SYNC) {
+					// wait for the backup before responding to the client
+					waitForAcks(acks);
+				}
 			}
 		}
 		else {
@@ -305,47 +293,26 @@ public class HaPrimaryFSM implements Runnable {
 		}
 	}
 	
-	public class HaDhcpLeaseCallbackString implements InvocationCallback<String> {
-		
-		private DhcpLease dhcpLease;
-		private String expectedLeaseJson;
-		
-		public HaDhcpLeaseCallbackString(DhcpLease dhcpLease, String expectedLeaseJson) {
-			this.dhcpLease = dhcpLease;
-			this.expectedLeaseJson = expectedLeaseJson;
-		}
-
-		@Override
-		public void completed(String response) {
-			log.info("DhcpLease update completed for: " + dhcpLease);
-			if (expectedLeaseJson.equals(response)) {
-				// if response matches what we sent, then success
-				// so update the HA peer state of the lease as synced
-				dhcpLease.setHaPeerState(dhcpLease.getState());
-				if (dhcpLeasesService.updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease)) {
-					log.info("HA peer state updated successfully");
-				}
-				else {
-					log.error("HA peer state update failed");
+	private void waitForAcks(List<Future<Boolean>> acks) {
+		long deadline = System.currentTimeMillis() + syncUpdateTimeout;
+		for (Future<Boolean> ack : acks) {
+			try {
+				long remaining = Math.max(0, deadline - System.currentTimeMillis());
+				if (!ack.get(remaining, TimeUnit.MILLISECONDS)) {
+					log.warn("Binding update (sync) not acknowledged by backup");
 				}
 			}
-			else {
-				log.warn("Response (async) does not match posted JSON data");
-				// if the response doesn't match what we sent, then failure
-				// so update the HA peer state of the lease as unknown
-// not necessary, since we set haPeerState=UNKNOWN when creating/updating the lease
-//				dhcpLease.setHaPeerState(IaAddress.UNKNOWN);
-//				dhcpLeasesService.updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease);
+			catch (TimeoutException ex) {
+				log.warn("Timed out waiting for backup to acknowledge binding update (sync)");
+				return;
+			}
+			catch (Exception ex) {
+				log.error("Failed waiting for binding update (sync): " + ex);
 			}
-			
-		}
-
-		@Override
-		public void failed(Throwable throwable) {
-			log.error("DhcpLease update failed for: " + dhcpLease + ": " + throwable);
-// not necessary, since we set haPeerState=UNKNOWN when creating/updating the lease
-//			dhcpLease.setHaPeerState(IaAddress.UNKNOWN);
-//			dhcpLeasesService.updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease);
 		}
 	}
+	
+	public HaBindingUpdateQueue getBindingUpdateQueue() {
+		return bindingUpdateQueue;
+	}
 }
@@ -0,0 +1,102 @@
+package com.jagornet.dhcp.server.ha;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of the lease sync for one DhcpLink, updated by the
+ * LinkSyncThread as each chunk of leases is stored and acknowledged.
+ */
+public class LinkSyncProgress {
+
+	private final String linkAddress;
+	private volatile long startTime;
+	private volatile long finishTime;
+	private final AtomicLong leasesReceived = new AtomicLong();
+	private final AtomicLong leasesStored = new AtomicLong();
+	private final AtomicLong leasesAcked = new AtomicLong();
+	private final AtomicLong leasesFailed = new AtomicLong();
+	private final AtomicLong chunks = new AtomicLong();
+
+	public LinkSyncProgress(String linkAddress) {
+		this.linkAddress = linkAddress;
+	}
+
+	public void start() {
+		startTime = System.currentTimeMillis();
+		finishTime = 0;
+	}
+
+	public void finish() {
+		finishTime = System.currentTimeMillis();
+	}
+
+	public void leaseReceived() {
+		leasesReceived.incrementAndGet();
+	}
+
+	public void chunkSynced(int stored, int acked, int failed) {
+		chunks.incrementAndGet();
+		leasesStored.addAndGet(stored);
+		leasesAcked.addAndGet(acked);
+		leasesFailed.addAndGet(failed);
+	}
+
+	public String getLinkAddress() {
+		return linkAddress;
+	}
+
+	public boolean isFinished() {
+		return finishTime > 0;
+	}
+
+	public long getLeasesReceived() {
+		return leasesReceived.get();
+	}
+
+	public long getLeasesStored() {
+		return leasesStored.get();
+	}
+
+	public long getLeasesAcked() {
+		return leasesAcked.get();
+	}
+
+	public long getLeasesFailed() {
+		return leasesFailed.get();
+	}
+
+	public long getChunks() {
+		return chunks.get();
+	}
+
+	/**
+	 * @return the milliseconds since the sync started, or
+	 * 			the duration of the sync if it has finished
+	 */
+	public long getTimeElapsed() {
+		if (startTime == 0) {
+			return 0;
+		}
+		return (finishTime > 0 ? finishTime : System.currentTimeMillis()) - startTime;
+	}
+
+	/**
+	 * @return the leases received per second
+	 */
+	public long getLeasesPerSecond() {
+		long elapsed = getTimeElapsed();
+		return (elapsed > 0) ? (leasesReceived.get() * 1000 / elapsed) : 0;
+	}
+
+	@Override
+	public String toString() {
+		return "link=" + linkAddress +
+				" received=" + leasesReceived.get() +
+				" stored=" + leasesStored.get() +
+				" acked=" + leasesAcked.get() +
+				" failed=" + leasesFailed.get() +
+				" chunks=" + chunks.get() +
+				" timeElapsed=" + getTimeElapsed() + "ms" +
+				" leasesPerSecond=" + getLeasesPerSecond();
+	}
+}
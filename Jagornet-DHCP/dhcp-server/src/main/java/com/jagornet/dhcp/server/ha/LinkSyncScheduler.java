@@ -0,0 +1,369 @@
+package com.jagornet.dhcp.server.ha;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.DhcpServerScheduler;
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.db.IaManager;
+
+/**
+ * Runs the lease syncs of the links with the HA peer server on a bounded
+ * pool of threads, instead of a thread for each link.  The links wait in
+ * a queue ordered by priority, a failed sync is retried after a backoff,
+ * and the syncs still queued when the deadline passes are cancelled.
+ *
+ * Each link is put back into service when its own sync completes, and
+ * the caller is told when all the syncs are done, without waiting.
+ */
+public class LinkSyncScheduler {
+
+	private static Logger log = LoggerFactory.getLogger(LinkSyncScheduler.class);
+
+	public enum Priority { NONE, LEASES, TRAFFIC };
+
+	/** the longest delay between the retries of a link sync */
+	public static final long MAX_RETRY_DELAY = 60000;
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final Priority priority;
+	private final int maxRetries;
+	private final long retryDelay;
+	private final long timeoutMillis;
+	private final Runnable onComplete;
+
+	private final AtomicInteger remaining = new AtomicInteger();
+	private final AtomicInteger synced = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final CountDownLatch completed = new CountDownLatch(1);
+	private volatile boolean expired;
+	private ScheduledFuture<?> deadline;
+	private long startTime;
+
+	/**
+	 * Create a scheduler with the HA link sync policies.
+	 *
+	 * @param name the name of the scheduler, for the threads and logging
+	 * @param onComplete called when all the syncs are done, or null
+	 */
+	public LinkSyncScheduler(String name, Runnable onComplete) {
+		this(name,
+			 DhcpServerPolicies.globalPolicyAsInt(Property.HA_LINK_SYNC_THREADS),
+			 Priority.valueOf(DhcpServerPolicies.globalPolicy(
+					 Property.HA_LINK_SYNC_PRIORITY).toUpperCase()),
+			 DhcpServerPolicies.globalPolicyAsInt(Property.HA_LINK_SYNC_RETRIES),
+			 DhcpServerPolicies.globalPolicyAsLong(Property.HA_LINK_SYNC_RETRY_DELAY),
+			 DhcpServerPolicies.globalPolicyAsLong(Property.HA_LINK_SYNC_TIMEOUT) * 1000,
+			 onComplete);
+	}
+
+	/**
+	 * Create a scheduler.
+	 *
+	 * @param name the name of the scheduler, for the threads and logging
+	 * @param threads the number of links synced at the same time
+	 * @param priority the order of the links in the queue
+	 * @param maxRetries the number of retries of a failed sync
+	 * @param retryDelay the delay before the first retry in milliseconds,
+	 * 			which is doubled for each later retry
+	 * @param timeoutMillis the deadline for all the syncs, or zero for none
+	 * @param onComplete called when all the syncs are done, or null
+	 */
+	public LinkSyncScheduler(String name, int threads, Priority priority,
+			int maxRetries, long retryDelay, long timeoutMillis, Runnable onComplete) {
+		this.name = name;
+		this.priority = priority;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelay = Math.max(0, retryDelay);
+		this.timeoutMillis = timeoutMillis;
+		this.onComplete = onComplete;
+		threads = Math.max(1, threads);
+		// a ThreadPoolExecutor takes tasks from the queue in the order of
+		// the queue, and execute, unlike submit, queues the task itself
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new LinkSyncThreadFactory(name));
+	}
+
+	/**
+	 * Start the syncs of the links.
+	 *
+	 * @param linkSyncs the sync of each link
+	 */
+	public synchronized void start(Collection<? extends LinkSyncThread> linkSyncs) {
+		startTime = System.currentTimeMillis();
+		remaining.set(linkSyncs.size());
+		if (linkSyncs.isEmpty()) {
+			complete();
+			return;
+		}
+		log.info(name + ": syncing " + linkSyncs.size() + " links with " +
+				 executor.getCorePoolSize() + " threads, priority=" + priority);
+		if (timeoutMillis > 0) {
+			deadline = DhcpServerScheduler.getInstance().schedule(name + "Deadline",
+					new Runnable() {
+						@Override
+						public void run() {
+							expire();
+						}
+					}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		final List<LinkSyncThread> links = new ArrayList<LinkSyncThread>(linkSyncs);
+		for (LinkSyncThread linkSync : links) {
+			linkSync.getDhcpLink().setState(DhcpLink.State.NOT_SYNCED);
+		}
+		if (priority == Priority.LEASES) {
+			// counting the leases of the links queries the database,
+			// so the links are weighed and queued off the caller's thread
+			new LinkSyncThreadFactory(name + "Weigh").newThread(new Runnable() {
+						@Override
+						public void run() {
+							queue(links);
+						}
+					}).start();
+		}
+		else {
+			queue(links);
+		}
+	}
+
+	/**
+	 * Weigh the links, and then queue their syncs, so that the first
+	 * syncs to run are those of the heaviest links.
+	 *
+	 * @param linkSyncs the sync of each link
+	 */
+	private void queue(List<LinkSyncThread> linkSyncs) {
+		List<LinkSyncTask> tasks = new ArrayList<LinkSyncTask>(linkSyncs.size());
+		int seq = 0;
+		for (LinkSyncThread linkSync : linkSyncs) {
+			long weight = 0;
+			try {
+				weight = linkWeight(linkSync.getDhcpLink());
+			}
+			catch (Exception ex) {
+				log.error(name + ": failed to weigh link: " +
+						  linkSync.getDhcpLink().getLinkAddress(), ex);
+			}
+			tasks.add(new LinkSyncTask(linkSync, seq++, weight));
+		}
+		// sorted, because the first syncs run without being queued
+		Collections.sort(tasks);
+		for (LinkSyncTask task : tasks) {
+			if (expired) {
+				log.error(name + ": lease sync cancelled for link: " +
+						  task.linkSync.getDhcpLink().getLinkAddress());
+				finished(false);
+			}
+			else {
+				executor.execute(task);
+			}
+		}
+	}
+
+	/**
+	 * The weight of a link, for the order of the queue.  The links with
+	 * the most leases, or the most requests, are synced first.
+	 *
+	 * @param dhcpLink the link
+	 * @return the weight
+	 */
+	protected long linkWeight(DhcpLink dhcpLink) {
+		switch (priority) {
+			case LEASES:
+				IaManager iaMgr = DhcpServerConfiguration.getInstance().getIaMgr();
+				if (iaMgr != null) {
+					List<InetAddress> ips = iaMgr.findExistingIPs(
+							dhcpLink.getSubnet().getSubnetAddress(),
+							dhcpLink.getSubnet().getEndAddress());
+					return (ips != null) ? ips.size() : 0;
+				}
+				return 0;
+			case TRAFFIC:
+				return dhcpLink.getRequestCount();
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Cancel the syncs which have not started when the deadline passes.
+	 * The running syncs are left to finish, but are not retried.
+	 */
+	protected void expire() {
+		expired = true;
+		List<Runnable> queued = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(queued);
+		log.warn(name + ": deadline of " + timeoutMillis + "ms passed, cancelling " +
+				 queued.size() + " queued link syncs");
+		for (Runnable r : queued) {
+			LinkSyncTask task = (LinkSyncTask) r;
+			log.error(name + ": lease sync cancelled for link: " +
+					  task.linkSync.getDhcpLink().getLinkAddress());
+			finished(false);
+		}
+	}
+
+	private void retry(final LinkSyncTask task, long delay) {
+		DhcpServerScheduler.getInstance().schedule(name + "Retry",
+				new Runnable() {
+					@Override
+					public void run() {
+						if (expired) {
+							log.error(name + ": lease sync not retried after deadline for link: " +
+									  task.linkSync.getDhcpLink().getLinkAddress());
+							finished(false);
+						}
+						else {
+							executor.execute(task);
+						}
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void finished(boolean ok) {
+		if (ok) {
+			synced.incrementAndGet();
+		}
+		else {
+			failed.incrementAndGet();
+		}
+		if (remaining.decrementAndGet() == 0) {
+			complete();
+		}
+	}
+
+	private void complete() {
+		synchronized (this) {
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+		}
+		executor.shutdown();
+		log.info(name + ": link syncs completed: synced=" + synced.get() +
+				 " failed=" + failed.get() +
+				 " timeElapsed=" + (System.currentTimeMillis() - startTime) + "ms");
+		try {
+			if (onComplete != null) {
+				onComplete.run();
+			}
+		}
+		catch (Exception ex) {
+			log.error(name + ": link sync completion failed", ex);
+		}
+		finally {
+			// count down after the callback, so that the waiting
+			// callers see everything done by the callback
+			completed.countDown();
+		}
+	}
+
+	/**
+	 * Wait for all the syncs to be done.
+	 *
+	 * @param timeout the time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if the syncs are done
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+		return completed.await(timeout, unit);
+	}
+
+	public int getSynced() {
+		return synced.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public int getRemaining() {
+		return remaining.get();
+	}
+
+	/**
+	 * The sync of one link, ordered by the weight of the link, and then
+	 * by the order the links were given to the scheduler.
+	 */
+	class LinkSyncTask implements Runnable, Comparable<LinkSyncTask> {
+
+		private final LinkSyncThread linkSync;
+		private final int seq;
+		private final long weight;
+		private int attempts;
+
+		LinkSyncTask(LinkSyncThread linkSync, int seq, long weight) {
+			this.linkSync = linkSync;
+			this.seq = seq;
+			this.weight = weight;
+		}
+
+		@Override
+		public void run() {
+			boolean ok = false;
+			try {
+				ok = linkSync.sync();
+			}
+			catch (Exception ex) {
+				log.error(name + ": lease sync failure for link: " +
+						  linkSync.getDhcpLink().getLinkAddress(), ex);
+				linkSync.getDhcpLink().setState(DhcpLink.State.NOT_SYNCED);
+			}
+			attempts++;
+			if (ok) {
+				finished(true);
+			}
+			else if ((attempts <= maxRetries) && !expired) {
+				long delay = Math.min(retryDelay << Math.min(attempts - 1, 16), MAX_RETRY_DELAY);
+				log.warn(name + ": retrying lease sync for link: " +
+						 linkSync.getDhcpLink().getLinkAddress() +
+						 " in " + delay + "ms, retry " + attempts + " of " + maxRetries);
+				retry(this, delay);
+			}
+			else {
+				log.error(name + ": lease sync failed for link: " +
+						  linkSync.getDhcpLink().getLinkAddress() +
+						  " after " + attempts + " attempts");
+				finished(false);
+			}
+		}
+
+		@Override
+		public int compareTo(LinkSyncTask that) {
+			int c = Long.compare(that.weight, this.weight);
+			return (c != 0) ? c : Integer.compare(this.seq, that.seq);
+		}
+	}
+
+	static class LinkSyncThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		LinkSyncThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, prefix + "-" + count.incrementAndGet());
+		}
+	}
+}
@@ -1,12 +1,15 @@
 package com.jagornet.dhcp.server.ha;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +17,10 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.Gson;
 import com.google.gson.stream.JsonReader;
 import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.db.DhcpLease;
+import com.jagornet.dhcp.server.rest.api.DhcpLeaseBulkFormat;
 import com.jagornet.dhcp.server.rest.api.DhcpLeasesResource;
 import com.jagornet.dhcp.server.rest.api.DhcpLeasesService;
 import com.jagornet.dhcp.server.rest.cli.JerseyRestClient;
@@ -25,29 +31,45 @@ public class LinkSyncThread implements Runnable {
 
 	// the DhcpLink to be synced
 	private DhcpLink dhcpLink;
-	// thread synchronization latch
-	private CountDownLatch linkSyncLatch;
 	// REST client for communicating to peer
 	private JerseyRestClient restClient;
 	// REST service for handling requests from peer
 	private DhcpLeasesService dhcpLeasesService;
 	private boolean unsyncedLeasesOnly;
+	// the number of leases stored and acknowledged together
+	private int chunkSize;
+	private LinkSyncProgress progress;
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
 	
 	public LinkSyncThread(DhcpLink dhcpLink,
-							CountDownLatch linkSyncLatch,
 							JerseyRestClient restClient,
 							DhcpLeasesService dhcpLeasesService,
-							boolean unsyncedLeasesOnly) {
+							boolean unsyncedLeasesOnly,
+							LinkSyncProgress progress) {
 		super();
 		this.dhcpLink = dhcpLink;
-		this.linkSyncLatch = linkSyncLatch;
 		this.restClient = restClient;
 		this.dhcpLeasesService = dhcpLeasesService;
 		this.unsyncedLeasesOnly = unsyncedLeasesOnly;
+		this.progress = progress;
+		chunkSize = Math.max(1, 
+				DhcpServerPolicies.globalPolicyAsInt(Property.HA_LINK_SYNC_CHUNK_SIZE));
 	}
 	
 	@Override
 	public void run() {
+		sync();
+	}
+	
+	/**
+	 * Sync the leases of the link from the peer server.  The link is put
+	 * back into service as soon as its sync completes.
+	 * 
+	 * @return true if the sync completed, false if the sync failed
+	 * 			and the link is left out of service
+	 */
+	public boolean sync() {
 		Map<String, Object> paramMap = new HashMap<String, Object>();
 		String linkStartIp = dhcpLink.getSubnet().getSubnetAddress().getHostAddress();
 		paramMap.put(DhcpLeasesResource.QUERYPARAM_START, linkStartIp);
@@ -65,69 +87,69 @@ public class LinkSyncThread implements Runnable {
 		}
 		// set link syncing state now or in process method?
 		dhcpLink.setState(DhcpLink.State.SYNCING);
-		log.info("Starting lease sync for link: " + dhcpLink.getLinkAddress());
-		Instant start = Instant.now();
+		log.info("Starting lease sync for link: " + dhcpLink.getLinkAddress() +
+				 " chunkSize=" + chunkSize);
+		progress.start();
 		boolean syncOk = false;
 //TODO: pick one... JSON or GSON?
 		syncOk = processJsonStream(paramMap);
 //		syncOk = processGsonStream(paramMap);
-		Instant finish = Instant.now();
-	    long timeElapsed = Duration.between(start, finish).toMillis();
+		progress.finish();
 		if (syncOk) {
 			dhcpLink.setState(DhcpLink.State.OK);
-			log.info("Completed lease sync for link: " + dhcpLink.getLinkAddress() + 
-					 " timeElapsed=" + timeElapsed + "ms");
+			log.info("Completed lease sync: " + progress);
 		}
 		else {
-			log.error("Failed lease sync for link: " + dhcpLink.getLinkAddress() + 
-					  " timeElapsed=" + timeElapsed + "ms");
+			dhcpLink.setState(DhcpLink.State.NOT_SYNCED);
+			log.error("Failed lease sync: " + progress);
 		}
-		linkSyncLatch.countDown();
+		return syncOk;
+	}
+	
+	public DhcpLink getDhcpLink() {
+		return dhcpLink;
+	}
+	
+	public LinkSyncProgress getProgress() {
+		return progress;
 	}
 
 	private boolean processJsonStream(Map<String, Object> paramMap) {
 		InputStream stream = restClient.doGetStream(
 				DhcpLeasesResource.PATH + DhcpLeasesResource.JSONLEASESTREAM,
 				paramMap);
-		try {
-			if (stream != null) {
-				StringBuilder sb = new StringBuilder();
-				int c = stream.read();
-				while (c != -1) {
-					if ((char)c == '{') {
-						sb.append((char)c);
-						c = stream.read();
-						while ((c != -1) && ((char)c != '}')) {
-							sb.append((char)c);
-							c = stream.read();
-						}
-						if ((char)c == '}') {
-							sb.append((char)c);
-							DhcpLease dhcpLease = DhcpLease.fromJson(sb.toString());
-							// mark this lease as 'synced'
-							dhcpLease.setHaPeerState(dhcpLease.getState());
-							if (dhcpLeasesService.createOrUpdateDhcpLease(dhcpLease)) {
-								// now tell the peer server we're in sync
-								restClient.doPut(
-										DhcpLeasesResource.buildPutPath(
-												dhcpLease.getIpAddress().getHostAddress()),
-										dhcpLease.toJson());
-
-							}
-						}
-						sb.setLength(0);
+		if (stream == null) {
+			return false;
+		}
+		// each lease is one line of JSON, so read the stream a line at a time
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(stream, StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+			List<DhcpLease> chunk = new ArrayList<DhcpLease>(chunkSize);
+			String line = reader.readLine();
+			while (line != null) {
+				if (!line.isEmpty()) {
+					if (line.charAt(0) != '{') {
+						log.error("Expected '{', but found '" + line.charAt(0) + "'");
+						return false;
+					}
+					DhcpLease dhcpLease = DhcpLease.fromJson(line);
+					if (dhcpLease == null) {
+						log.error("Invalid lease JSON: " + line);
+						return false;
 					}
-					else if ((char)c != '\n') {
-						log.error("Expected '{' or '\n', but found '" + (char)c + "'");
-						break;
+					progress.leaseReceived();
+					// mark this lease as 'synced'
+					dhcpLease.setHaPeerState(dhcpLease.getState());
+					chunk.add(dhcpLease);
+					if (chunk.size() >= chunkSize) {
+						syncChunk(chunk);
+						chunk.clear();
 					}
-					c = stream.read();
 				}
-				return true;
-			}
-			else {
-				return false;
+				line = reader.readLine();
 			}
+			syncChunk(chunk);
+			return true;
 		} 
 		catch (Exception ex) {
 			log.error("Link sync failure", ex);
@@ -135,6 +157,41 @@ public class LinkSyncThread implements Runnable {
 		}
 	}
 	
+	/**
+	 * Store a chunk of leases received from the peer server, and then send
+	 * the stored leases back to the peer in one bulk update, so that the peer
+	 * also marks them as synced.
+	 * 
+	 * @param chunk the leases, with haPeerState=state
+	 * @throws IOException
+	 */
+	protected void syncChunk(List<DhcpLease> chunk) throws IOException {
+		if (chunk.isEmpty()) {
+			return;
+		}
+		List<DhcpLease> storedLeases = dhcpLeasesService.createOrUpdateDhcpLeases(chunk);
+		int acked = 0;
+		if (!storedLeases.isEmpty()) {
+			Map<Long, DhcpLease> dhcpLeases = new LinkedHashMap<Long, DhcpLease>();
+			long seq = progress.getLeasesStored();
+			for (DhcpLease dhcpLease : storedLeases) {
+				dhcpLeases.put(++seq, dhcpLease);
+			}
+			// now tell the peer server we're in sync
+			String response = restClient.doPutBytes(DhcpLeasesResource.buildBulkPutPath(),
+					DhcpLeaseBulkFormat.encodeLeases(dhcpLeases), null);
+			acked = DhcpLeaseBulkFormat.decodeAcks(response).size();
+			if (acked < storedLeases.size()) {
+				log.warn("Peer acknowledged " + acked + " of " + storedLeases.size() +
+						 " synced leases for link: " + dhcpLink.getLinkAddress());
+			}
+		}
+		progress.chunkSynced(storedLeases.size(), acked, chunk.size() - storedLeases.size());
+		if (log.isDebugEnabled()) {
+			log.debug("Lease sync progress: " + progress);
+		}
+	}
+	
 	private boolean processGsonStream(Map<String, Object> paramMap) {
 		Gson gson = new Gson();
 		InputStream stream = restClient.doGetStream(
@@ -0,0 +1,587 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file AdmissionControl.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6RelayOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.DhcpServerScheduler;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Title: AdmissionControl
+ * Description: The stage of the channel pipeline which decides, before
+ * a decoded message is queued for processing, if the message is processed
+ * or dropped.  This protects the server from floods of requests, e.g.
+ * when many clients reboot at the same time.
+ *
+ * A message is dropped if its client or its relay has used up its token
+ * bucket, if it is a retransmission of a message seen within the duplicate
+ * window, or if the processing queue is too deep.  When the queue is deep,
+ * only the requests which start a new lease, i.e. DISCOVER and SOLICIT, or
+ * only ask for information, are dropped, so that the clients which already
+ * have a lease can renew it.
+ *
+ * The admission checks run on the I/O thread, so they must be quick.
+ *
+ * @author A. Gregory Rabil
+ */
+@ChannelHandler.Sharable
+public class AdmissionControl extends ChannelInboundHandlerAdapter
+{
+	private static Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+	/** Why a message was dropped. */
+	public enum DropReason { CLIENT_RATE, RELAY_RATE, DUPLICATE, QUEUE_SHED, QUEUE_FULL };
+
+	/** the idle time after which the token bucket of a client or relay is removed */
+	public static final long BUCKET_IDLE_MILLIS = 60000;
+
+	private final double clientRate;
+	private final int clientBurst;
+	private final double relayRate;
+	private final int relayBurst;
+	private final long duplicateWindow;
+	private final int shedDepth;
+	private final int maxDepth;
+	private final IntSupplier queueDepth;
+
+	private final ConcurrentHashMap<Long, TokenBucket> clientBuckets =
+			new ConcurrentHashMap<Long, TokenBucket>();
+	private final ConcurrentHashMap<Long, TokenBucket> relayBuckets =
+			new ConcurrentHashMap<Long, TokenBucket>();
+	private final RecentMessages recentMessages;
+	private ScheduledFuture<?> pruner;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLongArray dropped = new AtomicLongArray(DropReason.values().length);
+
+	/**
+	 * Create the admission control with the admission policies.
+	 *
+	 * @param queueDepth the depth of the processing queue
+	 */
+	public AdmissionControl(IntSupplier queueDepth)
+	{
+		this(DhcpServerPolicies.globalPolicyAsLong(Property.ADMISSION_CLIENT_RATE),
+			 DhcpServerPolicies.globalPolicyAsInt(Property.ADMISSION_CLIENT_BURST),
+			 DhcpServerPolicies.globalPolicyAsLong(Property.ADMISSION_RELAY_RATE),
+			 DhcpServerPolicies.globalPolicyAsInt(Property.ADMISSION_RELAY_BURST),
+			 DhcpServerPolicies.globalPolicyAsLong(Property.ADMISSION_DUPLICATE_WINDOW),
+			 DhcpServerPolicies.globalPolicyAsInt(Property.ADMISSION_SHED_DEPTH),
+			 DhcpServerPolicies.globalPolicyAsInt(Property.ADMISSION_MAX_DEPTH),
+			 queueDepth);
+	}
+
+	/**
+	 * Create the admission control.
+	 *
+	 * @param clientRate the requests per second of each client, or zero for no limit
+	 * @param clientBurst the requests a client may send at once
+	 * @param relayRate the requests per second of each relay, or zero for no limit
+	 * @param relayBurst the requests a relay may send at once
+	 * @param duplicateWindow the milliseconds to drop a duplicate message, or zero
+	 * @param shedDepth the queue depth at which new clients are dropped, or zero
+	 * @param maxDepth the queue depth at which all messages are dropped, or zero
+	 * @param queueDepth the depth of the processing queue
+	 */
+	public AdmissionControl(double clientRate, int clientBurst,
+			double relayRate, int relayBurst, long duplicateWindow,
+			int shedDepth, int maxDepth, IntSupplier queueDepth)
+	{
+		this.clientRate = clientRate;
+		this.clientBurst = Math.max(1, clientBurst);
+		this.relayRate = relayRate;
+		this.relayBurst = Math.max(1, relayBurst);
+		this.duplicateWindow = duplicateWindow;
+		this.shedDepth = shedDepth;
+		this.maxDepth = maxDepth;
+		this.queueDepth = queueDepth;
+		recentMessages = (duplicateWindow > 0) ? new RecentMessages(duplicateWindow) : null;
+		if ((clientRate > 0) || (relayRate > 0)) {
+			pruner = DhcpServerScheduler.getInstance().scheduleWithFixedDelay("AdmissionPruner",
+					new Runnable() {
+						@Override
+						public void run() {
+							pruneBuckets(System.nanoTime());
+						}
+					}, BUCKET_IDLE_MILLIS, BUCKET_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		log.info("Admission control: clientRate=" + clientRate + " clientBurst=" + clientBurst +
+				" relayRate=" + relayRate + " relayBurst=" + relayBurst +
+				" duplicateWindow=" + duplicateWindow +
+				" shedDepth=" + shedDepth + " maxDepth=" + maxDepth);
+	}
+
+	/**
+	 * @return true if any admission check is configured
+	 */
+	public boolean isEnabled()
+	{
+		return (clientRate > 0) || (relayRate > 0) || (duplicateWindow > 0) ||
+				(shedDepth > 0) || (maxDepth > 0);
+	}
+
+	@Override
+	public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception
+	{
+		DropReason reason = null;
+		if (msg instanceof DhcpV4Message) {
+			reason = admit((DhcpV4Message) msg, System.nanoTime());
+		}
+		else if (msg instanceof DhcpV6Message) {
+			reason = admit((DhcpV6Message) msg, System.nanoTime());
+		}
+		if (reason == null) {
+			admitted.incrementAndGet();
+			ctx.fireChannelRead(msg);
+		}
+		else {
+			dropped.incrementAndGet(reason.ordinal());
+			if (log.isDebugEnabled()) {
+				log.debug("Dropped message: reason=" + reason + " msg=" + msg);
+			}
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	/**
+	 * Decide if a DHCPv4 message is processed.
+	 *
+	 * @param msg the message
+	 * @param now the current time, from System.nanoTime
+	 * @return the reason the message is dropped, or null to process the message
+	 */
+	protected DropReason admit(DhcpV4Message msg, long now)
+	{
+		int msgType = msg.getMessageType();
+		boolean newClient = (msgType == DhcpConstants.V4MESSAGE_TYPE_DISCOVER) ||
+				(msgType == DhcpConstants.V4MESSAGE_TYPE_INFORM);
+		long relayKey = 0;
+		InetAddress giAddr = msg.getGiAddr();
+		if ((giAddr != null) && !giAddr.equals(DhcpConstants.ZEROADDR_V4)) {
+			relayKey = hash(giAddr.getAddress());
+		}
+		return admit(hash(msg.getChAddr()), relayKey,
+				msg.getTransactionId(), msgType, newClient, now);
+	}
+
+	/**
+	 * Decide if a DHCPv6 message is processed.
+	 *
+	 * @param msg the message
+	 * @param now the current time, from System.nanoTime
+	 * @return the reason the message is dropped, or null to process the message
+	 */
+	protected DropReason admit(DhcpV6Message msg, long now)
+	{
+		long relayKey = 0;
+		DhcpV6Message clientMsg = msg;
+		if (msg instanceof DhcpV6RelayMessage) {
+			// the relay which sent the message to this server
+			relayKey = hash(msg.getRemoteAddress().getAddress().getAddress());
+			while (clientMsg instanceof DhcpV6RelayMessage) {
+				DhcpV6RelayOption relayOption = ((DhcpV6RelayMessage) clientMsg).getRelayOption();
+				if ((relayOption == null) || (relayOption.getDhcpMessage() == null)) {
+					// leave a malformed relay message to the processor
+					return null;
+				}
+				clientMsg = relayOption.getDhcpMessage();
+			}
+		}
+		long clientKey = 0;
+		DhcpV6ClientIdOption clientId = clientMsg.getDhcpClientIdOption();
+		if ((clientId != null) && (clientId.getOpaqueData() != null)) {
+			byte[] duid = clientId.getOpaqueData().getHex();
+			if (duid == null) {
+				duid = clientId.getOpaqueData().getAscii().getBytes();
+			}
+			clientKey = hash(duid);
+		}
+		else {
+			clientKey = hash(clientMsg.getRemoteAddress().getAddress().getAddress());
+		}
+		int msgType = clientMsg.getMessageType();
+		boolean newClient = (msgType == DhcpConstants.V6MESSAGE_TYPE_SOLICIT) ||
+				(msgType == DhcpConstants.V6MESSAGE_TYPE_INFO_REQUEST);
+		return admit(clientKey, relayKey, clientMsg.getTransactionId(), msgType, newClient, now);
+	}
+
+	/**
+	 * Decide if a message is processed.
+	 *
+	 * @param clientKey the hash of the client identity
+	 * @param relayKey the hash of the relay address, or zero if not relayed
+	 * @param xid the transaction id of the message
+	 * @param msgType the type of the message
+	 * @param newClient true if the message is from a client without a lease
+	 * @param now the current time, from System.nanoTime
+	 * @return the reason the message is dropped, or null to process the message
+	 */
+	protected DropReason admit(long clientKey, long relayKey, long xid, int msgType,
+			boolean newClient, long now)
+	{
+		if ((maxDepth > 0) || (shedDepth > 0)) {
+			int depth = queueDepth.getAsInt();
+			if ((maxDepth > 0) && (depth >= maxDepth)) {
+				return DropReason.QUEUE_FULL;
+			}
+			if (newClient && (shedDepth > 0) && (depth >= shedDepth)) {
+				return DropReason.QUEUE_SHED;
+			}
+		}
+		if ((clientRate > 0) &&
+				!bucket(clientBuckets, clientKey, clientRate, clientBurst, now).tryAcquire(now)) {
+			return DropReason.CLIENT_RATE;
+		}
+		if ((relayRate > 0) && (relayKey != 0) &&
+				!bucket(relayBuckets, relayKey, relayRate, relayBurst, now).tryAcquire(now)) {
+			return DropReason.RELAY_RATE;
+		}
+		// a retransmission uses a token too, so a client which floods the
+		// server with the same message is also limited by its bucket
+		if (recentMessages != null) {
+			long key = mix((clientKey * 31 + xid) * 31 + msgType);
+			if (!recentMessages.add(key, TimeUnit.NANOSECONDS.toMillis(now))) {
+				return DropReason.DUPLICATE;
+			}
+		}
+		return null;
+	}
+
+	private static TokenBucket bucket(ConcurrentHashMap<Long, TokenBucket> buckets,
+			long key, double rate, int burst, long now)
+	{
+		Long k = Long.valueOf(key);
+		TokenBucket bucket = buckets.get(k);
+		if (bucket == null) {
+			TokenBucket newBucket = new TokenBucket(rate, burst, now);
+			bucket = buckets.putIfAbsent(k, newBucket);
+			if (bucket == null) {
+				bucket = newBucket;
+			}
+		}
+		return bucket;
+	}
+
+	/**
+	 * Remove the token buckets of the clients and relays which have been idle.
+	 *
+	 * @param now the current time, from System.nanoTime
+	 */
+	protected void pruneBuckets(long now)
+	{
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(BUCKET_IDLE_MILLIS);
+		int pruned = pruneBuckets(clientBuckets.values().iterator(), now, idleNanos) +
+				pruneBuckets(relayBuckets.values().iterator(), now, idleNanos);
+		if (log.isDebugEnabled()) {
+			log.debug("Pruned " + pruned + " idle token buckets: " + this);
+		}
+	}
+
+	private static int pruneBuckets(Iterator<TokenBucket> iter, long now, long idleNanos)
+	{
+		int pruned = 0;
+		while (iter.hasNext()) {
+			if (iter.next().isIdle(now, idleNanos)) {
+				iter.remove();
+				pruned++;
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Stop pruning the token buckets.
+	 */
+	public void shutdown()
+	{
+		if (pruner != null) {
+			pruner.cancel(false);
+		}
+		log.info("Admission control shutdown: " + this);
+	}
+
+	/**
+	 * @return the number of messages admitted for processing
+	 */
+	public long getAdmitted()
+	{
+		return admitted.get();
+	}
+
+	/**
+	 * @param reason the reason
+	 * @return the number of messages dropped for the reason
+	 */
+	public long getDropped(DropReason reason)
+	{
+		return dropped.get(reason.ordinal());
+	}
+
+	/**
+	 * @return the number of clients with a token bucket
+	 */
+	public int getClientBuckets()
+	{
+		return clientBuckets.size();
+	}
+
+	/**
+	 * @return the number of relays with a token bucket
+	 */
+	public int getRelayBuckets()
+	{
+		return relayBuckets.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("admitted=").append(getAdmitted());
+		for (DropReason reason : DropReason.values()) {
+			sb.append(" dropped.").append(reason).append('=').append(getDropped(reason));
+		}
+		sb.append(" clientBuckets=").append(getClientBuckets());
+		sb.append(" relayBuckets=").append(getRelayBuckets());
+		return sb.toString();
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the bytes.
+	 */
+	static long hash(byte[] bytes)
+	{
+		long h = 0xcbf29ce484222325L;
+		if (bytes != null) {
+			for (byte b : bytes) {
+				h ^= (b & 0xff);
+				h *= 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, to spread the bits of a key.
+	 */
+	static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * A token bucket, which holds up to the burst of tokens, and is
+	 * refilled at the rate of tokens per second.
+	 */
+	static class TokenBucket
+	{
+		private final double rate;
+		private final double burst;
+		private double tokens;
+		private long lastRefill;
+		private volatile long lastUsed;
+
+		TokenBucket(double rate, int burst, long now)
+		{
+			this.rate = rate;
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastRefill = now;
+			this.lastUsed = now;
+		}
+
+		synchronized boolean tryAcquire(long now)
+		{
+			lastUsed = now;
+			if (now > lastRefill) {
+				tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+				lastRefill = now;
+			}
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+
+		boolean isIdle(long now, long idleNanos)
+		{
+			return (now - lastUsed) > idleNanos;
+		}
+	}
+
+	/**
+	 * The keys of the recent messages, kept in two generations of
+	 * primitive hash sets.  A key is remembered for at least the window,
+	 * and at most twice the window, without a timer for each message.
+	 */
+	static class RecentMessages
+	{
+		/** the largest generation, after which the generations are rotated early */
+		static final int MAX_KEYS = 1 << 18;
+
+		private final long window;
+		private LongHashSet current = new LongHashSet();
+		private LongHashSet previous = new LongHashSet();
+		private long generationStart;
+
+		RecentMessages(long window)
+		{
+			this.window = window;
+		}
+
+		/**
+		 * Add the key of a message.
+		 *
+		 * @param key the key
+		 * @param nowMillis the current time in milliseconds
+		 * @return true if the key was not seen within the window
+		 */
+		synchronized boolean add(long key, long nowMillis)
+		{
+			long age = nowMillis - generationStart;
+			if ((age >= window) || (current.size() >= MAX_KEYS)) {
+				if (age >= 2 * window) {
+					previous.clear();
+				}
+				else {
+					LongHashSet rotated = previous;
+					previous = current;
+					current = rotated;
+				}
+				current.clear();
+				generationStart = nowMillis;
+			}
+			if (previous.contains(key)) {
+				return false;
+			}
+			return current.add(key);
+		}
+	}
+
+	/**
+	 * An open addressing hash set of long keys, without boxing.
+	 */
+	static class LongHashSet
+	{
+		// zero marks an empty slot, so zero is stored as FREE_KEY_ALIAS
+		private static final long FREE_KEY_ALIAS = 0x9e3779b97f4a7c15L;
+
+		private long[] keys = new long[1024];
+		private int size;
+
+		boolean add(long key)
+		{
+			if (key == 0) {
+				key = FREE_KEY_ALIAS;
+			}
+			if ((size + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			int i = (int) mix(key) & mask;
+			while (keys[i] != 0) {
+				if (keys[i] == key) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			size++;
+			return true;
+		}
+
+		boolean contains(long key)
+		{
+			if (key == 0) {
+				key = FREE_KEY_ALIAS;
+			}
+			int mask = keys.length - 1;
+			int i = (int) mix(key) & mask;
+			while (keys[i] != 0) {
+				if (keys[i] == key) {
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+			return false;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		void clear()
+		{
+			if (size > 0) {
+				Arrays.fill(keys, 0);
+				size = 0;
+			}
+		}
+
+		private void resize(int capacity)
+		{
+			long[] old = keys;
+			keys = new long[capacity];
+			size = 0;
+			for (long key : old) {
+				if (key != 0) {
+					add(key);
+				}
+			}
+		}
+	}
+}
@@ -60,14 +60,43 @@ public class DhcpV4ChannelHandler extends SimpleChannelInboundHandler<DhcpV4Mess
 
 	private Channel outboundChannel;
 	
+	private ProcessingLanes processingLanes;
+	
 	
 	public DhcpV4ChannelHandler(Channel outboundChannel)
+	{
+		this(outboundChannel, null);
+	}
+	
+	/**
+	 * Create a handler which processes the messages on the given lanes,
+	 * instead of on the thread which reads the message.
+	 * 
+	 * @param outboundChannel the channel for the replies
+	 * @param processingLanes the lanes, or null
+	 */
+	public DhcpV4ChannelHandler(Channel outboundChannel, ProcessingLanes processingLanes)
 	{
 		this.outboundChannel = outboundChannel;
+		this.processingLanes = processingLanes;
 	}
 
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, DhcpV4Message msg) throws Exception {
+	protected void channelRead0(ChannelHandlerContext ctx, final DhcpV4Message msg) throws Exception {
+		if (processingLanes != null) {
+			processingLanes.execute(msg, new Runnable() {
+				@Override
+				public void run() {
+					handleMessage(msg);
+				}
+			});
+		}
+		else {
+			handleMessage(msg);
+		}
+	}
+	
+	protected void handleMessage(DhcpV4Message msg) {
         if (log.isDebugEnabled()) {
         	log.debug("Received: " + msg.toStringWithOptions());
         }
@@ -25,7 +25,6 @@
  */
 package com.jagornet.dhcp.server.netty;
 
-import java.nio.ByteBuffer;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -33,7 +32,7 @@ import org.slf4j.LoggerFactory;
 
 import com.jagornet.dhcp.core.message.DhcpV6Message;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
@@ -53,8 +52,17 @@ public class DhcpV6ChannelEncoder extends MessageToMessageEncoder<DhcpV6Message>
     @Override
 	protected void encode(ChannelHandlerContext ctx, DhcpV6Message msg, List<Object> out) throws Exception {
 		log.info("Encoding message: msg=" + msg);
-        ByteBuffer buf = msg.encode();
-        log.info("Message encoded: limit=" + buf.limit());
-        out.add(Unpooled.wrappedBuffer(buf));
+        // encode directly into a pooled buffer, which is
+        // released by the channel when the packet is sent
+        ByteBuf buf = ctx.alloc().directBuffer(1024);
+        try {
+        	NettyDhcpV6Message.encode(msg, buf);
+        }
+        catch (Exception ex) {
+        	buf.release();
+        	throw ex;
+        }
+        log.info("Message encoded: limit=" + buf.readableBytes());
+        out.add(buf);
 	}   
 }
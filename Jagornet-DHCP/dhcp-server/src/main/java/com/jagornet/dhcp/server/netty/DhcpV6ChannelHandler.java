@@ -59,13 +59,42 @@ public class DhcpV6ChannelHandler extends SimpleChannelInboundHandler<DhcpV6Mess
 
 	private Channel outboundChannel;
 	
+	private ProcessingLanes processingLanes;
+	
 	public DhcpV6ChannelHandler(Channel outboundChannel)
+	{
+		this(outboundChannel, null);
+	}
+	
+	/**
+	 * Create a handler which processes the messages on the given lanes,
+	 * instead of on the thread which reads the message.
+	 * 
+	 * @param outboundChannel the channel for the replies
+	 * @param processingLanes the lanes, or null
+	 */
+	public DhcpV6ChannelHandler(Channel outboundChannel, ProcessingLanes processingLanes)
 	{
 		this.outboundChannel = outboundChannel;
+		this.processingLanes = processingLanes;
 	}
 
 	@Override
-	protected void channelRead0(ChannelHandlerContext ctx, DhcpV6Message dhcpMessage) throws Exception {
+	protected void channelRead0(ChannelHandlerContext ctx, final DhcpV6Message dhcpMessage) throws Exception {
+		if (processingLanes != null) {
+			processingLanes.execute(dhcpMessage, new Runnable() {
+				@Override
+				public void run() {
+					handleMessage(dhcpMessage);
+				}
+			});
+		}
+		else {
+			handleMessage(dhcpMessage);
+		}
+	}
+	
+	protected void handleMessage(DhcpV6Message dhcpMessage) {
         if (log.isDebugEnabled()) {
         	log.debug("Received: " + dhcpMessage.toStringWithOptions());
         }
@@ -38,6 +38,8 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.IntSupplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,6 +54,7 @@ import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
@@ -105,6 +108,12 @@ public class NettyDhcpServer
     //protected ExecutorService executorService = Executors.newCachedThreadPool();
     protected EventExecutorGroup eventExecutorGroup = null;
     
+    /** The single threaded lanes for processing requests, if partitioned. */
+    protected ProcessingLanes processingLanes = null;
+    
+    /** The admission control of requests, if configured. */
+    protected AdmissionControl admissionControl = null;
+    
     /**
      * Create a NettyDhcpServer.
      * 
@@ -150,9 +159,29 @@ public class NettyDhcpServer
         			" receiveBufferSize=" + receiveBufSize +
         			" sendBufferSize=" + sendBufSize);
         	
-        	//eventExecutorGroup = new DefaultEventExecutorGroup(corePoolSize);
-        	// unordered avoids any bottlenecks from ordering, but adds some risk
-        	eventExecutorGroup = new UnorderedThreadPoolEventExecutor(corePoolSize);
+        	ProcessingLanes.Partition partition = ProcessingLanes.Partition.valueOf(
+        			DhcpServerPolicies.globalPolicy(Property.CHANNEL_PARTITION).toUpperCase());
+        	if (partition != ProcessingLanes.Partition.NONE) {
+        		// the messages of a client, or of a link, are processed in order
+        		// on one lane, so they never contend with each other for locks
+        		int lanes = DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_PARTITION_LANES);
+        		processingLanes = new ProcessingLanes(partition, (lanes > 0) ? lanes : corePoolSize);
+        	}
+        	else {
+	        	//eventExecutorGroup = new DefaultEventExecutorGroup(corePoolSize);
+	        	// unordered avoids any bottlenecks from ordering, but adds some risk
+	        	eventExecutorGroup = new UnorderedThreadPoolEventExecutor(corePoolSize);
+        	}
+        	
+        	admissionControl = new AdmissionControl(new IntSupplier() {
+				@Override
+				public int getAsInt() {
+					return getQueueDepth();
+				}
+			});
+        	if (!admissionControl.isEnabled()) {
+        		admissionControl = null;
+        	}
         	
         	boolean v4SocketChecked = false;
     		Map<InetAddress, Channel> v4UcastChannels = new HashMap<InetAddress, Channel>();
@@ -200,8 +229,8 @@ public class NettyDhcpServer
 				            pipeline.addLast("encoder",
 				            		new DhcpV4PacketEncoder(
 				            				new DhcpV4ChannelEncoder()));
-				            pipeline.addLast(eventExecutorGroup, "handler", 
-				            		new DhcpV4ChannelHandler(channel));
+				            addHandler(pipeline,
+				            		new DhcpV4ChannelHandler(channel, processingLanes));
 						}	        		
 	            	});
 
@@ -264,8 +293,8 @@ public class NettyDhcpServer
 					            pipeline.addLast("encoder",
 					            		new DhcpV4PacketEncoder(
 					            				new DhcpV4ChannelEncoder()));
-					            pipeline.addLast(eventExecutorGroup, "handler",
-					            		new DhcpV4ChannelHandler(bcastChannel));
+					            addHandler(pipeline,
+					            		new DhcpV4ChannelHandler(bcastChannel, processingLanes));
 							}
 		            	});
 			            
@@ -335,8 +364,8 @@ public class NettyDhcpServer
 				            pipeline.addLast("encoder",
 				            		new DhcpV6PacketEncoder(
 				            				new DhcpV6ChannelEncoder()));
-				            pipeline.addLast(eventExecutorGroup, "handler", 
-				            		new DhcpV6ChannelHandler(channel));
+				            addHandler(pipeline,
+				            		new DhcpV6ChannelHandler(channel, processingLanes));
 						}
 	            	});
 		            
@@ -389,8 +418,8 @@ public class NettyDhcpServer
 				            pipeline.addLast("encoder",
 				            		new DhcpV6PacketEncoder(
 				            				new DhcpV6ChannelEncoder()));
-				            pipeline.addLast(eventExecutorGroup, "handler", 
-				            		new DhcpV6ChannelHandler(channel));
+				            addHandler(pipeline,
+				            		new DhcpV6ChannelHandler(channel, processingLanes));
 						}
 	            	});
 	            	
@@ -442,6 +471,44 @@ public class NettyDhcpServer
             });
     }
     
+    /**
+     * Add the admission control, if configured, and the handler of the
+     * messages to the pipeline.  The handler runs on the thread pool, or,
+     * if partitioned, on the I/O thread, which only hands the message to
+     * its lane.
+     * 
+     * @param pipeline the pipeline
+     * @param handler the handler
+     */
+    private void addHandler(ChannelPipeline pipeline, ChannelHandler handler) {
+    	if (admissionControl != null) {
+    		// drop requests on the I/O thread, before they are queued
+    		pipeline.addLast("admission", admissionControl);
+    	}
+    	if (processingLanes != null) {
+    		pipeline.addLast("handler", handler);
+    	}
+    	else {
+    		pipeline.addLast(eventExecutorGroup, "handler", handler);
+    	}
+    }
+    
+    /**
+     * Gets the number of requests waiting to be processed.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+    	if (processingLanes != null) {
+    		return processingLanes.getQueueDepth();
+    	}
+    	if (eventExecutorGroup instanceof ThreadPoolExecutor) {
+    		// the unordered executor is a scheduled thread pool executor
+    		return ((ThreadPoolExecutor)eventExecutorGroup).getQueue().size();
+    	}
+    	return 0;
+    }
+    
     private void checkSocket(int port) throws SocketException {
     	DatagramSocket ds = null;
     	try {
@@ -465,9 +532,33 @@ public class NettyDhcpServer
 			channel.close();
 		}
 		log.info("Executor shutdown");
+		if (processingLanes != null) {
+			processingLanes.shutdown();
+		}
+		if (admissionControl != null) {
+			admissionControl.shutdown();
+		}
 //TODO        executorService.shutdown();     
     }
 
+	/**
+	 * Gets the processing lanes, for the lane metrics.
+	 * 
+	 * @return the processing lanes, or null if not partitioned
+	 */
+	public ProcessingLanes getProcessingLanes() {
+		return processingLanes;
+	}
+
+	/**
+	 * Gets the admission control, for the drop counts.
+	 * 
+	 * @return the admission control, or null if not configured
+	 */
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
 	public List<InetAddress> getV4Addrs() {
 		return v4Addrs;
 	}
@@ -1,9 +1,11 @@
 package com.jagornet.dhcp.server.netty;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,6 +14,7 @@ import com.jagornet.dhcp.core.message.DhcpV4Message;
 import com.jagornet.dhcp.core.option.base.DhcpOption;
 import com.jagornet.dhcp.core.util.DhcpConstants;
 import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.config.OptionWireCache;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -45,95 +48,110 @@ public class NettyDhcpV4Message extends DhcpV4Message {
 	
 	@Override
     public ByteBuffer encode() throws IOException
+    {
+        messageByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        encode(this, messageByteBuf);
+        // don't need to flip Netty ByteBuf
+        return messageByteBuf.nioBuffer();
+    }
+
+    /**
+     * Encode a DhcpMessage to wire format for sending.  The options
+     * configured for the server are copied from the OptionWireCache.
+     * 
+     * @param msg	the DhcpMessage to encode
+     * @param buf	the ByteBuf to write the encoded DhcpMessage to
+     * @throws IOException
+     */
+    public static void encode(DhcpV4Message msg, ByteBuf buf) throws IOException
     {
         if (log.isDebugEnabled())
             log.debug("Encoding DhcpMessage for: " + 
-            		Util.socketAddressAsString(remoteAddress));
+            		Util.socketAddressAsString(msg.getRemoteAddress()));
         
-        messageByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
-        messageByteBuf.writeByte((byte)op);
-        messageByteBuf.writeByte((byte)htype);
-        messageByteBuf.writeByte((byte)hlen);
-        messageByteBuf.writeByte((byte)hops);
-        messageByteBuf.writeInt((int)transactionId);
-        messageByteBuf.writeShort((short)secs);
-        messageByteBuf.writeShort((short)flags);
-        if (ciAddr != null) {
-        	messageByteBuf.writeBytes(ciAddr.getAddress());
-        }
-        else {
-        	messageByteBuf.writeBytes(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (yiAddr != null) {
-        	messageByteBuf.writeBytes(yiAddr.getAddress());
-        }
-        else {
-        	messageByteBuf.writeBytes(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (siAddr != null) {
-        	messageByteBuf.writeBytes(siAddr.getAddress());
-        }
-        else {
-        	messageByteBuf.writeBytes(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (giAddr != null) {
-        	messageByteBuf.writeBytes(giAddr.getAddress());
-        }
-        else {
-        	messageByteBuf.writeBytes(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        messageByteBuf.writeBytes(Arrays.copyOf(chAddr, 16));	// pad to 16 bytes for encoded packet
+        int start = buf.writerIndex();
+        buf.writeByte((byte)msg.getOp());
+        buf.writeByte((byte)msg.getHtype());
+        buf.writeByte((byte)msg.getHlen());
+        buf.writeByte((byte)msg.getHops());
+        buf.writeInt((int)msg.getTransactionId());
+        buf.writeShort((short)msg.getSecs());
+        buf.writeShort((short)msg.getFlags());
+        writeAddress(buf, msg.getCiAddr());
+        writeAddress(buf, msg.getYiAddr());
+        writeAddress(buf, msg.getSiAddr());
+        writeAddress(buf, msg.getGiAddr());
+        buf.writeBytes(Arrays.copyOf(msg.getChAddr(), 16));	// pad to 16 bytes for encoded packet
         
         StringBuffer sNameBuf = new StringBuffer();
-        if (sName != null) {
-        	sNameBuf.append(sName);
+        if (msg.getsName() != null) {
+        	sNameBuf.append(msg.getsName());
         }
-        sNameBuf.setLength(64-sNameBuf.length());
-        messageByteBuf.writeBytes(sNameBuf.toString().getBytes());
+        sNameBuf.setLength(64);		// pad or truncate to 64 bytes
+        buf.writeBytes(sNameBuf.toString().getBytes());
         
         StringBuffer fileBuf = new StringBuffer();
-        if (file != null) {
-        	fileBuf.append(file);
+        if (msg.getFile() != null) {
+        	fileBuf.append(msg.getFile());
         }
-        fileBuf.setLength(128-fileBuf.length());
-        messageByteBuf.writeBytes(fileBuf.toString().getBytes());
+        fileBuf.setLength(128);		// pad or truncate to 128 bytes
+        buf.writeBytes(fileBuf.toString().getBytes());
 
-        messageByteBuf.writeBytes(encodeOptionsAsByteBuf());
-    	int msglen = messageByteBuf.writerIndex();
+        encodeOptions(msg, buf);
+    	int msglen = buf.writerIndex() - start;
         if (log.isDebugEnabled())
             log.debug("DHCPv4 Message is " + msglen + " bytes");
         if (msglen < 300) {
         	int pad = 300 - msglen;
             if (log.isDebugEnabled())
                 log.debug("Padding with " + pad + " bytes to 300 byte (Bootp) minimum");
-        	messageByteBuf.writeBytes(new byte[pad]);
+        	buf.writeZero(pad);
         }
-        // don't need to flip Netty ByteBuf
-        // buf.flip();
         
         if (log.isDebugEnabled())
             log.debug("DhcpMessage encoded.");
-        
-        return messageByteBuf.nioBuffer();
+    }
+    
+    private static void writeAddress(ByteBuf buf, InetAddress inetAddr)
+    {
+        if (inetAddr != null) {
+        	buf.writeBytes(inetAddr.getAddress());
+        }
+        else {
+        	buf.writeBytes(DhcpConstants.ZEROADDR_V4.getAddress());
+        }
     }
 
     /**
-     * Encode the options of this DhcpMessage to wire format for sending.
+     * Encode the options of a DhcpMessage to wire format for sending.
      * 
-     * @return	a ByteBuffer containing the encoded options
+     * @param msg	the DhcpMessage
+     * @param buf	the ByteBuf to write the encoded options to
      * @throws IOException
      */
-    protected ByteBuf encodeOptionsAsByteBuf() throws IOException
+    public static void encodeOptions(DhcpV4Message msg, ByteBuf buf) throws IOException
     {
-        optionsByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(788);	// 788 - 236 = 1020 (options)
+        Map<Integer, DhcpOption> dhcpOptions = msg.getDhcpOptionMap();
         if (dhcpOptions != null) {
         	// magic cookie as per rfc1497
-        	optionsByteBuf.writeBytes(magicCookie);
+        	buf.writeBytes(magicCookie);
         	for (DhcpOption option : dhcpOptions.values()) {
-        		optionsByteBuf.writeBytes(option.encode());
+        		OptionWireCache.write(option, buf);
             }
-        	optionsByteBuf.writeByte((byte)DhcpConstants.V4OPTION_EOF);	// end option
+        	buf.writeByte((byte)DhcpConstants.V4OPTION_EOF);	// end option
         }
+    }
+
+    /**
+     * Encode the options of this DhcpMessage to wire format for sending.
+     * 
+     * @return	a ByteBuf containing the encoded options
+     * @throws IOException
+     */
+    protected ByteBuf encodeOptionsAsByteBuf() throws IOException
+    {
+        optionsByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(788);	// 788 - 236 = 1020 (options)
+        encodeOptions(this, optionsByteBuf);
         return optionsByteBuf;
     }
 }
@@ -3,17 +3,21 @@ package com.jagornet.dhcp.server.netty;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.message.DhcpV6RelayMessage;
 import com.jagornet.dhcp.core.message.DhcpV6TransactionId;
 import com.jagornet.dhcp.core.option.base.DhcpOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6IaNaOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6IaPdOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6IaTaOption;
 import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.config.OptionWireCache;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
@@ -48,52 +52,85 @@ public class NettyDhcpV6Message extends DhcpV6Message {
 	@Override
     public ByteBuffer encode() throws IOException
     {
+        messageByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
+        encode(this, messageByteBuf);
+        // don't need to flip Netty ByteBuf
+        return messageByteBuf.nioBuffer();
+    }
+
+    /**
+     * Encode a DhcpMessage to wire format for sending.  The options
+     * configured for the server are copied from the OptionWireCache.
+     * 
+     * @param msg	the DhcpMessage to encode
+     * @param buf	the ByteBuf to write the encoded DhcpMessage to
+     * @throws IOException
+     */
+    public static void encode(DhcpV6Message msg, ByteBuf buf) throws IOException
+    {
+        if (msg instanceof DhcpV6RelayMessage) {
+        	// the relay message encodes the relayed message within its options
+        	buf.writeBytes(msg.encode());
+        	return;
+        }
+        
         if (log.isDebugEnabled())
             log.debug("Encoding DhcpMessage for: " + 
-            		Util.socketAddressAsString(remoteAddress));
+            		Util.socketAddressAsString(msg.getRemoteAddress()));
         
-        messageByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1024);
-        messageByteBuf.writeByte((byte)messageType);
-        messageByteBuf.writeBytes(DhcpV6TransactionId.encode(transactionId));
-        messageByteBuf.writeBytes(encodeOptions());
-        // don't need to flip Netty ByteBuf
-        // buf.flip();
+        buf.writeByte((byte)msg.getMessageType());
+        buf.writeBytes(DhcpV6TransactionId.encode(msg.getTransactionId()));
+        encodeOptions(msg, buf);
         
         if (log.isDebugEnabled())
             log.debug("DhcpMessage encoded.");
-        
-        return messageByteBuf.nioBuffer();
     }
 
     /**
-     * Encode the options of this DhcpMessage to wire format for sending.
+     * Encode the options of a DhcpMessage to wire format for sending.
      * 
-     * @return	a ByteBuffer containing the encoded options
+     * @param msg	the DhcpMessage
+     * @param buf	the ByteBuf to write the encoded options to
      * @throws IOException
      */
-    protected ByteBuf encodeOptionsAsByteBuf() throws IOException
+    public static void encodeOptions(DhcpV6Message msg, ByteBuf buf) throws IOException
     {
-        optionsByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1020); // 1024 - 1(msgType) - 3(transId) = 1020 (options)
+        Map<Integer, DhcpOption> dhcpOptions = msg.getDhcpOptionMap();
         if (dhcpOptions != null) {
             for (DhcpOption option : dhcpOptions.values()) {
-            	optionsByteBuf.writeBytes(option.encode());
+            	OptionWireCache.write(option, buf);
             }
         }
+        List<DhcpV6IaNaOption> iaNaOptions = msg.getIaNaOptions();
         if (iaNaOptions != null) {
         	for (DhcpV6IaNaOption iaNaOption : iaNaOptions) {
-        		optionsByteBuf.writeBytes(iaNaOption.encode());
+        		buf.writeBytes(iaNaOption.encode());
 			}
         }
+        List<DhcpV6IaTaOption> iaTaOptions = msg.getIaTaOptions();
         if (iaTaOptions != null) {
         	for (DhcpV6IaTaOption iaTaOption : iaTaOptions) {
-        		optionsByteBuf.writeBytes(iaTaOption.encode());
+        		buf.writeBytes(iaTaOption.encode());
 			}
         }
+        List<DhcpV6IaPdOption> iaPdOptions = msg.getIaPdOptions();
         if (iaPdOptions != null) {
         	for (DhcpV6IaPdOption iaPdOption : iaPdOptions) {
-        		optionsByteBuf.writeBytes(iaPdOption.encode());
+        		buf.writeBytes(iaPdOption.encode());
 			}
         }
+    }
+
+    /**
+     * Encode the options of this DhcpMessage to wire format for sending.
+     * 
+     * @return	a ByteBuf containing the encoded options
+     * @throws IOException
+     */
+    protected ByteBuf encodeOptionsAsByteBuf() throws IOException
+    {
+        optionsByteBuf = PooledByteBufAllocator.DEFAULT.directBuffer(1020); // 1024 - 1(msgType) - 3(transId) = 1020 (options)
+        encodeOptions(this, optionsByteBuf);
         return optionsByteBuf;
     }
 }
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file ProcessingLanes.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.core.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.core.option.v6.DhcpV6RelayOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+
+/**
+ * Title: ProcessingLanes
+ * Description: Single threaded lanes for processing the DHCP messages,
+ * as an alternative to one unordered pool of threads.  The messages are
+ * hashed onto the lanes by client or by link, so that the messages of
+ * one client, or of one link and its pools, are processed in order and
+ * never at the same time.
+ *
+ * @author A. Gregory Rabil
+ */
+public class ProcessingLanes
+{
+	private static Logger log = LoggerFactory.getLogger(ProcessingLanes.class);
+
+	/** How the messages are hashed onto the lanes. */
+	public enum Partition { NONE, CLIENT, LINK };
+
+	private final Partition partition;
+	private final Lane[] lanes;
+
+	/**
+	 * Create the lanes.
+	 *
+	 * @param partition how the messages are hashed onto the lanes
+	 * @param count the number of lanes
+	 */
+	public ProcessingLanes(Partition partition, int count)
+	{
+		this.partition = partition;
+		lanes = new Lane[Math.max(1, count)];
+		for (int i=0; i<lanes.length; i++) {
+			lanes[i] = new Lane(i);
+		}
+		log.info("Processing lanes created: partition=" + partition +
+				" lanes=" + lanes.length);
+	}
+
+	public Partition getPartition()
+	{
+		return partition;
+	}
+
+	/**
+	 * Process a DHCPv4 message on the lane of its client or link.
+	 *
+	 * @param msg the message
+	 * @param task the processing of the message
+	 */
+	public void execute(DhcpV4Message msg, Runnable task)
+	{
+		execute(partitionKey(msg), task);
+	}
+
+	/**
+	 * Process a DHCPv6 message on the lane of its client or link.
+	 *
+	 * @param msg the message
+	 * @param task the processing of the message
+	 */
+	public void execute(DhcpV6Message msg, Runnable task)
+	{
+		execute(partitionKey(msg), task);
+	}
+
+	/**
+	 * Process a task on the lane of the key.
+	 *
+	 * @param key the hash of the client or link
+	 * @param task the task
+	 */
+	public void execute(int key, Runnable task)
+	{
+		// spread the hash, as for HashMap, before choosing the lane
+		int h = key ^ (key >>> 16);
+		lanes[(h & 0x7fffffff) % lanes.length].execute(task);
+	}
+
+	/**
+	 * The key of a DHCPv4 message, which is the hardware address of the
+	 * client, or the relay address or local address which finds the link.
+	 *
+	 * @param msg the message
+	 * @return the key
+	 */
+	protected int partitionKey(DhcpV4Message msg)
+	{
+		if (partition == Partition.LINK) {
+			InetAddress giAddr = msg.getGiAddr();
+			if ((giAddr != null) && !giAddr.equals(DhcpConstants.ZEROADDR_V4)) {
+				return giAddr.hashCode();
+			}
+			return msg.getLocalAddress().getAddress().hashCode();
+		}
+		return Arrays.hashCode(msg.getChAddr());
+	}
+
+	/**
+	 * The key of a DHCPv6 message, which is the DUID of the client, or
+	 * the link address of the relay nearest the client, or the local
+	 * address, which finds the link.
+	 *
+	 * @param msg the message
+	 * @return the key
+	 */
+	protected int partitionKey(DhcpV6Message msg)
+	{
+		InetAddress linkAddr = null;
+		DhcpV6Message clientMsg = msg;
+		while (clientMsg instanceof DhcpV6RelayMessage) {
+			DhcpV6RelayMessage relayMsg = (DhcpV6RelayMessage) clientMsg;
+			if ((relayMsg.getLinkAddress() != null) &&
+					!relayMsg.getLinkAddress().isAnyLocalAddress()) {
+				linkAddr = relayMsg.getLinkAddress();
+			}
+			DhcpV6RelayOption relayOption = relayMsg.getRelayOption();
+			if (relayOption == null) {
+				break;
+			}
+			clientMsg = relayOption.getDhcpMessage();
+		}
+		if (partition == Partition.LINK) {
+			if (linkAddr != null) {
+				return linkAddr.hashCode();
+			}
+			return msg.getLocalAddress().getAddress().hashCode();
+		}
+		if (clientMsg != null) {
+			DhcpV6ClientIdOption clientId = clientMsg.getDhcpClientIdOption();
+			if ((clientId != null) && (clientId.getOpaqueData() != null)) {
+				byte[] duid = clientId.getOpaqueData().getHex();
+				if (duid != null) {
+					return Arrays.hashCode(duid);
+				}
+				return clientId.getOpaqueData().getAscii().hashCode();
+			}
+		}
+		return msg.getRemoteAddress().hashCode();
+	}
+
+	/**
+	 * Shut down the lanes.  The queued messages are dropped.
+	 */
+	public void shutdown()
+	{
+		log.info("Shutting down processing lanes: " + this);
+		for (Lane lane : lanes) {
+			lane.executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the number of lanes
+	 */
+	public int getLaneCount()
+	{
+		return lanes.length;
+	}
+
+	/**
+	 * @return the number of messages waiting on each lane
+	 */
+	public int[] getLaneDepths()
+	{
+		int[] depths = new int[lanes.length];
+		for (int i=0; i<lanes.length; i++) {
+			depths[i] = lanes[i].executor.getQueue().size();
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the number of messages waiting on all the lanes
+	 */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (Lane lane : lanes) {
+			depth += lane.executor.getQueue().size();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return the number of messages processed on each lane
+	 */
+	public long[] getLaneProcessed()
+	{
+		long[] processed = new long[lanes.length];
+		for (int i=0; i<lanes.length; i++) {
+			processed[i] = lanes[i].processed.get();
+		}
+		return processed;
+	}
+
+	/**
+	 * @return the average time a message waited on its lane, in microseconds
+	 */
+	public long getAverageWaitMicros()
+	{
+		long processed = 0;
+		long waitNanos = 0;
+		for (Lane lane : lanes) {
+			processed += lane.processed.get();
+			waitNanos += lane.waitNanos.get();
+		}
+		return (processed > 0) ? TimeUnit.NANOSECONDS.toMicros(waitNanos / processed) : 0;
+	}
+
+	/**
+	 * @return the longest time a message waited on its lane, in microseconds
+	 */
+	public long getMaxWaitMicros()
+	{
+		long max = 0;
+		for (Lane lane : lanes) {
+			max = Math.max(max, lane.maxWaitNanos.get());
+		}
+		return TimeUnit.NANOSECONDS.toMicros(max);
+	}
+
+	/**
+	 * @return the number of messages which failed on their lane
+	 */
+	public long getFailed()
+	{
+		long failed = 0;
+		for (Lane lane : lanes) {
+			failed += lane.failed.get();
+		}
+		return failed;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "partition=" + partition +
+				" laneDepths=" + Arrays.toString(getLaneDepths()) +
+				" laneProcessed=" + Arrays.toString(getLaneProcessed()) +
+				" averageWaitMicros=" + getAverageWaitMicros() +
+				" maxWaitMicros=" + getMaxWaitMicros() +
+				" failed=" + getFailed();
+	}
+
+	/**
+	 * One lane, with a single thread, so that its messages are processed
+	 * in the order they were received.
+	 */
+	static class Lane
+	{
+		final ThreadPoolExecutor executor;
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+		final AtomicLong maxWaitNanos = new AtomicLong();
+
+		Lane(final int index)
+		{
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "DhcpLane-" + index);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		void execute(final Runnable task)
+		{
+			final long queued = System.nanoTime();
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						long wait = System.nanoTime() - queued;
+						waitNanos.addAndGet(wait);
+						long max = maxWaitNanos.get();
+						while ((wait > max) && !maxWaitNanos.compareAndSet(max, wait)) {
+							max = maxWaitNanos.get();
+						}
+						try {
+							task.run();
+						}
+						catch (Throwable t) {
+							failed.incrementAndGet();
+							log.error("Message processing failed", t);
+						}
+						finally {
+							processed.incrementAndGet();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException ex) {
+				log.warn("Processing lane shut down, dropping message");
+			}
+		}
+	}
+}
@@ -37,8 +37,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +55,7 @@ import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.config.DhcpV4OptionConfigObject;
+import com.jagornet.dhcp.server.config.FilterMatcher;
 import com.jagornet.dhcp.server.ha.HaBackupFSM;
 import com.jagornet.dhcp.server.ha.HaPrimaryFSM;
 import com.jagornet.dhcp.server.netty.NettyDhcpV4Message;
@@ -92,7 +91,6 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
     protected List<Binding> bindings = new ArrayList<Binding>();
     protected static Set<DhcpV4Message> recentMsgs = 
     	Collections.synchronizedSet(new HashSet<DhcpV4Message>());
-    protected static Timer recentMsgPruner = new Timer("RecentMsgPruner");
     protected HaPrimaryFSM haPrimaryFSM;
     protected HaBackupFSM haBackupFSM; 
     
@@ -191,6 +189,8 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
      */
     public DhcpV4Message processMessage()
     {
+    	// remember the filter matches of the request while it is processed
+    	FilterMatcher.beginRequest(requestMsg);
     	try {
         	if (!preProcess()) {
         		log.warn("Message dropped by preProcess");
@@ -237,9 +237,15 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
 	        
     	}
     	finally {
-	        if (!postProcess()) {
-	    		log.warn("Message dropped by postProcess");
-	        	replyMsg = null;
+	        try {
+	        	if (!postProcess()) {
+	        		log.warn("Message dropped by postProcess");
+	        		replyMsg = null;
+	        	}
+	        }
+	        finally {
+	        	// forget the filter matches even if postProcess fails
+	        	FilterMatcher.endRequest();
 	        }
     	}
         
@@ -278,6 +284,7 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
         			" clientLinkAddress=" + clientLinkAddress.getHostAddress());
         	return false;	// must configure link for server to reply
         }
+        clientLink.requestReceived();
         
 		if (!clientLink.getState().equals(DhcpLink.State.OK)) {
 			log.warn("Link '" + clientLink.getLinkAddress() +
@@ -300,7 +307,8 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
 		long timer = DhcpServerPolicies.effectivePolicyAsLong(clientLink.getLink(),
 				Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER);
 		if (timer > 0) {
-			recentMsgPruner.schedule(new RecentMsgTimerTask(requestMsg), timer);
+			DhcpServerScheduler.getInstance().newTimeout("RecentMsgPruner",
+					new RecentMsgTimerTask(requestMsg), timer, TimeUnit.MILLISECONDS);
 		}
 */    	
     	return true;	// ok to process
@@ -574,7 +582,7 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
     /**
      * The Class RecentMsgTimerTask.
      */
-    class RecentMsgTimerTask extends TimerTask
+    class RecentMsgTimerTask implements Runnable
     {
     	
 	    /** The dhcp msg. */
@@ -591,7 +599,7 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
     	}
     	
     	/* (non-Javadoc)
-	     * @see java.util.TimerTask#run()
+	     * @see java.lang.Runnable#run()
 	     */
 	    @Override
     	public void run() {
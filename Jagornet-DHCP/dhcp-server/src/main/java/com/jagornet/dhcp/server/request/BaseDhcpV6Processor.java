@@ -36,8 +36,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,6 +57,7 @@ import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.config.DhcpV6OptionConfigObject;
+import com.jagornet.dhcp.server.config.FilterMatcher;
 import com.jagornet.dhcp.server.config.xml.V6AddressPool;
 import com.jagornet.dhcp.server.config.xml.V6PrefixPool;
 import com.jagornet.dhcp.server.ha.HaBackupFSM;
@@ -97,7 +96,6 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
     protected List<Binding> bindings = new ArrayList<Binding>();
     protected static Set<DhcpV6Message> recentMsgs = 
     	Collections.synchronizedSet(new HashSet<DhcpV6Message>());
-    protected static Timer recentMsgPruner = new Timer("RecentMsgPruner");
     protected HaPrimaryFSM haPrimaryFSM;
     protected HaBackupFSM haBackupFSM; 
     
@@ -172,6 +170,8 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
      */
     public DhcpV6Message processMessage()
     {
+    	// remember the filter matches of the request while it is processed
+    	FilterMatcher.beginRequest(requestMsg);
     	try {
         	if (!preProcess()) {
         		log.warn("Message dropped by preProcess");
@@ -212,9 +212,15 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
 	        
     	}
     	finally {
-	        if (!postProcess()) {
-	    		log.warn("Message dropped by postProcess");
-	        	replyMsg = null;
+	        try {
+	        	if (!postProcess()) {
+	        		log.warn("Message dropped by postProcess");
+	        		replyMsg = null;
+	        	}
+	        }
+	        finally {
+	        	// forget the filter matches even if postProcess fails
+	        	FilterMatcher.endRequest();
 	        }
     	}
         
@@ -239,6 +245,13 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
         			" clientLinkAddress=" + clientLinkAddress.getHostAddress());
         	return false;	// must configure link for server to reply
         }
+        clientLink.requestReceived();
+        
+        if (clientLink.getState() == DhcpLink.State.LOADING) {
+        	log.warn("Link '" + clientLink.getLinkAddress() +
+        			"' is unavailable: state=" + clientLink.getState());
+        	return false;
+        }
 
 /* TODO: check if this DOS mitigation is useful
  * 
@@ -255,7 +268,8 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
 		long timer = DhcpServerPolicies.effectivePolicyAsLong(clientLink.getLink(),
 				Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER);
 		if (timer > 0) {
-			recentMsgPruner.schedule(new RecentMsgTimerTask(requestMsg), timer);
+			DhcpServerScheduler.getInstance().newTimeout("RecentMsgPruner",
+					new RecentMsgTimerTask(requestMsg), timer, TimeUnit.MILLISECONDS);
 		}
 */    	
     	return true;	// ok to process
@@ -1083,7 +1097,7 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
     /**
      * The Class RecentMsgTimerTask.
      */
-    class RecentMsgTimerTask extends TimerTask
+    class RecentMsgTimerTask implements Runnable
     {
     	
 	    /** The dhcp msg. */
@@ -1100,7 +1114,7 @@ public abstract class BaseDhcpV6Processor implements DhcpV6MessageProcessor
     	}
     	
     	/* (non-Javadoc)
-	     * @see java.util.TimerTask#run()
+	     * @see java.lang.Runnable#run()
 	     */
 	    @Override
     	public void run() {
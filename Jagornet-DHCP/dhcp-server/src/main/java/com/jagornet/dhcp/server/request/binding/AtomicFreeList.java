@@ -0,0 +1,376 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file AtomicFreeList.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+
+/**
+ * The Class AtomicFreeList.  A lock-free FreeList for ranges where the
+ * difference between the end and the start of the range fits in 64 bits,
+ * i.e. any IPv4 range and any IPv6 range up to a /64.
+ *
+ * Addresses are tracked as unsigned long offsets from the start of the range
+ * in a lazily allocated 64-ary tree.  Each leaf node holds 64 words of 64 bits,
+ * and each node keeps a "full" summary mask with one bit per child word or
+ * child node.  Finding the next free address descends the tree following the
+ * lowest clear summary bit, so the search is O(log n), and a free address is
+ * claimed with a compare-and-set on its bitmap word, so no lock is needed.
+ * Subtrees which have never been touched are not allocated, and are free.
+ *
+ * The summary masks are hints: a set bit is always re-validated after it is
+ * set, and a stale clear bit is repaired by the search when it is found.
+ *
+ * @author A. Gregory Rabil
+ */
+public class AtomicFreeList extends FreeList
+{
+	/** number of bits per level of the tree */
+	private static final int FANOUT_BITS = 6;
+	private static final int FANOUT = 1 << FANOUT_BITS;
+	private static final int FANOUT_MASK = FANOUT - 1;
+
+	/** a leaf node holds FANOUT words of FANOUT bits */
+	private static final int LEAF_BITS = FANOUT_BITS * 2;
+
+	private static final long ALL_SET = -1L;
+	private static final BigInteger TWO_TO_64 = BigInteger.ONE.shiftLeft(64);
+
+	/**
+	 * A node of the tree.  A leaf node has words, an interior node has children.
+	 */
+	private static final class Node
+	{
+		final AtomicLong full = new AtomicLong();
+		final AtomicLongArray words;
+		final AtomicReferenceArray<Node> children;
+
+		Node(boolean leaf)
+		{
+			if (leaf) {
+				words = new AtomicLongArray(FANOUT);
+				children = null;
+			}
+			else {
+				words = null;
+				children = new AtomicReferenceArray<Node>(FANOUT);
+			}
+		}
+
+		boolean isChildFull(int ndx)
+		{
+			if (words != null) {
+				return (words.get(ndx) == ALL_SET);
+			}
+			Node child = children.get(ndx);
+			return ((child != null) && (child.full.get() == ALL_SET));
+		}
+	}
+
+	/** the largest offset in the range, as an unsigned long */
+	protected final long maxOffset;
+
+	/** the start of the range as a long, if it fits, which is always for IPv4 */
+	protected final long startLong;
+	protected final boolean startFitsLong;
+
+	/** number of interior levels above the leaf level */
+	protected final int levels;
+
+	private final Node root;
+
+	/**
+	 * Instantiates a new atomic free list.
+	 *
+	 * @param start the range start
+	 * @param end the range end
+	 */
+	public AtomicFreeList(BigInteger start, BigInteger end) throws DhcpServerConfigException
+	{
+		super(start, end);
+		bitsetRanges = null;	// not used by this implementation
+		BigInteger max = end.subtract(start);
+		if (!fitsLongOffsets(start, end)) {
+			throw new DhcpServerConfigException("Failed to create AtomicFreeList: range size " +
+						max.add(BigInteger.ONE) + " exceeds 64 bits");
+		}
+		maxOffset = max.longValue();
+		startFitsLong = (start.bitLength() < 64);
+		startLong = start.longValue();
+		int bits = max.bitLength();
+		int lvls = 0;
+		while (LEAF_BITS + (lvls * FANOUT_BITS) < bits) {
+			lvls++;
+		}
+		levels = lvls;
+		root = new Node(levels == 0);
+	}
+
+	/**
+	 * Test if a range can be managed by an AtomicFreeList.
+	 *
+	 * @param start the range start
+	 * @param end the range end
+	 *
+	 * @return true, if the size of the range fits in 64 bits
+	 */
+	public static boolean fitsLongOffsets(BigInteger start, BigInteger end)
+	{
+		return (end.subtract(start).bitLength() <= 64);
+	}
+
+	/**
+	 * Gets the offset into the range for the given BigInteger
+	 *
+	 * @param bi the bi
+	 *
+	 * @return the unsigned offset
+	 */
+	protected long toOffset(BigInteger bi)
+	{
+		if (startFitsLong && (bi.bitLength() < 64)) {
+			return bi.longValue() - startLong;
+		}
+		return bi.subtract(start).longValue();
+	}
+
+	/**
+	 * Gets the BigInteger for the given offset into the range
+	 *
+	 * @param offset the unsigned offset
+	 *
+	 * @return the BigInteger
+	 */
+	protected BigInteger fromOffset(long offset)
+	{
+		if (startFitsLong && (offset >= 0)) {
+			long value = startLong + offset;
+			// check for signed overflow of the addition
+			if (((startLong ^ value) & (offset ^ value)) >= 0) {
+				return BigInteger.valueOf(value);
+			}
+		}
+		BigInteger bi = BigInteger.valueOf(offset);
+		if (offset < 0) {
+			bi = bi.add(TWO_TO_64);
+		}
+		return start.add(bi);
+	}
+
+	/**
+	 * Gets the index of the child at the given level for the given offset.
+	 * Level zero is the leaf level, where the index is that of the word.
+	 */
+	private static int childIndex(long offset, int level)
+	{
+		return (int) (offset >>> (FANOUT_BITS + (level * FANOUT_BITS))) & FANOUT_MASK;
+	}
+
+	/**
+	 * Gets the child node, creating it if necessary.
+	 */
+	private Node getOrCreateChild(Node node, int ndx, int childLevel)
+	{
+		Node child = node.children.get(ndx);
+		if (child == null) {
+			child = new Node(childLevel == 0);
+			if (!node.children.compareAndSet(ndx, null, child)) {
+				child = node.children.get(ndx);
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * Fill in the path from the root to the leaf for the given offset.
+	 *
+	 * @param offset the offset
+	 * @param path the nodes on the path, indexed by level
+	 * @param create if true, create the nodes along the path
+	 *
+	 * @return the leaf node, or null if not created
+	 */
+	private Node walk(long offset, Node[] path, boolean create)
+	{
+		Node node = root;
+		for (int level = levels; level > 0; level--) {
+			path[level] = node;
+			int ndx = childIndex(offset, level);
+			Node child = create ? getOrCreateChild(node, ndx, level - 1) : node.children.get(ndx);
+			if (child == null) {
+				return null;
+			}
+			node = child;
+		}
+		path[0] = node;
+		return node;
+	}
+
+	/**
+	 * Set the "full" summary bit for the given child, and re-validate it
+	 * afterward in case the child was freed concurrently.  Propagate up
+	 * the path while nodes become full.
+	 */
+	private void markFull(Node[] path, long offset, int level)
+	{
+		while (level <= levels) {
+			Node node = path[level];
+			long bit = 1L << childIndex(offset, level);
+			long mask = node.full.getAndUpdate(m -> m | bit) | bit;
+			if (!node.isChildFull(childIndex(offset, level))) {
+				// lost a race with a free, so undo the hint
+				node.full.getAndUpdate(m -> m & ~bit);
+				return;
+			}
+			if (mask != ALL_SET) {
+				return;
+			}
+			level++;
+		}
+	}
+
+	/**
+	 * Clear the "full" summary bits along the path for the given offset.
+	 */
+	private void markNotFull(Node[] path, long offset)
+	{
+		for (int level = 0; level <= levels; level++) {
+			Node node = path[level];
+			long bit = 1L << childIndex(offset, level);
+			if ((node.full.get() & bit) != 0) {
+				node.full.getAndUpdate(m -> m & ~bit);
+			}
+		}
+	}
+
+	@Override
+	protected void set(BigInteger bi, boolean used)
+	{
+		if (isInList(bi)) {
+			long offset = toOffset(bi);
+			Node[] path = new Node[levels + 1];
+			Node leaf = walk(offset, path, used);
+			if (leaf == null) {
+				return;		// never allocated, so already free
+			}
+			int wordNdx = childIndex(offset, 0);
+			long bit = 1L << (offset & FANOUT_MASK);
+			if (used) {
+				long word = leaf.words.getAndUpdate(wordNdx, w -> w | bit) | bit;
+				if (word == ALL_SET) {
+					markFull(path, offset, 0);
+				}
+			}
+			else {
+				leaf.words.getAndUpdate(wordNdx, w -> w & ~bit);
+				markNotFull(path, offset);
+			}
+		}
+	}
+
+	@Override
+	public boolean isUsed(BigInteger used)
+	{
+		if (isInList(used)) {
+			long offset = toOffset(used);
+			Node leaf = walk(offset, new Node[levels + 1], false);
+			if (leaf != null) {
+				return ((leaf.words.get(childIndex(offset, 0)) & (1L << (offset & FANOUT_MASK))) != 0);
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public BigInteger getNextFree()
+	{
+		Node[] path = new Node[levels + 1];
+		retry:
+		while (true) {
+			Node node = root;
+			long base = 0;
+			for (int level = levels; level >= 0; level--) {
+				path[level] = node;
+				long mask = node.full.get();
+				if (mask == ALL_SET) {
+					if (level == levels) {
+						return null;	// the whole tree is full
+					}
+					// stale hint in the parent, so repair it and start over
+					markFull(path, base, level + 1);
+					continue retry;
+				}
+				int ndx = Long.numberOfTrailingZeros(~mask);
+				int shift = FANOUT_BITS + (level * FANOUT_BITS);
+				if ((shift > (64 - FANOUT_BITS)) && ((ndx >>> (64 - shift)) != 0)) {
+					return null;	// past the top of the 64-bit offset space
+				}
+				long childBase = base | ((long) ndx << shift);
+				if (Long.compareUnsigned(childBase, maxOffset) > 0) {
+					return null;	// the free space is beyond the end of the range
+				}
+				if (level > 0) {
+					node = getOrCreateChild(node, ndx, level - 1);
+					base = childBase;
+				}
+				else {
+					long word = node.words.get(ndx);
+					if (word == ALL_SET) {
+						markFull(path, childBase, 0);
+						continue retry;
+					}
+					long bitNdx = Long.numberOfTrailingZeros(~word);
+					long offset = childBase | bitNdx;
+					if (Long.compareUnsigned(offset, maxOffset) > 0) {
+						return null;
+					}
+					long claimed = word | (1L << bitNdx);
+					if (node.words.compareAndSet(ndx, word, claimed)) {
+						if (claimed == ALL_SET) {
+							markFull(path, offset, 0);
+						}
+						return fromOffset(offset);
+					}
+					continue retry;
+				}
+			}
+		}
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("AtomicFreeList:");
+		sb.append(" start=" + start);
+		sb.append(" end=" + end);
+		sb.append(" levels=" + levels);
+		sb.append(" rootFull=" + Long.toHexString(root.full.get()));
+		return sb.toString();
+	}
+}
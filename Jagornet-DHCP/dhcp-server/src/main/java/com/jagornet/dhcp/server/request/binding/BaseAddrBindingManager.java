@@ -26,17 +26,18 @@
 package com.jagornet.dhcp.server.request.binding;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jagornet.dhcp.core.message.DhcpMessage;
 import com.jagornet.dhcp.core.util.Util;
+import com.jagornet.dhcp.server.DhcpServerScheduler;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.db.IaAddress;
@@ -66,14 +67,38 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 		long reaperRunPeriod =
 			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_RUN_PERIOD);
 
-		reaper = new Timer("BindingReaper");
-		reaper.schedule(new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod);
+		initExpirationQueue();
+		reaper = DhcpServerScheduler.getInstance().scheduleWithFixedDelay("BindingReaper",
+				new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod, TimeUnit.MILLISECONDS);
 	}
 	
 	protected void stopReaper()
 	{
-		reaper.cancel();
-		reaper.purge();
+		if (reaper != null) {
+			reaper.cancel(false);
+		}
+		expirationQueue.clear();
+	}
+	
+	/**
+	 * Hook the binding pools to the expiration queue, and load the queue.
+	 */
+	@Override
+	protected void initExpirationQueue()
+	{
+		if (bindingPoolMap != null) {
+			for (List<? extends BindingPool> bps : bindingPoolMap.values()) {
+				for (BindingPool bp : bps) {
+					if (bp instanceof V4AddressBindingPool) {
+						((V4AddressBindingPool)bp).setExpirationQueue(expirationQueue);
+					}
+					else if (bp instanceof V6AddressBindingPool) {
+						((V6AddressBindingPool)bp).setExpirationQueue(expirationQueue);
+					}
+				}
+			}
+		}
+		super.initExpirationQueue();
 	}
     
     /**
@@ -82,14 +107,6 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
      * @param iaAddr the released or expired IaAddress 
      */
     protected abstract void ddnsDelete(IdentityAssoc ia, IaAddress iaAddr);
-    
-    /**
-     * Return the IA type for this binding.  This is a hack to allow consolidated
-     * code in this base class (i.e. expireAddresses) for use by the subclasses.
-     * 
-     * @return
-     */
-    protected abstract byte getIaType();
 	
     /**
      * Release an IaAddress.  If policy dictates, the address will be deleted,
@@ -101,6 +118,7 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	public void releaseIaAddress(IdentityAssoc ia, IaAddress iaAddr)
 	{
 		try {
+			expirationQueue.cancel(iaAddr.getIpAddress());
 			log.info("Releasing address: " + iaAddr.getIpAddress().getHostAddress());
 			ddnsDelete(ia, iaAddr);
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
@@ -138,6 +156,7 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	public void declineIaAddress(IdentityAssoc ia, IaAddress iaAddr)
 	{
 		try {
+			expirationQueue.cancel(iaAddr.getIpAddress());
 			log.info("Declining address: " + iaAddr.getIpAddress().getHostAddress());
 			ddnsDelete(ia, iaAddr);
 			iaAddr.setStartTime(null);
@@ -160,6 +179,7 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	public void expireIaAddress(IdentityAssoc ia, IaAddress iaAddr)
 	{
 		try {
+			expirationQueue.cancel(iaAddr.getIpAddress());
 			log.info("Expiring address: " + iaAddr.getIpAddress().getHostAddress());
 			ddnsDelete(ia, iaAddr);
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
@@ -215,19 +235,32 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 		}
 	}
 	
+	@Override
+	protected void expireQueuedLease(IdentityAssoc ia, IaAddress iaAddr)
+	{
+		expireIaAddress(ia, iaAddr);
+	}
+	
 	/**
 	 * The Class ReaperTimerTask.
 	 */
-	class ReaperTimerTask extends TimerTask
+	class ReaperTimerTask implements Runnable
 	{		
 		/* (non-Javadoc)
-		 * @see java.util.TimerTask#run()
+		 * @see java.lang.Runnable#run()
 		 */
 		@Override
 		public void run() {
-			log.debug("Looking for expired addresses of type: " +
-					IdentityAssoc.iaTypeToString(getIaType()) + "...");
-			expireAddresses();
+			long now = new Date().getTime();
+			if (isFullScanDue(now)) {
+				log.debug("Looking for expired addresses of type: " +
+						IdentityAssoc.iaTypeToString(getIaType()) + "...");
+				expireAddresses();
+				lastFullScanTime = now;
+			}
+			else {
+				expireQueuedLeases();
+			}
 			
 			/*
 			 * Confirmed via below that DhcpLeasesResource.ipstream does not leak file descriptors
@@ -37,7 +37,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
@@ -50,8 +52,11 @@ import com.jagornet.dhcp.server.config.DhcpConfigObject;
 import com.jagornet.dhcp.server.config.DhcpLink;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.config.xml.Link;
 import com.jagornet.dhcp.server.config.xml.LinkFilter;
+import com.jagornet.dhcp.server.db.DhcpLease;
 import com.jagornet.dhcp.server.db.DhcpOption;
 import com.jagornet.dhcp.server.db.IaAddress;
 import com.jagornet.dhcp.server.db.IaManager;
@@ -77,29 +82,64 @@ public abstract class BaseBindingManager
      */
     protected Map<String, List<? extends BindingPool>> bindingPoolMap;
     
+    /**
+     * The index of the BindingPools of each link, keyed by link address,
+     * and the index of the BindingPools of all links, for finding the pool
+     * of an address without searching every pool.  Rebuilt with the pool map.
+     */
+    protected volatile Map<String, BindingPoolIndex> linkPoolIndexMap;
+    protected volatile BindingPoolIndex bindingPoolIndex;
+    
     /**
      * The map of static bindings for this manager.  The key is the link address
      * and the value is the list of configured StaticBindings for the link. 
      */
     protected Map<String, List<? extends StaticBinding>> staticBindingMap;
+    
+    /**
+     * The index of the static bindings of each link, by link address,
+     * for finding the static binding of a client without a scan.
+     */
+    protected Map<String, StaticBindingIndex> staticBindingIndexMap;
 
-	/** The reaper thread for cleaning expired bindings. */
-	protected Timer reaper;
+	/** The reaper task for cleaning expired bindings. */
+	protected ScheduledFuture<?> reaper;
+	
+	/** The queue of leased addresses, in order of expiration. */
+	protected LeaseExpirationQueue expirationQueue = new LeaseExpirationQueue();
+	
+	/** the maximum number of queued expirations processed per reaper run */
+	protected static final int MAX_EXPIRATIONS_PER_RUN = 10000;
+	
+	/** The time of the last full scan for expired addresses. */
+	protected long lastFullScanTime;
 	
 	/** The lock for access to the reuseAvailableAddress method */
 	// the ReentrantLock class is better than synchronized
 	private final ReentrantLock lock = new ReentrantLock();
 	
+	/**
+	 * The lock for reconciling the database with the pools.  A reconcile
+	 * deletes the bindings outside of the given ranges, so the reconciles
+	 * of all the managers and links are run one at a time, even when the
+	 * pools are built in parallel.
+	 */
+	private static final ReentrantLock reconcileLock = new ReentrantLock();
+	
+	/** The time spent reconciling, including waiting for the lock. */
+	private final AtomicLong reconcileNanos = new AtomicLong();
+	
 	/**
 	 * Initialize the manager.  Read the configuration and build
-	 * the pool map and static bindings.
+	 * the pool map and static bindings, with a BindingManagerLoader
+	 * for this manager alone.
 	 * @throws DhcpServerConfigException
 	 */
 	public void init() throws DhcpServerConfigException
 	{
-		initPoolMap();
-		initStaticBindings();
-		startReaper();
+		BindingManagerLoader loader = new BindingManagerLoader(serverConfig.getLinkMap());
+		loader.addManager(getClass().getSimpleName(), this);
+		loader.load();
 	}
 	
 	public void close()
@@ -107,28 +147,119 @@ public abstract class BaseBindingManager
 		stopReaper();
 	}
 	
+	/**
+	 * Prepare the manager for loading the links one at a time with
+	 * initLinkPools and initLinkStaticBindings, so that the links of all
+	 * the managers can be loaded in parallel by a BindingManagerLoader.
+	 * The maps are concurrent, because the links which are loaded are
+	 * used to answer requests while the other links are loading.
+	 */
+	public void beginInit()
+	{
+		// the reaper of a manager which is loaded again
+		stopReaper();
+		serverConfig.clearEffectiveOptions();
+		bindingPoolMap = new ConcurrentHashMap<String, List<? extends BindingPool>>();
+		linkPoolIndexMap = new ConcurrentHashMap<String, BindingPoolIndex>();
+		bindingPoolIndex = null;
+		staticBindingMap = new ConcurrentHashMap<String, List<? extends StaticBinding>>();
+		staticBindingIndexMap = new ConcurrentHashMap<String, StaticBindingIndex>();
+	}
+	
+	/**
+	 * Build the pools of one link, after beginInit.
+	 * 
+	 * @param dhcpLink the link
+	 * @throws DhcpServerConfigException the exception
+	 */
+	public void initLinkPools(DhcpLink dhcpLink) throws DhcpServerConfigException
+	{
+		List<? extends BindingPool> bindingPools = buildBindingPools(dhcpLink.getLink());
+		if ((bindingPools != null) && !bindingPools.isEmpty()) {
+			bindingPoolMap.put(dhcpLink.getLinkAddress(), bindingPools);
+			linkPoolIndexMap.put(dhcpLink.getLinkAddress(), new BindingPoolIndex(bindingPools));
+		}
+	}
+	
+	/**
+	 * Build the static bindings of one link.
+	 * 
+	 * @param dhcpLink the link
+	 * @throws DhcpServerConfigException the exception
+	 */
+	public void initLinkStaticBindings(DhcpLink dhcpLink) throws DhcpServerConfigException
+	{
+		List<? extends StaticBinding> staticBindings = buildStaticBindings(dhcpLink.getLink());
+		if ((staticBindings != null) && !staticBindings.isEmpty()) {
+			staticBindingMap.put(dhcpLink.getLinkAddress(), staticBindings);
+			StaticBindingIndex index = new StaticBindingIndex(staticBindings);
+			staticBindingIndexMap.put(dhcpLink.getLinkAddress(), index);
+			if (log.isDebugEnabled()) {
+				log.debug("Indexed static bindings for link " + dhcpLink.getLinkAddress() +
+						": indexed=" + index.getIndexedCount() +
+						" scanned=" + index.getScannedCount());
+			}
+		}
+	}
+	
+	/**
+	 * Finish the initialization of the manager, after all the links have
+	 * been loaded.  Build the index of the pools of all links, and start
+	 * the reaper.
+	 */
+	public void completeInit()
+	{
+		SortedMap<Subnet, DhcpLink> linkMap = serverConfig.getLinkMap();
+		if (linkMap != null) {
+			initPoolIndex(linkMap);
+		}
+		startReaper();
+	}
+	
+	/**
+	 * Reconcile the database with the ranges of the pools of a link.
+	 * 
+	 * @param ranges the ranges of the pools
+	 */
+	protected void reconcileIaAddresses(List<Range> ranges)
+	{
+		long start = System.nanoTime();
+		reconcileLock.lock();
+		try {
+			iaMgr.reconcileIaAddresses(ranges);
+		}
+		finally {
+			reconcileLock.unlock();
+			reconcileNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * @return the milliseconds spent reconciling the pools with the database
+	 */
+	public long getReconcileMillis()
+	{
+		return reconcileNanos.get() / 1000000;
+	}
+	
     /**
-     * Initialize the pool map.  Read through the link map from the server's
-     * configuration and build the pool map keyed by link address with a
-     * value of the list of (na/ta/v4 address or prefix) bindings for the link.
+     * Build the pool indexes from the pool map.
      * 
-     * @throws DhcpServerConfigException the exception
+     * @param linkMap the configured links
      */
-    protected void initPoolMap() throws DhcpServerConfigException
+    protected void initPoolIndex(SortedMap<Subnet, DhcpLink> linkMap)
     {
-		SortedMap<Subnet, DhcpLink> linkMap = serverConfig.getLinkMap();
-		if ((linkMap != null) && !linkMap.isEmpty()) {
-    		bindingPoolMap = new HashMap<String, List<? extends BindingPool>>();
-			for (DhcpLink dhcpLink : linkMap.values()) {
-				List<? extends BindingPool> bindingPools = buildBindingPools(dhcpLink.getLink());
-				if ((bindingPools != null) && !bindingPools.isEmpty()) {
-					bindingPoolMap.put(dhcpLink.getLinkAddress(), bindingPools);
-				}
+    	Map<String, BindingPoolIndex> linkIndexMap = new HashMap<String, BindingPoolIndex>();
+    	List<BindingPool> allPools = new ArrayList<BindingPool>();
+		for (DhcpLink dhcpLink : linkMap.values()) {
+			List<? extends BindingPool> bindingPools = bindingPoolMap.get(dhcpLink.getLinkAddress());
+			if (bindingPools != null) {
+				linkIndexMap.put(dhcpLink.getLinkAddress(), new BindingPoolIndex(bindingPools));
+				allPools.addAll(bindingPools);
 			}
 		}
-		else {
-			log.error("LinkMap is null for DhcpServerConfiguration");
-		}
+		linkPoolIndexMap = linkIndexMap;
+		bindingPoolIndex = new BindingPoolIndex(allPools);
     }
 
     public Map<String, List<? extends BindingPool>> getBindingPoolMap() {
@@ -148,28 +279,6 @@ public abstract class BaseBindingManager
     		throws DhcpServerConfigException;
     
 	
-    /**
-     * Initialize the static bindings.  Read through the link map from the server's
-     * configuration and build the binding map keyed by link address with a
-     * value of the list of (na/ta/v4 address or prefix) bindings for the link.
-     * 
-     * 
-     * @throws DhcpServerConfigException the exception
-     */
-    protected void initStaticBindings() throws DhcpServerConfigException
-    {
-		SortedMap<Subnet, DhcpLink> linkMap = serverConfig.getLinkMap();
-		if (linkMap != null) {
-    		staticBindingMap = new HashMap<String, List<? extends StaticBinding>>();
-			for (DhcpLink dhcpLink : linkMap.values()) {
-				List<? extends StaticBinding> staticBindings = buildStaticBindings(dhcpLink.getLink());
-				if ((staticBindings != null) && !staticBindings.isEmpty()) {
-					staticBindingMap.put(dhcpLink.getLinkAddress(), staticBindings);
-				}
-			}
-		}
-    }
-
     public Map<String, List<? extends StaticBinding>> getStaticBindingMap() {
     	return staticBindingMap;
     }
@@ -192,6 +301,134 @@ public abstract class BaseBindingManager
 	 */
 	protected abstract void startReaper();
 	protected abstract void stopReaper();
+	
+	
+    /**
+     * Return the IA type for this binding.  This is a hack to allow consolidated
+     * code in the base classes (i.e. expireAddresses) for use by the subclasses.
+     * 
+     * @return
+     */
+    protected abstract byte getIaType();
+	
+	/**
+	 * Load the expiration queue with the current leases from the database.
+	 * Leases which are already expired are left to the full scan done by
+	 * the first reaper run.
+	 */
+	protected void initExpirationQueue()
+	{
+		List<IaAddress> iaAddrs = iaMgr.findUnexpiredIaAddresses(getIaType());
+		if (iaAddrs != null) {
+			for (IaAddress iaAddr : iaAddrs) {
+				expirationQueue.schedule(iaAddr.getIpAddress(), iaAddr.getValidEndTime());
+			}
+		}
+		log.info("Queued " + expirationQueue.size() + " lease expirations of type: " +
+				IdentityAssoc.iaTypeToString(getIaType()));
+	}
+	
+	/**
+	 * Queue, or cancel, the expiration of the addresses of a binding which
+	 * has been created or updated, according to the state of each address.
+	 * 
+	 * @param binding the created or updated binding
+	 */
+	protected void scheduleExpirations(Binding binding)
+	{
+		Collection<? extends IaAddress> iaAddrs = binding.getIaAddresses();
+		if (iaAddrs != null) {
+			for (IaAddress iaAddr : iaAddrs) {
+				if (iaAddr.getState() == IaAddress.LEASED) {
+					expirationQueue.schedule(iaAddr.getIpAddress(), iaAddr.getValidEndTime());
+				}
+				else {
+					expirationQueue.cancel(iaAddr.getIpAddress());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Queue, or cancel, the expiration of a lease which has been stored
+	 * without going through this manager, i.e. by the HA peer or the REST API.
+	 * 
+	 * @param dhcpLease the stored lease
+	 */
+	public void scheduleExpiration(DhcpLease dhcpLease)
+	{
+		if (dhcpLease.getState() == IaAddress.LEASED) {
+			expirationQueue.schedule(dhcpLease.getIpAddress(), dhcpLease.getValidEndTime());
+		}
+		else {
+			expirationQueue.cancel(dhcpLease.getIpAddress());
+		}
+	}
+	
+	public LeaseExpirationQueue getExpirationQueue()
+	{
+		return expirationQueue;
+	}
+	
+	/**
+	 * Callback from the reaper.  Expire the queued leases which have
+	 * expired since the last run.  Each lease is checked against the
+	 * database before it is expired, in case it was changed without
+	 * going through this manager.
+	 */
+	public void expireQueuedLeases()
+	{
+		long now = new Date().getTime();
+		List<InetAddress> expiredIps = 
+				expirationQueue.pollExpired(now, MAX_EXPIRATIONS_PER_RUN);
+		if (!expiredIps.isEmpty()) {
+			log.info("Found " + expiredIps.size() + " queued expirations of type: " + 
+					IdentityAssoc.iaTypeToString(getIaType()));
+			for (InetAddress inetAddr : expiredIps) {
+				IdentityAssoc ia = iaMgr.findIA(inetAddr);
+				if ((ia != null) && (ia.getIaAddresses() != null)) {
+					for (IaAddress iaAddr : ia.getIaAddresses()) {
+						if (!inetAddr.equals(iaAddr.getIpAddress()) ||
+								(iaAddr.getState() != IaAddress.LEASED)) {
+							continue;
+						}
+						Date validEndTime = iaAddr.getValidEndTime();
+						if ((validEndTime != null) && (validEndTime.getTime() >= now)) {
+							// renewed without going through the queue
+							expirationQueue.schedule(inetAddr, validEndTime);
+						}
+						else {
+							expireQueuedLease(ia, iaAddr);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Expire a lease taken from the expiration queue.
+	 * 
+	 * @param ia the IA of the lease
+	 * @param iaAddr the expired address or prefix
+	 */
+	protected abstract void expireQueuedLease(IdentityAssoc ia, IaAddress iaAddr);
+	
+	/**
+	 * Check if the reaper should scan the database for expired bindings,
+	 * instead of polling the expiration queue.  The first run, and then a
+	 * run every fullScanPeriod, is a full scan.
+	 * 
+	 * @param now the current time
+	 * @return true if a full scan is due
+	 */
+	protected boolean isFullScanDue(long now)
+	{
+		long fullScanPeriod = DhcpServerPolicies.globalPolicyAsLong(
+				Property.BINDING_MANAGER_REAPER_FULL_SCAN_PERIOD);
+		return (lastFullScanTime == 0) ||
+				((fullScanPeriod > 0) && (now - lastFullScanTime >= fullScanPeriod));
+	}
 
 	/**
 	 * Find binding pool for address in a message received on the given link.
@@ -205,9 +442,11 @@ public abstract class BaseBindingManager
 	protected BindingPool findBindingPool(Link link, InetAddress inetAddr, 
 			DhcpMessage requestMsg)
 	{
-		List<? extends BindingPool> bps = bindingPoolMap.get(link.getAddress());
-		if ((bps != null) && !bps.isEmpty()) {
-			for (BindingPool bindingPool : bps) {
+		Map<String, BindingPoolIndex> linkIndexMap = linkPoolIndexMap;
+		BindingPoolIndex index = (linkIndexMap != null) ? linkIndexMap.get(link.getAddress()) : null;
+		if (index != null) {
+			// the pools containing the address, in the order of the link's pool list
+			for (BindingPool bindingPool : index.findPools(inetAddr)) {
 //				if (log.isDebugEnabled()) {
 //					if (bindingPool instanceof AddressBindingPool) {
 //						AddressBindingPool abp = (AddressBindingPool) bindingPool;
@@ -243,21 +482,29 @@ public abstract class BaseBindingManager
 	 */
 	protected BindingPool findBindingPool(InetAddress inetAddr)
 	{
-		Collection<List<? extends BindingPool>> allPools = bindingPoolMap.values();
-		//TODO: find a more efficient way to search the pools
-		if ((allPools != null) && !allPools.isEmpty()) {
-			for (List<? extends BindingPool> bps : allPools) {
-				for (BindingPool bindingPool : bps) {
-					if (bindingPool.contains(inetAddr)) {
-						log.info("Found binding pool for address=" + 
-								inetAddr.getHostAddress() +
-								": " + bindingPool);
-						return bindingPool;
+		BindingPool bindingPool = null;
+		BindingPoolIndex index = bindingPoolIndex;
+		if (index != null) {
+			bindingPool = index.findPool(inetAddr);
+		}
+		else {
+			// the links are still loading, so search the links which are loaded
+			Map<String, BindingPoolIndex> linkIndexMap = linkPoolIndexMap;
+			if (linkIndexMap != null) {
+				for (BindingPoolIndex linkIndex : linkIndexMap.values()) {
+					bindingPool = linkIndex.findPool(inetAddr);
+					if (bindingPool != null) {
+						break;
 					}
 				}
 			}
 		}
-		return null;
+		if (bindingPool != null) {
+			log.info("Found binding pool for address=" + 
+					inetAddr.getHostAddress() +
+					": " + bindingPool);
+		}
+		return bindingPool;
 	}
     
     /**
@@ -348,11 +595,11 @@ public abstract class BaseBindingManager
 			DhcpMessage requestMsg)
 	{
 		try {
-			List<? extends StaticBinding> staticBindings = 
-				staticBindingMap.get(clientLink.getAddress());
-			if ((staticBindings != null) && !staticBindings.isEmpty()) {
-				for (StaticBinding staticBinding : staticBindings) {
-					if (staticBinding.matches(duid, iatype, iaid, requestMsg)) {
+			if (staticBindingIndexMap != null) {
+				StaticBindingIndex index = staticBindingIndexMap.get(clientLink.getAddress());
+				if (index != null) {
+					StaticBinding staticBinding = index.find(duid, iatype, iaid, requestMsg);
+					if (staticBinding != null) {
 						log.info("Found static binding: " + staticBinding);
 						return staticBinding;
 					}
@@ -399,6 +646,7 @@ public abstract class BaseBindingManager
 				Collection<DhcpOption> dhcpOptions = convertDhcpOptions(msgOptions);
 				try {
 					iaMgr.createIA(binding, dhcpOptions);
+					scheduleExpirations(binding);
 				}
 				catch (Exception ex) {
 					log.error("Failed to create persistent binding", ex);
@@ -541,6 +789,7 @@ public abstract class BaseBindingManager
 		try {
 			log.info("Updating binding");
 			iaMgr.updateIA(binding, addIaAddresses, updateIaAddresses, delIaAddresses, dhcpOptions);
+			scheduleExpirations(binding);
 			log.info("Binding updated: " + binding.toString());
 			return binding;	// if we get here, it worked
 		}
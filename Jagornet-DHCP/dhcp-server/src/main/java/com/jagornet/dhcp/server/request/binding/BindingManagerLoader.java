@@ -0,0 +1,283 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file BindingManagerLoader.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.util.Subnet;
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+/**
+ * The Class BindingManagerLoader.
+ * Loads the pools and static bindings of the binding managers, with a
+ * task for each link of each manager on a bounded thread pool.
+ * The links are LOADING until the pools of every manager are loaded for
+ * the link, and then the link returns to its previous state and answers
+ * requests, while the other links are still loading.  The time spent in
+ * each phase is logged.
+ *
+ * @author A. Gregory Rabil
+ */
+public class BindingManagerLoader
+{
+	private static Logger log = LoggerFactory.getLogger(BindingManagerLoader.class);
+
+	/**
+	 * A binding manager to load, with the time spent in each phase,
+	 * summed over the links.
+	 */
+	static class LoadedManager
+	{
+		final String name;
+		final BaseBindingManager manager;
+		final AtomicLong poolNanos = new AtomicLong();
+		final AtomicLong staticNanos = new AtomicLong();
+		long reconcileMillisBefore;
+
+		LoadedManager(String name, BaseBindingManager manager)
+		{
+			this.name = name;
+			this.manager = manager;
+		}
+	}
+
+	private final SortedMap<Subnet, DhcpLink> linkMap;
+	private final int threads;
+	private final List<LoadedManager> managers = new ArrayList<LoadedManager>();
+	private final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+	private final Map<DhcpLink, DhcpLink.State> linkStates = new HashMap<DhcpLink, DhcpLink.State>();
+	private final AtomicInteger linksLoaded = new AtomicInteger();
+	private volatile long firstLinkMillis = -1;
+	private ExecutorService executor;
+	private long startMillis;
+
+	/**
+	 * Instantiates a new loader, with the number of threads of the
+	 * poolInitThreads policy, where zero is the number of processors.
+	 *
+	 * @param linkMap the configured links
+	 */
+	public BindingManagerLoader(SortedMap<Subnet, DhcpLink> linkMap)
+	{
+		this(linkMap, DhcpServerPolicies.globalPolicyAsInt(Property.BINDING_MANAGER_POOL_INIT_THREADS));
+	}
+
+	/**
+	 * Instantiates a new loader.
+	 *
+	 * @param linkMap the configured links
+	 * @param threads the number of threads, where zero is the number of processors
+	 */
+	public BindingManagerLoader(SortedMap<Subnet, DhcpLink> linkMap, int threads)
+	{
+		this.linkMap = linkMap;
+		this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Add a binding manager to load.
+	 *
+	 * @param name the name of the manager, for the log
+	 * @param manager the manager
+	 */
+	public void addManager(String name, BaseBindingManager manager)
+	{
+		managers.add(new LoadedManager(name, manager));
+	}
+
+	/**
+	 * Start loading the managers.  All of the links are set LOADING, and
+	 * the links are submitted in the order of the link map, with the tasks
+	 * of all the managers for a link together, so that the first links
+	 * are ready first.
+	 */
+	public void start()
+	{
+		startMillis = System.currentTimeMillis();
+		for (LoadedManager loadedManager : managers) {
+			loadedManager.reconcileMillisBefore = loadedManager.manager.getReconcileMillis();
+			loadedManager.manager.beginInit();
+		}
+		if ((linkMap == null) || linkMap.isEmpty() || managers.isEmpty()) {
+			log.error("No links or binding managers to load");
+			return;
+		}
+		for (DhcpLink dhcpLink : linkMap.values()) {
+			linkStates.put(dhcpLink, dhcpLink.getState());
+			dhcpLink.setState(DhcpLink.State.LOADING);
+		}
+		int poolThreads = Math.min(threads, linkMap.size() * managers.size());
+		log.info("Loading " + linkMap.size() + " links of " + managers.size() +
+				" binding managers with " + poolThreads + " threads");
+		executor = Executors.newFixedThreadPool(poolThreads);
+		for (final DhcpLink dhcpLink : linkMap.values()) {
+			final AtomicInteger remaining = new AtomicInteger(managers.size());
+			for (final LoadedManager loadedManager : managers) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						loadLink(loadedManager, dhcpLink);
+						if (remaining.decrementAndGet() == 0) {
+							linkLoaded(dhcpLink);
+						}
+						return null;
+					}
+				}));
+			}
+		}
+		// no more tasks, so the threads end when the tasks are done
+		executor.shutdown();
+	}
+
+	/**
+	 * Load the pools and the static bindings of one link for one manager.
+	 *
+	 * @param loadedManager the manager
+	 * @param dhcpLink the link
+	 * @throws DhcpServerConfigException the exception
+	 */
+	protected void loadLink(LoadedManager loadedManager, DhcpLink dhcpLink)
+			throws DhcpServerConfigException
+	{
+		try {
+			long start = System.nanoTime();
+			loadedManager.manager.initLinkPools(dhcpLink);
+			long pools = System.nanoTime();
+			loadedManager.poolNanos.addAndGet(pools - start);
+			loadedManager.manager.initLinkStaticBindings(dhcpLink);
+			loadedManager.staticNanos.addAndGet(System.nanoTime() - pools);
+		}
+		catch (DhcpServerConfigException ex) {
+			log.error("Failed to load link " + dhcpLink.getLinkAddress() +
+					" of " + loadedManager.name, ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Called when every manager has loaded the link.  The link returns to
+	 * its state before loading, e.g. NOT_SYNCED when the link of an HA
+	 * server is loaded again.
+	 *
+	 * @param dhcpLink the link
+	 */
+	protected void linkLoaded(DhcpLink dhcpLink)
+	{
+		DhcpLink.State state = linkStates.get(dhcpLink);
+		if ((state == null) || (state == DhcpLink.State.LOADING)) {
+			state = DhcpLink.State.OK;
+		}
+		dhcpLink.setState(state);
+		long elapsed = System.currentTimeMillis() - startMillis;
+		if (linksLoaded.incrementAndGet() == 1) {
+			firstLinkMillis = elapsed;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Link " + dhcpLink.getLinkAddress() + " loaded in " + elapsed + "ms");
+		}
+	}
+
+	/**
+	 * Wait for all of the links to be loaded, then finish the initialization
+	 * of the managers and log the time of each phase.  If a link fails to
+	 * load, the loading is stopped and the links which are not loaded are
+	 * left LOADING.
+	 *
+	 * @throws DhcpServerConfigException if a link failed to load
+	 */
+	public void await() throws DhcpServerConfigException
+	{
+		try {
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		}
+		catch (ExecutionException ex) {
+			executor.shutdownNow();
+			if (ex.getCause() instanceof DhcpServerConfigException) {
+				throw (DhcpServerConfigException) ex.getCause();
+			}
+			throw new DhcpServerConfigException("Failed to load binding managers", ex.getCause());
+		}
+		catch (InterruptedException ex) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new DhcpServerConfigException("Interrupted loading binding managers", ex);
+		}
+		long loaded = System.currentTimeMillis();
+		for (LoadedManager loadedManager : managers) {
+			loadedManager.manager.completeInit();
+		}
+		long end = System.currentTimeMillis();
+		log.info("Loaded " + linksLoaded.get() + " links in " + (loaded - startMillis) +
+				"ms (first link in " + firstLinkMillis + "ms)");
+		for (LoadedManager loadedManager : managers) {
+			log.info(loadedManager.name + ": pools=" +
+					(loadedManager.poolNanos.get() / 1000000) + "ms" +
+					" (reconcile=" + (loadedManager.manager.getReconcileMillis() -
+							loadedManager.reconcileMillisBefore) + "ms)" +
+					" staticBindings=" + (loadedManager.staticNanos.get() / 1000000) + "ms");
+		}
+		log.info("Indexed pools and started reapers in " + (end - loaded) + "ms");
+		log.info("Binding managers loaded in " + (end - startMillis) + "ms");
+	}
+
+	/**
+	 * Load the managers and wait for all of the links.
+	 *
+	 * @throws DhcpServerConfigException if a link failed to load
+	 */
+	public void load() throws DhcpServerConfigException
+	{
+		start();
+		await();
+	}
+
+	/**
+	 * @return the number of links which are loaded
+	 */
+	public int getLinksLoaded()
+	{
+		return linksLoaded.get();
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file BindingPoolIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Class BindingPoolIndex.  An immutable index of the address ranges
+ * of a set of binding pools, for finding the pools containing an address
+ * with a binary search.
+ *
+ * The ranges of the pools are split into disjoint segments, and each
+ * segment holds the pools which contain it, in the order of the pools
+ * given to the index.  Addresses are 128-bit keys, so the pools of an
+ * index should be all V4 or all V6 pools.
+ *
+ * @author A. Gregory Rabil
+ */
+public class BindingPoolIndex
+{
+	private static final BindingPool[] NO_POOLS = new BindingPool[0];
+
+	private final long[] startHi;
+	private final long[] startLo;
+	private final long[] endHi;
+	private final long[] endLo;
+	private final BindingPool[][] segmentPools;
+
+	/**
+	 * Build the index for the given pools.
+	 *
+	 * @param pools the pools, in the order to return the pools which
+	 * 			contain the same address
+	 */
+	public BindingPoolIndex(Collection<? extends BindingPool> pools)
+	{
+		// the pools which start and end at each boundary,
+		// where the end boundary is one past the end address
+		TreeMap<BigInteger, List<Integer>> starts = new TreeMap<BigInteger, List<Integer>>();
+		TreeMap<BigInteger, List<Integer>> ends = new TreeMap<BigInteger, List<Integer>>();
+		List<BindingPool> poolList = new ArrayList<BindingPool>(pools);
+		for (int i=0; i<poolList.size(); i++) {
+			BindingPool pool = poolList.get(i);
+			BigInteger start = toBigInteger(pool.getStartAddress());
+			BigInteger end = toBigInteger(pool.getEndAddress()).add(BigInteger.ONE);
+			if (start.compareTo(end) < 0) {
+				add(starts, start, i);
+				add(ends, end, i);
+			}
+		}
+		TreeMap<BigInteger, Boolean> boundaries = new TreeMap<BigInteger, Boolean>();
+		for (BigInteger b : starts.keySet()) {
+			boundaries.put(b, Boolean.TRUE);
+		}
+		for (BigInteger b : ends.keySet()) {
+			boundaries.put(b, Boolean.TRUE);
+		}
+
+		List<BigInteger[]> segments = new ArrayList<BigInteger[]>();
+		List<BindingPool[]> segmentPoolList = new ArrayList<BindingPool[]>();
+		// the pools containing the current segment, by order
+		TreeMap<Integer, BindingPool> active = new TreeMap<Integer, BindingPool>();
+		BigInteger segmentStart = null;
+		for (BigInteger b : boundaries.keySet()) {
+			if ((segmentStart != null) && !active.isEmpty()) {
+				segments.add(new BigInteger[] { segmentStart, b.subtract(BigInteger.ONE) });
+				segmentPoolList.add(active.values().toArray(NO_POOLS));
+			}
+			List<Integer> ended = ends.get(b);
+			if (ended != null) {
+				for (Integer i : ended) {
+					active.remove(i);
+				}
+			}
+			List<Integer> started = starts.get(b);
+			if (started != null) {
+				for (Integer i : started) {
+					active.put(i, poolList.get(i));
+				}
+			}
+			segmentStart = b;
+		}
+
+		int n = segments.size();
+		startHi = new long[n];
+		startLo = new long[n];
+		endHi = new long[n];
+		endLo = new long[n];
+		segmentPools = segmentPoolList.toArray(new BindingPool[n][]);
+		for (int i=0; i<n; i++) {
+			BigInteger[] segment = segments.get(i);
+			startHi[i] = segment[0].shiftRight(64).longValue();
+			startLo[i] = segment[0].longValue();
+			endHi[i] = segment[1].shiftRight(64).longValue();
+			endLo[i] = segment[1].longValue();
+		}
+	}
+
+	private static void add(Map<BigInteger, List<Integer>> map, BigInteger key, int i)
+	{
+		List<Integer> list = map.get(key);
+		if (list == null) {
+			list = new ArrayList<Integer>();
+			map.put(key, list);
+		}
+		list.add(i);
+	}
+
+	private static BigInteger toBigInteger(InetAddress inetAddr)
+	{
+		return new BigInteger(1, inetAddr.getAddress());
+	}
+
+	private static int compare(long hi1, long lo1, long hi2, long lo2)
+	{
+		int c = Long.compareUnsigned(hi1, hi2);
+		return (c != 0) ? c : Long.compareUnsigned(lo1, lo2);
+	}
+
+	/**
+	 * Find the pools containing the given address.
+	 *
+	 * @param inetAddr the address
+	 * @return the pools, in the order given to the index,
+	 * 			or an empty array if no pool contains the address
+	 */
+	public BindingPool[] findPools(InetAddress inetAddr)
+	{
+		byte[] addr = inetAddr.getAddress();
+		long hi = 0;
+		long lo = 0;
+		for (int i=0; i<addr.length; i++) {
+			if (i < addr.length - 8) {
+				hi = (hi << 8) | (addr[i] & 0xff);
+			}
+			else {
+				lo = (lo << 8) | (addr[i] & 0xff);
+			}
+		}
+		// find the last segment which starts at or before the address
+		int low = 0;
+		int high = startHi.length - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compare(startHi[mid], startLo[mid], hi, lo) <= 0) {
+				found = mid;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		if ((found >= 0) && (compare(hi, lo, endHi[found], endLo[found]) <= 0)) {
+			return segmentPools[found];
+		}
+		return NO_POOLS;
+	}
+
+	/**
+	 * Find the first pool containing the given address.
+	 *
+	 * @param inetAddr the address
+	 * @return the pool, or null if no pool contains the address
+	 */
+	public BindingPool findPool(InetAddress inetAddr)
+	{
+		BindingPool[] pools = findPools(inetAddr);
+		return (pools.length > 0) ? pools[0] : null;
+	}
+
+	/**
+	 * @return the number of disjoint address segments in the index
+	 */
+	public int size()
+	{
+		return segmentPools.length;
+	}
+}
@@ -31,6 +31,9 @@ import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 
 /**
@@ -40,6 +43,11 @@ import com.jagornet.dhcp.server.config.DhcpServerConfigException;
  */
 public class FreeList
 {	
+	private static Logger log = LoggerFactory.getLogger(FreeList.class);
+	
+	public static final String BITSET_TYPE = "bitset";
+	public static final String ATOMIC_TYPE = "atomic";
+	
 	protected BigInteger start;
 	protected BigInteger end;
 
@@ -77,6 +85,30 @@ public class FreeList
 		}
 	}
 	
+	/**
+	 * Create a free list of the given type.  The "atomic" type creates a
+	 * lock-free AtomicFreeList if the range fits in 64 bits, otherwise,
+	 * and for the default "bitset" type, creates a FreeList.
+	 * 
+	 * @param start the range start
+	 * @param end the range end
+	 * @param type the free list type
+	 * 
+	 * @return the free list
+	 */
+	public static FreeList createFreeList(BigInteger start, BigInteger end, String type)
+			throws DhcpServerConfigException
+	{
+		if (ATOMIC_TYPE.equalsIgnoreCase(type)) {
+			if (AtomicFreeList.fitsLongOffsets(start, end)) {
+				return new AtomicFreeList(start, end);
+			}
+			log.warn("Range size exceeds 64 bits, using default FreeList: start=" +
+					start + " end=" + end);
+		}
+		return new FreeList(start, end);
+	}
+	
 	public boolean isInList(BigInteger bi)
 	{
 		if ((bi.compareTo(start) >= 0) && (bi.compareTo(end) <= 0)) {
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LeaseExpirationQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.jagornet.dhcp.core.util.Util;
+
+/**
+ * The Class LeaseExpirationQueue.  A priority queue of leased IP addresses
+ * ordered by valid end time, so that the reaper only has to look at the
+ * head of the queue to find the expired leases, instead of scanning the
+ * lease database.
+ *
+ * Each IP address is queued at most once: scheduling an address which is
+ * already queued, as when a lease is renewed, replaces its expiration time.
+ *
+ * @author A. Gregory Rabil
+ */
+public class LeaseExpirationQueue
+{
+	/**
+	 * The key of the queue, sorted by expiration time, then IP address.
+	 */
+	private static class Key implements Comparable<Key>
+	{
+		final long expireTime;
+		final InetAddress ipAddress;
+
+		Key(long expireTime, InetAddress ipAddress)
+		{
+			this.expireTime = expireTime;
+			this.ipAddress = ipAddress;
+		}
+
+		@Override
+		public int compareTo(Key that)
+		{
+			int c = Long.compare(this.expireTime, that.expireTime);
+			if (c == 0) {
+				c = Util.compareInetAddrs(this.ipAddress, that.ipAddress);
+			}
+			return c;
+		}
+	}
+
+	private final ConcurrentSkipListSet<Key> queue = new ConcurrentSkipListSet<Key>();
+	private final ConcurrentHashMap<InetAddress, Key> keyMap = new ConcurrentHashMap<InetAddress, Key>();
+
+	/**
+	 * Schedule the expiration of the given IP address, replacing any
+	 * expiration already scheduled for the address.
+	 *
+	 * @param inetAddr the IP address
+	 * @param validEndTime the valid end time of the lease, if null
+	 * 				any scheduled expiration is cancelled
+	 */
+	public void schedule(InetAddress inetAddr, Date validEndTime)
+	{
+		if (validEndTime == null) {
+			cancel(inetAddr);
+			return;
+		}
+		final Key key = new Key(validEndTime.getTime(), inetAddr);
+		keyMap.compute(inetAddr, (ip, oldKey) -> {
+			if (oldKey != null) {
+				queue.remove(oldKey);
+			}
+			queue.add(key);
+			return key;
+		});
+	}
+
+	/**
+	 * Cancel the scheduled expiration of the given IP address, if any.
+	 *
+	 * @param inetAddr the IP address
+	 */
+	public void cancel(InetAddress inetAddr)
+	{
+		keyMap.computeIfPresent(inetAddr, (ip, oldKey) -> {
+			queue.remove(oldKey);
+			return null;
+		});
+	}
+
+	/**
+	 * Remove and return the IP addresses which expire before the given time.
+	 *
+	 * @param now the current time in milliseconds
+	 * @param max the maximum number of addresses to return
+	 *
+	 * @return the expired IP addresses, in order of expiration
+	 */
+	public List<InetAddress> pollExpired(long now, int max)
+	{
+		List<InetAddress> expired = new ArrayList<InetAddress>();
+		Iterator<Key> iter = queue.iterator();
+		while (iter.hasNext() && (expired.size() < max)) {
+			Key key = iter.next();
+			if (key.expireTime >= now) {
+				break;
+			}
+			// only the thread which removes the current key owns the expiration,
+			// a concurrent schedule of the same address will have replaced it
+			if (keyMap.remove(key.ipAddress, key)) {
+				expired.add(key.ipAddress);
+			}
+			queue.remove(key);
+		}
+		return expired;
+	}
+
+	/**
+	 * Get the earliest scheduled expiration time.
+	 *
+	 * @return the expiration time in milliseconds, or -1 if the queue is empty
+	 */
+	public long nextExpireTime()
+	{
+		// first() throws if the queue is emptied concurrently
+		Iterator<Key> iter = queue.iterator();
+		return iter.hasNext() ? iter.next().expireTime : -1;
+	}
+
+	public int size()
+	{
+		return keyMap.size();
+	}
+
+	public void clear()
+	{
+		for (InetAddress inetAddr : keyMap.keySet()) {
+			cancel(inetAddr);
+		}
+	}
+}
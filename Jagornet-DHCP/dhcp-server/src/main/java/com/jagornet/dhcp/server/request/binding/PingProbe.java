@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file PingProbe.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The Interface PingProbe.  The transport used to check if a free address
+ * is already in use on the network before it is offered to a client.
+ *
+ * @author A. Gregory Rabil
+ */
+public interface PingProbe
+{
+	/**
+	 * Probe an address.
+	 *
+	 * @param addr the address to probe
+	 * @param timeout the time to wait for an answer in milliseconds
+	 *
+	 * @return true, if a host answered at the address
+	 *
+	 * @throws IOException if the probe could not be sent
+	 */
+	public boolean isReachable(InetAddress addr, int timeout) throws IOException;
+}
@@ -29,6 +29,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import com.jagornet.dhcp.core.message.DhcpMessage;
+import com.jagornet.dhcp.core.util.Util;
 import com.jagornet.dhcp.server.config.DhcpConfigObject;
 import com.jagornet.dhcp.server.config.xml.FiltersType;
 
@@ -39,6 +40,39 @@ public abstract class StaticBinding implements DhcpConfigObject
 	
 	public abstract String getIpAddress();
 
+	/**
+	 * Get the key of this binding in the static binding index of its link.
+	 * A binding which matches on anything but the identity of the client,
+	 * such as the options of the request, cannot be indexed, and is found
+	 * by a scan of the link's bindings which are not indexed.
+	 * 
+	 * @return the index key, or null if the binding cannot be indexed
+	 */
+	public String getIndexKey() {
+		return null;
+	}
+
+	/**
+	 * Build the index key for a client identity.
+	 * 
+	 * @param duid the DUID, or the chaddr for V4
+	 * @param iatype the IA type
+	 * @param iaid the IAID, or null for a binding which matches any IAID
+	 * @return the index key
+	 */
+	public static String indexKey(byte[] duid, byte iatype, Long iaid) {
+		if (duid == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(duid.length*2 + 16);
+		sb.append(Util.toHexString(duid));
+		sb.append('/');
+		sb.append(iatype);
+		sb.append('/');
+		sb.append((iaid != null) ? iaid.toString() : "*");
+		return sb.toString();
+	}
+
 	public InetAddress getInetAddress() {
 		String ip = getIpAddress();
 		if (ip != null) {
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file StaticBindingIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jagornet.dhcp.core.message.DhcpMessage;
+
+/**
+ * The Class StaticBindingIndex.  An immutable index of the static bindings
+ * of a link, for finding the binding of a client without matching every
+ * binding of the link.
+ *
+ * Bindings which match on the identity of the client are kept in a hash
+ * map by their index key.  Bindings which cannot be indexed are matched
+ * by a scan, as before.  When a client matches more than one binding,
+ * the first binding in the order given to the index is found.
+ *
+ * @author A. Gregory Rabil
+ */
+public class StaticBindingIndex
+{
+	private final Map<String, Entry> indexed;
+	private final List<Entry> scanned;
+
+	/**
+	 * Build the index for the given static bindings.
+	 *
+	 * @param staticBindings the static bindings, in the order to match them
+	 */
+	public StaticBindingIndex(List<? extends StaticBinding> staticBindings)
+	{
+		Map<String, Entry> indexMap = new HashMap<String, Entry>();
+		List<Entry> scanList = new ArrayList<Entry>();
+		for (int i=0; i<staticBindings.size(); i++) {
+			StaticBinding staticBinding = staticBindings.get(i);
+			Entry entry = new Entry(i, staticBinding);
+			String key = staticBinding.getIndexKey();
+			if (key != null) {
+				// a later binding for the same client is never matched
+				if (!indexMap.containsKey(key)) {
+					indexMap.put(key, entry);
+				}
+			}
+			else {
+				scanList.add(entry);
+			}
+		}
+		indexed = indexMap;
+		scanned = Collections.unmodifiableList(scanList);
+	}
+
+	/**
+	 * Find the static binding, if any, for the given client identity association.
+	 *
+	 * @param duid the DUID of the client, or the chaddr for V4
+	 * @param iatype the IA type of the client request
+	 * @param iaid the IAID of the client request
+	 * @param requestMsg the client request message
+	 * @return the first matching StaticBinding, or null if none matches
+	 */
+	public StaticBinding find(byte[] duid, byte iatype, long iaid, DhcpMessage requestMsg)
+	{
+		Entry found = null;
+		if (!indexed.isEmpty()) {
+			found = first(found, indexed.get(StaticBinding.indexKey(duid, iatype, iaid)),
+							duid, iatype, iaid, requestMsg);
+			found = first(found, indexed.get(StaticBinding.indexKey(duid, iatype, null)),
+							duid, iatype, iaid, requestMsg);
+		}
+		for (Entry entry : scanned) {
+			if ((found != null) && (entry.position > found.position)) {
+				break;
+			}
+			if (entry.staticBinding.matches(duid, iatype, iaid, requestMsg)) {
+				found = entry;
+				break;
+			}
+		}
+		return (found != null) ? found.staticBinding : null;
+	}
+
+	private static Entry first(Entry found, Entry entry, byte[] duid, byte iatype, long iaid,
+			DhcpMessage requestMsg)
+	{
+		if ((entry == null) || ((found != null) && (found.position < entry.position))) {
+			return found;
+		}
+		// the key agrees with matches, but let the binding have the last word
+		return entry.staticBinding.matches(duid, iatype, iaid, requestMsg) ? entry : found;
+	}
+
+	/**
+	 * @return the number of bindings which are found by their index key
+	 */
+	public int getIndexedCount()
+	{
+		return indexed.size();
+	}
+
+	/**
+	 * @return the number of bindings which are found by a scan
+	 */
+	public int getScannedCount()
+	{
+		return scanned.size();
+	}
+
+	private static class Entry
+	{
+		final int position;
+		final StaticBinding staticBinding;
+
+		Entry(int position, StaticBinding staticBinding)
+		{
+			this.position = position;
+			this.staticBinding = staticBinding;
+		}
+	}
+}
@@ -32,12 +32,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jagornet.dhcp.core.message.DhcpMessage;
 import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.option.base.DhcpOption;
 import com.jagornet.dhcp.core.option.v4.DhcpV4ClientFqdnOption;
 import com.jagornet.dhcp.core.option.v4.DhcpV4LeaseTimeOption;
 import com.jagornet.dhcp.core.option.v4.DhcpV4RequestedIpAddressOption;
@@ -54,7 +56,6 @@ import com.jagornet.dhcp.server.config.xml.V4AddressBinding;
 import com.jagornet.dhcp.server.config.xml.V4AddressBindingsType;
 import com.jagornet.dhcp.server.config.xml.V4AddressPool;
 import com.jagornet.dhcp.server.config.xml.V4AddressPoolsType;
-import com.jagornet.dhcp.server.db.DhcpOption;
 import com.jagornet.dhcp.server.db.IaAddress;
 import com.jagornet.dhcp.server.db.IdentityAssoc;
 import com.jagornet.dhcp.server.request.ddns.DdnsCallback;
@@ -160,7 +161,7 @@ public class V4AddrBindingManagerImpl
     			Range range = new Range(bp.getStartAddress(), bp.getEndAddress());
 				ranges.add(range);
 			}
-        	iaMgr.reconcileIaAddresses(ranges);
+        	reconcileIaAddresses(ranges);
     	}
     }
     
@@ -209,6 +210,8 @@ public class V4AddrBindingManagerImpl
 				bp.setUsed(ip);
 			}
 		}
+		// ping check the first free addresses now that the used addresses are set
+		bp.startPingCheck();
 		log.info("Built v4 address binding pool: " + bp.getStartAddress().getHostAddress() + "-" + 
 				bp.getEndAddress().getHostAddress() + " size=" + bp.getSize());
     	return bp;
@@ -446,7 +449,7 @@ public class V4AddrBindingManagerImpl
 	protected void setDhcpOptions(V4BindingAddress bindingAddr, DhcpLink clientLink,
 			DhcpV4Message requestMsg, V4AddressBindingPool bp) {
 		// set the options to be returned to the client
-		Map<Integer, com.jagornet.dhcp.core.option.base.DhcpOption> effectiveDhcpOptionMap =
+		Map<Integer, DhcpOption> effectiveDhcpOptionMap =
 				buildDhcpOptions(clientLink, requestMsg, bp);
 		bindingAddr.setDhcpOptionMap(effectiveDhcpOptionMap);
 	}
@@ -460,10 +463,10 @@ public class V4AddrBindingManagerImpl
 	 * @param bp
 	 * @return
 	 */
-	protected Map<Integer, com.jagornet.dhcp.core.option.base.DhcpOption> buildDhcpOptions(
+	protected Map<Integer, DhcpOption> buildDhcpOptions(
 			DhcpLink clientLink, DhcpV4Message requestMsg, V4AddressBindingPool bp) {
 		
-		Map<Integer, com.jagornet.dhcp.core.option.base.DhcpOption> configOptionMap = 
+		Map<Integer, DhcpOption> configOptionMap = 
 				serverConfig.effectiveV4AddrOptions(requestMsg, clientLink, bp);
 		
     	if (DhcpServerPolicies.effectivePolicyAsBoolean(requestMsg,
@@ -472,7 +475,9 @@ public class V4AddrBindingManagerImpl
     		configOptionMap = requestedOptions(configOptionMap, requestMsg);
     	}
 		
-    	// may as well just set the DHCPv4 lease time option here as well
+    	// may as well just set the DHCPv4 lease time option here as well,
+		// in a copy because the configured options are shared by requests
+		configOptionMap = new TreeMap<Integer, DhcpOption>(configOptionMap);
 		long preferred = bp.getPreferredLifetime();
 		DhcpV4LeaseTimeOption dhcpV4LeaseTimeOption = new DhcpV4LeaseTimeOption();
 		dhcpV4LeaseTimeOption.setUnsignedInt(preferred);
@@ -485,9 +490,9 @@ public class V4AddrBindingManagerImpl
     	DhcpV4ClientFqdnOption clientFqdnOption = null;
     	try {
 	    	if ((ia != null) && (iaAddr != null)) {
-	    		Collection<DhcpOption> opts = iaAddr.getDhcpOptions();
+	    		Collection<com.jagornet.dhcp.server.db.DhcpOption> opts = iaAddr.getDhcpOptions();
 	    		if (opts != null) {
-	    			for (DhcpOption opt : opts) {
+	    			for (com.jagornet.dhcp.server.db.DhcpOption opt : opts) {
 	    				if (opt.getCode() == DhcpConstants.V4OPTION_CLIENT_FQDN) {
 	    					clientFqdnOption = new DhcpV4ClientFqdnOption();
 	    					clientFqdnOption.decode(ByteBuffer.wrap(opt.getValue()));
@@ -25,11 +25,10 @@
  */
 package com.jagornet.dhcp.server.request.binding;
 
-import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Timer;
+import java.util.Date;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +40,7 @@ import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.config.DhcpV4ConfigOptions;
 import com.jagornet.dhcp.server.config.DhcpV4OptionConfigObject;
 import com.jagornet.dhcp.server.config.xml.FiltersType;
+import com.jagornet.dhcp.server.config.xml.Link;
 import com.jagornet.dhcp.server.config.xml.LinkFilter;
 import com.jagornet.dhcp.server.config.xml.PoliciesType;
 import com.jagornet.dhcp.server.config.xml.V4AddressPool;
@@ -62,7 +62,8 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	protected V4AddressPool pool;
 	protected DhcpV4ConfigOptions v4ConfigOptions;
 	protected LinkFilter linkFilter; 
-	protected Timer reaper;
+	protected LeaseExpirationQueue expirationQueue;
+	protected volatile V4PingCheckQueue pingCheckQueue;
 	
 	/**
 	 * Instantiates a new binding pool.
@@ -86,9 +87,10 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 			throw new DhcpServerConfigException("Invalid AddressPool definition", ex);
 		}
 		freeList = 
-			new FreeList(new BigInteger(range.getStartAddress().getAddress()),
-					new BigInteger(range.getEndAddress().getAddress()));
-		reaper = new Timer(pool.getRange()+"_Reaper");
+			FreeList.createFreeList(new BigInteger(range.getStartAddress().getAddress()),
+					new BigInteger(range.getEndAddress().getAddress()),
+					DhcpServerPolicies.effectivePolicy(this, (Link)null, 
+							Property.BINDING_MANAGER_FREELIST_TYPE));
 		v4ConfigOptions = new DhcpV4ConfigOptions(pool.getConfigOptions());
 	}
 	
@@ -103,33 +105,36 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	}
 	
 	/**
-	 * Gets the next available address in this address pool.
+	 * Gets the next available address in this address pool.  If ping
+	 * checks are enabled, the address is taken from the addresses which
+	 * were checked ahead of time, so the caller never waits for a ping.
 	 * 
 	 * @return the next available address
 	 */
 	public InetAddress getNextAvailableAddress()
+	{
+		int pingCheckTimeout = 
+			DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
+		if (pingCheckTimeout > 0) {
+			return getPingCheckQueue().take(pingCheckTimeout);
+		}
+		releasePingCheckQueue();
+		return nextFreeAddress();
+	}
+	
+	/**
+	 * Gets the next free address in the free list, without a ping check,
+	 * and sets it used.
+	 * 
+	 * @return the next free address
+	 */
+	protected InetAddress nextFreeAddress()
 	{
 		if (freeList != null) {
 			BigInteger next = freeList.getNextFree();
 			if (next != null) {
 				try {
-					InetAddress ip = InetAddress.getByAddress(next.toByteArray());
-					int pingCheckTimeout = 
-						DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
-					if (pingCheckTimeout > 0) {
-						try {
-							if (ip.isReachable(pingCheckTimeout)) {
-								log.warn("Next free address answered ping check: " + 
-										ip.getHostAddress());
-								setUsed(ip);
-								return getNextAvailableAddress();	// try again
-							}
-						}
-						catch (IOException ex) {
-							log.error("Failed to perform v4 ping check: " + ex);
-						}
-					}
-					return ip;
+					return InetAddress.getByAddress(next.toByteArray());
 				}
 				catch (UnknownHostException ex) {
 					log.error("Unable to build IPv4 address from next free: " + ex);
@@ -139,6 +144,63 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 		return null;
 	}
 	
+	/**
+	 * Start the ping checks of the free addresses of this pool, if ping
+	 * checks are enabled.  Called once the used addresses are set.
+	 */
+	public void startPingCheck()
+	{
+		int pingCheckTimeout = 
+			DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
+		if (pingCheckTimeout > 0) {
+			getPingCheckQueue().refill(pingCheckTimeout);
+		}
+		else {
+			releasePingCheckQueue();
+		}
+	}
+	
+	/**
+	 * Gets the ping check queue of this pool.
+	 * 
+	 * @return the ping check queue
+	 */
+	public V4PingCheckQueue getPingCheckQueue()
+	{
+		V4PingCheckQueue queue = pingCheckQueue;
+		if (queue == null) {
+			synchronized (this) {
+				queue = pingCheckQueue;
+				if (queue == null) {
+					queue = new V4PingCheckQueue(this,
+							DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_QUEUE_SIZE),
+							DhcpServerPolicies.globalPolicyAsLong(Property.V4_PINGCHECK_CONFLICT_HOLD) * 1000);
+					pingCheckQueue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+	
+	/**
+	 * Release the ping check queue of this pool, if ping checks have been
+	 * disabled, so that the addresses it holds are set free.
+	 */
+	protected void releasePingCheckQueue()
+	{
+		if (pingCheckQueue != null) {
+			V4PingCheckQueue queue = null;
+			synchronized (this) {
+				queue = pingCheckQueue;
+				pingCheckQueue = null;
+			}
+			if (queue != null) {
+				log.info("Ping checks disabled, releasing ping check queue of pool: " + range);
+				queue.release();
+			}
+		}
+	}
+	
 	/**
 	 * Sets an IP address in this address pool as used.
 	 * 
@@ -148,6 +210,9 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	{
 		if (contains(addr)) {
 			freeList.setUsed(new BigInteger(addr.getAddress()));
+			if (pingCheckQueue != null) {
+				pingCheckQueue.remove(addr);
+			}
 		}
 	}
 	
@@ -164,7 +229,8 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	}
 	
 	/**
-	 * Start expire timer task.
+	 * Start expire timer task, by queueing the expiration of the address
+	 * with the binding manager's reaper.
 	 * 
 	 * @param iaAddr the ia addr
 	 * @param secsUntilExpiration the secs until expiration
@@ -172,7 +238,18 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	public void startExpireTimerTask(IaAddress iaAddr, long secsUntilExpiration)
 	{
 		// convert delay from seconds (lifetime) --> milliseconds (delay)
-//		reaper.schedule(new ExpireTimerTask(iaAddr), secsUntilExpiration*1000);
+		if (expirationQueue != null) {
+			expirationQueue.schedule(iaAddr.getIpAddress(), 
+					new Date(System.currentTimeMillis() + secsUntilExpiration*1000));
+		}
+	}
+	
+	public LeaseExpirationQueue getExpirationQueue() {
+		return expirationQueue;
+	}
+	
+	public void setExpirationQueue(LeaseExpirationQueue expirationQueue) {
+		this.expirationQueue = expirationQueue;
 	}
 	
 	/**
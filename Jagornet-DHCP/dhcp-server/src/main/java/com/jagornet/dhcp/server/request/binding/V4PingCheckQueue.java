@@ -0,0 +1,408 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file V4PingCheckQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+/**
+ * The Class V4PingCheckQueue.  The free addresses of a V4AddressBindingPool
+ * which have been ping checked ahead of time, so that a DISCOVER never
+ * waits for a ping.  The probes run on a shared pool of threads, and
+ * the queue is refilled as the verified addresses are taken.
+ *
+ * An address which answers the probe is recorded as a conflict, and is
+ * left used in the free list of the pool, so it is not offered.  After the
+ * conflict hold time, the address is set free again, to be probed again.
+ * When ping checks are disabled, the queue is released, which sets the
+ * addresses it holds free.
+ *
+ * @author A. Gregory Rabil
+ */
+public class V4PingCheckQueue
+{
+	private static Logger log = LoggerFactory.getLogger(V4PingCheckQueue.class);
+
+	/** the age after which a verified address is probed again */
+	public static final long MAX_VERIFIED_AGE = 60000;
+
+	/** the default time for which an address in conflict is not offered */
+	public static final long DEFAULT_CONFLICT_HOLD = 3600000;
+
+	/** the default probe, which uses InetAddress.isReachable */
+	public static final PingProbe ICMP_PROBE = new PingProbe() {
+		@Override
+		public boolean isReachable(InetAddress addr, int timeout) throws IOException {
+			return addr.isReachable(timeout);
+		}
+	};
+
+	private static volatile PingProbe probe = ICMP_PROBE;
+	private static ThreadPoolExecutor probeExecutor;
+
+	private final V4AddressBindingPool pool;
+	private final int depth;
+	private final long conflictHold;
+	private final ConcurrentLinkedQueue<VerifiedAddress> verified =
+			new ConcurrentLinkedQueue<VerifiedAddress>();
+	// the verified addresses, and the addresses being probed
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<InetAddress, Long> conflicts = new ConcurrentHashMap<InetAddress, Long>();
+	private final Set<InetAddress> probing = ConcurrentHashMap.newKeySet();
+	private final Set<InetAddress> claimed = ConcurrentHashMap.newKeySet();
+	private final AtomicLong probeCount = new AtomicLong();
+	private final AtomicLong uncheckedCount = new AtomicLong();
+	private volatile int timeout;
+	// the earliest time when a conflict expires
+	private volatile long nextConflictExpiry = Long.MAX_VALUE;
+	private volatile boolean released;
+
+	/**
+	 * Instantiates a new ping check queue, with the default conflict hold time.
+	 *
+	 * @param pool the pool of the free addresses
+	 * @param depth the number of addresses to verify ahead of time
+	 */
+	public V4PingCheckQueue(V4AddressBindingPool pool, int depth)
+	{
+		this(pool, depth, DEFAULT_CONFLICT_HOLD);
+	}
+
+	/**
+	 * Instantiates a new ping check queue.
+	 *
+	 * @param pool the pool of the free addresses
+	 * @param depth the number of addresses to verify ahead of time
+	 * @param conflictHold the time in milliseconds for which an address
+	 * in conflict is not offered
+	 */
+	public V4PingCheckQueue(V4AddressBindingPool pool, int depth, long conflictHold)
+	{
+		this.pool = pool;
+		this.depth = Math.max(1, depth);
+		this.conflictHold = Math.max(0, conflictHold);
+	}
+
+	/**
+	 * Sets the probe used by all the queues.
+	 *
+	 * @param pingProbe the probe, or null for the default ICMP probe
+	 */
+	public static void setProbe(PingProbe pingProbe)
+	{
+		probe = (pingProbe != null) ? pingProbe : ICMP_PROBE;
+	}
+
+	/**
+	 * Gets the probe used by all the queues.
+	 *
+	 * @return the probe
+	 */
+	public static PingProbe getProbe()
+	{
+		return probe;
+	}
+
+	private static synchronized ThreadPoolExecutor getProbeExecutor()
+	{
+		if (probeExecutor == null) {
+			int threads = Math.max(1,
+					DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_THREADS));
+			// the queue is bounded by the depth of the ping check queues
+			probeExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "PingCheck-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return probeExecutor;
+	}
+
+	/**
+	 * Start probing free addresses of the pool, until the queue is full.
+	 * This must only be called after the used addresses of the pool are set.
+	 *
+	 * @param timeout the time to wait for an answer to each probe in milliseconds
+	 */
+	public void refill(int timeout)
+	{
+		if (released) {
+			return;
+		}
+		this.timeout = timeout;
+		while (pending.incrementAndGet() <= depth) {
+			InetAddress addr = pool.nextFreeAddress();
+			if (addr == null) {
+				break;
+			}
+			submitProbe(addr);
+		}
+		pending.decrementAndGet();
+	}
+
+	private void submitProbe(final InetAddress addr)
+	{
+		probing.add(addr);
+		try {
+			getProbeExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					probe(addr);
+				}
+			});
+		}
+		catch (RejectedExecutionException ex) {
+			log.error("Failed to queue v4 ping check: " + ex);
+			probed(addr, false);
+		}
+	}
+
+	private void probe(InetAddress addr)
+	{
+		probeCount.incrementAndGet();
+		boolean reachable = false;
+		try {
+			reachable = probe.isReachable(addr, timeout);
+		}
+		catch (IOException ex) {
+			log.error("Failed to perform v4 ping check: " + ex);
+		}
+		probed(addr, reachable);
+	}
+
+	private void probed(InetAddress addr, boolean reachable)
+	{
+		probing.remove(addr);
+		if (released) {
+			if (!claimed.remove(addr)) {
+				pool.setFree(addr);
+			}
+		}
+		else if (claimed.remove(addr)) {
+			// the address was bound while it was probed
+			pending.decrementAndGet();
+			refill(timeout);
+		}
+		else if (reachable) {
+			log.warn("Free address answered ping check: " + addr.getHostAddress());
+			// the address is left used in the free list of the pool
+			long now = System.currentTimeMillis();
+			conflicts.put(addr, now);
+			if (now + conflictHold < nextConflictExpiry) {
+				nextConflictExpiry = now + conflictHold;
+			}
+			pending.decrementAndGet();
+			refill(timeout);
+		}
+		else {
+			verified.add(new VerifiedAddress(addr));
+		}
+	}
+
+	/**
+	 * Take a verified free address, without waiting for a probe.  If no
+	 * verified address is ready, the next free address of the pool is
+	 * returned unchecked.
+	 *
+	 * @param timeout the time to wait for an answer to each probe in milliseconds
+	 *
+	 * @return the free address, or null if the pool is exhausted
+	 */
+	public InetAddress take(int timeout)
+	{
+		InetAddress addr = null;
+		long now = System.currentTimeMillis();
+		if (now >= nextConflictExpiry) {
+			expireConflicts(now);
+		}
+		VerifiedAddress va = null;
+		while ((va = verified.poll()) != null) {
+			if (now - va.time > MAX_VERIFIED_AGE) {
+				// still pending, the address is verified again
+				this.timeout = timeout;
+				submitProbe(va.addr);
+				continue;
+			}
+			pending.decrementAndGet();
+			addr = va.addr;
+			break;
+		}
+		if (addr == null) {
+			addr = pool.nextFreeAddress();
+			if (addr != null) {
+				uncheckedCount.incrementAndGet();
+				log.debug("No ping checked address ready, offering unchecked address: " +
+						addr.getHostAddress());
+			}
+		}
+		refill(timeout);
+		return addr;
+	}
+
+	/**
+	 * Set the addresses free whose conflicts have been held long enough,
+	 * so that they are probed again when they are next in the free list.
+	 *
+	 * @param now the current time
+	 */
+	protected void expireConflicts(long now)
+	{
+		long next = Long.MAX_VALUE;
+		nextConflictExpiry = next;
+		for (Map.Entry<InetAddress, Long> conflict : conflicts.entrySet()) {
+			long expiry = conflict.getValue() + conflictHold;
+			if (expiry <= now) {
+				if (conflicts.remove(conflict.getKey(), conflict.getValue())) {
+					log.info("Ping check conflict expired: " + conflict.getKey().getHostAddress());
+					pool.setFree(conflict.getKey());
+				}
+			}
+			else if (expiry < next) {
+				next = expiry;
+			}
+		}
+		if (next < nextConflictExpiry) {
+			nextConflictExpiry = next;
+		}
+	}
+
+	/**
+	 * Release the queue, when ping checks are disabled.  The verified
+	 * addresses, the addresses being probed and the addresses in conflict
+	 * are set free in the pool, and the queue is not refilled.
+	 */
+	public void release()
+	{
+		released = true;
+		VerifiedAddress va = null;
+		while ((va = verified.poll()) != null) {
+			pool.setFree(va.addr);
+		}
+		// the addresses being probed are set free when their probe finishes
+		for (InetAddress addr : conflicts.keySet()) {
+			if (conflicts.remove(addr) != null) {
+				pool.setFree(addr);
+			}
+		}
+		pending.set(0);
+		nextConflictExpiry = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Remove an address which has been bound by another path, such as a
+	 * client requesting the address, so that it is not offered again.
+	 *
+	 * @param addr the address
+	 */
+	public void remove(InetAddress addr)
+	{
+		// an address in conflict is bound, so is not set free when it expires
+		conflicts.remove(addr);
+		Iterator<VerifiedAddress> iter = verified.iterator();
+		while (iter.hasNext()) {
+			VerifiedAddress va = iter.next();
+			if (va.addr.equals(addr)) {
+				iter.remove();
+				pending.decrementAndGet();
+				return;
+			}
+		}
+		if (probing.contains(addr)) {
+			claimed.add(addr);
+			// the probe may have finished since it was checked
+			if (!probing.contains(addr) && claimed.remove(addr)) {
+				remove(addr);
+			}
+		}
+	}
+
+	/**
+	 * Test if an address answered a ping check.
+	 *
+	 * @param addr the address
+	 *
+	 * @return true, if the address is in conflict
+	 */
+	public boolean isConflict(InetAddress addr)
+	{
+		return conflicts.containsKey(addr);
+	}
+
+	public Map<InetAddress, Long> getConflicts()
+	{
+		return conflicts;
+	}
+
+	public int getVerifiedCount()
+	{
+		return verified.size();
+	}
+
+	public long getProbeCount()
+	{
+		return probeCount.get();
+	}
+
+	public long getUncheckedCount()
+	{
+		return uncheckedCount.get();
+	}
+
+	static class VerifiedAddress
+	{
+		final InetAddress addr;
+		final long time;
+
+		VerifiedAddress(InetAddress addr)
+		{
+			this.addr = addr;
+			this.time = System.currentTimeMillis();
+		}
+	}
+}
@@ -65,6 +65,15 @@ public class V4StaticAddressBinding extends StaticBinding implements DhcpV4Optio
 		return rc;
 	}
 
+	@Override
+	public String getIndexKey() {
+		if (addressBinding == null) {
+			return null;
+		}
+		// any IAID, because V4 bindings match on the chaddr alone
+		return indexKey(addressBinding.getChaddr(), IdentityAssoc.V4_TYPE, null);
+	}
+
 	@Override
 	public String getIpAddress() {
 		return addressBinding.getIpAddress();
@@ -173,7 +173,7 @@ public abstract class V6AddrBindingManager extends BaseAddrBindingManager
     		for (V6AddressBindingPool bp : bindingPools) {
 				ranges.add(bp.getRange());
 			}
-        	iaMgr.reconcileIaAddresses(ranges);
+        	reconcileIaAddresses(ranges);
     	}
     }
     
@@ -28,16 +28,19 @@ package com.jagornet.dhcp.server.request.binding;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Timer;
+import java.util.Date;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.jagornet.dhcp.core.util.Util;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.config.DhcpV6ConfigOptions;
 import com.jagornet.dhcp.server.config.DhcpV6OptionConfigObject;
 import com.jagornet.dhcp.server.config.xml.FiltersType;
+import com.jagornet.dhcp.server.config.xml.Link;
 import com.jagornet.dhcp.server.config.xml.LinkFilter;
 import com.jagornet.dhcp.server.config.xml.PoliciesType;
 import com.jagornet.dhcp.server.config.xml.V6AddressPool;
@@ -62,7 +65,7 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 	protected DhcpV6ConfigOptions iaConfigOptions;
 	protected DhcpV6ConfigOptions addrConfigOptions;
 	protected LinkFilter linkFilter; 
-	protected Timer reaper;
+	protected LeaseExpirationQueue expirationQueue;
 	
 	/**
 	 * Instantiates a new binding pool.
@@ -86,9 +89,10 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 			throw new DhcpServerConfigException("Invalid AddressPool definition", ex);
 		}
 		freeList = 
-			new FreeList(new BigInteger(range.getStartAddress().getAddress()),
-					new BigInteger(range.getEndAddress().getAddress()));
-		reaper = new Timer(pool.getRange()+"_Reaper");
+			FreeList.createFreeList(new BigInteger(range.getStartAddress().getAddress()),
+					new BigInteger(range.getEndAddress().getAddress()),
+					DhcpServerPolicies.effectivePolicy(this, (Link)null, 
+							Property.BINDING_MANAGER_FREELIST_TYPE));
 		msgConfigOptions = new DhcpV6ConfigOptions(pool.getMsgConfigOptions());
 		iaConfigOptions = new DhcpV6ConfigOptions(pool.getIaConfigOptions());
 		addrConfigOptions = new DhcpV6ConfigOptions(pool.getAddrConfigOptions());
@@ -150,7 +154,8 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 	}
 	
 	/**
-	 * Start expire timer task.
+	 * Start expire timer task, by queueing the expiration of the address
+	 * with the binding manager's reaper.
 	 * 
 	 * @param iaAddr the ia addr
 	 * @param secsUntilExpiration the secs until expiration
@@ -158,7 +163,18 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 	public void startExpireTimerTask(IaAddress iaAddr, long secsUntilExpiration)
 	{
 		// convert delay from seconds (lifetime) --> milliseconds (delay)
-//		reaper.schedule(new ExpireTimerTask(iaAddr), secsUntilExpiration*1000);
+		if (expirationQueue != null) {
+			expirationQueue.schedule(iaAddr.getIpAddress(), 
+					new Date(System.currentTimeMillis() + secsUntilExpiration*1000));
+		}
+	}
+	
+	public LeaseExpirationQueue getExpirationQueue() {
+		return expirationQueue;
+	}
+	
+	public void setExpirationQueue(LeaseExpirationQueue expirationQueue) {
+		this.expirationQueue = expirationQueue;
 	}
 	
 	/**
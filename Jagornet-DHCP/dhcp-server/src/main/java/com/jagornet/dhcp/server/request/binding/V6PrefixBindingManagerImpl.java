@@ -29,10 +29,10 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +42,7 @@ import com.jagornet.dhcp.core.message.DhcpV6Message;
 import com.jagornet.dhcp.core.option.v6.DhcpV6ClientIdOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6IaPdOption;
 import com.jagornet.dhcp.core.option.v6.DhcpV6IaPrefixOption;
+import com.jagornet.dhcp.server.DhcpServerScheduler;
 import com.jagornet.dhcp.server.config.DhcpLink;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
@@ -57,6 +58,7 @@ import com.jagornet.dhcp.server.db.DhcpOption;
 import com.jagornet.dhcp.server.db.IaAddress;
 import com.jagornet.dhcp.server.db.IaPrefix;
 import com.jagornet.dhcp.server.db.IdentityAssoc;
+import com.jagornet.dhcp.server.db.LeaseManager;
 
 /**
  * The Class PrefixBindingManagerImpl.
@@ -85,14 +87,36 @@ public class V6PrefixBindingManagerImpl
 		long reaperRunPeriod =
 			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_RUN_PERIOD);
 
-		reaper = new Timer("BindingReaper");
-		reaper.schedule(new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod);
+		if (isExpirationQueueUsed()) {
+			initExpirationQueue();
+		}
+		reaper = DhcpServerScheduler.getInstance().scheduleWithFixedDelay("BindingReaper",
+				new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod, TimeUnit.MILLISECONDS);
 	}
     
 	protected void stopReaper()
 	{
-		reaper.cancel();
-		reaper.purge();
+		if (reaper != null) {
+			reaper.cancel(false);
+		}
+		expirationQueue.clear();
+	}
+	
+	/**
+	 * The prefixes of the v1 schema are not found by address,
+	 * so the reaper scans the database on every run.
+	 * 
+	 * @return true if the expiration queue is used
+	 */
+	protected boolean isExpirationQueueUsed()
+	{
+		return (iaMgr instanceof LeaseManager);
+	}
+	
+	@Override
+	protected byte getIaType()
+	{
+		return IdentityAssoc.PD_TYPE;
 	}
     
     /**
@@ -173,7 +197,7 @@ public class V6PrefixBindingManagerImpl
     			Range range = new Range(bp.getStartAddress(), bp.getEndAddress());
 				ranges.add(range);
 			}
-        	iaMgr.reconcileIaAddresses(ranges);
+        	reconcileIaAddresses(ranges);
     	}
     }
     
@@ -316,6 +340,7 @@ public class V6PrefixBindingManagerImpl
 	public void releaseIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
+			expirationQueue.cancel(iaPrefix.getIpAddress());
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
 					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
 				iaMgr.deleteIaPrefix(iaPrefix);
@@ -340,6 +365,7 @@ public class V6PrefixBindingManagerImpl
 	public void declineIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
+			expirationQueue.cancel(iaPrefix.getIpAddress());
 			iaPrefix.setStartTime(null);
 			iaPrefix.setPreferredEndTime(null);
 			iaPrefix.setValidEndTime(null);
@@ -360,6 +386,7 @@ public class V6PrefixBindingManagerImpl
 	public void expireIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
+			expirationQueue.cancel(iaPrefix.getIpAddress());
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
 					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
 				log.debug("Deleting expired prefix: " + iaPrefix.getIpAddress());
@@ -398,6 +425,14 @@ public class V6PrefixBindingManagerImpl
 		}
 	}
 	
+	@Override
+	protected void expireQueuedLease(IdentityAssoc ia, IaAddress iaAddr)
+	{
+		if (iaAddr instanceof IaPrefix) {
+			expireIaPrefix((IaPrefix)iaAddr);
+		}
+	}
+	
 	/**
 	 * Extract the list of IP addresses from within the given IA_PD option.
 	 * 
@@ -623,15 +658,22 @@ public class V6PrefixBindingManagerImpl
 	/**
 	 * The Class ReaperTimerTask.
 	 */
-	class ReaperTimerTask extends TimerTask
+	class ReaperTimerTask implements Runnable
 	{		
 		/* (non-Javadoc)
-		 * @see java.util.TimerTask#run()
+		 * @see java.lang.Runnable#run()
 		 */
 		@Override
 		public void run() {
-			log.debug("Looking for expired prefixes...");
-			expirePrefixes();
+			long now = new Date().getTime();
+			if (!isExpirationQueueUsed() || isFullScanDue(now)) {
+				log.debug("Looking for expired prefixes...");
+				expirePrefixes();
+				lastFullScanTime = now;
+			}
+			else {
+				expireQueuedLeases();
+			}
 		}
 	}
 }
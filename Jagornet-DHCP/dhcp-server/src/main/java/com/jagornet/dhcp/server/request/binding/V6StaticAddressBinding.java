@@ -75,6 +75,15 @@ public class V6StaticAddressBinding extends StaticBinding implements DhcpV6Optio
 		return rc;
 	}
 	
+	@Override
+	public String getIndexKey() {
+		if ((addressBinding == null) || (addressBinding.getDuid() == null)) {
+			return null;
+		}
+		return indexKey(addressBinding.getDuid().getHexValue(), iaType,
+				addressBinding.getIaid());
+	}
+
 	@Override
 	public String getIpAddress() {
 		return addressBinding.getIpAddress();
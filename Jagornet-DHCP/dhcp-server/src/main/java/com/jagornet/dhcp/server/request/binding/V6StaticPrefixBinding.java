@@ -75,6 +75,15 @@ public class V6StaticPrefixBinding extends StaticBinding implements DhcpV6Option
 		return rc;
 	}
 
+	@Override
+	public String getIndexKey() {
+		if ((prefixBinding == null) || (prefixBinding.getDuid() == null)) {
+			return null;
+		}
+		return indexKey(prefixBinding.getDuid().getHexValue(), IdentityAssoc.PD_TYPE,
+				prefixBinding.getIaid());
+	}
+
 	@Override
 	public String getIpAddress() {
 		return prefixBinding.getPrefix();
@@ -30,6 +30,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,6 +40,9 @@ import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TSIG;
 import org.xbill.DNS.TextParseException;
 
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
 /**
  * The Class DdnsUpdate.  The abstract base class for handling DDNS updates
  * according to RFC 4703 and RFC 4704.
@@ -54,6 +58,10 @@ public abstract class DdnsUpdate
 	/** The sha256 msg digest. */
 	protected static MessageDigest sha256MsgDigest;
 	
+	/** The resolvers, reused for each server, TSIG key and timeout. */
+	private static ConcurrentHashMap<String, Resolver> resolvers =
+			new ConcurrentHashMap<String, Resolver>();
+	
 	/** The fqdn. */
 	protected String fqdn;
 	
@@ -110,7 +118,9 @@ public abstract class DdnsUpdate
 	}
 	
 	/**
-	 * Creates the resolver.
+	 * Gets the resolver for the server and TSIG key of this update.  The
+	 * resolver is created when first used, and then shared by all the
+	 * updates sent to the same server with the same key and timeout.
 	 * 
 	 * @return the resolver
 	 * 
@@ -119,7 +129,62 @@ public abstract class DdnsUpdate
 	 */
 	protected Resolver createResolver() throws UnknownHostException, TextParseException 
 	{
-		Resolver res = new SimpleResolver(server);
+		int timeout = DhcpServerPolicies.globalPolicyAsInt(Property.DDNS_TIMEOUT);
+		// the timeout is part of the key, so that a change to the
+		// ddns.timeout policy is used by the next update
+		String key = getResolverKey() + "|" + timeout;
+		Resolver res = resolvers.get(key);
+		if (res == null) {
+			res = newResolver(timeout);
+			Resolver existing = resolvers.putIfAbsent(key, res);
+			if (existing != null) {
+				res = existing;
+			}
+		}
+		return res;
+	}
+	
+	/**
+	 * Gets the key of the resolver for this update.
+	 * 
+	 * @return the resolver key
+	 */
+	protected String getResolverKey()
+	{
+		return server + "|" + tsigKeyName + "|" + tsigAlgorithm + "|" + tsigKeyData;
+	}
+	
+	/**
+	 * Clear the shared resolvers, e.g. after the DDNS policies change.
+	 */
+	public static void clearResolvers()
+	{
+		resolvers.clear();
+	}
+	
+	/**
+	 * Creates a new resolver.  The server may be followed by '#' and the
+	 * port of the server, e.g. 10.0.0.53#5353.
+	 * 
+	 * @param timeout the timeout in milliseconds
+	 * 
+	 * @return the resolver
+	 * 
+	 * @throws UnknownHostException the unknown host exception
+	 * @throws TextParseException the text parse exception
+	 */
+	protected Resolver newResolver(int timeout) throws UnknownHostException, TextParseException 
+	{
+		Resolver res = null;
+		int p = (server != null) ? server.indexOf('#') : -1;
+		if (p > 0) {
+			res = new SimpleResolver(server.substring(0, p));
+			res.setPort(Integer.parseInt(server.substring(p+1)));
+		}
+		else {
+			res = new SimpleResolver(server);
+		}
+		res.setTimeout(timeout / 1000, timeout % 1000);
 		if ((tsigKeyName != null) && (tsigKeyName.length() > 0)) {
 			TSIG tsig = null;
 			if (tsigAlgorithm != null) {
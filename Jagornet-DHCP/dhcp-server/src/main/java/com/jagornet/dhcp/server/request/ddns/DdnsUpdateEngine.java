@@ -0,0 +1,578 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file DdnsUpdateEngine.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.ddns;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Update;
+
+import com.jagornet.dhcp.server.DhcpServerScheduler;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+/**
+ * Title: DdnsUpdateEngine
+ * Description: Sends the DDNS updates of the server from a bounded queue,
+ * with a fixed number of threads.  A queued update for the same FQDN and
+ * address is replaced by a newer update, the reverse updates taken in one
+ * batch for the same zone and server are sent in a single UPDATE message,
+ * and updates which get no answer from the DNS server are retried, with
+ * a growing delay.
+ *
+ * @author A. Gregory Rabil
+ */
+public class DdnsUpdateEngine
+{
+	private static Logger log = LoggerFactory.getLogger(DdnsUpdateEngine.class);
+
+	private static DdnsUpdateEngine INSTANCE;
+
+	private final int threads;
+	private final int batchSize;
+	private final int maxRetries;
+	private final long retryDelay;
+
+	/** The keys of the queued updates, in the order they were queued. */
+	private final BlockingQueue<String> queue;
+
+	/** The queued updates, by key. */
+	private final ConcurrentHashMap<String, DdnsUpdater> pending =
+			new ConcurrentHashMap<String, DdnsUpdater>();
+
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean started;
+	private volatile boolean stopped;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong batchedMessages = new AtomicLong();
+	private final AtomicLong batchedUpdates = new AtomicLong();
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+	/**
+	 * Get the DDNS update engine of the server, which is created and
+	 * started when first used.
+	 *
+	 * @return the engine
+	 */
+	public static synchronized DdnsUpdateEngine getInstance()
+	{
+		if (INSTANCE == null) {
+			INSTANCE = new DdnsUpdateEngine(
+					DhcpServerPolicies.globalPolicyAsInt(Property.DDNS_THREADS),
+					DhcpServerPolicies.globalPolicyAsInt(Property.DDNS_QUEUE_SIZE),
+					DhcpServerPolicies.globalPolicyAsInt(Property.DDNS_BATCH_SIZE),
+					DhcpServerPolicies.globalPolicyAsInt(Property.DDNS_RETRIES),
+					DhcpServerPolicies.globalPolicyAsLong(Property.DDNS_RETRY_DELAY));
+			INSTANCE.start();
+		}
+		return INSTANCE;
+	}
+
+	/**
+	 * Shut down the DDNS update engine of the server, if it was created.
+	 *
+	 * @param timeoutMillis the time to wait for the queued updates to be sent
+	 */
+	public static synchronized void shutdownInstance(long timeoutMillis)
+	{
+		if (INSTANCE != null) {
+			INSTANCE.shutdown(timeoutMillis);
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * Create an engine.  The engine sends no updates until it is started.
+	 *
+	 * @param threads the number of threads sending the updates
+	 * @param queueSize the maximum number of queued updates
+	 * @param batchSize the maximum number of updates taken at once by a thread
+	 * @param maxRetries the number of retries of an unanswered update
+	 * @param retryDelay the delay of the first retry in milliseconds
+	 */
+	public DdnsUpdateEngine(int threads, int queueSize, int batchSize,
+			int maxRetries, long retryDelay)
+	{
+		this.threads = Math.max(1, threads);
+		this.batchSize = Math.max(1, batchSize);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelay = Math.max(1, retryDelay);
+		queue = new ArrayBlockingQueue<String>(Math.max(1, queueSize));
+	}
+
+	/**
+	 * Start the threads sending the updates.
+	 */
+	public synchronized void start()
+	{
+		if (started || stopped) {
+			return;
+		}
+		started = true;
+		for (int i=0; i<threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "DdnsUpdater-" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		log.info("DDNS update engine started: threads=" + threads +
+				" queueSize=" + (queue.size() + queue.remainingCapacity()) +
+				" batchSize=" + batchSize + " maxRetries=" + maxRetries +
+				" retryDelay=" + retryDelay);
+	}
+
+	/**
+	 * Queue the updates of a DDNS updater.  If updates for the same FQDN
+	 * and address are already queued, they are replaced by these updates.
+	 *
+	 * @param updater the updater
+	 * @return false if the queue is full, and the updates were dropped
+	 */
+	public boolean submit(DdnsUpdater updater)
+	{
+		submitted.incrementAndGet();
+		updater.setQueuedNanos(System.nanoTime());
+		String key = updater.getKey();
+		DdnsCallback callback = updater.getCallback();
+		DdnsUpdater prev;
+		while ((prev = pending.putIfAbsent(key, updater)) != null) {
+			// the queued updates have not been sent, so only the newer
+			// are, and they report to the callbacks of the replaced updates,
+			// which are merged before the newer updates can be taken
+			updater.setCallback(new MergedCallback(prev.getCallback(), callback));
+			if (pending.replace(key, prev, updater)) {
+				coalesced.incrementAndGet();
+				if (log.isDebugEnabled()) {
+					log.debug("Replaced queued DDNS updates: " + key);
+				}
+				return true;
+			}
+			// the queued updates were taken by a worker
+			updater.setCallback(callback);
+		}
+		return enqueue(key, updater);
+	}
+
+	/**
+	 * Queue the updates of a DDNS updater again, after a failed attempt,
+	 * unless newer updates for the same FQDN and address are queued.
+	 *
+	 * @param updater the updater
+	 */
+	protected void resubmit(DdnsUpdater updater)
+	{
+		String key = updater.getKey();
+		DdnsUpdater newer = pending.putIfAbsent(key, updater);
+		if (newer != null) {
+			coalesced.incrementAndGet();
+			finish(updater, false);
+			return;
+		}
+		enqueue(key, updater);
+	}
+
+	private boolean enqueue(String key, DdnsUpdater updater)
+	{
+		if (stopped || !queue.offer(key)) {
+			pending.remove(key, updater);
+			rejected.incrementAndGet();
+			log.warn("DDNS update queue " + (stopped ? "stopped" : "full") +
+					", dropping updates: " + key);
+			updater.failed();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Take batches of updates from the queue, until the engine is shut
+	 * down and the queue is empty.
+	 */
+	protected void work()
+	{
+		List<String> keys = new ArrayList<String>(batchSize);
+		List<DdnsUpdater> batch = new ArrayList<DdnsUpdater>(batchSize);
+		while (!stopped || !queue.isEmpty()) {
+			try {
+				String key = queue.poll(1, TimeUnit.SECONDS);
+				if (key == null) {
+					continue;
+				}
+				keys.add(key);
+				queue.drainTo(keys, batchSize - 1);
+				for (String k : keys) {
+					DdnsUpdater updater = pending.remove(k);
+					if (updater != null) {
+						batch.add(updater);
+					}
+				}
+				process(batch);
+			}
+			catch (InterruptedException ex) {
+				break;
+			}
+			catch (Throwable t) {
+				log.error("DDNS update processing failed", t);
+			}
+			finally {
+				keys.clear();
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Send a batch of updates.  The forward updates are sent one at a
+	 * time, because each has the prerequisites of RFC 4703, which apply
+	 * to a whole UPDATE message.  The reverse updates have no prerequisites,
+	 * so those for the same zone and server are sent together.
+	 *
+	 * @param batch the updaters
+	 */
+	protected void process(List<DdnsUpdater> batch)
+	{
+		Map<String, List<DdnsUpdater>> reverse = new LinkedHashMap<String, List<DdnsUpdater>>();
+		for (DdnsUpdater updater : batch) {
+			try {
+				updater.sendForwardUpdate();
+				ReverseDdnsUpdate revUpdate = updater.getReverseUpdate();
+				String key = revUpdate.getResolverKey() + "|" + revUpdate.getZoneName();
+				List<DdnsUpdater> group = reverse.get(key);
+				if (group == null) {
+					group = new ArrayList<DdnsUpdater>();
+					reverse.put(key, group);
+				}
+				group.add(updater);
+			}
+			catch (Exception ex) {
+				failure(updater, ex);
+			}
+		}
+		for (List<DdnsUpdater> group : reverse.values()) {
+			if (group.size() == 1) {
+				sendReverse(group.get(0));
+			}
+			else {
+				sendReverse(group);
+			}
+		}
+	}
+
+	private void sendReverse(DdnsUpdater updater)
+	{
+		try {
+			ReverseDdnsUpdate revUpdate = updater.getReverseUpdate();
+			boolean rc = updater.isDelete() ? revUpdate.sendDelete() : revUpdate.sendAdd();
+			updater.reverseComplete(rc);
+			finish(updater, true);
+		}
+		catch (Exception ex) {
+			failure(updater, ex);
+		}
+	}
+
+	private void sendReverse(List<DdnsUpdater> group)
+	{
+		ReverseDdnsUpdate first = group.get(0).getReverseUpdate();
+		try {
+			Update update = new Update(first.getZoneName());
+			for (DdnsUpdater updater : group) {
+				updater.getReverseUpdate().addRecords(update, updater.isDelete());
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Sending reverse DDNS update (batch) to server=" + first.getServer() +
+						":\n" + update.toString());
+			}
+			else if (log.isInfoEnabled()) {
+				log.info("Sending reverse DDNS update (batch) of " + group.size() +
+						" records to zone " + first.getZoneName());
+			}
+			Message response = first.createResolver().send(update);
+			batchedMessages.incrementAndGet();
+			batchedUpdates.addAndGet(group.size());
+			boolean rc = (response.getRcode() == Rcode.NOERROR);
+			if (rc) {
+				log.info("Reverse DDNS update (batch) succeeded: " + group.size() + " records");
+			}
+			else {
+				log.error("Reverse DDNS update (batch) failed (rcode=" +
+						Rcode.string(response.getRcode()) + "): " + group.size() + " records");
+			}
+			for (DdnsUpdater updater : group) {
+				updater.reverseComplete(rc);
+				finish(updater, true);
+			}
+		}
+		catch (Exception ex) {
+			for (DdnsUpdater updater : group) {
+				failure(updater, ex);
+			}
+		}
+	}
+
+	/**
+	 * Handle the failure of an attempt to send updates.  If the DNS server
+	 * did not answer, the updates are retried after a delay, which doubles
+	 * with each attempt.
+	 *
+	 * @param updater the updater
+	 * @param ex the failure
+	 */
+	private void failure(final DdnsUpdater updater, Exception ex)
+	{
+		if (!(ex instanceof IOException) || (ex instanceof TextParseException)) {
+			log.error("Failure performing DDNS updates: " + updater.getKey(), ex);
+			finish(updater, false);
+			return;
+		}
+		int attempt = updater.nextAttempt();
+		if (attempt > maxRetries) {
+			log.error("Failure performing DDNS updates after " + attempt +
+					" attempts: " + updater.getKey() + ": " + ex);
+			finish(updater, false);
+			return;
+		}
+		retried.incrementAndGet();
+		long delay = retryDelay << Math.min(attempt - 1, 16);
+		log.warn("DDNS updates failed: " + updater.getKey() + ": " + ex +
+				", retry " + attempt + " in " + delay + "ms");
+		DhcpServerScheduler.getInstance().schedule("DdnsRetry", new Runnable() {
+			@Override
+			public void run() {
+				resubmit(updater);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void finish(DdnsUpdater updater, boolean success)
+	{
+		if (success) {
+			completed.incrementAndGet();
+		}
+		else {
+			failed.incrementAndGet();
+			updater.failed();
+		}
+		long latency = System.nanoTime() - updater.getQueuedNanos();
+		latencyNanos.addAndGet(latency);
+		long max = maxLatencyNanos.get();
+		while ((latency > max) && !maxLatencyNanos.compareAndSet(max, latency)) {
+			max = maxLatencyNanos.get();
+		}
+	}
+
+	/**
+	 * Shut down the engine.  The queued updates are sent, if possible
+	 * within the timeout, and later updates are dropped.
+	 *
+	 * @param timeoutMillis the time to wait for the queued updates to be sent
+	 */
+	public synchronized void shutdown(long timeoutMillis)
+	{
+		log.info("Shutting down DDNS update engine: " + this);
+		stopped = true;
+		long end = System.currentTimeMillis() + timeoutMillis;
+		for (Thread worker : workers) {
+			try {
+				worker.join(Math.max(1, end - System.currentTimeMillis()));
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+		if (!queue.isEmpty()) {
+			log.warn("Dropped " + queue.size() + " queued DDNS updates");
+			queue.clear();
+		}
+	}
+
+	/**
+	 * @return the number of updates waiting in the queue
+	 */
+	public int getQueueDepth()
+	{
+		return queue.size();
+	}
+
+	public long getSubmitted()
+	{
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of queued updates replaced by newer updates
+	 */
+	public long getCoalesced()
+	{
+		return coalesced.get();
+	}
+
+	/**
+	 * @return the number of updates dropped because the queue was full
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	public long getCompleted()
+	{
+		return completed.get();
+	}
+
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	public long getRetried()
+	{
+		return retried.get();
+	}
+
+	/**
+	 * @return the number of UPDATE messages sent for several reverse updates
+	 */
+	public long getBatchedMessages()
+	{
+		return batchedMessages.get();
+	}
+
+	/**
+	 * @return the number of reverse updates sent in batched UPDATE messages
+	 */
+	public long getBatchedUpdates()
+	{
+		return batchedUpdates.get();
+	}
+
+	/**
+	 * @return the average time from queuing to completion, in milliseconds
+	 */
+	public long getAverageLatencyMillis()
+	{
+		long done = completed.get() + failed.get();
+		return (done > 0) ? TimeUnit.NANOSECONDS.toMillis(latencyNanos.get() / done) : 0;
+	}
+
+	/**
+	 * @return the longest time from queuing to completion, in milliseconds
+	 */
+	public long getMaxLatencyMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "queueDepth=" + getQueueDepth() +
+				" submitted=" + getSubmitted() +
+				" coalesced=" + getCoalesced() +
+				" rejected=" + getRejected() +
+				" completed=" + getCompleted() +
+				" failed=" + getFailed() +
+				" retried=" + getRetried() +
+				" batchedMessages=" + getBatchedMessages() +
+				" batchedUpdates=" + getBatchedUpdates() +
+				" averageLatencyMillis=" + getAverageLatencyMillis() +
+				" maxLatencyMillis=" + getMaxLatencyMillis();
+	}
+
+	/**
+	 * The callbacks of queued updates which were replaced by newer updates,
+	 * and of the newer updates, in the order the updates were submitted.
+	 */
+	static class MergedCallback implements DdnsCallback
+	{
+		private final DdnsCallback replaced;
+		private final DdnsCallback callback;
+		
+		MergedCallback(DdnsCallback replaced, DdnsCallback callback)
+		{
+			this.replaced = replaced;
+			this.callback = callback;
+		}
+		
+		@Override
+		public void fwdAddComplete(boolean success)
+		{
+			replaced.fwdAddComplete(success);
+			callback.fwdAddComplete(success);
+		}
+		
+		@Override
+		public void fwdDeleteComplete(boolean success)
+		{
+			replaced.fwdDeleteComplete(success);
+			callback.fwdDeleteComplete(success);
+		}
+		
+		@Override
+		public void revAddComplete(boolean success)
+		{
+			replaced.revAddComplete(success);
+			callback.revAddComplete(success);
+		}
+		
+		@Override
+		public void revDeleteComplete(boolean success)
+		{
+			replaced.revDeleteComplete(success);
+			callback.revDeleteComplete(success);
+		}
+	}
+}
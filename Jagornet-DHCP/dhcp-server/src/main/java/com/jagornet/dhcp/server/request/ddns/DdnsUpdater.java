@@ -25,9 +25,8 @@
  */
 package com.jagornet.dhcp.server.request.ddns;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,9 +48,6 @@ public class DdnsUpdater implements Runnable
 	/** The log. */
 	private static Logger log = LoggerFactory.getLogger(DdnsUpdater.class);
 
-	/** The executor. */
-	private static ExecutorService executor = Executors.newCachedThreadPool();
-	
 	/** The sync. */
 	private boolean sync;
 	
@@ -122,6 +118,18 @@ public class DdnsUpdater implements Runnable
 
 	private DdnsCallback callback;
 	
+	/** The reverse update, once built. */
+	private ReverseDdnsUpdate revUpdate;
+	
+	/** The forward update was sent by an earlier attempt. */
+	private boolean forwardDone;
+	
+	/** The number of failed attempts to send the updates. */
+	private int attempts;
+	
+	/** The time the updates were first queued, in nanoseconds. */
+	private long queuedNanos;
+	
 	/**
 	 * Instantiates a new ddns updater.
 	 * 
@@ -169,15 +177,27 @@ public class DdnsUpdater implements Runnable
 	}
 	
 	/**
-	 * Process updates.
+	 * Process updates.  Unless the updates are synchronized with the reply,
+	 * they are queued to the DDNS update engine of the server.
 	 */
 	public void processUpdates()
 	{
+		processUpdates(DdnsUpdateEngine.getInstance());
+	}
+	
+	/**
+	 * Process updates, queuing them to the given engine.
+	 * 
+	 * @param engine the DDNS update engine
+	 */
+	void processUpdates(DdnsUpdateEngine engine)
+	{
+		setupPolicies(configObj, lifetime);
 		if (sync) {
 			run();
 		}
 		else {
-			executor.submit(this);
+			engine.submit(this);
 		}
 	}
 	
@@ -186,22 +206,53 @@ public class DdnsUpdater implements Runnable
 	 */
 	public void run()
 	{
-		setupPolicies(configObj, lifetime);						
 		try {
-			if (doForwardUpdate) {
-				ForwardDdnsUpdate fwdUpdate = new ForwardDdnsUpdate(fqdn, addr, duid);
-				fwdUpdate.setServer(fwdServer);
-				fwdUpdate.setZone(fwdZone);
-				fwdUpdate.setTtl(fwdTtl);
-				fwdUpdate.setTsigKeyName(fwdTsigKeyName);
-				fwdUpdate.setTsigAlgorithm(fwdTsigAlgorithm);
-				fwdUpdate.setTsigKeyData(fwdTsigKeyData);
-				if (!isDelete)
-					callback.fwdAddComplete(fwdUpdate.sendAdd());
-				else
-					callback.fwdDeleteComplete(fwdUpdate.sendDelete());
-			}
-			ReverseDdnsUpdate revUpdate = new ReverseDdnsUpdate(fqdn, addr, duid);
+			sendForwardUpdate();
+			ReverseDdnsUpdate revUpdate = getReverseUpdate();
+			if (!isDelete)
+				reverseComplete(revUpdate.sendAdd());
+			else
+				reverseComplete(revUpdate.sendDelete());
+		}
+		catch (Exception ex) {
+			log.error("Failure performing DDNS updates", ex);
+			failed();
+		}				
+	}
+	
+	/**
+	 * Send the forward update, unless it is not wanted, or was sent by
+	 * an earlier attempt.
+	 * 
+	 * @throws IOException if the update could not be sent
+	 */
+	void sendForwardUpdate() throws IOException
+	{
+		if (doForwardUpdate && !forwardDone) {
+			ForwardDdnsUpdate fwdUpdate = new ForwardDdnsUpdate(fqdn, addr, duid);
+			fwdUpdate.setServer(fwdServer);
+			fwdUpdate.setZone(fwdZone);
+			fwdUpdate.setTtl(fwdTtl);
+			fwdUpdate.setTsigKeyName(fwdTsigKeyName);
+			fwdUpdate.setTsigAlgorithm(fwdTsigAlgorithm);
+			fwdUpdate.setTsigKeyData(fwdTsigKeyData);
+			if (!isDelete)
+				callback.fwdAddComplete(fwdUpdate.sendAdd());
+			else
+				callback.fwdDeleteComplete(fwdUpdate.sendDelete());
+			forwardDone = true;
+		}
+	}
+	
+	/**
+	 * Gets the reverse update, which is built when first used.
+	 * 
+	 * @return the reverse update
+	 */
+	ReverseDdnsUpdate getReverseUpdate()
+	{
+		if (revUpdate == null) {
+			revUpdate = new ReverseDdnsUpdate(fqdn, addr, duid);
 			revUpdate.setServer(revServer);
 			revUpdate.setZone(revZone);
 			revUpdate.setRevZoneBitLength(revZoneBitLength);
@@ -209,18 +260,78 @@ public class DdnsUpdater implements Runnable
 			revUpdate.setTsigKeyName(revTsigKeyName);
 			revUpdate.setTsigAlgorithm(revTsigAlgorithm);
 			revUpdate.setTsigKeyData(revTsigKeyData);
-			if (!isDelete)
-				callback.revAddComplete(revUpdate.sendAdd());
-			else
-				callback.revDeleteComplete(revUpdate.sendDelete());
 		}
-		catch (Exception ex) {
-			log.error("Failure performing DDNS updates", ex);
-			callback.fwdAddComplete(false);
-			callback.fwdDeleteComplete(false);
-			callback.revAddComplete(false);
-			callback.revDeleteComplete(false);
-		}				
+		return revUpdate;
+	}
+	
+	/**
+	 * Report the result of the reverse update.
+	 * 
+	 * @param success true if the reverse update succeeded
+	 */
+	void reverseComplete(boolean success)
+	{
+		if (!isDelete)
+			callback.revAddComplete(success);
+		else
+			callback.revDeleteComplete(success);
+	}
+	
+	/**
+	 * Report the failure of the updates.
+	 */
+	void failed()
+	{
+		callback.fwdAddComplete(false);
+		callback.fwdDeleteComplete(false);
+		callback.revAddComplete(false);
+		callback.revDeleteComplete(false);
+	}
+	
+	/**
+	 * Gets the key of the updates, for coalescing the queued updates
+	 * for the same FQDN and address.
+	 * 
+	 * @return the key
+	 */
+	String getKey()
+	{
+		return fqdn + "/" + addr.getHostAddress();
+	}
+	
+	DdnsCallback getCallback()
+	{
+		return callback;
+	}
+	
+	void setCallback(DdnsCallback callback)
+	{
+		this.callback = callback;
+	}
+	
+	boolean isDelete()
+	{
+		return isDelete;
+	}
+	
+	/**
+	 * Count a failed attempt.
+	 * 
+	 * @return the number of failed attempts
+	 */
+	int nextAttempt()
+	{
+		return ++attempts;
+	}
+	
+	long getQueuedNanos()
+	{
+		return queuedNanos;
+	}
+	
+	void setQueuedNanos(long queuedNanos)
+	{
+		this.queuedNanos = queuedNanos;
 	}
 	
 	/**
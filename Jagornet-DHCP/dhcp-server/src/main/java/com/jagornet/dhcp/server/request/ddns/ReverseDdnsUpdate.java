@@ -77,16 +77,8 @@ public class ReverseDdnsUpdate extends DdnsUpdate
 		
 		Resolver res = createResolver();
 
-		String revIp = buildReverseIpString();
-		
-		Name owner = new Name(revIp.toString());
-		PTRRecord ptr = new PTRRecord(owner, DClass.IN, ttl, new Name(fqdn));
-		
-		Name _zone = buildZoneName(revIp);
-		
-		Update update = new Update(_zone);
-		update.delete(owner);
-		update.add(ptr);
+		Update update = new Update(getZoneName());
+		PTRRecord ptr = addRecords(update, false);
 
 		if (log.isDebugEnabled()) {
 			log.debug("Sending reverse DDNS update (replace) to server=" + server + ":\n" + 
@@ -117,15 +109,8 @@ public class ReverseDdnsUpdate extends DdnsUpdate
 		
 		Resolver res = createResolver();
 
-		String revIp = buildReverseIpString();
-		
-		Name owner = new Name(revIp);
-		PTRRecord ptr = new PTRRecord(owner, DClass.IN, 0, new Name(fqdn));
-		
-		Name _zone = buildZoneName(revIp);
-		
-		Update update = new Update(_zone);
-		update.delete(ptr);
+		Update update = new Update(getZoneName());
+		PTRRecord ptr = addRecords(update, true);
 
 		if (log.isDebugEnabled()) {
 			log.debug("Sending reverse DDNS update (delete) to server=" + server + ":\n" + 
@@ -147,6 +132,46 @@ public class ReverseDdnsUpdate extends DdnsUpdate
 		return rc;
 	}
 	
+	/**
+	 * Adds the PTR record changes of this update to an update message.
+	 * An add replaces any PTR records of the reverse name, and a delete
+	 * removes only the PTR record for the FQDN.  Neither has prerequisites,
+	 * so the changes for several addresses in one zone may be sent in a
+	 * single update message.
+	 * 
+	 * @param update the update message
+	 * @param isDelete true to delete the PTR record, false to add it
+	 * 
+	 * @return the PTR record
+	 * 
+	 * @throws TextParseException the text parse exception
+	 */
+	public PTRRecord addRecords(Update update, boolean isDelete) throws TextParseException
+	{
+		Name owner = new Name(buildReverseIpString());
+		if (!isDelete) {
+			PTRRecord ptr = new PTRRecord(owner, DClass.IN, ttl, new Name(fqdn));
+			update.delete(owner);
+			update.add(ptr);
+			return ptr;
+		}
+		PTRRecord ptr = new PTRRecord(owner, DClass.IN, 0, new Name(fqdn));
+		update.delete(ptr);
+		return ptr;
+	}
+	
+	/**
+	 * Gets the name of the reverse zone of this update.
+	 * 
+	 * @return the zone name
+	 * 
+	 * @throws TextParseException the text parse exception
+	 */
+	public Name getZoneName() throws TextParseException
+	{
+		return buildZoneName(buildReverseIpString());
+	}
+	
 	/**
 	 * Builds the reverse ip string.
 	 * 
@@ -0,0 +1,125 @@
+package com.jagornet.dhcp.server.rest.api;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.jagornet.dhcp.server.db.DhcpLease;
+
+/**
+ * The wire format for bulk DhcpLease updates between HA peers.
+ *
+ * The request body is a gzip compressed stream of lines, one per lease,
+ * where each line is the sequence number assigned to the update by the
+ * sender, a space, and the lease JSON.  The response is the sequence
+ * numbers of the updates which were applied, one per line, so that the
+ * sender does not need to compare the lease data echoed back to it.
+ */
+public class DhcpLeaseBulkFormat {
+
+	/**
+	 * Encode the lease updates as a compressed bulk request body.
+	 *
+	 * @param dhcpLeases the leases to send, keyed by sequence number
+	 * @return the request body
+	 * @throws IOException
+	 */
+	public static byte[] encodeLeases(Map<Long, DhcpLease> dhcpLeases) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new GZIPOutputStream(baos), StandardCharsets.UTF_8))) {
+			for (Map.Entry<Long, DhcpLease> entry : dhcpLeases.entrySet()) {
+				writer.write(Long.toString(entry.getKey()));
+				writer.write(' ');
+				writer.write(entry.getValue().toJson());
+				writer.write('\n');
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode a compressed bulk request body.
+	 *
+	 * @param inputStream the request body
+	 * @return the leases, keyed by sequence number, in the order sent
+	 * @throws IOException if the data is not in the bulk format
+	 */
+	public static Map<Long, DhcpLease> decodeLeases(InputStream inputStream) throws IOException {
+		Map<Long, DhcpLease> dhcpLeases = new LinkedHashMap<Long, DhcpLease>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(inputStream), StandardCharsets.UTF_8));
+		String line = null;
+		while ((line = reader.readLine()) != null) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			int sp = line.indexOf(' ');
+			if (sp <= 0) {
+				throw new IOException("Invalid bulk lease line: " + line);
+			}
+			try {
+				long seq = Long.parseLong(line.substring(0, sp));
+				DhcpLease dhcpLease = DhcpLease.fromJson(line.substring(sp + 1));
+				if (dhcpLease == null) {
+					throw new IOException("Invalid bulk lease JSON: " + line);
+				}
+				dhcpLeases.put(seq, dhcpLease);
+			}
+			catch (NumberFormatException ex) {
+				throw new IOException("Invalid bulk lease sequence number: " + line);
+			}
+		}
+		return dhcpLeases;
+	}
+
+	/**
+	 * Encode the sequence numbers of the applied updates.
+	 *
+	 * @param seqs the sequence numbers
+	 * @return the response body
+	 */
+	public static String encodeAcks(Set<Long> seqs) {
+		StringBuilder sb = new StringBuilder();
+		for (Long seq : seqs) {
+			sb.append(seq).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decode the sequence numbers of the applied updates.
+	 *
+	 * @param response the response body, may be null
+	 * @return the sequence numbers
+	 */
+	public static Set<Long> decodeAcks(String response) {
+		Set<Long> seqs = new LinkedHashSet<Long>();
+		if (response != null) {
+			for (String line : response.split("\n")) {
+				line = line.trim();
+				if (!line.isEmpty()) {
+					try {
+						seqs.add(Long.parseLong(line));
+					}
+					catch (NumberFormatException ex) {
+						// ignore anything which is not an ack
+					}
+				}
+			}
+		}
+		return seqs;
+	}
+}
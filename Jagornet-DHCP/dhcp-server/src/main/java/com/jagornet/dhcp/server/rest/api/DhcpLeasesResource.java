@@ -2,11 +2,18 @@ package com.jagornet.dhcp.server.rest.api;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
@@ -45,6 +52,7 @@ public class DhcpLeasesResource {
 	public static final String DHCPLEASESSTREAM = "/dhcpleasestream";
 	public static final String JSONLEASESTREAM = "/jsonleasestream";
 	public static final String GSONLEASESTREAM = "/gsonleasestream";
+	public static final String BULK = "/bulk";
 
 	public static final String QUERYPARAM_START = "start";
 	public static final String QUERYPARAM_END = "end";
@@ -73,6 +81,10 @@ public class DhcpLeasesResource {
 		return DhcpLeasesResource.PATH + "/" + ip;
 	}
 
+	public static String buildBulkPutPath() {
+		return DhcpLeasesResource.PATH + DhcpLeasesResource.BULK;
+	}
+
     @GET 
     @Secured	// registration AuthenticationFilter
     @Path(IPS)
@@ -180,9 +192,11 @@ public class DhcpLeasesResource {
 						public void processDhcpLease(DhcpLease dhcpLease) throws Exception {
 							writer.write(dhcpLease.toJson());
 							writer.write(System.lineSeparator());
-							writer.flush();  // important to flush
 						}
 					}, unsyncedLeasesOnly);
+					// let the buffered writer fill the stream, instead of
+					// flushing each lease, but important to flush at the end
+					writer.flush();
 			    }
 			};
 			return Response.ok(stream).build();    	
@@ -391,6 +405,50 @@ public class DhcpLeasesResource {
 		}
     }
  
+    @PUT
+    @Secured	// registration AuthenticationFilter
+    @Path(BULK)
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    @Produces(MediaType.TEXT_PLAIN)
+    public Response putDhcpLeases(InputStream dhcpLeasesPutData,
+    							  @QueryParam(QUERYPARAM_HAUPDATE) String haUpdate) {
+    	// this will be served at http://localhost/dhcpleases/bulk
+    	// see DhcpLeaseBulkFormat for the format of the data
+    	try {
+    		Map<Long, DhcpLease> dhcpLeases = DhcpLeaseBulkFormat.decodeLeases(dhcpLeasesPutData);
+			if ("true".equalsIgnoreCase(haUpdate)) {
+				// if this update is from the HA peer, then we are
+				// syncing the leases, so set the haPeerState=state
+				for (DhcpLease dhcpLease : dhcpLeases.values()) {
+					dhcpLease.setHaPeerState(dhcpLease.getState());
+				}
+			}
+			// the stored leases are the same instances as those decoded
+			Set<DhcpLease> storedLeases = Collections.newSetFromMap(
+					new IdentityHashMap<DhcpLease, Boolean>());
+			storedLeases.addAll(leasesService.createOrUpdateDhcpLeases(
+					new ArrayList<DhcpLease>(dhcpLeases.values())));
+    		Set<Long> acks = new LinkedHashSet<Long>();
+    		for (Map.Entry<Long, DhcpLease> entry : dhcpLeases.entrySet()) {
+    			if (storedLeases.contains(entry.getValue())) {
+    				acks.add(entry.getKey());
+    			}
+    		}
+    		log.info("PUT - bulk updated " + acks.size() + " of " + dhcpLeases.size() + " leases");
+    		return Response.ok(DhcpLeaseBulkFormat.encodeAcks(acks)).build();
+    	}
+    	catch (IOException ex) {
+			log.error("Invalid data in putDhcpLeases: " + ex);
+			return Response.status(Response.Status.BAD_REQUEST)
+							.entity(ex.getMessage())
+							.build();
+    	}
+    	catch (Exception ex) {
+			log.error("Exception caught in putDhcpLeases", ex);
+			return Response.serverError().entity(ex).build();
+    	}
+    }
+ 
     @DELETE
     @Secured	// registration AuthenticationFilter
 //    @Path(PATH_IPS_IPADDRESS)
@@ -2,6 +2,7 @@ package com.jagornet.dhcp.server.rest.api;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -12,8 +13,10 @@ import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.server.db.DhcpLease;
 import com.jagornet.dhcp.server.db.DhcpLeaseCallbackHandler;
 import com.jagornet.dhcp.server.db.IaManager;
+import com.jagornet.dhcp.server.db.IdentityAssoc;
 import com.jagornet.dhcp.server.db.InetAddressCallbackHandler;
 import com.jagornet.dhcp.server.db.LeaseManager;
+import com.jagornet.dhcp.server.request.binding.BaseBindingManager;
 
 public class DhcpLeasesService {
 	
@@ -138,9 +141,55 @@ public class DhcpLeasesService {
 			return updateDhcpLease(dhcpLease.getIpAddress(), dhcpLease);
 		}
 	}
+	
+	/**
+	 * Create or update a batch of leases in the database.
+	 *
+	 * @param dhcpLeases the leases
+	 * @return the leases which were created or updated
+	 */
+	public List<DhcpLease> createOrUpdateDhcpLeases(List<DhcpLease> dhcpLeases) {
+		List<DhcpLease> storedLeases = new ArrayList<DhcpLease>(dhcpLeases.size());
+		if (dhcpLeases.isEmpty()) {
+			return storedLeases;
+		}
+		log.debug("Creating or updating " + dhcpLeases.size() + " DhcpLeases");
+		try {
+			int[] counts = leaseManager.upsertDhcpLeases(dhcpLeases);
+			for (int i=0; i<counts.length; i++) {
+				if (counts[i] == 1) {
+					storedLeases.add(dhcpLeases.get(i));
+					scheduleExpiration(dhcpLeases.get(i));
+				}
+				else {
+					log.error("Create or update failed for IP=" +
+							dhcpLeases.get(i).getIpAddress().getHostAddress());
+				}
+			}
+		}
+		catch (Exception ex) {
+			// fall back to one at a time, so that one bad
+			// lease does not fail the rest of the batch
+			log.error("Batch create or update failed: " + ex);
+			for (DhcpLease dhcpLease : dhcpLeases) {
+				try {
+					if (createOrUpdateDhcpLease(dhcpLease)) {
+						storedLeases.add(dhcpLease);
+					}
+				}
+				catch (Exception e) {
+					log.error("Create or update failed for IP=" +
+							dhcpLease.getIpAddress().getHostAddress() + ": " + e);
+				}
+			}
+		}
+		return storedLeases;
+	}
+
 	public boolean createDhcpLease(DhcpLease dhcpLease) {
 		log.info("Creating DhcpLease: " + dhcpLease);
 		if (leaseManager.insertDhcpLease(dhcpLease) == 1) {
+			scheduleExpiration(dhcpLease);
 			return true;
 		}
 		return false;
@@ -165,6 +214,7 @@ public class DhcpLeasesService {
 			log.info("Updating DhcpLease for IP=" + ipStr + ": " + dhcpLease);
 			// TODO: handle error condition from update, or just bubble up?
 			if (leaseManager.updateDhcpLease(dhcpLease) == 1) {
+				scheduleExpiration(dhcpLease);
 				return true;
 			}
 		}
@@ -175,6 +225,47 @@ public class DhcpLeasesService {
 		return false;
 	}
 
+	/**
+	 * Set the HA peer state of a lease acknowledged by the peer, unless the
+	 * lease has been changed since the acknowledged lease was sent.
+	 * 
+	 * @param dhcpLease the acknowledged lease
+	 * @param haPeerState the HA peer state
+	 * @return true if the lease was updated
+	 */
+	public boolean updateHaPeerState(DhcpLease dhcpLease, byte haPeerState) {
+		return leaseManager.updateHaPeerState(dhcpLease, haPeerState);
+	}
+
+	/**
+	 * Queue the expiration of a stored lease in the binding manager of
+	 * the lease, because leases stored by the HA peer or the REST API
+	 * do not go through the binding managers.
+	 * 
+	 * @param dhcpLease the stored lease
+	 */
+	protected void scheduleExpiration(DhcpLease dhcpLease) {
+		DhcpServerConfiguration config = DhcpServerConfiguration.getInstance();
+		Object bindingMgr = null;
+		switch (dhcpLease.getIatype()) {
+			case IdentityAssoc.V4_TYPE:
+				bindingMgr = config.getV4AddrBindingMgr();
+				break;
+			case IdentityAssoc.NA_TYPE:
+				bindingMgr = config.getV6NaAddrBindingMgr();
+				break;
+			case IdentityAssoc.TA_TYPE:
+				bindingMgr = config.getV6TaAddrBindingMgr();
+				break;
+			case IdentityAssoc.PD_TYPE:
+				bindingMgr = config.getV6PrefixBindingMgr();
+				break;
+		}
+		if (bindingMgr instanceof BaseBindingManager) {
+			((BaseBindingManager)bindingMgr).scheduleExpiration(dhcpLease);
+		}
+	}
+
 	public boolean deleteDhcpLease(InetAddress ipAddress) {
 		String ipStr = ipAddress.getHostAddress();
 		log.info("Finding DhcpLease for IP=" + ipStr);
@@ -339,6 +339,24 @@ public class JerseyRestClient {
 		}
 	}
 	
+	public String doPutBytes(String apiMethod, byte[] data,
+			 				 Map<String, Object> queryParams) {
+		WebTarget method = buildWebTarget(apiMethod, queryParams);
+		// accept text/plain response data
+		Invocation.Builder invocationBuilder = method.request(MediaType.TEXT_PLAIN);
+		try {
+			log.debug("Invoking sync bytes put on: " + method.getUri());
+			String response = invocationBuilder.put(
+					Entity.entity(data, MediaType.APPLICATION_OCTET_STREAM), String.class);
+			log.debug("Response: " + response);
+			return response;
+		}
+		catch (Exception ex) {
+			log.error(apiMethod + " sync bytes put failed: " + ex);
+			return null;
+		}
+	}
+	
 	public Future<String> doPutAsync(String apiMethod, String data, 
 									 InvocationCallback<String> callback) {
 		return this.doPutAsync(apiMethod, data, callback, null);
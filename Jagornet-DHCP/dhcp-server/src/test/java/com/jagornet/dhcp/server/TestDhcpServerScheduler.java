@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestDhcpServerScheduler.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.util.Timeout;
+import junit.framework.TestCase;
+
+public class TestDhcpServerScheduler extends TestCase
+{
+	private DhcpServerScheduler scheduler;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		scheduler = new DhcpServerScheduler(2, 10);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		scheduler.shutdown(1000);
+	}
+	
+	public void testPeriodicTaskFailure() throws Exception
+	{
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch latch = new CountDownLatch(4);
+		ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay("test", new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+				latch.countDown();
+				throw new IllegalStateException("test failure");
+			}
+		}, 0, 10, TimeUnit.MILLISECONDS);
+		// the failed runs do not stop the later runs, and the fourth
+		// run starts after the third run is counted
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		future.cancel(false);
+		assertEquals(1, scheduler.getTasksScheduled());
+		assertTrue(scheduler.getTasksFailed() >= 3);
+		assertEquals(0, scheduler.getQueuedTasks());
+	}
+	
+	public void testTimeout() throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		scheduler.newTimeout("test", new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		}, 20, TimeUnit.MILLISECONDS);
+		Timeout cancelled = scheduler.newTimeout("cancelled", new Runnable() {
+			@Override
+			public void run() {
+				fail("Cancelled timeout was run");
+			}
+		}, 10, TimeUnit.SECONDS);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertTrue(cancelled.cancel());
+		assertEquals(2, scheduler.getTimeoutsScheduled());
+		assertEquals(0, scheduler.getTasksFailed());
+	}
+	
+	public void testBlockingTask() throws Exception
+	{
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		scheduler.scheduleBlocking("blocking", new Runnable() {
+			@Override
+			public void run() {
+				blocked.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+		// the other tasks are not delayed by the blocking task
+		final CountDownLatch latch = new CountDownLatch(2);
+		for (int i=0; i<2; i++) {
+			scheduler.schedule("test", new Runnable() {
+				@Override
+				public void run() {
+					latch.countDown();
+				}
+			}, 0, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals(1, scheduler.getActiveBlockingTasks());
+		release.countDown();
+	}
+	
+	public void testTaskMetrics() throws Exception
+	{
+		final AtomicInteger runs = new AtomicInteger();
+		ScheduledFuture<?> future = scheduler.scheduleAtFixedRate("metrics", new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		}, 0, 10, TimeUnit.MILLISECONDS);
+		DhcpServerScheduler.TaskMetrics metrics = scheduler.getTaskMetrics("metrics");
+		assertNotNull(metrics);
+		// a run is recorded after the task returns, so poll the metrics
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((metrics.getRuns() < 3) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		future.cancel(false);
+		assertTrue(metrics.getRuns() >= 3);
+		assertTrue(runs.get() >= metrics.getRuns());
+		assertEquals(0, metrics.getFailures());
+		assertTrue(metrics.getMaxLateMillis() >= 0);
+		assertNull(scheduler.getTaskMetrics("unknown"));
+	}
+	
+	public void testShutdown() throws Exception
+	{
+		scheduler.schedule("test", new Runnable() {
+			@Override
+			public void run() {
+				fail("Task was run after shutdown");
+			}
+		}, 10, TimeUnit.SECONDS);
+		assertEquals(1, scheduler.getQueuedTasks());
+		scheduler.shutdown(1000);
+		assertTrue(scheduler.isShutdown());
+		assertEquals(0, scheduler.getTasksRun());
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestCompiledPolicies.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import com.jagornet.dhcp.server.config.CompiledPolicies.PolicyValue;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.config.xml.Link;
+import com.jagornet.dhcp.server.config.xml.PoliciesType;
+import com.jagornet.dhcp.server.config.xml.Policy;
+import com.jagornet.dhcp.server.config.xml.V6AddressPool;
+import com.jagornet.dhcp.server.request.binding.V6AddressBindingPool;
+
+import junit.framework.TestCase;
+
+public class TestCompiledPolicies extends TestCase
+{
+	private static PoliciesType policies(String... nameValues)
+	{
+		PoliciesType policies = new PoliciesType();
+		for (int i=0; i<nameValues.length; i+=2) {
+			Policy policy = new Policy();
+			policy.setName(nameValues[i]);
+			policy.setValue(nameValues[i+1]);
+			policies.getPolicyList().add(policy);
+		}
+		return policies;
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		DhcpServerPolicies.setProperty(Property.V6_PREFERRED_LIFETIME,
+				Property.V6_PREFERRED_LIFETIME.value());
+		super.tearDown();
+	}
+
+	public void testPolicyValue() throws Exception
+	{
+		PolicyValue value = new PolicyValue("3600");
+		assertEquals(3600, value.asInt());
+		assertEquals(3600L, value.asLong());
+		assertEquals(3600f, value.asFloat());
+		assertFalse(value.asBoolean());
+		assertEquals("3600", value.toString());
+
+		value = new PolicyValue("TRUE");
+		assertTrue(value.asBoolean());
+		try {
+			value.asInt();
+			fail("Expected NumberFormatException");
+		}
+		catch (NumberFormatException ex) {
+			// expected
+		}
+
+		// too large for an int, as for Integer.parseInt
+		value = new PolicyValue("4294967296");
+		assertEquals(4294967296L, value.asLong());
+		try {
+			value.asInt();
+			fail("Expected NumberFormatException");
+		}
+		catch (NumberFormatException ex) {
+			// expected
+		}
+	}
+
+	public void testCompiledPolicies() throws Exception
+	{
+		CompiledPolicies compiled = new CompiledPolicies(policies(
+				"dhcp.sendRequestedOptionsOnly", "true",
+				"V6.PreferredLifetime", "56",
+				"v6.preferredLifetime", "48",
+				"unknown.policy", "1"));
+		assertTrue(compiled.get(Property.DHCP_SEND_REQUESTED_OPTIONS_ONLY).asBoolean());
+		// the names match ignoring case, and the first policy wins
+		assertEquals(56, compiled.get(Property.V6_PREFERRED_LIFETIME).asInt());
+		assertNull(compiled.get(Property.V6_VALID_LIFETIME));
+		assertNull(new CompiledPolicies((PoliciesType)null).get(Property.V6_PREFERRED_LIFETIME));
+	}
+
+	public void testEffectivePolicy() throws Exception
+	{
+		Link link = new Link();
+		link.setPolicies(policies("v6.preferredLifetime", "60"));
+		V6AddressPool pool = new V6AddressPool();
+		pool.setRange("2001:DB8:1::/64");
+		pool.setPolicies(policies("v6.preferredLifetime", "62"));
+		V6AddressBindingPool bindingPool = new V6AddressBindingPool(pool);
+		V6AddressPool nopolicyPool = new V6AddressPool();
+		nopolicyPool.setRange("2001:DB8:2::/64");
+		V6AddressBindingPool nopolicyBindingPool = new V6AddressBindingPool(nopolicyPool);
+
+		assertEquals(62, DhcpServerPolicies.effectivePolicyAsInt(bindingPool,
+				link, Property.V6_PREFERRED_LIFETIME));
+		assertEquals(60, DhcpServerPolicies.effectivePolicyAsInt(nopolicyBindingPool,
+				link, Property.V6_PREFERRED_LIFETIME));
+		assertEquals(60, DhcpServerPolicies.effectivePolicyAsInt(link,
+				Property.V6_PREFERRED_LIFETIME));
+	}
+
+	public void testServerPropertyChange() throws Exception
+	{
+		DhcpServerPolicies.setProperty(Property.V6_PREFERRED_LIFETIME, "60");
+		assertEquals(60, DhcpServerPolicies.serverPropertyValue(
+				Property.V6_PREFERRED_LIFETIME).asInt());
+		// a change to the properties is seen by the compiled properties
+		DhcpServerPolicies.getProperties().put(Property.V6_PREFERRED_LIFETIME.key(), "62");
+		assertEquals(62, DhcpServerPolicies.serverPropertyValue(
+				Property.V6_PREFERRED_LIFETIME).asInt());
+		DhcpServerPolicies.getProperties().remove(Property.V6_PREFERRED_LIFETIME.key());
+		assertEquals(Integer.parseInt(Property.V6_PREFERRED_LIFETIME.value()),
+				DhcpServerPolicies.serverPropertyValue(Property.V6_PREFERRED_LIFETIME).asInt());
+	}
+}
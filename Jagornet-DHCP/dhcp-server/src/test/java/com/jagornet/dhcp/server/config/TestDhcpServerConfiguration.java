@@ -26,9 +26,13 @@
 package com.jagornet.dhcp.server.config;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.SortedMap;
 
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.option.base.DhcpOption;
 import com.jagornet.dhcp.core.util.DhcpConstants;
 import com.jagornet.dhcp.core.util.Subnet;
 import com.jagornet.dhcp.core.util.Util;
@@ -187,4 +191,45 @@ public class TestDhcpServerConfiguration extends TestCase
         assertEquals(InetAddress.getByName("2001:DB8:3::"), 
                      subMap.lastKey().getSubnetAddress());
     }
+
+    /**
+     * Test that the effective options are built once and shared.
+     * 
+     * @throws Exception the exception
+     */
+    public void testEffectiveOptions() throws Exception
+    {
+    	String configFilename = "file:src/test/resources/dhcpserver-test-link.xml";
+        DhcpServerConfiguration serverConfig = DhcpServerConfiguration.getInstance();
+        serverConfig.init(configFilename);
+        DhcpLink dhcpLink = serverConfig.getLinkMap().get(new Subnet("2001:DB8:3::", 48));
+        assertNotNull(dhcpLink);
+        
+        DhcpV6Message requestMsg = new DhcpV6Message(new InetSocketAddress(DhcpConstants.V6_SERVER_PORT),
+        		new InetSocketAddress(DhcpConstants.V6_CLIENT_PORT));
+        Map<Integer, DhcpOption> optionMap = serverConfig.effectiveMsgOptions(requestMsg, dhcpLink);
+        assertTrue(optionMap.containsKey(DhcpConstants.V6OPTION_DNS_SERVERS));
+        assertSame(optionMap, serverConfig.effectiveMsgOptions(requestMsg, dhcpLink));
+        DhcpV6Message otherMsg = new DhcpV6Message(new InetSocketAddress(DhcpConstants.V6_SERVER_PORT),
+        		new InetSocketAddress(DhcpConstants.V6_CLIENT_PORT));
+        assertSame(optionMap, serverConfig.effectiveMsgOptions(otherMsg, dhcpLink));
+        try {
+        	optionMap.remove(DhcpConstants.V6OPTION_DNS_SERVERS);
+        	fail("effective options are modifiable");
+        }
+        catch (UnsupportedOperationException ex) {
+        	// expected
+        }
+        
+        // the options are built again for a new configuration
+        serverConfig.init(configFilename);
+        dhcpLink = serverConfig.getLinkMap().get(new Subnet("2001:DB8:3::", 48));
+        Map<Integer, DhcpOption> reloadedMap = serverConfig.effectiveMsgOptions(requestMsg, dhcpLink);
+        assertNotSame(optionMap, reloadedMap);
+        assertEquals(optionMap.keySet(), reloadedMap.keySet());
+        
+        // and when the pools are rebuilt
+        serverConfig.clearEffectiveOptions();
+        assertNotSame(reloadedMap, serverConfig.effectiveMsgOptions(requestMsg, dhcpLink));
+    }
 }
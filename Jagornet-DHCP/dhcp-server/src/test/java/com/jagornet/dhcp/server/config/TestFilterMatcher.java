@@ -0,0 +1,186 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestFilterMatcher.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.net.InetSocketAddress;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.core.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.config.xml.ClientClassExpression;
+import com.jagornet.dhcp.server.config.xml.Filter;
+import com.jagornet.dhcp.server.config.xml.FilterExpression;
+import com.jagornet.dhcp.server.config.xml.FilterExpressionsType;
+import com.jagornet.dhcp.server.config.xml.FiltersType;
+import com.jagornet.dhcp.server.config.xml.OpaqueData;
+import com.jagornet.dhcp.server.config.xml.Operator;
+import com.jagornet.dhcp.server.config.xml.OptionExpression;
+import com.jagornet.dhcp.server.config.xml.StringOptionType;
+import com.jagornet.dhcp.server.config.xml.V4VendorClassOption;
+
+import junit.framework.TestCase;
+
+public class TestFilterMatcher extends TestCase
+{
+	private static FilterExpression hostnameExpression(Operator op, String hostname)
+	{
+		OptionExpression optexpr = new OptionExpression();
+		optexpr.setCode(DhcpConstants.V4OPTION_HOSTNAME);
+		optexpr.setV4(true);
+		optexpr.setOperator(op);
+		StringOptionType stringOption = new StringOptionType();
+		stringOption.setString(hostname);
+		optexpr.setStringOption(stringOption);
+		FilterExpression expression = new FilterExpression();
+		expression.setOptionExpression(optexpr);
+		return expression;
+	}
+
+	private static FilterExpression vendorClassExpression(Operator op, String vendorClass)
+	{
+		V4VendorClassOption vcOption = new V4VendorClassOption();
+		vcOption.setCode((short)DhcpConstants.V4OPTION_VENDOR_CLASS);
+		OpaqueData opaqueData = new OpaqueData();
+		opaqueData.setAsciiValue(vendorClass);
+		vcOption.setOpaqueData(opaqueData);
+		ClientClassExpression ccexpr = new ClientClassExpression();
+		ccexpr.setV4VendorClassOption(vcOption);
+		ccexpr.setOperator(op);
+		FilterExpression expression = new FilterExpression();
+		expression.setClientClassExpression(ccexpr);
+		return expression;
+	}
+
+	private static Filter filter(FilterExpression... expressions)
+	{
+		FilterExpressionsType filterExprs = new FilterExpressionsType();
+		for (FilterExpression expression : expressions) {
+			filterExprs.getFilterExpressionList().add(expression);
+		}
+		Filter filter = new Filter();
+		filter.setName("test");
+		filter.setFilterExpressions(filterExprs);
+		return filter;
+	}
+
+	private static DhcpV4Message message(String hostname, String vendorClass)
+	{
+		DhcpV4Message msg = new DhcpV4Message(new InetSocketAddress(67),
+				new InetSocketAddress(68));
+		if (hostname != null) {
+			msg.putDhcpOption(new DhcpV4HostnameOption(hostname));
+		}
+		if (vendorClass != null) {
+			msg.putDhcpOption(new DhcpV4VendorClassOption(new BaseOpaqueData(vendorClass)));
+		}
+		return msg;
+	}
+
+	public void testOptionExpression() throws Exception
+	{
+		FilterMatcher matcher = FilterMatcher.get(
+				filter(hostnameExpression(Operator.REG_EXP, "host-[0-9]+")));
+		assertTrue(matcher.matches(message("host-42", null)));
+		assertFalse(matcher.matches(message("host-x", null)));
+		// the option must be in the request
+		assertFalse(matcher.matches(message(null, null)));
+
+		matcher = FilterMatcher.get(
+				filter(hostnameExpression(Operator.STARTS_WITH, "host")));
+		assertTrue(matcher.matches(message("host-x", null)));
+		assertFalse(matcher.matches(message("myhost", null)));
+	}
+
+	public void testClientClassExpression() throws Exception
+	{
+		FilterMatcher matcher = FilterMatcher.get(
+				filter(vendorClassExpression(Operator.EQUALS, "MSFT 5.0")));
+		// ASCII opaque data equals ignores case
+		assertTrue(matcher.matches(message(null, "msft 5.0")));
+		assertFalse(matcher.matches(message(null, "MSFT 98")));
+		assertFalse(matcher.matches(message(null, null)));
+
+		matcher = FilterMatcher.get(
+				filter(vendorClassExpression(Operator.REG_EXP, "MSFT .*")));
+		assertTrue(matcher.matches(message(null, "MSFT 98")));
+		assertFalse(matcher.matches(message(null, "docsis3.0")));
+	}
+
+	public void testExpressionsAreAnded() throws Exception
+	{
+		Filter filter = filter(hostnameExpression(Operator.EQUALS, "host"),
+				vendorClassExpression(Operator.EQUALS, "MSFT 5.0"));
+		assertTrue(DhcpServerConfiguration.msgMatchesFilter(message("host", "MSFT 5.0"), filter));
+		assertFalse(DhcpServerConfiguration.msgMatchesFilter(message("host", "MSFT 98"), filter));
+		assertFalse(DhcpServerConfiguration.msgMatchesFilter(message("other", "MSFT 5.0"), filter));
+		// a filter without expressions matches all requests
+		assertTrue(DhcpServerConfiguration.msgMatchesFilter(message(null, null), new Filter()));
+	}
+
+	public void testMatchesOncePerRequest() throws Exception
+	{
+		Filter filter = filter(hostnameExpression(Operator.EQUALS, "host"));
+		DhcpV4Message msg = message("host", null);
+		FilterMatcher.beginRequest(msg);
+		try {
+			assertTrue(DhcpServerConfiguration.msgMatchesFilter(msg, filter));
+			// the match of the request is remembered while it is processed
+			msg.putDhcpOption(new DhcpV4HostnameOption("other"));
+			assertTrue(DhcpServerConfiguration.msgMatchesFilter(msg, filter));
+			// but not for another message
+			assertFalse(DhcpServerConfiguration.msgMatchesFilter(message("other", null), filter));
+		}
+		finally {
+			FilterMatcher.endRequest();
+		}
+		assertFalse(DhcpServerConfiguration.msgMatchesFilter(msg, filter));
+	}
+
+	public void testReloadDuringRequest() throws Exception
+	{
+		Filter hostFilter = filter(hostnameExpression(Operator.EQUALS, "host"));
+		Filter otherFilter = filter(hostnameExpression(Operator.EQUALS, "other"));
+		FiltersType filtersType = new FiltersType();
+		filtersType.getFilterList().add(hostFilter);
+		FilterMatcher.compileFilters(filtersType, null);
+		DhcpV4Message msg = message("host", null);
+		FilterMatcher.beginRequest(msg);
+		try {
+			assertTrue(DhcpServerConfiguration.msgMatchesFilter(msg, hostFilter));
+			// the filters of the reloaded configuration are indexed from zero,
+			// so must not use the results of the previous configuration
+			filtersType = new FiltersType();
+			filtersType.getFilterList().add(otherFilter);
+			FilterMatcher.compileFilters(filtersType, null);
+			assertFalse(DhcpServerConfiguration.msgMatchesFilter(msg, otherFilter));
+		}
+		finally {
+			FilterMatcher.endRequest();
+		}
+	}
+}
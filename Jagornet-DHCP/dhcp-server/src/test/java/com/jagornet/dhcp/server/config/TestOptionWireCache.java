@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestOptionWireCache.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.message.DhcpV6Message;
+import com.jagornet.dhcp.core.option.v4.DhcpV4LeaseTimeOption;
+import com.jagornet.dhcp.core.option.v4.DhcpV4RoutersOption;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.config.xml.V4ConfigOptionsType;
+import com.jagornet.dhcp.server.config.xml.V4RoutersOption;
+import com.jagornet.dhcp.server.config.xml.V6ConfigOptionsType;
+import com.jagornet.dhcp.server.config.xml.V6DnsServersOption;
+import com.jagornet.dhcp.server.netty.NettyDhcpV4Message;
+import com.jagornet.dhcp.server.netty.NettyDhcpV6Message;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import junit.framework.TestCase;
+
+public class TestOptionWireCache extends TestCase
+{
+	private static byte[] toBytes(ByteBuffer buf)
+	{
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	}
+
+	private static byte[] toBytes(ByteBuf buf)
+	{
+		byte[] b = new byte[buf.readableBytes()];
+		buf.readBytes(b);
+		buf.release();
+		return b;
+	}
+
+	public void testEncodeV4() throws Exception
+	{
+		V4RoutersOption routersOption = new V4RoutersOption();
+		routersOption.getIpAddressList().add("10.0.0.1");
+		routersOption.getIpAddressList().add("10.0.0.2");
+		V4ConfigOptionsType configOptions = new V4ConfigOptionsType();
+		configOptions.setV4RoutersOption(routersOption);
+		DhcpV4ConfigOptions v4ConfigOptions = new DhcpV4ConfigOptions(configOptions);
+		DhcpV4RoutersOption routers = (DhcpV4RoutersOption)
+				v4ConfigOptions.getDhcpOptionMap().get(DhcpConstants.V4OPTION_ROUTERS);
+		assertNotNull(OptionWireCache.get(routers));
+
+		DhcpV4Message msg = new DhcpV4Message(new InetSocketAddress(67),
+				new InetSocketAddress(68));
+		msg.setOp((short)DhcpConstants.V4_OP_REPLY);
+		msg.setTransactionId(12345);
+		msg.setChAddr(new byte[] { 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f });
+		msg.putAllDhcpOptions(v4ConfigOptions.getDhcpOptionMap());
+		// an option which is not configured is encoded with the message
+		DhcpV4LeaseTimeOption leaseTimeOption = new DhcpV4LeaseTimeOption();
+		leaseTimeOption.setUnsignedInt(3600);
+		msg.putDhcpOption(leaseTimeOption);
+		assertNull(OptionWireCache.get(leaseTimeOption));
+
+		ByteBuf buf = Unpooled.directBuffer();
+		NettyDhcpV4Message.encode(msg, buf);
+		assertTrue(Arrays.equals(toBytes(msg.encode()), toBytes(buf)));
+	}
+
+	public void testEncodeV6() throws Exception
+	{
+		V6DnsServersOption dnsServersOption = new V6DnsServersOption();
+		dnsServersOption.getIpAddressList().add("2001:db8::1");
+		V6ConfigOptionsType configOptions = new V6ConfigOptionsType();
+		configOptions.setV6DnsServersOption(dnsServersOption);
+		DhcpV6ConfigOptions v6ConfigOptions = new DhcpV6ConfigOptions(configOptions);
+		
+		DhcpV6Message msg = new DhcpV6Message(new InetSocketAddress(547),
+				new InetSocketAddress(546));
+		msg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_REPLY);
+		msg.setTransactionId(12345);
+		msg.putAllDhcpOptions(v6ConfigOptions.getDhcpOptionMap());
+
+		ByteBuf buf = Unpooled.directBuffer();
+		NettyDhcpV6Message.encode(msg, buf);
+		assertTrue(Arrays.equals(toBytes(msg.encode()), toBytes(buf)));
+	}
+
+	public void testIdentity() throws Exception
+	{
+		V4RoutersOption routersOption = new V4RoutersOption();
+		routersOption.getIpAddressList().add("10.0.0.1");
+		V4ConfigOptionsType configOptions = new V4ConfigOptionsType();
+		configOptions.setV4RoutersOption(routersOption);
+		new DhcpV4ConfigOptions(configOptions);
+		// an equal option object does not share the cached encoding
+		assertNull(OptionWireCache.get(new DhcpV4RoutersOption(routersOption.getIpAddressList())));
+	}
+
+	public void testUnusedOptionsRemoved() throws Exception
+	{
+		V4RoutersOption routersOption = new V4RoutersOption();
+		routersOption.getIpAddressList().add("10.0.0.1");
+		V4ConfigOptionsType configOptions = new V4ConfigOptionsType();
+		configOptions.setV4RoutersOption(routersOption);
+		DhcpV4ConfigOptions v4ConfigOptions = new DhcpV4ConfigOptions(configOptions);
+		int size = OptionWireCache.size();
+		// e.g. the options of the pools of a binding manager which is reloaded
+		for (int i=0; i<100; i++) {
+			new DhcpV4ConfigOptions(configOptions);
+		}
+		for (int i=0; (i<50) && (OptionWireCache.size() > size); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertTrue(OptionWireCache.size() <= size);
+		// the options which are still configured are kept
+		assertNotNull(OptionWireCache.get(v4ConfigOptions.getDhcpOptionMap()
+				.get(DhcpConstants.V4OPTION_ROUTERS)));
+	}
+}
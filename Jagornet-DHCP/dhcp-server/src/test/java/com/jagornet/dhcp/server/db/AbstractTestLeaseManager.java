@@ -7,6 +7,7 @@ import static org.junit.Assert.assertTrue;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -31,6 +32,8 @@ public class AbstractTestLeaseManager extends BaseTestCase {
 		log.info("oneTimeSetUp starting");
 		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_REAPER_STARTUP_DELAY, "1000");
 		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_REAPER_RUN_PERIOD, "10000");
+		// the leases are not granted by a binding manager, so only a full scan expires them
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_REAPER_FULL_SCAN_PERIOD, "5000");
 		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_OFFER_EXPIRATION, "2000");
 		log.info("oneTimeSetUp complete");
 	}
@@ -121,4 +124,57 @@ public class AbstractTestLeaseManager extends BaseTestCase {
 		List<DhcpLease> expired = leaseManager.findExpiredLeases(IdentityAssoc.V4_TYPE);
 		assertTrue(expired.isEmpty());
 	}
+
+	public static void upsertDhcpLeases() throws Exception {
+		DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp);
+		lease.setHaPeerState(lease.getState());
+		DhcpLease newLease = lease.clone();
+		newLease.setIpAddress(InetAddress.getByName("10.0.0.100"));
+		newLease.setDuid(new byte[] { 1, 0, 0 });
+		int[] counts = leaseManager.upsertDhcpLeases(Arrays.asList(lease, newLease));
+		assertEquals(2, counts.length);
+		assertEquals(1, counts[0]);
+		assertEquals(1, counts[1]);
+		assertEquals(lease.getState(),
+				leaseManager.findDhcpLeaseForInetAddr(startIp).getHaPeerState());
+		assertNotNull(leaseManager.findDhcpLeaseForInetAddr(newLease.getIpAddress()));
+	}
+
+	public static void updateHaPeerState() throws Exception {
+		DhcpLease sent = leaseManager.findDhcpLeaseForInetAddr(endIp);
+		byte unsynced = sent.getHaPeerState();
+		// renewed after the lease was sent to the peer
+		DhcpLease renewed = sent.clone();
+		renewed.setValidEndTime(new Date(sent.getValidEndTime().getTime() + leaseTime));
+		assertEquals(1, leaseManager.updateDhcpLease(renewed));
+		assertEquals(0, leaseManager.updateHaPeerState(sent.getIpAddress(),
+				sent.getState(), sent.getValidEndTime(), sent.getState()));
+		DhcpLease found = leaseManager.findDhcpLeaseForInetAddr(endIp);
+		assertEquals(unsynced, found.getHaPeerState());
+		assertEquals(renewed.getValidEndTime(), found.getValidEndTime());
+		// the renewed lease is acknowledged
+		assertEquals(1, leaseManager.updateHaPeerState(renewed.getIpAddress(),
+				renewed.getState(), renewed.getValidEndTime(), renewed.getState()));
+		found = leaseManager.findDhcpLeaseForInetAddr(endIp);
+		assertEquals(renewed.getState(), found.getHaPeerState());
+		assertEquals(renewed.getValidEndTime(), found.getValidEndTime());
+	}
+
+	public static void updateCachedHaPeerState() throws Exception {
+		DhcpLease sent = leaseManager.findDhcpLeaseForInetAddr(endIp);
+		assertTrue(sent.getHaPeerState() != sent.getState());
+		assertTrue(leaseManager.updateHaPeerState(sent, sent.getState()));
+		// the cached lease is acknowledged with the stored lease
+		IdentityAssoc ia = leaseManager.findIA(endIp);
+		IaAddress iaAddr = null;
+		for (IaAddress addr : ia.getIaAddresses()) {
+			if (addr.getIpAddress().equals(endIp)) {
+				iaAddr = addr;
+			}
+		}
+		assertNotNull(iaAddr);
+		assertEquals(sent.getState(), iaAddr.getHaPeerState());
+		assertEquals(sent.getState(),
+				leaseManager.findDhcpLeaseForInetAddr(endIp).getHaPeerState());
+	}
 }
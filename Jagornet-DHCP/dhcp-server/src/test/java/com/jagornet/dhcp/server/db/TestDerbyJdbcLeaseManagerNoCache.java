@@ -52,4 +52,14 @@ public class TestDerbyJdbcLeaseManagerNoCache extends AbstractTestLeaseManager {
 	public void testFindExpiredLeases() throws Exception {
 		AbstractTestLeaseManager.findExpiredLeases();
 	}
+	
+	@Test
+	public void testUpsertDhcpLeases() throws Exception {
+		AbstractTestLeaseManager.upsertDhcpLeases();
+	}
+	
+	@Test
+	public void testUpdateHaPeerState() throws Exception {
+		AbstractTestLeaseManager.updateHaPeerState();
+	}
 }
@@ -0,0 +1,189 @@
+package com.jagornet.dhcp.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.request.binding.Range;
+
+public class TestFileLeaseManager extends AbstractTestLeaseManager {
+
+	private static Logger log = LoggerFactory.getLogger(TestFileLeaseManager.class);
+
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeSetUp();
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_IA_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_LEASE_CACHE_SIZE, "0");
+		initializeContext("file", 2);
+		leaseManager =  (LeaseManager)config.getIaMgr();
+		log.info("oneTimeSetUp complete");
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeTearDown();
+		DhcpServerPolicies.setProperty(Property.DATABASE_FILE_JOURNAL_SIZE,
+				Property.DATABASE_FILE_JOURNAL_SIZE.value());
+		log.info("oneTimeTearDown complete");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	@Test
+	public void testFindUnusedLeases() throws Exception {
+		AbstractTestLeaseManager.findUnusedLeases();
+	}
+
+	@Test
+	public void testFindExpiredLeases() throws Exception {
+		AbstractTestLeaseManager.findExpiredLeases();
+	}
+
+	@Test
+	public void testUpsertDhcpLeases() throws Exception {
+		AbstractTestLeaseManager.upsertDhcpLeases();
+	}
+	
+	@Test
+	public void testUpdateHaPeerState() throws Exception {
+		AbstractTestLeaseManager.updateHaPeerState();
+	}
+
+	@Test
+	public void testReplayJournal() throws Exception {
+		DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp);
+		lease.setState(IaAddress.LEASED);
+		lease.setValidEndTime(new Date(lease.getValidEndTime().getTime() + 1000));
+		leaseManager.updateDhcpLease(lease);
+		leaseManager.deleteIpAddress(endIp);
+		((FileLeaseManager)leaseManager).close();
+
+		// a record which was not completely written is ignored
+		File journal = new File(FileLeaseManager.JOURNAL_DIR, FileLeaseManager.JOURNAL_FILENAME);
+		try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+			long pos = findJournalEnd(raf);
+			raf.seek(pos);
+			raf.writeInt(100);
+			raf.writeByte(FileLeaseManager.OP_DELETE);
+		}
+
+		FileLeaseManager replayed = new FileLeaseManager();
+		replayed.init();
+		assertEquals(9, replayed.findExistingLeaseIPs(startIp, endIp).size());
+		assertNull(replayed.findDhcpLeaseForInetAddr(endIp));
+		DhcpLease replayedLease = replayed.findDhcpLeaseForInetAddr(startIp);
+		assertEquals(IaAddress.LEASED, replayedLease.getState());
+		assertEquals(lease.getValidEndTime(), replayedLease.getValidEndTime());
+		assertEquals(1, replayed.findDhcpLeasesForIA(lease.getDuid(),
+				lease.getIatype(), lease.getIaid()).size());
+		((FileLeaseManager)leaseManager).init();
+	}
+
+	@Test
+	public void testCompactJournal() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_FILE_JOURNAL_SIZE, "4096");
+		try {
+			FileLeaseManager fileLeaseManager = (FileLeaseManager)leaseManager;
+			fileLeaseManager.init();
+			DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp);
+			// many more updates than fit in the journal
+			for (int i=0; i<1000; i++) {
+				lease.setHaPeerState((byte)(i % 5));
+				assertEquals(1, leaseManager.updateDhcpLease(lease));
+			}
+			fileLeaseManager.close();
+			FileLeaseManager replayed = new FileLeaseManager();
+			replayed.init();
+			assertEquals(10, replayed.findExistingLeaseIPs(startIp, endIp).size());
+			assertEquals(999 % 5, replayed.findDhcpLeaseForInetAddr(startIp).getHaPeerState());
+			assertNotNull(replayed.findDhcpLeaseForInetAddr(endIp));
+		}
+		finally {
+			DhcpServerPolicies.setProperty(Property.DATABASE_FILE_JOURNAL_SIZE,
+					Property.DATABASE_FILE_JOURNAL_SIZE.value());
+			((FileLeaseManager)leaseManager).init();
+		}
+	}
+
+	@Test
+	public void testBackgroundCompaction() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_FILE_JOURNAL_SIZE, "4096");
+		try {
+			FileLeaseManager fileLeaseManager = (FileLeaseManager)leaseManager;
+			fileLeaseManager.init();
+			long compactions = fileLeaseManager.compactions;
+			DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp);
+			// fill the journal past the compaction threshold, but not up
+			int i = 0;
+			while (fileLeaseManager.compactionRecords == null) {
+				lease.setHaPeerState((byte)(i++ % 5));
+				assertEquals(1, leaseManager.updateDhcpLease(lease));
+			}
+			assertEquals(compactions, fileLeaseManager.compactions);
+			for (int j=0; (j<50) && (fileLeaseManager.compactions == compactions); j++) {
+				Thread.sleep(100);
+			}
+			// compacted by the background thread
+			assertEquals(compactions + 1, fileLeaseManager.compactions);
+			fileLeaseManager.close();
+			FileLeaseManager replayed = new FileLeaseManager();
+			replayed.init();
+			assertEquals(10, replayed.findExistingLeaseIPs(startIp, endIp).size());
+			assertEquals((i - 1) % 5, replayed.findDhcpLeaseForInetAddr(startIp).getHaPeerState());
+			replayed.close();
+		}
+		finally {
+			DhcpServerPolicies.setProperty(Property.DATABASE_FILE_JOURNAL_SIZE,
+					Property.DATABASE_FILE_JOURNAL_SIZE.value());
+			((FileLeaseManager)leaseManager).init();
+		}
+	}
+
+	@Test
+	public void testReconcileLeases() throws Exception {
+		leaseManager.reconcileLeases(Arrays.asList(
+				new Range(startIp,
+						InetAddress.getByName("10.0.0.4"))));
+		assertEquals(5, leaseManager.findExistingLeaseIPs(startIp, endIp).size());
+	}
+
+	private static long findJournalEnd(RandomAccessFile raf) throws Exception {
+		long pos = 0;
+		while (pos + 4 <= raf.length()) {
+			raf.seek(pos);
+			int len = raf.readInt();
+			if (len <= 0) {
+				break;
+			}
+			pos += 4 + len;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,114 @@
+package com.jagornet.dhcp.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+public class TestH2JdbcLeaseManagerGroupCommit extends AbstractTestLeaseManager {
+
+	private static Logger log = LoggerFactory.getLogger(TestH2JdbcLeaseManagerGroupCommit.class);
+
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeSetUp();
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_IA_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_LEASE_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.DATABASE_GROUP_COMMIT, "true");
+		DhcpServerPolicies.setProperty(Property.DATABASE_GROUP_COMMIT_INTERVAL, "50");
+		initializeContext("jdbc-h2", 2);
+		leaseManager =  (LeaseManager)config.getIaMgr();
+		// the jdbc-h2 database is not cleaned by initializeContext
+		leaseManager.deleteAllLeases();
+		log.info("oneTimeSetUp complete");
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeTearDown();
+		DhcpServerPolicies.setProperty(Property.DATABASE_GROUP_COMMIT,
+				Property.DATABASE_GROUP_COMMIT.value());
+		DhcpServerPolicies.setProperty(Property.DATABASE_GROUP_COMMIT_INTERVAL,
+				Property.DATABASE_GROUP_COMMIT_INTERVAL.value());
+		log.info("oneTimeTearDown complete");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	@Test
+	public void testConcurrentGroupCommit() throws Exception {
+		LeaseGroupCommitJournal journal = ((JdbcLeaseManager)leaseManager).getGroupCommitJournal();
+		assertNotNull(journal);
+		long commits = journal.getGroupCommits();
+		long statements = journal.getStatements();
+
+		final DhcpLease template = leaseManager.findDhcpLeaseForInetAddr(startIp);
+		int threads = 20;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int i=0; i<threads; i++) {
+				final DhcpLease lease = template.clone();
+				lease.setIpAddress(InetAddress.getByName("10.0.1." + i));
+				lease.setDuid(new byte[] { 3, (byte)i });
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						// insert then update, which must be applied in order
+						int cnt = leaseManager.insertDhcpLease(lease);
+						lease.setState(IaAddress.LEASED);
+						return cnt + leaseManager.updateDhcpLease(lease);
+					}
+				}));
+			}
+			for (Future<Integer> result : results) {
+				assertEquals(2, result.get().intValue());
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+		for (int i=0; i<threads; i++) {
+			DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(
+					InetAddress.getByName("10.0.1." + i));
+			assertNotNull(lease);
+			assertEquals(IaAddress.LEASED, lease.getState());
+		}
+		assertEquals(threads*2, journal.getStatements() - statements);
+		// the concurrent statements share the commits
+		assertTrue(journal.getGroupCommits() - commits < threads*2);
+	}
+
+	@Test
+	public void testUpsertDhcpLeases() throws Exception {
+		AbstractTestLeaseManager.upsertDhcpLeases();
+	}
+}
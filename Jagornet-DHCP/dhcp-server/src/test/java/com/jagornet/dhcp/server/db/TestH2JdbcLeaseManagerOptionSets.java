@@ -0,0 +1,243 @@
+package com.jagornet.dhcp.server.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.core.option.v4.DhcpV4DomainNameOption;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+public class TestH2JdbcLeaseManagerOptionSets extends AbstractTestLeaseManager {
+
+	private static Logger log = LoggerFactory.getLogger(TestH2JdbcLeaseManagerOptionSets.class);
+
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeSetUp();
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_IA_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_LEASE_CACHE_SIZE, "0");
+		initializeContext("jdbc-h2", 2);
+		leaseManager =  (LeaseManager)config.getIaMgr();
+		// the jdbc-h2 database is not cleaned by initializeContext
+		leaseManager.deleteAllLeases();
+		log.info("oneTimeSetUp complete");
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeTearDown();
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS,
+				Property.DATABASE_OPTION_SETS.value());
+		log.info("oneTimeTearDown complete");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	private static DhcpOption newOption(int code, String value) {
+		DhcpOption option = new DhcpOption();
+		option.setCode(code);
+		option.setValue(value.getBytes());
+		return option;
+	}
+
+	private static List<DhcpOption> newOptions() {
+		List<DhcpOption> options = new ArrayList<DhcpOption>();
+		options.add(newOption(6, "10.0.0.1"));
+		options.add(newOption(15, "jagornet.com"));
+		return options;
+	}
+
+	private static byte[] findOptionsColumn(InetAddress inetAddr) {
+		return ((JdbcLeaseManager)leaseManager).getJdbcTemplate().queryForObject(
+				"select options from dhcplease where ipaddress = ?",
+				new Object[] { inetAddr.getAddress() }, byte[].class);
+	}
+
+	@Test
+	public void testSharedOptionSet() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS, "true");
+		JdbcOptionSetStore store = ((JdbcLeaseManager)leaseManager).getOptionSetStore();
+		assertNotNull(store);
+
+		DhcpLease template = leaseManager.findDhcpLeaseForInetAddr(startIp);
+		InetAddress[] inetAddrs = new InetAddress[4];
+		for (int i=0; i<inetAddrs.length; i++) {
+			DhcpLease lease = template.clone();
+			inetAddrs[i] = InetAddress.getByName("10.0.2." + i);
+			lease.setIpAddress(inetAddrs[i]);
+			lease.setDuid(new byte[] { 4, (byte)i });
+			lease.setDhcpOptions(newOptions());
+			assertEquals(1, leaseManager.insertDhcpLease(lease));
+		}
+
+		// the lease rows refer to the option set
+		byte[] column = findOptionsColumn(inetAddrs[0]);
+		assertEquals(JdbcOptionSetStore.REFERENCE_LENGTH, column.length);
+		assertTrue(JdbcOptionSetStore.isReference(column));
+
+		// the leases share the decoded options
+		DhcpLease lease0 = leaseManager.findDhcpLeaseForInetAddr(inetAddrs[0]);
+		assertEquals(newOptions(), lease0.getDhcpOptions());
+		for (int i=1; i<inetAddrs.length; i++) {
+			DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(inetAddrs[i]);
+			assertSame(lease0.getDhcpOptions(), lease.getDhcpOptions());
+		}
+
+		// the option set is loaded by another store of the database
+		JdbcOptionSetStore other =
+				new JdbcOptionSetStore(((JdbcLeaseManager)leaseManager).getJdbcTemplate());
+		other.load();
+		assertEquals(newOptions(), other.decode(column));
+	}
+
+	@Test
+	public void testSharedOptionsReused() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS, "true");
+		JdbcOptionSetStore store = ((JdbcLeaseManager)leaseManager).getOptionSetStore();
+		DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp).clone();
+		InetAddress inetAddr = InetAddress.getByName("10.0.4.1");
+		lease.setIpAddress(inetAddr);
+		lease.setDuid(new byte[] { 6, 1 });
+		lease.setDhcpOptions(newOptions());
+		lease.setIaAddrDhcpOptions(newOptions());
+		assertEquals(1, leaseManager.insertDhcpLease(lease));
+
+		// the shared options are stored again as the reference
+		DhcpLease found = leaseManager.findDhcpLeaseForInetAddr(inetAddr);
+		Collection<DhcpOption> shared = found.getIaAddrDhcpOptions();
+		assertArrayEquals(findOptionsColumn(inetAddr), store.intern(found.getDhcpOptions(), false));
+
+		// the shared options are copied when an option is added
+		found.addIaAddrDhcpOption(newOption(44, "wins.jagornet.com"));
+		assertEquals(3, found.getIaAddrDhcpOptions().size());
+		assertEquals(newOptions(), shared);
+		assertEquals(1, leaseManager.updateDhcpLease(found));
+		assertEquals(found.getIaAddrDhcpOptions(),
+				leaseManager.findDhcpLeaseForInetAddr(inetAddr).getIaAddrDhcpOptions());
+	}
+
+	@Test
+	public void testSharedOptionsSaveAndDelete() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS, "true");
+		DhcpLease template = leaseManager.findDhcpLeaseForInetAddr(startIp);
+		InetAddress[] inetAddrs = new InetAddress[2];
+		for (int i=0; i<inetAddrs.length; i++) {
+			DhcpLease lease = template.clone();
+			inetAddrs[i] = InetAddress.getByName("10.0.5." + i);
+			lease.setIpAddress(inetAddrs[i]);
+			lease.setDuid(new byte[] { 7, (byte)i });
+			lease.setIaAddrDhcpOptions(newOptions());
+			assertEquals(1, leaseManager.insertDhcpLease(lease));
+		}
+
+		// the address is read back with the shared options
+		DhcpLease found = leaseManager.findDhcpLeaseForInetAddr(inetAddrs[0]);
+		assertTrue(found.getIaAddrDhcpOptions() instanceof JdbcOptionSetStore.OptionSetList);
+		IaAddress iaAddr = LeaseManager.toIaAddress(found);
+
+		// save a new value of a shared option, as for a ddns update
+		DhcpV4DomainNameOption domainOption = new DhcpV4DomainNameOption("example.com");
+		byte[] domainValue = domainOption.encode().array();
+		domainValue = Arrays.copyOfRange(domainValue, 1, domainValue.length);
+		leaseManager.saveDhcpOption(iaAddr, domainOption);
+		DhcpLease saved = leaseManager.findDhcpLeaseForInetAddr(inetAddrs[0]);
+		assertArrayEquals(domainValue, findOption(saved.getIaAddrDhcpOptions(), 15).getValue());
+		assertEquals(newOptions(),
+				leaseManager.findDhcpLeaseForInetAddr(inetAddrs[1]).getIaAddrDhcpOptions());
+
+		// delete a shared option, as for a ddns delete
+		IaAddress otherAddr = LeaseManager.toIaAddress(
+				leaseManager.findDhcpLeaseForInetAddr(inetAddrs[1]));
+		leaseManager.deleteDhcpOption(otherAddr, domainOption);
+		Collection<DhcpOption> deleted =
+				leaseManager.findDhcpLeaseForInetAddr(inetAddrs[1]).getIaAddrDhcpOptions();
+		assertEquals(1, deleted.size());
+		assertNull(findOption(deleted, 15));
+		assertEquals(newOptions(), found.getIaAddrDhcpOptions());
+		assertArrayEquals(domainValue, findOption(leaseManager.findDhcpLeaseForInetAddr(
+				inetAddrs[0]).getIaAddrDhcpOptions(), 15).getValue());
+	}
+
+	private static DhcpOption findOption(Collection<DhcpOption> options, int code) {
+		for (DhcpOption option : options) {
+			if (option.getCode() == code) {
+				return option;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testOptionSetNotFound() throws Exception {
+		JdbcOptionSetStore store = ((JdbcLeaseManager)leaseManager).getOptionSetStore();
+		try {
+			store.decode(JdbcOptionSetStore.reference(12345));
+			fail("Expected DataRetrievalFailureException");
+		}
+		catch (DataRetrievalFailureException ex) {
+			// the option set is not stored
+		}
+	}
+
+	@Test
+	public void testInlineOptions() throws Exception {
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS, "false");
+		DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp).clone();
+		InetAddress inetAddr = InetAddress.getByName("10.0.3.1");
+		lease.setIpAddress(inetAddr);
+		lease.setDuid(new byte[] { 5, 1 });
+		List<DhcpOption> options = newOptions();
+		options.add(newOption(42, "ntp.jagornet.com"));
+		lease.setDhcpOptions(options);
+		assertEquals(1, leaseManager.insertDhcpLease(lease));
+
+		// the option set of unknown options is not stored
+		byte[] column = findOptionsColumn(inetAddr);
+		assertFalse(JdbcOptionSetStore.isReference(column));
+		assertArrayEquals(LeaseManager.encodeOptions(options), column);
+		assertEquals(options,
+				leaseManager.findDhcpLeaseForInetAddr(inetAddr).getDhcpOptions());
+
+		// options which are no longer than a reference are stored in the lease
+		DhcpServerPolicies.setProperty(Property.DATABASE_OPTION_SETS, "true");
+		options = new ArrayList<DhcpOption>();
+		options.add(newOption(1, "mask"));
+		lease.setDhcpOptions(options);
+		assertEquals(1, leaseManager.updateDhcpLease(lease));
+		column = findOptionsColumn(inetAddr);
+		assertArrayEquals(LeaseManager.encodeOptions(options), column);
+		assertEquals(options,
+				leaseManager.findDhcpLeaseForInetAddr(inetAddr).getDhcpOptions());
+	}
+}
@@ -52,4 +52,14 @@ public class TestH2JdbcLeaseManagerWithCache extends AbstractTestLeaseManager {
 	public void testFindExpiredLeases() throws Exception {
 		AbstractTestLeaseManager.findExpiredLeases();
 	}
+	
+	@Test
+	public void testUpsertDhcpLeases() throws Exception {
+		AbstractTestLeaseManager.upsertDhcpLeases();
+	}
+	
+	@Test
+	public void testUpdateCachedHaPeerState() throws Exception {
+		AbstractTestLeaseManager.updateCachedHaPeerState();
+	}
 }
@@ -0,0 +1,132 @@
+package com.jagornet.dhcp.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+public class TestH2ShardedJdbcLeaseManager extends AbstractTestLeaseManager {
+
+	private static Logger log = LoggerFactory.getLogger(TestH2ShardedJdbcLeaseManager.class);
+
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeSetUp();
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_IA_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_LEASE_CACHE_SIZE, "0");
+		DhcpServerPolicies.setProperty(Property.DATABASE_SHARD_BY_LINK, "true");
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_POOL_INIT_THREADS, "4");
+		initializeContext("jdbc-h2", 2);
+		leaseManager =  (LeaseManager)config.getIaMgr();
+		// the jdbc-h2 database is not cleaned by initializeContext
+		leaseManager.deleteAllLeases();
+		log.info("oneTimeSetUp complete");
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		AbstractTestLeaseManager.oneTimeTearDown();
+		DhcpServerPolicies.setProperty(Property.DATABASE_SHARD_BY_LINK,
+				Property.DATABASE_SHARD_BY_LINK.value());
+		DhcpServerPolicies.setProperty(Property.BINDING_MANAGER_POOL_INIT_THREADS,
+				Property.BINDING_MANAGER_POOL_INIT_THREADS.value());
+		log.info("oneTimeTearDown complete");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		super.tearDown();
+	}
+
+	@Test
+	public void testBuildShardUrl() throws Exception {
+		assertEquals("jdbc:h2:db/jagornet-dhcp-192_168_0_1_24",
+				ShardedJdbcLeaseManager.buildShardUrl("jdbc:h2:db/jagornet-dhcp", "192.168.0.1/24"));
+		assertEquals("jdbc:derby:db/jagornet-dhcp-2001_DB8_1___48;create=true",
+				ShardedJdbcLeaseManager.buildShardUrl("jdbc:derby:db/jagornet-dhcp;create=true", "2001:DB8:1::/48"));
+	}
+
+	@Test
+	public void testLeaseShards() throws Exception {
+		assertTrue(leaseManager instanceof ShardedJdbcLeaseManager);
+		ShardedJdbcLeaseManager shardedLeaseManager = (ShardedJdbcLeaseManager) leaseManager;
+
+		// 10.0.0.x leases are not on any link, so are in the default shard
+		JdbcLeaseManager defaultShard = shardedLeaseManager.getShard(startIp);
+		assertSame(shardedLeaseManager.defaultShard, defaultShard);
+		assertNotNull(defaultShard.findDhcpLeaseForInetAddr(startIp));
+
+		// 192.168.0.x leases are on the 192.168.0.1/24 link
+		InetAddress linkIp = InetAddress.getByName("192.168.0.10");
+		DhcpLease lease = leaseManager.findDhcpLeaseForInetAddr(startIp).clone();
+		lease.setIpAddress(linkIp);
+		lease.setDuid(new byte[] { 2, 0, 0 });
+		lease.setStartTime(new Date());
+		assertEquals(1, leaseManager.insertDhcpLease(lease));
+		JdbcLeaseManager linkShard = shardedLeaseManager.getShard(linkIp);
+		assertNotSame(defaultShard, linkShard);
+		assertNotNull(linkShard.findDhcpLeaseForInetAddr(linkIp));
+		assertNull(defaultShard.findDhcpLeaseForInetAddr(linkIp));
+		assertNotNull(leaseManager.findDhcpLeaseForInetAddr(linkIp));
+
+		// range and IA queries span the shards
+		assertEquals(11, leaseManager.findExistingLeaseIPs(startIp, linkIp).size());
+		assertEquals(1, leaseManager.findDhcpLeasesForIA(lease.getDuid(),
+				lease.getIatype(), lease.getIaid()).size());
+		assertEquals(11, leaseManager.deleteAllLeases());
+		assertNull(leaseManager.findDhcpLeaseForInetAddr(linkIp));
+	}
+
+	@Test
+	public void testMergeByValidEndTime() throws Exception {
+		long now = System.currentTimeMillis();
+		List<DhcpLease> shard1 = Arrays.asList(newLease(now + 1000), newLease(now + 3000), newLease(0));
+		List<DhcpLease> shard2 = Arrays.asList(newLease(now), newLease(now + 2000), newLease(now + 4000));
+		List<DhcpLease> merged = ShardedJdbcLeaseManager.mergeByValidEndTime(
+				ShardedJdbcLeaseManager.mergeByValidEndTime(new ArrayList<DhcpLease>(), shard1), shard2);
+		assertEquals(6, merged.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(now + (i * 1000), merged.get(i).getValidEndTime().getTime());
+		}
+		assertNull(merged.get(5).getValidEndTime());
+	}
+
+	private static DhcpLease newLease(long validEndTime) {
+		DhcpLease lease = new DhcpLease();
+		if (validEndTime > 0) {
+			lease.setValidEndTime(new Date(validEndTime));
+		}
+		return lease;
+	}
+
+	@Test
+	public void testUpsertDhcpLeases() throws Exception {
+		AbstractTestLeaseManager.upsertDhcpLeases();
+	}
+}
@@ -0,0 +1,93 @@
+package com.jagornet.dhcp.server.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestLeaseCache {
+
+	LeaseCache leaseCache = null;
+	long now;
+
+	@Before
+	public void setUp() throws Exception {
+		leaseCache = new LeaseCache(100);
+		now = new Date().getTime();
+	}
+
+	private DhcpLease buildLease(String ip, byte state, long validEnd) throws Exception {
+		DhcpLease dhcpLease = new DhcpLease();
+		dhcpLease.setIpAddress(InetAddress.getByName(ip));
+		dhcpLease.setDuid(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e });
+		dhcpLease.setIaid(1);
+		dhcpLease.setIatype(IdentityAssoc.V4_TYPE);
+		dhcpLease.setState(state);
+		dhcpLease.setStartTime(new Date(now - 60000));
+		dhcpLease.setPreferredEndTime(new Date(validEnd));
+		dhcpLease.setValidEndTime(new Date(validEnd));
+		return dhcpLease;
+	}
+
+	@Test
+	public void testRangeAndStateQueries() throws Exception {
+		leaseCache.putLease(buildLease("10.0.0.1", IaAddress.LEASED, now + 60000));
+		leaseCache.putLease(buildLease("10.0.0.2", IaAddress.AVAILABLE, now + 2000));
+		leaseCache.putLease(buildLease("10.0.0.3", IaAddress.AVAILABLE, now + 1000));
+		leaseCache.putLease(buildLease("10.0.1.1", IaAddress.AVAILABLE, now));
+
+		assertEquals(3, leaseCache.findLeases(InetAddress.getByName("10.0.0.0"),
+				InetAddress.getByName("10.0.0.255")).size());
+		List<DhcpLease> available = leaseCache.findAvailableLeases(
+				InetAddress.getByName("10.0.0.0"), InetAddress.getByName("10.0.0.255"), now);
+		assertEquals(2, available.size());
+		// sorted by valid end time
+		assertEquals(InetAddress.getByName("10.0.0.3"), available.get(0).getIpAddress());
+
+		// modify in place, and put again to re-index
+		DhcpLease lease = leaseCache.getLease(InetAddress.getByName("10.0.0.3"));
+		lease.setState(IaAddress.LEASED);
+		leaseCache.putLease(lease);
+		available = leaseCache.findAvailableLeases(
+				InetAddress.getByName("10.0.0.0"), InetAddress.getByName("10.0.0.255"), now);
+		assertEquals(1, available.size());
+		assertEquals(InetAddress.getByName("10.0.0.2"), available.get(0).getIpAddress());
+	}
+
+	@Test
+	public void testExpiredLeases() throws Exception {
+		leaseCache.putLease(buildLease("10.0.0.1", IaAddress.LEASED, now - 1000));
+		leaseCache.putLease(buildLease("10.0.0.2", IaAddress.LEASED, now - 5000));
+		leaseCache.putLease(buildLease("10.0.0.3", IaAddress.RESERVED, now - 5000));
+		leaseCache.putLease(buildLease("10.0.0.4", IaAddress.LEASED, now + 60000));
+
+		List<DhcpLease> expired = leaseCache.expiredLeases(IdentityAssoc.V4_TYPE);
+		assertEquals(2, expired.size());
+		assertEquals(InetAddress.getByName("10.0.0.2"), expired.get(0).getIpAddress());
+		assertEquals(0, leaseCache.expiredLeases(IdentityAssoc.NA_TYPE).size());
+
+		assertNotNull(leaseCache.removeLease(InetAddress.getByName("10.0.0.2")));
+		assertEquals(1, leaseCache.expiredLeases(IdentityAssoc.V4_TYPE).size());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		for (int i=0; i<250; i++) {
+			leaseCache.putLease(buildLease("10.0." + (i / 200) + "." + (i % 200),
+					IaAddress.LEASED, now + i));
+		}
+		assertTrue(leaseCache.size() <= 100);
+		assertEquals(leaseCache.size(), leaseCache.getAllLeases().size());
+		leaseCache.clear();
+		assertEquals(0, leaseCache.size());
+		assertNull(leaseCache.getLease(InetAddress.getByName("10.0.1.49")));
+		assertEquals(0, leaseCache.getAllLeases().size());
+	}
+}
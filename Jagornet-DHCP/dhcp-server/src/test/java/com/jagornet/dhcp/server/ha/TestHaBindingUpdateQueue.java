@@ -0,0 +1,200 @@
+package com.jagornet.dhcp.server.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jagornet.dhcp.server.db.DhcpLease;
+import com.jagornet.dhcp.server.db.IaAddress;
+import com.jagornet.dhcp.server.db.IdentityAssoc;
+import com.jagornet.dhcp.server.rest.api.DhcpLeaseBulkFormat;
+
+public class TestHaBindingUpdateQueue {
+
+	/**
+	 * A queue which acks the leases sent to it, except for one IP.
+	 */
+	static class MockBindingUpdateQueue extends HaBindingUpdateQueue {
+		InetAddress nackIp;
+		int unanswered;
+		List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+		List<DhcpLease> syncedLeases = new CopyOnWriteArrayList<DhcpLease>();
+
+		MockBindingUpdateQueue(int maxSize, int batchSize, long batchInterval) {
+			super(null, null, maxSize, batchSize, batchInterval);
+		}
+
+		MockBindingUpdateQueue(int maxSize, int batchSize, long batchInterval,
+				int maxRetries, long retryDelay) {
+			super(null, null, maxSize, batchSize, batchInterval, maxRetries, retryDelay);
+		}
+
+		@Override
+		protected String sendLeases(byte[] data) {
+			if (unanswered > 0) {
+				// the backup is unavailable
+				unanswered--;
+				return null;
+			}
+			try {
+				Map<Long, DhcpLease> dhcpLeases =
+						DhcpLeaseBulkFormat.decodeLeases(new ByteArrayInputStream(data));
+				batchSizes.add(dhcpLeases.size());
+				Set<Long> acks = new LinkedHashSet<Long>();
+				for (Map.Entry<Long, DhcpLease> entry : dhcpLeases.entrySet()) {
+					if (!entry.getValue().getIpAddress().equals(nackIp)) {
+						acks.add(entry.getKey());
+					}
+				}
+				return DhcpLeaseBulkFormat.encodeAcks(acks);
+			}
+			catch (Exception ex) {
+				return null;
+			}
+		}
+
+		@Override
+		protected void leaseSynced(DhcpLease dhcpLease) {
+			syncedLeases.add(dhcpLease);
+		}
+	}
+
+	MockBindingUpdateQueue queue;
+
+	@After
+	public void tearDown() throws Exception {
+		if (queue != null) {
+			queue.stop();
+		}
+	}
+
+	private DhcpLease buildLease(String ip, byte state) throws Exception {
+		DhcpLease dhcpLease = new DhcpLease();
+		dhcpLease.setIpAddress(InetAddress.getByName(ip));
+		dhcpLease.setDuid(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e });
+		dhcpLease.setIaid(1);
+		dhcpLease.setIatype(IdentityAssoc.V4_TYPE);
+		dhcpLease.setState(state);
+		dhcpLease.setHaPeerState(IaAddress.UNKNOWN);
+		Date now = new Date();
+		dhcpLease.setStartTime(now);
+		dhcpLease.setPreferredEndTime(new Date(now.getTime() + 60000));
+		dhcpLease.setValidEndTime(new Date(now.getTime() + 60000));
+		return dhcpLease;
+	}
+
+	@Test
+	public void testBulkFormat() throws Exception {
+		DhcpLease lease1 = buildLease("10.0.0.1", IaAddress.LEASED);
+		DhcpLease lease2 = buildLease("10.0.0.2", IaAddress.OFFERED);
+		Map<Long, DhcpLease> sent = new java.util.LinkedHashMap<Long, DhcpLease>();
+		sent.put(7L, lease1);
+		sent.put(8L, lease2);
+		Map<Long, DhcpLease> received = DhcpLeaseBulkFormat.decodeLeases(
+				new ByteArrayInputStream(DhcpLeaseBulkFormat.encodeLeases(sent)));
+		assertEquals(sent, received);
+		Set<Long> acks = new LinkedHashSet<Long>();
+		acks.add(7L);
+		acks.add(8L);
+		assertEquals(acks, DhcpLeaseBulkFormat.decodeAcks(DhcpLeaseBulkFormat.encodeAcks(acks)));
+		assertTrue(DhcpLeaseBulkFormat.decodeAcks(null).isEmpty());
+	}
+
+	@Test
+	public void testCoalesceAndAck() throws Exception {
+		// the long batch interval holds the first batch until it is full
+		queue = new MockBindingUpdateQueue(100, 3, 60000);
+		queue.nackIp = InetAddress.getByName("10.0.0.3");
+		List<Future<Boolean>> acks = new ArrayList<Future<Boolean>>();
+		acks.add(queue.queueUpdate(buildLease("10.0.0.1", IaAddress.OFFERED)));
+		// replaces the queued update for the same IP
+		acks.add(queue.queueUpdate(buildLease("10.0.0.1", IaAddress.LEASED)));
+		acks.add(queue.queueUpdate(buildLease("10.0.0.2", IaAddress.LEASED)));
+		acks.add(queue.queueUpdate(buildLease("10.0.0.3", IaAddress.LEASED)));
+		assertEquals(3, queue.size());
+		queue.start();
+
+		assertTrue(acks.get(0).get(5, TimeUnit.SECONDS));
+		assertTrue(acks.get(1).get(5, TimeUnit.SECONDS));
+		assertTrue(acks.get(2).get(5, TimeUnit.SECONDS));
+		assertFalse(acks.get(3).get(5, TimeUnit.SECONDS));
+		assertEquals(1, queue.batchSizes.size());
+		assertEquals(3, queue.batchSizes.get(0).intValue());
+		assertEquals(2, queue.syncedLeases.size());
+		assertEquals(IaAddress.LEASED, queue.syncedLeases.get(0).getState());
+		assertEquals(1, queue.getCoalescedCount());
+		assertEquals(2, queue.getAckedCount());
+		assertEquals(1, queue.getFailedCount());
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		queue = new MockBindingUpdateQueue(100, 10, 0, 3, 10);
+		queue.unanswered = 2;
+		Future<Boolean> ack = queue.queueUpdate(buildLease("10.0.0.1", IaAddress.LEASED));
+		queue.start();
+		// sent on the second retry
+		assertTrue(ack.get(5, TimeUnit.SECONDS));
+		assertEquals(3, queue.getBatchCount());
+		assertEquals(2, queue.getRetriedCount());
+		assertEquals(1, queue.getAckedCount());
+		assertEquals(0, queue.getFailedCount());
+	}
+
+	@Test
+	public void testRetriesExhausted() throws Exception {
+		queue = new MockBindingUpdateQueue(100, 10, 0, 1, 10);
+		queue.unanswered = 2;
+		Future<Boolean> ack = queue.queueUpdate(buildLease("10.0.0.1", IaAddress.LEASED));
+		queue.start();
+		// not sent after the only retry
+		assertFalse(ack.get(5, TimeUnit.SECONDS));
+		assertEquals(2, queue.getBatchCount());
+		assertEquals(1, queue.getRetriedCount());
+		assertEquals(1, queue.getFailedCount());
+		assertTrue(queue.syncedLeases.isEmpty());
+	}
+
+	@Test
+	public void testStop() throws Exception {
+		// the long retry delay holds the failed update in the queue
+		queue = new MockBindingUpdateQueue(100, 10, 0, 3, 60000);
+		queue.unanswered = 1;
+		Future<Boolean> ack = queue.queueUpdate(buildLease("10.0.0.1", IaAddress.LEASED));
+		queue.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while ((queue.getRetriedCount() == 0) && (System.currentTimeMillis() < deadline)) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, queue.size());
+		queue.stop();
+		assertFalse(ack.get(5, TimeUnit.SECONDS));
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testQueueFull() throws Exception {
+		queue = new MockBindingUpdateQueue(2, 10, 0);
+		queue.queueUpdate(buildLease("10.0.0.1", IaAddress.LEASED));
+		queue.queueUpdate(buildLease("10.0.0.2", IaAddress.LEASED));
+		Future<Boolean> dropped = queue.queueUpdate(buildLease("10.0.0.3", IaAddress.LEASED));
+		assertFalse(dropped.get());
+		assertEquals(1, queue.getDroppedCount());
+		assertEquals(2, queue.size());
+	}
+}
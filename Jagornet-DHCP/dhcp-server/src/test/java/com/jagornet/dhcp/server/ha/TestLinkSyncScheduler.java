@@ -0,0 +1,172 @@
+package com.jagornet.dhcp.server.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.jagornet.dhcp.core.util.Subnet;
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.xml.Link;
+import com.jagornet.dhcp.server.ha.LinkSyncScheduler.Priority;
+
+public class TestLinkSyncScheduler {
+
+	/**
+	 * A link sync which fails a number of times before it succeeds,
+	 * and which waits for a gate to open before the first attempt.
+	 */
+	static class MockLinkSync extends LinkSyncThread {
+		List<String> syncOrder;
+		CountDownLatch gate;
+		int failures;
+		long syncMillis;
+		AtomicInteger attempts = new AtomicInteger();
+
+		MockLinkSync(DhcpLink dhcpLink, List<String> syncOrder) {
+			super(dhcpLink, null, null, false, new LinkSyncProgress(dhcpLink.getLinkAddress()));
+			this.syncOrder = syncOrder;
+		}
+
+		@Override
+		public boolean sync() {
+			try {
+				if (gate != null) {
+					gate.await(5, TimeUnit.SECONDS);
+				}
+				if (syncMillis > 0) {
+					Thread.sleep(syncMillis);
+				}
+			}
+			catch (InterruptedException ex) {
+				return false;
+			}
+			syncOrder.add(getDhcpLink().getLinkAddress());
+			if (attempts.incrementAndGet() <= failures) {
+				getDhcpLink().setState(DhcpLink.State.NOT_SYNCED);
+				return false;
+			}
+			getDhcpLink().setState(DhcpLink.State.OK);
+			return true;
+		}
+	}
+
+	List<String> syncOrder = new CopyOnWriteArrayList<String>();
+
+	private MockLinkSync buildLinkSync(String subnet, int requests) throws Exception {
+		String[] cidr = subnet.split("/");
+		Link link = new Link();
+		link.setAddress(subnet);
+		DhcpLink dhcpLink = new DhcpLink(new Subnet(cidr[0], cidr[1]), link);
+		for (int i=0; i<requests; i++) {
+			dhcpLink.requestReceived();
+		}
+		return new MockLinkSync(dhcpLink, syncOrder);
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+		List<MockLinkSync> linkSyncs = new ArrayList<MockLinkSync>();
+		linkSyncs.add(buildLinkSync("10.0.1.0/24", 0));
+		linkSyncs.add(buildLinkSync("10.0.2.0/24", 1));
+		linkSyncs.add(buildLinkSync("10.0.3.0/24", 5));
+		linkSyncs.add(buildLinkSync("10.0.4.0/24", 3));
+		LinkSyncScheduler scheduler = new LinkSyncScheduler("Test", 1,
+				Priority.TRAFFIC, 0, 0, 0, null);
+		scheduler.start(linkSyncs);
+		assertTrue(scheduler.awaitCompletion(5, TimeUnit.SECONDS));
+		assertEquals(4, scheduler.getSynced());
+		// the busiest link is synced first, even by the first thread
+		assertEquals("10.0.3.0/24", syncOrder.get(0));
+		assertEquals("10.0.4.0/24", syncOrder.get(1));
+		assertEquals("10.0.2.0/24", syncOrder.get(2));
+		assertEquals("10.0.1.0/24", syncOrder.get(3));
+	}
+
+	@Test
+	public void testLeasesPriority() throws Exception {
+		List<MockLinkSync> linkSyncs = new ArrayList<MockLinkSync>();
+		linkSyncs.add(buildLinkSync("10.0.1.0/24", 1));
+		linkSyncs.add(buildLinkSync("10.0.2.0/24", 2));
+		linkSyncs.add(buildLinkSync("10.0.3.0/24", 3));
+		// the links are weighed when the gate opens, after start returns
+		final CountDownLatch gate = new CountDownLatch(1);
+		LinkSyncScheduler scheduler = new LinkSyncScheduler("Test", 1,
+				Priority.LEASES, 0, 0, 0, null) {
+					@Override
+					protected long linkWeight(DhcpLink dhcpLink) {
+						try {
+							gate.await(5, TimeUnit.SECONDS);
+						}
+						catch (InterruptedException ex) {
+							return 0;
+						}
+						return dhcpLink.getRequestCount();
+					}
+				};
+		scheduler.start(linkSyncs);
+		assertEquals(3, scheduler.getRemaining());
+		assertTrue(syncOrder.isEmpty());
+		gate.countDown();
+		assertTrue(scheduler.awaitCompletion(5, TimeUnit.SECONDS));
+		assertEquals(3, scheduler.getSynced());
+		// the links are queued after they are all weighed
+		assertEquals("10.0.3.0/24", syncOrder.get(0));
+		assertEquals("10.0.2.0/24", syncOrder.get(1));
+		assertEquals("10.0.1.0/24", syncOrder.get(2));
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		List<MockLinkSync> linkSyncs = new ArrayList<MockLinkSync>();
+		linkSyncs.add(buildLinkSync("10.0.1.0/24", 0));
+		linkSyncs.add(buildLinkSync("10.0.2.0/24", 0));
+		linkSyncs.get(0).failures = 2;
+		linkSyncs.get(1).failures = 5;
+		final AtomicInteger completions = new AtomicInteger();
+		LinkSyncScheduler scheduler = new LinkSyncScheduler("Test", 2,
+				Priority.NONE, 3, 10, 0, new Runnable() {
+					@Override
+					public void run() {
+						completions.incrementAndGet();
+					}
+				});
+		scheduler.start(linkSyncs);
+		assertTrue(scheduler.awaitCompletion(5, TimeUnit.SECONDS));
+		assertEquals(1, completions.get());
+		// synced on the third attempt
+		assertEquals(3, linkSyncs.get(0).attempts.get());
+		assertEquals(DhcpLink.State.OK, linkSyncs.get(0).getDhcpLink().getState());
+		// failed after the first attempt and three retries
+		assertEquals(4, linkSyncs.get(1).attempts.get());
+		assertEquals(DhcpLink.State.NOT_SYNCED, linkSyncs.get(1).getDhcpLink().getState());
+		assertEquals(1, scheduler.getSynced());
+		assertEquals(1, scheduler.getFailed());
+	}
+
+	@Test
+	public void testDeadline() throws Exception {
+		List<MockLinkSync> linkSyncs = new ArrayList<MockLinkSync>();
+		linkSyncs.add(buildLinkSync("10.0.1.0/24", 0));
+		linkSyncs.add(buildLinkSync("10.0.2.0/24", 0));
+		linkSyncs.add(buildLinkSync("10.0.3.0/24", 0));
+		linkSyncs.get(0).syncMillis = 500;
+		LinkSyncScheduler scheduler = new LinkSyncScheduler("Test", 1,
+				Priority.NONE, 0, 0, 100, null);
+		scheduler.start(linkSyncs);
+		assertTrue(scheduler.awaitCompletion(5, TimeUnit.SECONDS));
+		// the running sync finishes, the queued syncs are cancelled
+		assertEquals(1, scheduler.getSynced());
+		assertEquals(2, scheduler.getFailed());
+		assertEquals(DhcpLink.State.OK, linkSyncs.get(0).getDhcpLink().getState());
+		assertEquals(DhcpLink.State.NOT_SYNCED, linkSyncs.get(1).getDhcpLink().getState());
+		assertEquals(DhcpLink.State.NOT_SYNCED, linkSyncs.get(2).getDhcpLink().getState());
+	}
+}
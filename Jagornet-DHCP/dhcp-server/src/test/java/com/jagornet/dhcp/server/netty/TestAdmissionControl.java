@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestAdmissionControl.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.IntSupplier;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.netty.AdmissionControl.DropReason;
+import com.jagornet.dhcp.server.netty.AdmissionControl.LongHashSet;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import junit.framework.TestCase;
+
+/**
+ * The Class TestAdmissionControl.
+ */
+public class TestAdmissionControl extends TestCase
+{
+	private static final long SECOND = 1000000000L;
+
+	private AdmissionControl admission;
+	private int depth;
+
+	private IntSupplier queueDepth = new IntSupplier() {
+		@Override
+		public int getAsInt() {
+			return depth;
+		}
+	};
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (admission != null) {
+			admission.shutdown();
+		}
+		super.tearDown();
+	}
+
+	private DhcpV4Message buildMessage(int client, long xid, short msgType) throws Exception
+	{
+		DhcpV4Message msg = new DhcpV4Message(
+				new InetSocketAddress(InetAddress.getByName("10.0.0.1"), DhcpConstants.V4_SERVER_PORT),
+				new InetSocketAddress(InetAddress.getByName("10.0.1.1"), DhcpConstants.V4_SERVER_PORT));
+		msg.setChAddr(new byte[] { 0, 0x0c, 0x01, 0x02, 0x03, (byte) client });
+		msg.setGiAddr(InetAddress.getByName("10.0.1.1"));
+		msg.setTransactionId(xid);
+		msg.setMessageType(msgType);
+		return msg;
+	}
+
+	public void testClientRate() throws Exception
+	{
+		admission = new AdmissionControl(1, 2, 0, 0, 0, 0, 0, queueDepth);
+		long now = System.nanoTime();
+		assertNull(admission.admit(1, 0, 1, 1, true, now));
+		assertNull(admission.admit(1, 0, 2, 1, true, now));
+		assertEquals(DropReason.CLIENT_RATE, admission.admit(1, 0, 3, 1, true, now));
+		// another client has its own bucket
+		assertNull(admission.admit(2, 0, 4, 1, true, now));
+		// one token is added each second
+		assertNull(admission.admit(1, 0, 5, 1, true, now + SECOND));
+		assertEquals(DropReason.CLIENT_RATE, admission.admit(1, 0, 6, 1, true, now + SECOND));
+		assertEquals(2, admission.getClientBuckets());
+		admission.pruneBuckets(now + 62 * SECOND);
+		assertEquals(0, admission.getClientBuckets());
+	}
+
+	public void testRelayRate() throws Exception
+	{
+		admission = new AdmissionControl(0, 0, 10, 3, 0, 0, 0, queueDepth);
+		long now = System.nanoTime();
+		for (int i=0; i<3; i++) {
+			assertNull(admission.admit(i, 7, i, 1, true, now));
+		}
+		assertEquals(DropReason.RELAY_RATE, admission.admit(4, 7, 4, 1, true, now));
+		// not relayed
+		assertNull(admission.admit(5, 0, 5, 1, true, now));
+		// ten tokens are added each second, up to the burst
+		assertNull(admission.admit(6, 7, 6, 1, true, now + SECOND / 5));
+	}
+
+	public void testDuplicate() throws Exception
+	{
+		admission = new AdmissionControl(0, 0, 0, 0, 1000, 0, 0, queueDepth);
+		long now = System.nanoTime();
+		assertNull(admission.admit(1, 0, 99, 1, true, now));
+		assertEquals(DropReason.DUPLICATE, admission.admit(1, 0, 99, 1, true, now + SECOND / 2));
+		// a REQUEST uses the xid of the DISCOVER
+		assertNull(admission.admit(1, 0, 99, 3, false, now + SECOND / 2));
+		assertNull(admission.admit(2, 0, 99, 1, true, now + SECOND / 2));
+		// still remembered in the previous generation
+		assertEquals(DropReason.DUPLICATE, admission.admit(1, 0, 99, 1, true, now + SECOND + SECOND / 2));
+		assertNull(admission.admit(1, 0, 99, 1, true, now + 5 * SECOND));
+	}
+
+	public void testQueueDepth() throws Exception
+	{
+		admission = new AdmissionControl(0, 0, 0, 0, 0, 10, 20, queueDepth);
+		long now = System.nanoTime();
+		depth = 5;
+		assertNull(admission.admit(buildMessage(1, 1, (short) DhcpConstants.V4MESSAGE_TYPE_DISCOVER), now));
+		depth = 15;
+		assertEquals(DropReason.QUEUE_SHED,
+				admission.admit(buildMessage(1, 2, (short) DhcpConstants.V4MESSAGE_TYPE_DISCOVER), now));
+		assertNull(admission.admit(buildMessage(1, 3, (short) DhcpConstants.V4MESSAGE_TYPE_REQUEST), now));
+		depth = 20;
+		assertEquals(DropReason.QUEUE_FULL,
+				admission.admit(buildMessage(1, 4, (short) DhcpConstants.V4MESSAGE_TYPE_REQUEST), now));
+	}
+
+	public void testPipeline() throws Exception
+	{
+		admission = new AdmissionControl(0, 0, 0, 0, 1000, 0, 0, queueDepth);
+		EmbeddedChannel channel = new EmbeddedChannel(admission);
+		channel.writeInbound(buildMessage(1, 1, (short) DhcpConstants.V4MESSAGE_TYPE_DISCOVER));
+		channel.writeInbound(buildMessage(1, 1, (short) DhcpConstants.V4MESSAGE_TYPE_DISCOVER));
+		channel.writeInbound(buildMessage(2, 1, (short) DhcpConstants.V4MESSAGE_TYPE_DISCOVER));
+		assertNotNull(channel.readInbound());
+		assertNotNull(channel.readInbound());
+		assertNull(channel.readInbound());
+		assertEquals(2, admission.getAdmitted());
+		assertEquals(1, admission.getDropped(DropReason.DUPLICATE));
+		channel.finish();
+	}
+
+	public void testLongHashSet() throws Exception
+	{
+		LongHashSet set = new LongHashSet();
+		for (long i=0; i<10000; i++) {
+			assertTrue(set.add(i * 7919));
+		}
+		assertEquals(10000, set.size());
+		for (long i=0; i<10000; i++) {
+			assertTrue(set.contains(i * 7919));
+			assertFalse(set.add(i * 7919));
+		}
+		assertFalse(set.contains(1));
+		set.clear();
+		assertEquals(0, set.size());
+		assertFalse(set.contains(0));
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestProcessingLanes.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jagornet.dhcp.core.message.DhcpV4Message;
+import com.jagornet.dhcp.core.util.DhcpConstants;
+import com.jagornet.dhcp.server.netty.ProcessingLanes.Partition;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestProcessingLanes.
+ */
+public class TestProcessingLanes extends TestCase
+{
+	private ProcessingLanes lanes;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (lanes != null) {
+			lanes.shutdown();
+		}
+		super.tearDown();
+	}
+
+	private DhcpV4Message buildMessage(int client, String giAddr) throws Exception
+	{
+		DhcpV4Message msg = new DhcpV4Message(
+				new InetSocketAddress(InetAddress.getByName("10.0.0.1"), DhcpConstants.V4_SERVER_PORT),
+				new InetSocketAddress(InetAddress.getByName("10.0.0.2"), DhcpConstants.V4_SERVER_PORT));
+		msg.setChAddr(new byte[] { 0, 0x0c, 0x01, 0x02, 0x03, (byte) client });
+		msg.setGiAddr(InetAddress.getByName(giAddr));
+		return msg;
+	}
+
+	public void testClientOrder() throws Exception
+	{
+		lanes = new ProcessingLanes(Partition.CLIENT, 4);
+		final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(100);
+		for (int i=0; i<100; i++) {
+			final int seq = i;
+			// the same client, from different relays
+			lanes.execute(buildMessage(1, "10.0." + (i % 10) + ".1"), new Runnable() {
+				@Override
+				public void run() {
+					if (running.incrementAndGet() > 1) {
+						overlaps.incrementAndGet();
+					}
+					order.add(seq);
+					running.decrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		for (int i=0; i<100; i++) {
+			assertEquals(i, order.get(i).intValue());
+		}
+	}
+
+	public void testLinkPartition() throws Exception
+	{
+		lanes = new ProcessingLanes(Partition.LINK, 4);
+		assertEquals(lanes.partitionKey(buildMessage(1, "10.0.1.1")),
+				lanes.partitionKey(buildMessage(2, "10.0.1.1")));
+		// no relay, so the local address finds the link
+		assertEquals(lanes.partitionKey(buildMessage(1, "0.0.0.0")),
+				InetAddress.getByName("10.0.0.1").hashCode());
+		lanes.shutdown();
+		lanes = new ProcessingLanes(Partition.CLIENT, 4);
+		assertEquals(lanes.partitionKey(buildMessage(1, "10.0.1.1")),
+				lanes.partitionKey(buildMessage(1, "10.0.2.1")));
+	}
+
+	public void testMetrics() throws Exception
+	{
+		lanes = new ProcessingLanes(Partition.CLIENT, 2);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		lanes.execute(7, task);
+		lanes.execute(7, task);
+		lanes.execute(7, new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+				throw new IllegalStateException("failed on purpose");
+			}
+		});
+		// one message is running, two are waiting on the lane
+		int depth = 0;
+		long end = System.currentTimeMillis() + 5000;
+		do {
+			depth = 0;
+			for (int d : lanes.getLaneDepths()) {
+				depth += d;
+			}
+		} while ((depth != 2) && (System.currentTimeMillis() < end));
+		assertEquals(2, depth);
+		gate.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		long processed = 0;
+		end = System.currentTimeMillis() + 5000;
+		while ((processed < 3) && (System.currentTimeMillis() < end)) {
+			processed = 0;
+			for (long p : lanes.getLaneProcessed()) {
+				processed += p;
+			}
+			Thread.sleep(10);
+		}
+		assertEquals(3, processed);
+		assertEquals(1, lanes.getFailed());
+		assertTrue(lanes.getMaxWaitMicros() > 0);
+	}
+}
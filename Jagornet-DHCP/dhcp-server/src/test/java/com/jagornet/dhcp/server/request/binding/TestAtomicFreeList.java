@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestAtomicFreeList.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestAtomicFreeList.
+ */
+public class TestAtomicFreeList extends TestCase
+{
+	private AtomicFreeList prefix64List;
+	private AtomicFreeList smallPool;
+	private AtomicFreeList v4Pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		prefix64List = new AtomicFreeList(
+				new BigInteger(InetAddress.getByName("3ffe::0").getAddress()),
+				new BigInteger(InetAddress.getByName("3ffe::ffff:ffff:ffff:ffff").getAddress()));
+		smallPool = new AtomicFreeList(
+				new BigInteger(InetAddress.getByName("3ffe::0").getAddress()),
+				new BigInteger(InetAddress.getByName("3ffe::2").getAddress()));
+		v4Pool = new AtomicFreeList(
+				new BigInteger(InetAddress.getByName("192.168.0.1").getAddress()),
+				new BigInteger(InetAddress.getByName("192.168.63.254").getAddress()));
+	}
+
+	public void testSetLowAndHighIp() throws Exception
+	{
+		BigInteger low = new BigInteger(InetAddress.getByName("3ffe::1").getAddress());
+		BigInteger high = new BigInteger(InetAddress.getByName("3ffe::ffff:ffff:ffff:ffff").getAddress());
+		prefix64List.setUsed(low);
+		prefix64List.setUsed(high);
+		assertTrue(prefix64List.isUsed(low));
+		assertTrue(prefix64List.isUsed(high));
+		assertTrue(prefix64List.isFree(low.add(BigInteger.ONE)));
+		prefix64List.setFree(high);
+		assertTrue(prefix64List.isFree(high));
+	}
+
+	public void testGetNextFreeAddress() throws Exception
+	{
+		assertEquals(InetAddress.getByName("3ffe::0"),
+				InetAddress.getByAddress(smallPool.getNextFree().toByteArray()));
+		assertEquals(InetAddress.getByName("3ffe::1"),
+				InetAddress.getByAddress(smallPool.getNextFree().toByteArray()));
+		assertEquals(InetAddress.getByName("3ffe::2"),
+				InetAddress.getByAddress(smallPool.getNextFree().toByteArray()));
+		assertNull(smallPool.getNextFree());
+		smallPool.setFree(new BigInteger(InetAddress.getByName("3ffe::1").getAddress()));
+		assertEquals(InetAddress.getByName("3ffe::1"),
+				InetAddress.getByAddress(smallPool.getNextFree().toByteArray()));
+		assertNull(smallPool.getNextFree());
+	}
+
+	public void testExhaustV4Pool() throws Exception
+	{
+		BigInteger bi = new BigInteger(InetAddress.getByName("192.168.0.1").getAddress());
+		int size = v4Pool.end.subtract(v4Pool.start).intValue() + 1;
+		for (int i=0; i<size; i++) {
+			assertEquals(bi, v4Pool.getNextFree());
+			bi = bi.add(BigInteger.ONE);
+		}
+		assertNull(v4Pool.getNextFree());
+		// free one in the middle of a full subtree, and get it back
+		BigInteger mid = new BigInteger(InetAddress.getByName("192.168.32.7").getAddress());
+		v4Pool.setFree(mid);
+		assertEquals(mid, v4Pool.getNextFree());
+		assertNull(v4Pool.getNextFree());
+	}
+
+	public void testThreadedGetAddresses() throws Exception
+	{
+		final Set<BigInteger> allocated = ConcurrentHashMap.newKeySet();
+		final AtomicInteger count = new AtomicInteger();
+		final int size = v4Pool.end.subtract(v4Pool.start).intValue() + 1;
+		Thread[] threads = new Thread[8];
+		for (int i=0; i<threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					BigInteger next = v4Pool.getNextFree();
+					while (next != null) {
+						allocated.add(next);
+						count.incrementAndGet();
+						next = v4Pool.getNextFree();
+					}
+				}
+			}, "TestThread-"+i);
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(size, count.get());
+		assertEquals(size, allocated.size());
+	}
+
+	public void testCreateFreeList() throws Exception
+	{
+		BigInteger start = new BigInteger(InetAddress.getByName("3ffe::0").getAddress());
+		assertTrue(FreeList.createFreeList(start, start.add(BigInteger.TEN),
+				FreeList.ATOMIC_TYPE) instanceof AtomicFreeList);
+		assertFalse(FreeList.createFreeList(start, start.add(BigInteger.TEN),
+				FreeList.BITSET_TYPE) instanceof AtomicFreeList);
+		// a /63 does not fit in 64 bits
+		assertFalse(FreeList.createFreeList(start, start.add(BigInteger.ONE.shiftLeft(65)),
+				FreeList.ATOMIC_TYPE) instanceof AtomicFreeList);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestBindingManagerLoader.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jagornet.dhcp.core.util.Subnet;
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.db.BaseTestCase;
+
+/**
+ * The Class TestBindingManagerLoader.
+ */
+public class TestBindingManagerLoader extends BaseTestCase
+{
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		initializeContext();
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		closeContext();
+	}
+
+	@Test
+	public void testLoad() throws Exception
+	{
+		SortedMap<Subnet, DhcpLink> linkMap = config.getLinkMap();
+		BaseBindingManager v6NaMgr = (BaseBindingManager) config.getV6NaAddrBindingMgr();
+		BaseBindingManager v4Mgr = (BaseBindingManager) config.getV4AddrBindingMgr();
+		// the links with pools, as loaded by init
+		Set<String> v6NaLinks = new HashSet<String>(v6NaMgr.getBindingPoolMap().keySet());
+		Set<String> v4Links = new HashSet<String>(v4Mgr.getBindingPoolMap().keySet());
+
+		BindingManagerLoader loader = new BindingManagerLoader(linkMap, 4) {
+			@Override
+			protected void loadLink(LoadedManager loadedManager, DhcpLink dhcpLink)
+					throws DhcpServerConfigException
+			{
+				// the link is not answering until every manager has loaded it
+				assertEquals(DhcpLink.State.LOADING, dhcpLink.getState());
+				super.loadLink(loadedManager, dhcpLink);
+			}
+		};
+		loader.addManager("V6 NA", v6NaMgr);
+		loader.addManager("V6 TA", (BaseBindingManager) config.getV6TaAddrBindingMgr());
+		loader.addManager("V6 Prefix", (BaseBindingManager) config.getV6PrefixBindingMgr());
+		loader.addManager("V4", v4Mgr);
+		loader.load();
+
+		assertEquals(linkMap.size(), loader.getLinksLoaded());
+		for (DhcpLink dhcpLink : linkMap.values()) {
+			assertEquals(DhcpLink.State.OK, dhcpLink.getState());
+		}
+		assertEquals(v6NaLinks, v6NaMgr.getBindingPoolMap().keySet());
+		assertEquals(v4Links, v4Mgr.getBindingPoolMap().keySet());
+		// the index of the pools of all links is built when loaded
+		assertNotNull(v6NaMgr.findBindingPool(InetAddress.getByName("2001:db8:1::0a")));
+		assertNotNull(v4Mgr.findBindingPool(InetAddress.getByName("192.168.0.100")));
+	}
+
+	@Test
+	public void testInitKeepsLinkState() throws Exception
+	{
+		SortedMap<Subnet, DhcpLink> linkMap = config.getLinkMap();
+		DhcpLink dhcpLink = linkMap.values().iterator().next();
+		dhcpLink.setState(DhcpLink.State.NOT_SYNCED);
+		try {
+			// init loads the manager alone, and restores the link state
+			BaseBindingManager v4Mgr = (BaseBindingManager) config.getV4AddrBindingMgr();
+			v4Mgr.init();
+			assertEquals(DhcpLink.State.NOT_SYNCED, dhcpLink.getState());
+			assertNotNull(v4Mgr.findBindingPool(InetAddress.getByName("192.168.0.100")));
+		}
+		finally {
+			dhcpLink.setState(DhcpLink.State.OK);
+		}
+	}
+}
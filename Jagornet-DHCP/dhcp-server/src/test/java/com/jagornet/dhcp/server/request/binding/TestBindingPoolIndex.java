@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestBindingPoolIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.jagornet.dhcp.server.config.xml.V4AddressPool;
+import com.jagornet.dhcp.server.config.xml.V6AddressPool;
+
+import junit.framework.TestCase;
+
+public class TestBindingPoolIndex extends TestCase
+{
+	private static V4AddressBindingPool v4Pool(String range) throws Exception
+	{
+		V4AddressPool pool = new V4AddressPool();
+		pool.setRange(range);
+		return new V4AddressBindingPool(pool);
+	}
+
+	private static V6AddressBindingPool v6Pool(String range) throws Exception
+	{
+		V6AddressPool pool = new V6AddressPool();
+		pool.setRange(range);
+		return new V6AddressBindingPool(pool);
+	}
+
+	public void testDisjointPools() throws Exception
+	{
+		V4AddressBindingPool p1 = v4Pool("10.0.0.10-10.0.0.19");
+		V4AddressBindingPool p2 = v4Pool("10.0.0.100-10.0.0.199");
+		V4AddressBindingPool p3 = v4Pool("192.168.0.0-192.168.0.255");
+		// the index does not depend on the order of the ranges
+		BindingPoolIndex index = new BindingPoolIndex(Arrays.asList(p3, p1, p2));
+		assertEquals(3, index.size());
+		assertSame(p1, index.findPool(InetAddress.getByName("10.0.0.10")));
+		assertSame(p1, index.findPool(InetAddress.getByName("10.0.0.19")));
+		assertSame(p2, index.findPool(InetAddress.getByName("10.0.0.150")));
+		assertSame(p3, index.findPool(InetAddress.getByName("192.168.0.255")));
+		assertNull(index.findPool(InetAddress.getByName("10.0.0.9")));
+		assertNull(index.findPool(InetAddress.getByName("10.0.0.20")));
+		assertNull(index.findPool(InetAddress.getByName("10.0.0.200")));
+		assertNull(index.findPool(InetAddress.getByName("0.0.0.0")));
+		assertNull(index.findPool(InetAddress.getByName("255.255.255.255")));
+	}
+
+	public void testOverlappingPools() throws Exception
+	{
+		// e.g. filtered pools sharing the range of an unfiltered pool
+		V4AddressBindingPool p1 = v4Pool("10.0.0.50-10.0.0.59");
+		V4AddressBindingPool p2 = v4Pool("10.0.0.0-10.0.0.255");
+		V4AddressBindingPool p3 = v4Pool("10.0.0.55-10.0.0.70");
+		BindingPoolIndex index = new BindingPoolIndex(Arrays.asList(p1, p2, p3));
+		assertTrue(Arrays.equals(new BindingPool[] { p2 },
+				index.findPools(InetAddress.getByName("10.0.0.49"))));
+		assertTrue(Arrays.equals(new BindingPool[] { p1, p2 },
+				index.findPools(InetAddress.getByName("10.0.0.50"))));
+		// the pools are returned in the order given to the index
+		assertTrue(Arrays.equals(new BindingPool[] { p1, p2, p3 },
+				index.findPools(InetAddress.getByName("10.0.0.57"))));
+		assertTrue(Arrays.equals(new BindingPool[] { p2, p3 },
+				index.findPools(InetAddress.getByName("10.0.0.60"))));
+		assertTrue(Arrays.equals(new BindingPool[] { p2 },
+				index.findPools(InetAddress.getByName("10.0.0.71"))));
+		assertEquals(0, index.findPools(InetAddress.getByName("10.0.1.0")).length);
+	}
+
+	public void testV6Pools() throws Exception
+	{
+		V6AddressBindingPool p1 = v6Pool("2001:DB8:1::/64");
+		V6AddressBindingPool p2 = v6Pool("2001:DB8:1::8000-2001:DB8:1::FFFF");
+		// a range with the high bit set in both halves of the address
+		V6AddressBindingPool p3 = v6Pool("FFFF::8000:0:0:0-FFFF::8000:0:FFFF:FFFF");
+		BindingPoolIndex index = new BindingPoolIndex(Arrays.asList(p2, p1, p3));
+		assertSame(p1, index.findPool(InetAddress.getByName("2001:DB8:1::1")));
+		assertSame(p2, index.findPool(InetAddress.getByName("2001:DB8:1::8001")));
+		assertSame(p1, index.findPool(InetAddress.getByName("2001:DB8:1:0:FFFF:FFFF:FFFF:FFFF")));
+		assertSame(p3, index.findPool(InetAddress.getByName("FFFF::8000:0:0:1")));
+		assertNull(index.findPool(InetAddress.getByName("2001:DB8:2::")));
+		assertNull(index.findPool(InetAddress.getByName("FFFF::7FFF:0:0:0")));
+	}
+
+	public void testEmptyIndex() throws Exception
+	{
+		BindingPoolIndex index = new BindingPoolIndex(
+				Collections.<BindingPool>emptyList());
+		assertEquals(0, index.size());
+		assertNull(index.findPool(InetAddress.getByName("10.0.0.1")));
+	}
+}
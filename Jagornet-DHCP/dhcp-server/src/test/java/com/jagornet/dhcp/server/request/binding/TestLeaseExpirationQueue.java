@@ -0,0 +1,92 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLeaseExpirationQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestLeaseExpirationQueue.
+ */
+public class TestLeaseExpirationQueue extends TestCase
+{
+	private LeaseExpirationQueue queue;
+	private long now;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		queue = new LeaseExpirationQueue();
+		now = new Date().getTime();
+	}
+
+	public void testPollInExpirationOrder() throws Exception
+	{
+		queue.schedule(InetAddress.getByName("10.0.0.1"), new Date(now - 1000));
+		queue.schedule(InetAddress.getByName("10.0.0.2"), new Date(now - 5000));
+		queue.schedule(InetAddress.getByName("10.0.0.3"), new Date(now + 60000));
+		assertEquals(3, queue.size());
+		assertEquals(now - 5000, queue.nextExpireTime());
+
+		List<InetAddress> expired = queue.pollExpired(now, 100);
+		assertEquals(2, expired.size());
+		assertEquals(InetAddress.getByName("10.0.0.2"), expired.get(0));
+		assertEquals(InetAddress.getByName("10.0.0.1"), expired.get(1));
+		assertEquals(1, queue.size());
+		assertTrue(queue.pollExpired(now, 100).isEmpty());
+		assertEquals(now + 60000, queue.nextExpireTime());
+	}
+
+	public void testRescheduleAndCancel() throws Exception
+	{
+		InetAddress ip1 = InetAddress.getByName("10.0.0.1");
+		InetAddress ip2 = InetAddress.getByName("10.0.0.2");
+		queue.schedule(ip1, new Date(now - 1000));
+		queue.schedule(ip2, new Date(now - 1000));
+		// renewed, so no longer expired
+		queue.schedule(ip1, new Date(now + 60000));
+		queue.cancel(ip2);
+		assertEquals(1, queue.size());
+		assertTrue(queue.pollExpired(now, 100).isEmpty());
+		// a null end time cancels
+		queue.schedule(ip1, null);
+		assertEquals(0, queue.size());
+		assertEquals(-1, queue.nextExpireTime());
+	}
+
+	public void testPollMax() throws Exception
+	{
+		for (int i=1; i<=10; i++) {
+			queue.schedule(InetAddress.getByName("10.0.0." + i), new Date(now - i));
+		}
+		assertEquals(4, queue.pollExpired(now, 4).size());
+		assertEquals(6, queue.pollExpired(now, 100).size());
+		assertEquals(0, queue.size());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLeaseExpirationScheduling.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.Date;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jagornet.dhcp.server.db.BaseTestCase;
+import com.jagornet.dhcp.server.db.DhcpLease;
+import com.jagornet.dhcp.server.db.IaAddress;
+import com.jagornet.dhcp.server.db.IdentityAssoc;
+import com.jagornet.dhcp.server.db.LeaseManager;
+import com.jagornet.dhcp.server.rest.api.DhcpLeasesService;
+
+/**
+ * The Class TestLeaseExpirationScheduling.
+ */
+public class TestLeaseExpirationScheduling extends BaseTestCase
+{
+	@BeforeClass
+	public static void oneTimeSetUp() throws Exception
+	{
+		initializeContext();
+	}
+
+	@AfterClass
+	public static void oneTimeTearDown() throws Exception
+	{
+		closeContext();
+	}
+
+	private static DhcpLease newLease(String ip, byte iatype, Date validEndTime) throws Exception
+	{
+		DhcpLease lease = new DhcpLease();
+		lease.setIpAddress(InetAddress.getByName(ip));
+		lease.setDuid(new byte[] { 7, iatype });
+		lease.setIatype(iatype);
+		lease.setIaid(1);
+		if (iatype == IdentityAssoc.PD_TYPE) {
+			lease.setPrefixLength((short)64);
+		}
+		lease.setState(IaAddress.LEASED);
+		lease.setStartTime(new Date());
+		lease.setPreferredEndTime(validEndTime);
+		lease.setValidEndTime(validEndTime);
+		return lease;
+	}
+
+	@Test
+	public void testServiceLeasesQueued() throws Exception
+	{
+		BaseBindingManager v4Mgr = (BaseBindingManager) config.getV4AddrBindingMgr();
+		BaseBindingManager prefixMgr = (BaseBindingManager) config.getV6PrefixBindingMgr();
+		Date end = new Date(System.currentTimeMillis() + 60000);
+		int v4Queued = v4Mgr.getExpirationQueue().size();
+		int prefixQueued = prefixMgr.getExpirationQueue().size();
+
+		// leases stored by the HA peer or the REST API
+		DhcpLeasesService service = new DhcpLeasesService();
+		assertTrue(service.createDhcpLease(newLease("192.168.0.150", IdentityAssoc.V4_TYPE, end)));
+		assertTrue(service.createDhcpLease(newLease("2001:db8:1:4100::", IdentityAssoc.PD_TYPE, end)));
+		assertEquals(v4Queued + 1, v4Mgr.getExpirationQueue().size());
+		assertEquals(prefixQueued + 1, prefixMgr.getExpirationQueue().size());
+
+		// released by the peer
+		DhcpLease released = newLease("192.168.0.150", IdentityAssoc.V4_TYPE, null);
+		released.setState(IaAddress.AVAILABLE);
+		assertTrue(service.updateDhcpLease(released.getIpAddress(), released));
+		assertEquals(v4Queued, v4Mgr.getExpirationQueue().size());
+	}
+
+	@Test
+	public void testQueuedPrefixExpired() throws Exception
+	{
+		V6PrefixBindingManagerImpl prefixMgr =
+				(V6PrefixBindingManagerImpl) config.getV6PrefixBindingMgr();
+		DhcpLease lease = newLease("2001:db8:1:4200::", IdentityAssoc.PD_TYPE,
+				new Date(System.currentTimeMillis() - 1000));
+		assertTrue(new DhcpLeasesService().createDhcpLease(lease));
+
+		prefixMgr.expireQueuedLeases();
+		DhcpLease expired = ((LeaseManager) config.getIaMgr())
+				.findDhcpLeaseForInetAddr(lease.getIpAddress());
+		assertNotNull(expired);
+		assertEquals(IaAddress.AVAILABLE, expired.getState());
+	}
+}
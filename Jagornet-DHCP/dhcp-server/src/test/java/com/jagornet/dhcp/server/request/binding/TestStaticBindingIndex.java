@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestStaticBindingIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jagornet.dhcp.core.message.DhcpMessage;
+import com.jagornet.dhcp.server.config.xml.OpaqueData;
+import com.jagornet.dhcp.server.config.xml.PoliciesType;
+import com.jagornet.dhcp.server.config.xml.V4AddressBinding;
+import com.jagornet.dhcp.server.config.xml.V6AddressBinding;
+import com.jagornet.dhcp.server.db.IdentityAssoc;
+
+import junit.framework.TestCase;
+
+public class TestStaticBindingIndex extends TestCase
+{
+	private static final byte[] MAC1 = new byte[] { 0, 0x0c, 1, 2, 3, 1 };
+	private static final byte[] MAC2 = new byte[] { 0, 0x0c, 1, 2, 3, 2 };
+	private static final byte[] DUID1 = new byte[] { 0, 3, 0, 1, 0, 0x0c, 1, 2, 3, 1 };
+
+	/**
+	 * A binding which cannot be indexed, such as one which matches
+	 * on the options of the request.
+	 */
+	private static class ScannedBinding extends StaticBinding
+	{
+		private final byte[] duid;
+		private final String ip;
+
+		ScannedBinding(byte[] duid, String ip)
+		{
+			this.duid = duid;
+			this.ip = ip;
+		}
+
+		@Override
+		public boolean matches(byte[] duid, byte iatype, long iaid, DhcpMessage requestMsg)
+		{
+			return Arrays.equals(this.duid, duid);
+		}
+
+		@Override
+		public String getIpAddress()
+		{
+			return ip;
+		}
+
+		@Override
+		public PoliciesType getPolicies()
+		{
+			return null;
+		}
+	}
+
+	private static V4StaticAddressBinding v4Binding(byte[] chaddr, String ip)
+	{
+		V4AddressBinding binding = new V4AddressBinding();
+		binding.setChaddr(chaddr);
+		binding.setIpAddress(ip);
+		return new V4StaticAddressBinding(binding);
+	}
+
+	private static V6StaticAddressBinding v6Binding(byte[] duid, Long iaid, String ip)
+	{
+		V6AddressBinding binding = new V6AddressBinding();
+		OpaqueData opaque = new OpaqueData();
+		opaque.setHexValue(duid);
+		binding.setDuid(opaque);
+		binding.setIaid(iaid);
+		binding.setIpAddress(ip);
+		return new V6StaticAddressBinding(binding, IdentityAssoc.NA_TYPE);
+	}
+
+	public void testV4Bindings() throws Exception
+	{
+		List<StaticBinding> bindings = new ArrayList<StaticBinding>();
+		for (int i=0; i<1000; i++) {
+			bindings.add(v4Binding(new byte[] { 0, 0x0d, 0, 0, (byte)(i >> 8), (byte)i },
+									"10.0." + (i >> 8) + "." + (i & 0xff)));
+		}
+		V4StaticAddressBinding b1 = v4Binding(MAC1, "10.1.0.1");
+		bindings.add(b1);
+		StaticBindingIndex index = new StaticBindingIndex(bindings);
+		assertEquals(1001, index.getIndexedCount());
+		assertEquals(0, index.getScannedCount());
+		assertSame(b1, index.find(MAC1, IdentityAssoc.V4_TYPE, 0, null));
+		assertEquals("10.0.1.244",
+				index.find(new byte[] { 0, 0x0d, 0, 0, 1, (byte)244 },
+							IdentityAssoc.V4_TYPE, 0, null).getIpAddress());
+		assertNull(index.find(MAC2, IdentityAssoc.V4_TYPE, 0, null));
+		// the chaddr of a V4 binding does not match a V6 IA
+		assertNull(index.find(MAC1, IdentityAssoc.NA_TYPE, 0, null));
+	}
+
+	public void testV6Iaids() throws Exception
+	{
+		V6StaticAddressBinding any = v6Binding(DUID1, null, "2001:db8::1");
+		V6StaticAddressBinding iaid7 = v6Binding(DUID1, 7L, "2001:db8::7");
+		// the binding for any IAID is first, so it hides the one for IAID 7
+		StaticBindingIndex index = new StaticBindingIndex(Arrays.asList(any, iaid7));
+		assertSame(any, index.find(DUID1, IdentityAssoc.NA_TYPE, 7, null));
+		assertSame(any, index.find(DUID1, IdentityAssoc.NA_TYPE, 8, null));
+		assertNull(index.find(DUID1, IdentityAssoc.TA_TYPE, 7, null));
+
+		index = new StaticBindingIndex(Arrays.asList(iaid7, any));
+		assertSame(iaid7, index.find(DUID1, IdentityAssoc.NA_TYPE, 7, null));
+		assertSame(any, index.find(DUID1, IdentityAssoc.NA_TYPE, 8, null));
+	}
+
+	public void testConfigOrder() throws Exception
+	{
+		ScannedBinding scanned1 = new ScannedBinding(MAC1, "10.1.0.100");
+		V4StaticAddressBinding b1 = v4Binding(MAC1, "10.1.0.1");
+		ScannedBinding scanned2 = new ScannedBinding(MAC2, "10.1.0.200");
+		V4StaticAddressBinding b1dup = v4Binding(MAC1, "10.1.0.2");
+		StaticBindingIndex index =
+				new StaticBindingIndex(Arrays.asList(scanned1, b1, scanned2, b1dup));
+		assertEquals(1, index.getIndexedCount());
+		assertEquals(2, index.getScannedCount());
+		// the first binding which matches is found, as by a scan of all bindings
+		assertSame(scanned1, index.find(MAC1, IdentityAssoc.V4_TYPE, 0, null));
+		assertSame(scanned2, index.find(MAC2, IdentityAssoc.V4_TYPE, 0, null));
+
+		index = new StaticBindingIndex(Arrays.asList(b1, scanned1, b1dup));
+		assertSame(b1, index.find(MAC1, IdentityAssoc.V4_TYPE, 0, null));
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestV4PingCheckQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.jagornet.dhcp.server.config.xml.V4AddressPool;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestV4PingCheckQueue.
+ */
+public class TestV4PingCheckQueue extends TestCase
+{
+	private V4AddressBindingPool bindingPool;
+
+	/**
+	 * A probe which answers for the given addresses, after a gate opens.
+	 */
+	static class StubProbe implements PingProbe
+	{
+		Set<InetAddress> answering = new HashSet<InetAddress>();
+		CountDownLatch gate;
+
+		@Override
+		public boolean isReachable(InetAddress addr, int timeout) throws IOException
+		{
+			if (gate != null) {
+				try {
+					gate.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+			}
+			return answering.contains(addr);
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		V4AddressPool pool = new V4AddressPool();
+		pool.setRange("192.168.0.1-192.168.0.20");
+		bindingPool = new V4AddressBindingPool(pool);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		V4PingCheckQueue.setProbe(null);
+		super.tearDown();
+	}
+
+	private void waitForVerified(V4PingCheckQueue queue, int count) throws Exception
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while ((queue.getVerifiedCount() < count) && (System.currentTimeMillis() < end)) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, queue.getVerifiedCount());
+	}
+
+	public void testConflictSkipped() throws Exception
+	{
+		StubProbe probe = new StubProbe();
+		probe.answering.add(InetAddress.getByName("192.168.0.1"));
+		probe.answering.add(InetAddress.getByName("192.168.0.2"));
+		V4PingCheckQueue.setProbe(probe);
+		V4PingCheckQueue queue = new V4PingCheckQueue(bindingPool, 4);
+		queue.refill(100);
+		waitForVerified(queue, 4);
+		assertTrue(queue.isConflict(InetAddress.getByName("192.168.0.1")));
+		assertTrue(queue.isConflict(InetAddress.getByName("192.168.0.2")));
+		assertEquals(6, queue.getProbeCount());
+
+		Set<InetAddress> taken = new HashSet<InetAddress>();
+		for (int i=0; i<4; i++) {
+			InetAddress addr = queue.take(100);
+			assertNotNull(addr);
+			assertFalse(queue.isConflict(addr));
+			assertTrue(taken.add(addr));
+		}
+		assertTrue(taken.contains(InetAddress.getByName("192.168.0.3")));
+		assertTrue(taken.contains(InetAddress.getByName("192.168.0.6")));
+		assertEquals(0, queue.getUncheckedCount());
+		// the conflicts are left used in the pool
+		assertTrue(bindingPool.freeList.isUsed(
+				new BigInteger(InetAddress.getByName("192.168.0.1").getAddress())));
+	}
+
+	public void testConflictExpired() throws Exception
+	{
+		StubProbe probe = new StubProbe();
+		InetAddress conflict = InetAddress.getByName("192.168.0.1");
+		probe.answering.add(conflict);
+		V4PingCheckQueue.setProbe(probe);
+		V4PingCheckQueue queue = new V4PingCheckQueue(bindingPool, 4, 50);
+		queue.refill(100);
+		waitForVerified(queue, 4);
+		assertTrue(queue.isConflict(conflict));
+
+		Thread.sleep(100);
+		probe.answering.clear();
+		assertFalse(conflict.equals(queue.take(100)));
+		// the expired conflict is set free, and is probed again
+		assertFalse(queue.isConflict(conflict));
+		waitForVerified(queue, 4);
+		Set<InetAddress> taken = new HashSet<InetAddress>();
+		for (int i=0; i<4; i++) {
+			taken.add(queue.take(100));
+		}
+		assertTrue(taken.contains(conflict));
+	}
+
+	public void testReleased() throws Exception
+	{
+		StubProbe probe = new StubProbe();
+		probe.answering.add(InetAddress.getByName("192.168.0.1"));
+		V4PingCheckQueue.setProbe(probe);
+		V4PingCheckQueue queue = new V4PingCheckQueue(bindingPool, 4);
+		queue.refill(100);
+		waitForVerified(queue, 4);
+
+		// ping checks are disabled
+		queue.release();
+		assertEquals(0, queue.getVerifiedCount());
+		assertTrue(queue.getConflicts().isEmpty());
+		for (int i=1; i<=5; i++) {
+			assertFalse(bindingPool.freeList.isUsed(
+					new BigInteger(InetAddress.getByName("192.168.0." + i).getAddress())));
+		}
+		queue.refill(100);
+		assertEquals(0, queue.getVerifiedCount());
+		assertEquals(InetAddress.getByName("192.168.0.1"), bindingPool.nextFreeAddress());
+	}
+
+	public void testTakeNeverWaits() throws Exception
+	{
+		StubProbe probe = new StubProbe();
+		probe.gate = new CountDownLatch(1);
+		V4PingCheckQueue.setProbe(probe);
+		V4PingCheckQueue queue = new V4PingCheckQueue(bindingPool, 2);
+		queue.refill(100);
+		long start = System.currentTimeMillis();
+		InetAddress addr = queue.take(100);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		// the probes are still waiting, so the next free address is offered
+		assertEquals(InetAddress.getByName("192.168.0.3"), addr);
+		assertEquals(1, queue.getUncheckedCount());
+		probe.gate.countDown();
+		waitForVerified(queue, 2);
+	}
+
+	public void testRemoveBound() throws Exception
+	{
+		V4PingCheckQueue.setProbe(new StubProbe());
+		V4PingCheckQueue queue = bindingPool.getPingCheckQueue();
+		queue.refill(100);
+		waitForVerified(queue, 4);
+		// a client is bound to a queued address by another path
+		bindingPool.setUsed(InetAddress.getByName("192.168.0.1"));
+		for (int i=0; i<10; i++) {
+			assertFalse(InetAddress.getByName("192.168.0.1").equals(queue.take(100)));
+		}
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC.
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestDdnsUpdateEngine.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.ddns;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Opcode;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.Section;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestDdnsUpdateEngine.
+ */
+public class TestDdnsUpdateEngine extends TestCase
+{
+	private StubDnsServer dnsServer;
+	private DdnsUpdateEngine engine;
+
+	/**
+	 * A DNS server on the loopback address, which answers each UPDATE
+	 * with NOERROR, after ignoring the given number of messages.
+	 */
+	static class StubDnsServer extends Thread
+	{
+		DatagramSocket socket;
+		List<Message> updates = new CopyOnWriteArrayList<Message>();
+		AtomicInteger ignore = new AtomicInteger();
+
+		StubDnsServer() throws Exception
+		{
+			super("StubDnsServer");
+			setDaemon(true);
+			socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		}
+
+		int getPort()
+		{
+			return socket.getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			byte[] buf = new byte[4096];
+			while (!socket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buf, buf.length);
+					socket.receive(packet);
+					byte[] data = new byte[packet.getLength()];
+					System.arraycopy(buf, 0, data, 0, data.length);
+					Message query = new Message(data);
+					if (ignore.getAndDecrement() > 0) {
+						continue;
+					}
+					updates.add(query);
+					Message response = new Message(query.getHeader().getID());
+					response.getHeader().setFlag(Flags.QR);
+					response.getHeader().setOpcode(Opcode.UPDATE);
+					response.getHeader().setRcode(Rcode.NOERROR);
+					response.addRecord(query.getQuestion(), Section.QUESTION);
+					byte[] reply = response.toWire();
+					socket.send(new DatagramPacket(reply, reply.length,
+							packet.getSocketAddress()));
+				}
+				catch (SocketException ex) {
+					break;
+				}
+				catch (Exception ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A callback which counts the results of the updates.
+	 */
+	static class CountingCallback implements DdnsCallback
+	{
+		AtomicInteger succeeded = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+
+		private void count(boolean success) {
+			if (success)
+				succeeded.incrementAndGet();
+			else
+				failed.incrementAndGet();
+		}
+		public void fwdAddComplete(boolean success) { count(success); }
+		public void fwdDeleteComplete(boolean success) { count(success); }
+		public void revAddComplete(boolean success) { count(success); }
+		public void revDeleteComplete(boolean success) { count(success); }
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		dnsServer = new StubDnsServer();
+		dnsServer.start();
+		DhcpServerPolicies.setProperty(Property.DDNS_SERVER, "127.0.0.1#" + dnsServer.getPort());
+		DhcpServerPolicies.setProperty(Property.DDNS_TIMEOUT, "300");
+		DdnsUpdate.clearResolvers();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (engine != null) {
+			engine.shutdown(1000);
+		}
+		dnsServer.socket.close();
+		DhcpServerPolicies.getProperties().remove(Property.DDNS_SERVER.key());
+		DhcpServerPolicies.getProperties().remove(Property.DDNS_TIMEOUT.key());
+		DdnsUpdate.clearResolvers();
+		super.tearDown();
+	}
+
+	private DdnsUpdater updater(String fqdn, String addr, boolean doForwardUpdate,
+			boolean isDelete, DdnsCallback callback) throws Exception
+	{
+		return new DdnsUpdater(null, null, InetAddress.getByName(addr), fqdn,
+				new byte[] { 1, 2, 3, 4 }, 3600, doForwardUpdate, isDelete, callback);
+	}
+
+	private void waitForDone(long count) throws Exception
+	{
+		long end = System.currentTimeMillis() + 10000;
+		while ((engine.getCompleted() + engine.getFailed() < count) &&
+				(System.currentTimeMillis() < end)) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, engine.getCompleted() + engine.getFailed());
+	}
+
+	public void testCoalesce() throws Exception
+	{
+		engine = new DdnsUpdateEngine(1, 100, 16, 0, 100);
+		CountingCallback[] callbacks = new CountingCallback[5];
+		for (int i=0; i<callbacks.length; i++) {
+			callbacks[i] = new CountingCallback();
+			updater("host1.example.com.", "192.168.0.1", true, false, callbacks[i])
+					.processUpdates(engine);
+		}
+		assertEquals(1, engine.getQueueDepth());
+		assertEquals(4, engine.getCoalesced());
+		engine.start();
+		waitForDone(1);
+		assertEquals(1, engine.getCompleted());
+		// one forward update and one reverse update were sent
+		assertEquals(2, dnsServer.updates.size());
+		// the four replaced updates reported the results of the newest
+		for (CountingCallback callback : callbacks) {
+			assertEquals(2, callback.succeeded.get());
+			assertEquals(0, callback.failed.get());
+		}
+	}
+
+	public void testReverseBatch() throws Exception
+	{
+		engine = new DdnsUpdateEngine(1, 100, 16, 0, 100);
+		CountingCallback callback = new CountingCallback();
+		for (int i=1; i<=5; i++) {
+			updater("host" + i + ".example.com.", "192.168.0." + i, false, (i == 5), callback)
+					.processUpdates(engine);
+		}
+		engine.start();
+		waitForDone(5);
+		assertEquals(5, engine.getCompleted());
+		assertEquals(1, dnsServer.updates.size());
+		assertEquals(1, engine.getBatchedMessages());
+		assertEquals(5, engine.getBatchedUpdates());
+		Message update = dnsServer.updates.get(0);
+		assertEquals("0.168.192.in-addr.arpa.", update.getQuestion().getName().toString());
+		// a delete and an add for each replaced PTR, and one delete
+		Record[] records = update.getSectionArray(Section.UPDATE);
+		assertEquals(9, records.length);
+		assertEquals(5, callback.succeeded.get());
+		assertEquals(0, callback.failed.get());
+	}
+
+	public void testRetry() throws Exception
+	{
+		engine = new DdnsUpdateEngine(1, 100, 16, 2, 50);
+		dnsServer.ignore.set(1);
+		CountingCallback callback = new CountingCallback();
+		updater("host1.example.com.", "192.168.0.1", false, false, callback)
+				.processUpdates(engine);
+		engine.start();
+		waitForDone(1);
+		assertEquals(1, engine.getCompleted());
+		assertEquals(1, engine.getRetried());
+		assertEquals(1, dnsServer.updates.size());
+		assertEquals(1, callback.succeeded.get());
+		assertTrue(engine.getMaxLatencyMillis() >= 300);
+	}
+
+	public void testRetriesExhausted() throws Exception
+	{
+		engine = new DdnsUpdateEngine(1, 100, 16, 1, 50);
+		dnsServer.ignore.set(10);
+		CountingCallback callback = new CountingCallback();
+		updater("host1.example.com.", "192.168.0.1", false, false, callback)
+				.processUpdates(engine);
+		engine.start();
+		waitForDone(1);
+		assertEquals(1, engine.getFailed());
+		assertEquals(1, engine.getRetried());
+		assertEquals(0, callback.succeeded.get());
+	}
+
+	public void testQueueFull() throws Exception
+	{
+		engine = new DdnsUpdateEngine(1, 2, 16, 0, 100);
+		CountingCallback callback = new CountingCallback();
+		for (int i=1; i<=3; i++) {
+			updater("host" + i + ".example.com.", "192.168.0." + i, false, false, callback)
+					.processUpdates(engine);
+		}
+		assertEquals(2, engine.getQueueDepth());
+		assertEquals(1, engine.getRejected());
+		assertEquals(4, callback.failed.get());
+	}
+
+	public void testResolverReuse() throws Exception
+	{
+		ReverseDdnsUpdate rev1 = new ReverseDdnsUpdate("host1.example.com.",
+				InetAddress.getByName("192.168.0.1"), new byte[] { 1 });
+		rev1.setServer("127.0.0.1#" + dnsServer.getPort());
+		ReverseDdnsUpdate rev2 = new ReverseDdnsUpdate("host2.example.com.",
+				InetAddress.getByName("192.168.0.2"), new byte[] { 2 });
+		rev2.setServer("127.0.0.1#" + dnsServer.getPort());
+		assertSame(rev1.createResolver(), rev2.createResolver());
+		rev2.setTsigKeyName("key.example.com.");
+		rev2.setTsigKeyData("3BE05CzQLXTm5ouGljhJeQ==");
+		assertNotSame(rev1.createResolver(), rev2.createResolver());
+		assertTrue(rev1.sendAdd());
+		assertEquals(1, dnsServer.updates.size());
+
+		// a new timeout is used without clearing the resolvers
+		Resolver res = rev1.createResolver();
+		DhcpServerPolicies.setProperty(Property.DDNS_TIMEOUT, "400");
+		assertNotSame(res, rev1.createResolver());
+	}
+}